@@ -17,15 +17,27 @@ package org.couchbase.mock;
 
 import org.couchbase.mock.http.BucketAdminServer;
 import org.couchbase.mock.http.capi.CAPIServer;
+import org.couchbase.mock.httpio.ResponseCompression;
 import org.couchbase.mock.memcached.*;
 import org.couchbase.mock.memcached.protocol.ErrorCode;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Abstract class for all bucket types in Couchbase.
@@ -47,16 +59,126 @@ public abstract class Bucket {
         COUCHBASE
     }
 
+    /**
+     * An immutable, serialized configuration of the bucket. A snapshot is built when the
+     * configuration is first requested after a topology change, and is then shared by every
+     * consumer (REST, streaming and CCCP) until the next change.
+     */
+    public static final class ConfigSnapshot {
+        private final long rev;
+        private final String etag;
+        private final String json;
+        private final byte[] bytes;
+        private volatile byte[] compressed;
+        private final ConcurrentMap<String, byte[]> hostBytes = new ConcurrentHashMap<String, byte[]>();
+
+        ConfigSnapshot(String uuid, long rev, String json) {
+            this.rev = rev;
+            this.etag = "W/\"" + uuid + "-" + rev + "\"";
+            this.json = json;
+            this.bytes = json.getBytes(UTF8);
+        }
+
+        /** @return The revision of the configuration, which increases with every topology change */
+        public long getRev() {
+            return rev;
+        }
+
+        /** @return The configuration as a JSON string */
+        public String getJSON() {
+            return json;
+        }
+
+        /** @return The UTF-8 encoded configuration. The array must not be modified */
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return An HTTP entity tag identifying this configuration. It is weak, as the
+         * configuration may be sent compressed
+         */
+        public String getETag() {
+            return etag;
+        }
+
+        /** @return The UTF-8 encoded configuration compressed with gzip. The array must not be modified */
+        public byte[] getCompressedBytes() {
+            byte[] ret = compressed;
+            if (ret == null) {
+                ret = ResponseCompression.gzip(bytes);
+                compressed = ret;
+            }
+            return ret;
+        }
+
+        /**
+         * Get the configuration as sent over a node's memcached port, in which the node's own
+         * hostname is replaced by {@code $HOST}
+         * @param hostname The hostname of the node
+         * @return The UTF-8 encoded configuration. The array must not be modified
+         */
+        public byte[] getBytesForHost(String hostname) {
+            byte[] ret = hostBytes.get(hostname);
+            if (ret == null) {
+                ret = json.replaceAll(Pattern.quote(hostname), Matcher.quoteReplacement("$HOST")).getBytes(UTF8);
+                hostBytes.put(hostname, ret);
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Notified when the vBucket map or the list of active nodes of a bucket changes
+     */
+    public interface TopologyListener {
+        /**
+         * Called from the topology notification thread. Changes arriving within
+         * {@link #TOPOLOGY_DEBOUNCE_MS} of each other are reported once
+         * @param bucket The bucket
+         * @param snapshot The configuration of the bucket after the change
+         */
+        void topologyChanged(Bucket bucket, ConfigSnapshot snapshot);
+    }
+
+    /**
+     * How long to wait after a topology change before notifying listeners, so that a burst
+     * of changes results in a single notification
+     */
+    public static final long TOPOLOGY_DEBOUNCE_MS = 50;
+
+    private static final ScheduledExecutorService TOPOLOGY_NOTIFIER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thr = new Thread(r, "Topology notifier");
+            thr.setDaemon(true);
+            return thr;
+        }
+    });
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     protected final VBucketInfo vbInfo[];
     protected final MemcachedServer servers[];
     protected final int numVBuckets;
     protected final int numReplicas;
+    protected final int devViewVBuckets;
     protected final String poolName = "default";
     protected final String name;
     protected final CouchbaseMock cluster;
     protected final String password;
     protected final ReentrantReadWriteLock configurationRwLock;
     private final UUID uuid;
+    /** Guarded by the configuration write lock */
+    private long configRev = 0;
+    private volatile ConfigSnapshot configSnapshot = null;
+    /** The active nodes followed by the nodes of each vBucket. Guarded by the configuration write lock */
+    private List<Object> topology = null;
+    private final AtomicBoolean topologyPending = new AtomicBoolean(false);
+    private final List<TopologyListener> topologyListeners = new CopyOnWriteArrayList<TopologyListener>();
+    private final Rebalancer rebalancer = new Rebalancer(this);
+    /** Shared by all nodes of the bucket */
+    private volatile Throttle throttle = null;
 
     /**
      * Returns the vBucket map for the given bucket. This is only relevant for {@link org.couchbase.mock.CouchbaseBucket}
@@ -66,6 +188,15 @@ public abstract class Bucket {
         return vbInfo;
     }
 
+    /**
+     * Get the number of vBuckets development views are built over
+     * @return The configured sample size
+     * @see BucketConfiguration#devViewVBuckets
+     */
+    public int getDevViewVBuckets() {
+        return devViewVBuckets;
+    }
+
     /**
      * Get the list of servers allocated for this bucket. This returns both active and inactive servers
      * @return an array of servers for this bucket.
@@ -151,6 +282,7 @@ public abstract class Bucket {
         name = config.name;
         numVBuckets = config.numVBuckets;
         numReplicas = config.numReplicas;
+        devViewVBuckets = config.devViewVBuckets;
         password = config.password;
 
         vbInfo = new VBucketInfo[numVBuckets];
@@ -167,13 +299,25 @@ public abstract class Bucket {
             throw new FileNotFoundException("I don't know about this type...");
         }
         for (int ii = 0; ii < servers.length; ii++) {
-            servers[ii] = new MemcachedServer(this,
-                    config.hostname,
-                    (config.bucketStartPort == 0 ? 0 : config.bucketStartPort + ii),
-                    vbInfo);
+            SharedKvPort kvPort = cluster == null ? null : cluster.getSharedKvPort(ii, config);
+            if (kvPort != null) {
+                servers[ii] = new MemcachedServer(this, kvPort, vbInfo);
+            } else {
+                servers[ii] = new MemcachedServer(this,
+                        config.hostname,
+                        (config.bucketStartPort == 0 ? 0 : config.bucketStartPort + ii),
+                        vbInfo);
+            }
+            addTopologyListener(servers[ii]);
         }
 
-        rebalance();
+        configurationRwLock.writeLock().lock();
+        try {
+            applyMap(computeTargetMap());
+            configChanged();
+        } finally {
+            configurationRwLock.writeLock().unlock();
+        }
     }
 
     /**
@@ -247,6 +391,7 @@ public abstract class Bucket {
      */
     protected Map<String,Object> getCommonConfig() {
         Map<String,Object> mm = new HashMap<String, Object>();
+        mm.put("rev", configRev);
         mm.put("replicaNumber", numReplicas);
         Map<String,Object> ramQuota = new HashMap<String, Object>();
         ramQuota.put("rawRAM", 1024 * 1024 * 100);
@@ -258,10 +403,100 @@ public abstract class Bucket {
     /**
      * Convenience method to get the JSON-encoded version of the configuration map.
      * @return An encoded JSON String
-     * @see {@link #getConfigMap()}
+     * @see {@link #getConfigSnapshot()}
      */
     public final String getJSON() {
-        return JsonUtils.encode(getConfigMap());
+        return getConfigSnapshot().getJSON();
+    }
+
+    /**
+     * Get the current configuration of the bucket, serialized. The configuration map is only
+     * built and encoded again after the topology of the bucket has changed.
+     * @return The current configuration
+     */
+    public ConfigSnapshot getConfigSnapshot() {
+        ConfigSnapshot ret = configSnapshot;
+        if (ret != null) {
+            return ret;
+        }
+        configurationRwLock.readLock().lock();
+        try {
+            ret = configSnapshot;
+            if (ret == null) {
+                ret = new ConfigSnapshot(uuid.toString(), configRev, JsonUtils.encode(getConfigMap()));
+                configSnapshot = ret;
+            }
+        } finally {
+            configurationRwLock.readLock().unlock();
+        }
+        return ret;
+    }
+
+    /**
+     * Discard the serialized configuration and bump its revision. Must be called with the
+     * configuration write lock held whenever the topology changes
+     */
+    protected void configChanged() {
+        configRev++;
+        configSnapshot = null;
+
+        List<Object> current = currentTopology();
+        if (current.equals(topology)) {
+            return;
+        }
+        topology = current;
+        if (topologyPending.compareAndSet(false, true)) {
+            TOPOLOGY_NOTIFIER.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    publishTopology();
+                }
+            }, TOPOLOGY_DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private List<Object> currentTopology() {
+        List<Object> ret = new ArrayList<Object>(vbInfo.length + 1);
+        ret.add(activeServers());
+        for (VBucketInfo vbi : vbInfo) {
+            List<MemcachedServer> nodes = new ArrayList<MemcachedServer>();
+            nodes.add(vbi.getOwner());
+            nodes.addAll(vbi.getReplicas());
+            ret.add(nodes);
+        }
+        return ret;
+    }
+
+    private void publishTopology() {
+        // Changes made from here on schedule another notification
+        topologyPending.set(false);
+        if (topologyListeners.isEmpty()) {
+            return;
+        }
+        ConfigSnapshot snapshot = getConfigSnapshot();
+        for (TopologyListener listener : topologyListeners) {
+            try {
+                listener.topologyChanged(this, snapshot);
+            } catch (RuntimeException ex) {
+                Logger.getLogger(Bucket.class.getName()).log(Level.WARNING, "Topology listener failed", ex);
+            }
+        }
+    }
+
+    /**
+     * Register a listener to be notified when the topology of the bucket changes
+     * @param listener The listener
+     */
+    public void addTopologyListener(TopologyListener listener) {
+        topologyListeners.add(listener);
+    }
+
+    /**
+     * Unregister a listener added with {@link #addTopologyListener(TopologyListener)}
+     * @param listener The listener
+     */
+    public void removeTopologyListener(TopologyListener listener) {
+        topologyListeners.remove(listener);
     }
 
     /**
@@ -299,13 +534,27 @@ public abstract class Bucket {
      *              (or {@link #getServers()} array; not the logical index
      *              within the vBucket map!
      *
-     * Note this will also automatically rebalance the cluster
+     * Note this will also automatically rebalance the cluster. The first active replica
+     * of each vBucket owned by the node is promoted immediately, while the rest of the
+     * vBucket map is moved in the background.
      */
     public void failover(int index) {
+        failover(index, false);
+    }
+
+    /**
+     * Fail over one of the bucket's nodes
+     * @param index The index of the node to fail over
+     * @param resetConnections Whether the node should close its client connections,
+     *                         rather than leave them without responses
+     * @see #failover(int)
+     */
+    public void failover(int index, boolean resetConnections) {
         configurationRwLock.writeLock().lock();
         try {
             if (index >= 0 && index < servers.length) {
-                servers[index].shutdown();
+                servers[index].shutdown(resetConnections);
+                promoteReplicas(servers[index]);
             }
             rebalance();
         } finally {
@@ -323,6 +572,7 @@ public abstract class Bucket {
         try {
             if (index >= 0 && index < servers.length) {
                 servers[index].startup();
+                configChanged();
             }
             rebalance();
         } finally {
@@ -330,16 +580,26 @@ public abstract class Bucket {
         }
     }
 
-    void start() {
+    void start() throws IOException {
+        EventLoopGroup group = cluster == null ? null : cluster.getEventLoopGroup();
         for (int ii = 0; ii < servers.length; ii++) {
             servers[ii].setName(String.format("%s:MCD[%d]", name, ii));
+            if (group != null) {
+                servers[ii].startOn(group);
+                continue;
+            }
             servers[ii].setDaemon(true);
             servers[ii].start();
         }
     }
 
     void stop() {
+        rebalancer.cancel();
         for (MemcachedServer t : servers) {
+            if (t.isOnEventLoop()) {
+                t.stopOnEventLoop();
+                continue;
+            }
             t.interrupt();
             do {
                 try {
@@ -369,37 +629,135 @@ public abstract class Bucket {
     }
 
     /**
-     * Issues a rebalance within the bucket. vBuckets which are mapped to failed-over
-     * nodes are relocated with their first replica being promoted to active.
+     * Remove a failed over node from the vBucket map, promoting the first active replica
+     * of each vBucket it owned. vBuckets without an active replica stay with the node until
+     * they are reassigned by the rebalance.
+     */
+    private void promoteReplicas(MemcachedServer failed) {
+        for (VBucketInfo vbi : vbInfo) {
+            List<MemcachedServer> replicas = vbi.getReplicas();
+            replicas.remove(failed);
+            if (vbi.getOwner() == failed) {
+                for (MemcachedServer replica : replicas) {
+                    if (replica.isActive()) {
+                        vbi.setOwner(replica);
+                        replicas.remove(replica);
+                        break;
+                    }
+                }
+            }
+            vbi.setReplicas(replicas);
+        }
+        configChanged();
+    }
+
+    /**
+     * Compute a new vBucket map over the active nodes, moving as few vBuckets as
+     * possible from the current map
+     * @return The nodes of each vBucket, starting with its owner, or null if there
+     * are no active nodes
+     */
+    private List<List<MemcachedServer>> computeTargetMap() {
+        List<MemcachedServer> nodes = activeServers();
+        if (nodes.isEmpty()) {
+            return null;
+        }
+        List<List<MemcachedServer>> current = new ArrayList<List<MemcachedServer>>(numVBuckets);
+        for (VBucketInfo vbi : vbInfo) {
+            List<MemcachedServer> chain = new ArrayList<MemcachedServer>();
+            if (vbi.getOwner() != null) {
+                chain.add(vbi.getOwner());
+                chain.addAll(vbi.getReplicas());
+            }
+            current.add(chain);
+        }
+        return VBucketMapGenerator.generate(current, nodes, numVBuckets, numReplicas);
+    }
+
+    private void applyMap(List<List<MemcachedServer>> target) {
+        if (target == null) {
+            return;
+        }
+        for (int ii = 0; ii < numVBuckets; ++ii) {
+            List<MemcachedServer> nodes = target.get(ii);
+            vbInfo[ii].setOwner(nodes.get(0));
+            vbInfo[ii].setReplicas(nodes.subList(1, nodes.size()));
+        }
+    }
+
+    /**
+     * Issues a rebalance within the bucket. The vBuckets of a Couchbase bucket are moved to
+     * their new nodes in the background, and each one switches over once its data has been
+     * copied; see {@link #awaitRebalance(long, java.util.concurrent.TimeUnit)}. Memcached
+     * buckets have no vBucket data and switch immediately.
      */
     final void rebalance() {
-        // Let's start distribute the vbuckets across the servers
         configurationRwLock.writeLock().lock();
         try {
-            List<MemcachedServer> nodes = activeServers();
-            for (int ii = 0; ii < numVBuckets; ++ii) {
-                Collections.shuffle(nodes);
-                vbInfo[ii].setOwner(nodes.get(0));
-                if (nodes.size() < 2) {
-                    continue;
-                }
-                List<MemcachedServer> replicas = nodes.subList(1, nodes.size());
-                if (replicas.size() > numReplicas) {
-                    replicas = replicas.subList(0, numReplicas);
-                }
-                vbInfo[ii].setReplicas(replicas);
+            List<List<MemcachedServer>> target = computeTargetMap();
+            if (target == null) {
+                return;
+            }
+            if (getType() == BucketType.MEMCACHED) {
+                applyMap(target);
+                configChanged();
+            } else {
+                rebalancer.start(target);
             }
         } finally {
             configurationRwLock.writeLock().unlock();
         }
     }
 
+    /**
+     * Wait for the rebalance in progress to complete
+     * @param timeout How long to wait
+     * @param unit The unit of {@code timeout}
+     * @return true if no rebalance is running
+     * @throws InterruptedException
+     */
+    public boolean awaitRebalance(long timeout, TimeUnit unit) throws InterruptedException {
+        return rebalancer.await(timeout, unit);
+    }
+
+    /**
+     * Get the progress of the rebalance in progress
+     * @return A map with the total number of vBuckets to move ({@code total}), the number
+     * already moved ({@code done}), and the fraction of its incoming vBuckets each node has
+     * taken over ({@code nodes}, keyed by node). Null if no rebalance is running
+     */
+    public Map<String, Object> getRebalanceProgress() {
+        return rebalancer.getProgress();
+    }
+
+    /**
+     * Set how many vBuckets future rebalances move at once
+     * @param concurrency The number of vBuckets. Must be at least 1
+     */
+    public void setRebalanceConcurrency(int concurrency) {
+        rebalancer.setConcurrency(concurrency);
+    }
+
+    /**
+     * Throttle rebalances by pausing between the chunks of items copied
+     * @param delay The pause, in milliseconds
+     */
+    public void setRebalanceDelay(int delay) {
+        rebalancer.setDelay(delay);
+    }
+
     public void regenCoords() {
-        for (VBucketInfo cur : vbInfo) {
-            cur.regenerateUuid();
-        }
-        for (MemcachedServer s : servers) {
-            s.getStorage().updateCoordinateInfo(vbInfo);
+        configurationRwLock.writeLock().lock();
+        try {
+            for (VBucketInfo cur : vbInfo) {
+                cur.regenerateUuid();
+            }
+            for (MemcachedServer s : servers) {
+                s.getStorage().updateCoordinateInfo(vbInfo);
+            }
+            configChanged();
+        } finally {
+            configurationRwLock.writeLock().unlock();
         }
     }
 
@@ -411,6 +769,22 @@ public abstract class Bucket {
         return password;
     }
 
+    /**
+     * Get the throttle shared by all nodes of the bucket
+     * @return The throttle, or null if the bucket is not throttled
+     */
+    public Throttle getThrottle() {
+        return throttle;
+    }
+
+    /**
+     * Limit the bandwidth and operation rate of all nodes of the bucket taken together
+     * @param throttle The throttle, or null to remove it
+     */
+    public void setThrottle(Throttle throttle) {
+        this.throttle = throttle;
+    }
+
     /** Get the name of the bucket */
     public String getName() {
         return name;
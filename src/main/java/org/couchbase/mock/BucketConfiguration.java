@@ -27,6 +27,10 @@ public class BucketConfiguration {
     /** The number of replicas for the bucket */
     public int numReplicas = 2;
 
+    /** The number of vBuckets development views are built over, unless queried with {@code full_set=true}.
+     * A negative value samples one sixteenth of the vBuckets, and zero indexes all vBuckets */
+    public int devViewVBuckets = -1;
+
     /** The type of the bucket (Couchbase or Memcached) */
     public Bucket.BucketType type = Bucket.BucketType.COUCHBASE;
 
@@ -65,6 +69,7 @@ public class BucketConfiguration {
         numVBuckets = other.numVBuckets;
         numNodes = other.numNodes;
         numReplicas = other.numReplicas;
+        devViewVBuckets = other.devViewVBuckets;
         type = other.type;
         hostname = other.hostname;
     }
@@ -18,6 +18,7 @@ package org.couchbase.mock;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.zip.CRC32;
@@ -46,6 +47,11 @@ public class CouchbaseBucket extends Bucket {
         return (short) vbKey;
     }
 
+    private static int indexOf(Map<MemcachedServer, Integer> indexes, MemcachedServer server) {
+        Integer ret = indexes.get(server);
+        return ret == null ? -1 : ret;
+    }
+
     @Override
     public Map<String,Object> getConfigMap() {
         Map<String, Object> map = getCommonConfig();
@@ -75,6 +81,7 @@ public class CouchbaseBucket extends Bucket {
                 svcsInfo.put("mgmt", cluster.getHttpPort());
                 svcsInfo.put("n1ql", cluster.getHttpPort());
                 svcsInfo.put("capi", cluster.getHttpPort());
+                svcsInfo.put("fts", cluster.getHttpPort());
             }
 
             nodes.add(nodeInfo);
@@ -99,14 +106,18 @@ public class CouchbaseBucket extends Bucket {
             serverList.add(server.getSocketName());
         }
         vbm.put("serverList", serverList);
+        Map<MemcachedServer, Integer> indexes = new IdentityHashMap<MemcachedServer, Integer>();
+        for (int ii = 0; ii < active.size(); ii++) {
+            indexes.put(active.get(ii), ii);
+        }
         ArrayList<ArrayList<Integer>> m = new ArrayList<ArrayList<Integer>>();
         for (short ii = 0; ii < numVBuckets; ++ii) {
             MemcachedServer master = vbInfo[ii].getOwner();
             List<MemcachedServer> replicas = vbInfo[ii].getReplicas();
             ArrayList<Integer> line = new ArrayList<Integer>();
-            line.add(active.indexOf(master));
+            line.add(indexOf(indexes, master));
             for (MemcachedServer replica : replicas) {
-                line.add(active.indexOf(replica));
+                line.add(indexOf(indexes, replica));
             }
 
             // If numReplicas is greater than list.size() - 1
@@ -21,8 +21,12 @@ import org.couchbase.mock.control.MockCommandDispatcher;
 import org.couchbase.mock.harakiri.HarakiriMonitor;
 import org.couchbase.mock.http.*;
 import org.couchbase.mock.http.capi.CAPIServer;
+import org.couchbase.mock.http.fts.SearchServer;
 import org.couchbase.mock.http.query.QueryServer;
 import org.couchbase.mock.httpio.HttpServer;
+import org.couchbase.mock.memcached.EventLoopGroup;
+import org.couchbase.mock.memcached.SharedKvPort;
+import org.couchbase.mock.memcached.SocketTuning;
 import org.couchbase.mock.util.Getopt;
 import org.couchbase.mock.util.Getopt.CommandLineOption;
 import org.couchbase.mock.util.Getopt.Entry;
@@ -60,6 +64,13 @@ public class CouchbaseMock {
 
     private int port = 8091;
     private HarakiriMonitor harakiriMonitor;
+    /** Number of shared event loop threads; -1 to give each node its own thread */
+    private int eventLoopThreads = -1;
+    private EventLoopGroup eventLoopGroup;
+    private boolean sharedKvPorts = false;
+    /** The shared KV ports, by node index. Created as buckets need them */
+    private final List<SharedKvPort> kvPorts = new ArrayList<SharedKvPort>();
+    private SocketTuning socketTuning = SocketTuning.defaults();
 
     /**
      * Tell the harakiri monitor to connect to the given address.
@@ -137,6 +148,82 @@ public class CouchbaseMock {
         return poolsHandler;
     }
 
+    /**
+     * Serve the memcached nodes of all buckets from a fixed group of shared event loop
+     * threads, rather than from one thread per node. This must be set before {@link #start()}
+     * @param threads The number of threads, or 0 for one per available processor
+     */
+    public void setEventLoopThreads(int threads) {
+        if (threads < 0) {
+            throw new IllegalArgumentException("Thread count must be >= 0");
+        }
+        if (eventLoopGroup != null) {
+            throw new IllegalStateException("Cannot change the event loop once started");
+        }
+        eventLoopThreads = threads == 0 ? Runtime.getRuntime().availableProcessors() : threads;
+    }
+
+    /**
+     * @return The group serving the memcached nodes, or null if each node runs its own thread
+     */
+    public EventLoopGroup getEventLoopGroup() {
+        return eventLoopGroup;
+    }
+
+    /**
+     * Have the nodes at the same position in all buckets listen on a single KV port, and
+     * let clients pick the bucket with SASL or {@code SELECT_BUCKET}. This implies
+     * {@link #setEventLoopThreads(int)}, with one thread per processor unless set otherwise.
+     * This must be set before {@link #start()}
+     * @param enabled Whether ports are shared
+     */
+    public void setSharedKvPorts(boolean enabled) {
+        if (eventLoopGroup != null) {
+            throw new IllegalStateException("Cannot change the KV ports once started");
+        }
+        sharedKvPorts = enabled;
+    }
+
+    /**
+     * Set the socket options and polling behavior of the memcached nodes, e.g.
+     * {@link SocketTuning#lowLatency()}. This must be set before {@link #start()}
+     * @param tuning The settings
+     */
+    public void setSocketTuning(SocketTuning tuning) {
+        if (eventLoopGroup != null) {
+            throw new IllegalStateException("Cannot change the socket tuning once started");
+        }
+        socketTuning = tuning;
+    }
+
+    public SocketTuning getSocketTuning() {
+        return socketTuning;
+    }
+
+    /**
+     * Get the shared KV port for a node, opening it if this is the first bucket to use it
+     * @param index The position of the node within its bucket
+     * @param config The configuration of the bucket. The port is bound to its hostname and
+     *               {@code bucketStartPort + index} (or an ephemeral port)
+     * @return The port, or null if ports are not shared
+     * @throws IOException If the port could not be opened
+     */
+    public synchronized SharedKvPort getSharedKvPort(int index, BucketConfiguration config) throws IOException {
+        if (!sharedKvPorts || eventLoopGroup == null) {
+            return null;
+        }
+        while (kvPorts.size() <= index) {
+            kvPorts.add(null);
+        }
+        SharedKvPort kvPort = kvPorts.get(index);
+        if (kvPort == null) {
+            kvPort = new SharedKvPort(eventLoopGroup, index, config.hostname,
+                    config.bucketStartPort == 0 ? 0 : config.bucketStartPort + index, authenticator);
+            kvPorts.set(index, kvPort);
+        }
+        return kvPort;
+    }
+
     /**
      * Get the default configuration for buckets. The default configuration is determined by values
      * passed to the constructor.
@@ -241,7 +328,8 @@ public class CouchbaseMock {
         poolsHandler = new PoolsHandler(this);
         poolsHandler.register(httpServer);
         httpServer.register("/mock/*", new ControlHandler(controlDispatcher));
-        httpServer.register("/query/*", new QueryServer());
+        httpServer.register("/query/*", new QueryServer(this));
+        httpServer.register("/api/*", new SearchServer(this));
     }
 
     /**
@@ -373,6 +461,13 @@ public class CouchbaseMock {
             System.exit(-1);
         }
 
+        if (sharedKvPorts && eventLoopThreads <= 0) {
+            eventLoopThreads = Runtime.getRuntime().availableProcessors();
+        }
+        if (eventLoopThreads > 0) {
+            eventLoopGroup = new EventLoopGroup(eventLoopThreads, socketTuning);
+        }
+
         for (BucketConfiguration config : initialConfigs.values()) {
             try {
                 createBucket(config);
@@ -416,6 +511,17 @@ public class CouchbaseMock {
         for (Bucket bucket : buckets.values()) {
             bucket.stop();
         }
+        synchronized (this) {
+            for (SharedKvPort kvPort : kvPorts) {
+                if (kvPort != null) {
+                    kvPort.close();
+                }
+            }
+            kvPorts.clear();
+        }
+        if (eventLoopGroup != null) {
+            eventLoopGroup.shutdown();
+        }
     }
 
     private static void printHelp() {
@@ -435,6 +541,16 @@ public class CouchbaseMock {
         o.printf("                      into the `default` bucket%n");
         o.printf("-E --empty            Initialize a blank cluster without any buckets. Buckets may then%n");
         o.printf("                      be later added via the REST API%n");
+        o.printf("-L --shared-event-loop Serve all nodes of all buckets from a shared group of threads%n");
+        o.printf("                      (one per processor) rather than a thread per node%n");
+        o.printf("   --event-loop-threads The number of threads for --shared-event-loop (implies it)%n");
+        o.printf("   --shared-kv-port   Serve all buckets of a node from a single KV port. Clients select%n");
+        o.printf("                      the bucket with SASL or SELECT_BUCKET (implies --shared-event-loop)%n");
+        o.printf("   --low-latency      Disable Nagle's algorithm for all connections, busy-poll for 50us%n");
+        o.printf("                      before blocking, and accept connections in batches%n");
+        o.printf("   --busy-poll        Microseconds to busy-poll before blocking. Default=0%n");
+        o.printf("   --sndbuf           The send buffer size of connections. Default=%d%n", SocketTuning.defaults().sendBufferSize);
+        o.printf("   --rcvbuf           The receive buffer size of connections. Default=%d%n", SocketTuning.defaults().receiveBufferSize);
         o.printf("%n");
         o.printf("=== -- bucket option ===%n");
         o.printf("Buckets descriptions is a comma-separated list of {name}:{password}:{bucket type} pairs.%n");
@@ -458,6 +574,12 @@ public class CouchbaseMock {
         String docsFile = null;
         boolean useBeerSample = false;
         boolean emptyCluster = false;
+        int eventLoopThreads = -1;
+        boolean sharedKvPorts = false;
+        SocketTuning tuning = SocketTuning.defaults();
+        int busyPoll = -1;
+        int sendBufferSize = -1;
+        int receiveBufferSize = -1;
 
         Getopt getopt = new Getopt();
         getopt.addOption(new CommandLineOption('h', "--host", true)).
@@ -470,6 +592,13 @@ public class CouchbaseMock {
                 addOption(new CommandLineOption('D', "--docs", true)).
                 addOption(new CommandLineOption('S', "--with-beer-sample", false)).
                 addOption(new CommandLineOption('E', "--empty", false)).
+                addOption(new CommandLineOption('L', "--shared-event-loop", false)).
+                addOption(new CommandLineOption('\0', "--event-loop-threads", true)).
+                addOption(new CommandLineOption('\0', "--shared-kv-port", false)).
+                addOption(new CommandLineOption('\0', "--low-latency", false)).
+                addOption(new CommandLineOption('\0', "--busy-poll", true)).
+                addOption(new CommandLineOption('\0', "--sndbuf", true)).
+                addOption(new CommandLineOption('\0', "--rcvbuf", true)).
                 addOption(new CommandLineOption('?', "--help", false));
 
         List<Entry> options = getopt.parse(args);
@@ -492,6 +621,22 @@ public class CouchbaseMock {
                 useBeerSample = true;
             } else if (e.key.equals("-E") || e.key.equals("--empty")) {
                 emptyCluster = true;
+            } else if (e.key.equals("-L") || e.key.equals("--shared-event-loop")) {
+                if (eventLoopThreads < 0) {
+                    eventLoopThreads = 0;
+                }
+            } else if (e.key.equals("--event-loop-threads")) {
+                eventLoopThreads = Integer.parseInt(e.value);
+            } else if (e.key.equals("--shared-kv-port")) {
+                sharedKvPorts = true;
+            } else if (e.key.equals("--low-latency")) {
+                tuning = SocketTuning.lowLatency();
+            } else if (e.key.equals("--busy-poll")) {
+                busyPoll = Integer.parseInt(e.value);
+            } else if (e.key.equals("--sndbuf")) {
+                sendBufferSize = Integer.parseInt(e.value);
+            } else if (e.key.equals("--rcvbuf")) {
+                receiveBufferSize = Integer.parseInt(e.value);
             } else if (e.key.equals("--harakiri-monitor")) {
                 int idx = e.value.indexOf(':');
                 if (idx == -1) {
@@ -509,6 +654,20 @@ public class CouchbaseMock {
             if (emptyCluster) {
                 mock.clearInitialConfigs();
             }
+            if (eventLoopThreads >= 0) {
+                mock.setEventLoopThreads(eventLoopThreads);
+            }
+            mock.setSharedKvPorts(sharedKvPorts);
+            if (busyPoll >= 0) {
+                tuning.busyPollMicros = busyPoll;
+            }
+            if (sendBufferSize > 0) {
+                tuning.sendBufferSize = sendBufferSize;
+            }
+            if (receiveBufferSize > 0) {
+                tuning.receiveBufferSize = receiveBufferSize;
+            }
+            mock.setSocketTuning(tuning);
 
             mock.start(docsFile, harakiriMonitorAddress, useBeerSample);
 
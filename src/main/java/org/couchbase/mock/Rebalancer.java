@@ -0,0 +1,448 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.couchbase.mock;
+
+import org.couchbase.mock.memcached.KeySpec;
+import org.couchbase.mock.memcached.MemcachedServer;
+import org.couchbase.mock.memcached.Storage;
+import org.couchbase.mock.memcached.VBucketInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Moves vBuckets between the nodes of a bucket in the background.
+ *
+ * A rebalance starts from a target vBucket map. Nodes which are to hold a vBucket but have no
+ * copy of it are first registered as pending replicas of its current owner, so that they receive
+ * its mutations from then on. The items the owner had at that point are then copied to them in
+ * chunks, and finally the vBucket's nodes are switched to the target at a checkpoint. Everything
+ * touching the owner's data runs on the owner's server thread, so no command interleaves with a
+ * step. Once all vBuckets are moved, nodes discard the vBuckets they no longer hold.
+ *
+ * Starting a new rebalance cancels the one in progress: vBuckets which were already moved stay
+ * where they are, and the new rebalance moves the rest.
+ */
+final class Rebalancer {
+    static final int DEFAULT_CONCURRENCY = 4;
+    /** How many items are copied in one step on the owner's thread */
+    static final int CHUNK_SIZE = 1000;
+
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thr = new Thread(r, "Rebalance " + THREAD_COUNTER.incrementAndGet());
+            thr.setDaemon(true);
+            return thr;
+        }
+    };
+
+    private final Bucket bucket;
+    private volatile int concurrency = DEFAULT_CONCURRENCY;
+    private volatile int delay = 0;
+    /** Guarded by this */
+    private Run current;
+
+    private static final class Move {
+        final short vb;
+        final MemcachedServer source;
+        final List<MemcachedServer> target;
+        /** Nodes which need a copy of the vBucket. Set on the source's thread */
+        List<MemcachedServer> receivers = Collections.emptyList();
+        List<KeySpec> keys = Collections.emptyList();
+        boolean stale = false;
+
+        Move(short vb, MemcachedServer source, List<MemcachedServer> target) {
+            this.vb = vb;
+            this.source = source;
+            this.target = target;
+        }
+    }
+
+    private final class Run implements Runnable {
+        private final List<Move> moves = new ArrayList<Move>();
+        private final Map<MemcachedServer, AtomicInteger[]> nodeProgress = new LinkedHashMap<MemcachedServer, AtomicInteger[]>();
+        private final AtomicInteger done = new AtomicInteger();
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private volatile boolean cancelled = false;
+        private Thread thread;
+        private ExecutorService workers;
+
+        Run(List<List<MemcachedServer>> target) {
+            VBucketInfo[] vbInfo = bucket.getVBucketInfo();
+            for (MemcachedServer server : bucket.activeServers()) {
+                nodeProgress.put(server, new AtomicInteger[] { new AtomicInteger(), new AtomicInteger() });
+            }
+            for (short vb = 0; vb < vbInfo.length; vb++) {
+                // Receivers of a cancelled rebalance are registered again if still needed
+                vbInfo[vb].setPendingReplicas(Collections.<MemcachedServer>emptyList());
+                List<MemcachedServer> nodes = target.get(vb);
+                List<MemcachedServer> currentNodes = new ArrayList<MemcachedServer>();
+                currentNodes.add(vbInfo[vb].getOwner());
+                currentNodes.addAll(vbInfo[vb].getReplicas());
+                if (currentNodes.equals(nodes)) {
+                    continue;
+                }
+                moves.add(new Move(vb, vbInfo[vb].getOwner(), nodes));
+                AtomicInteger[] progress = nodeProgress.get(nodes.get(0));
+                if (progress != null) {
+                    progress[0].incrementAndGet();
+                }
+            }
+        }
+
+        void start() {
+            thread = THREAD_FACTORY.newThread(this);
+            thread.start();
+        }
+
+        void cancel() {
+            cancelled = true;
+            if (thread != null) {
+                thread.interrupt();
+            }
+            synchronized (this) {
+                if (workers != null) {
+                    workers.shutdownNow();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                prepare();
+                moveAll();
+                if (!cancelled) {
+                    cleanup();
+                }
+            } catch (InterruptedException ex) {
+                // Cancelled
+            } catch (CancellationException ex) {
+                // A node was stopped
+            } catch (ExecutionException ex) {
+                if (!cancelled) {
+                    Logger.getLogger(Rebalancer.class.getName()).log(Level.WARNING, "Rebalance failed", ex.getCause());
+                }
+            } finally {
+                finished.countDown();
+            }
+        }
+
+        /**
+         * Register the nodes receiving each vBucket with its owner, and list the items to copy
+         */
+        private void prepare() throws InterruptedException, ExecutionException {
+            Map<MemcachedServer, List<Move>> bySource = new IdentityHashMap<MemcachedServer, List<Move>>();
+            for (Move move : moves) {
+                List<Move> l = bySource.get(move.source);
+                if (l == null) {
+                    l = new ArrayList<Move>();
+                    bySource.put(move.source, l);
+                }
+                l.add(move);
+            }
+
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (final Map.Entry<MemcachedServer, List<Move>> ent : bySource.entrySet()) {
+                if (!ent.getKey().isActive()) {
+                    // The data of a failed over node is gone; its vBuckets are only reassigned
+                    continue;
+                }
+                futures.add(ent.getKey().runOnServerThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        prepareSource(ent.getKey(), ent.getValue());
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        }
+
+        private void prepareSource(MemcachedServer source, List<Move> sourceMoves) {
+            VBucketInfo[] vbInfo = bucket.getVBucketInfo();
+            boolean[] vbs = new boolean[vbInfo.length];
+            Map<MemcachedServer, boolean[]> drops = new IdentityHashMap<MemcachedServer, boolean[]>();
+
+            for (Move move : sourceMoves) {
+                VBucketInfo vbi = vbInfo[move.vb];
+                if (cancelled || vbi.getOwner() != source) {
+                    move.stale = true;
+                    continue;
+                }
+                List<MemcachedServer> receivers = new ArrayList<MemcachedServer>();
+                for (MemcachedServer node : move.target) {
+                    if (!vbi.hasAccess(node)) {
+                        receivers.add(node);
+                        boolean[] drop = drops.get(node);
+                        if (drop == null) {
+                            drop = new boolean[vbInfo.length];
+                            drops.put(node, drop);
+                        }
+                        drop[move.vb] = true;
+                    }
+                }
+                move.receivers = receivers;
+                vbs[move.vb] = !receivers.isEmpty();
+            }
+
+            for (Map.Entry<MemcachedServer, boolean[]> ent : drops.entrySet()) {
+                ent.getKey().getStorage().dropVBuckets(ent.getValue());
+            }
+            Storage storage = source.getStorage();
+            for (Move move : sourceMoves) {
+                if (move.stale) {
+                    continue;
+                }
+                for (MemcachedServer receiver : move.receivers) {
+                    receiver.getStorage().prepareTakeover(move.vb, storage);
+                }
+                vbInfo[move.vb].setPendingReplicas(move.receivers);
+            }
+
+            Map<Short, List<KeySpec>> keys = storage.getKeysByVBucket(vbs);
+            for (Move move : sourceMoves) {
+                List<KeySpec> l = keys.get(move.vb);
+                if (l != null) {
+                    move.keys = l;
+                }
+            }
+        }
+
+        private void moveAll() throws InterruptedException, ExecutionException {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                workers = Executors.newFixedThreadPool(Math.max(1, concurrency), THREAD_FACTORY);
+                for (final Move move : moves) {
+                    futures.add(workers.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                move(move);
+                            } catch (InterruptedException ex) {
+                                Thread.currentThread().interrupt();
+                            } catch (ExecutionException ex) {
+                                throw new IllegalStateException(ex.getCause());
+                            }
+                        }
+                    }));
+                }
+                workers.shutdown();
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        }
+
+        private void move(final Move move) throws InterruptedException, ExecutionException {
+            if (move.stale) {
+                return;
+            }
+            for (int i = 0; i < move.keys.size() && !move.receivers.isEmpty(); i += CHUNK_SIZE) {
+                if (cancelled) {
+                    return;
+                }
+                final List<KeySpec> chunk = move.keys.subList(i, Math.min(i + CHUNK_SIZE, move.keys.size()));
+                runOnSource(move, new Runnable() {
+                    @Override
+                    public void run() {
+                        for (MemcachedServer receiver : move.receivers) {
+                            move.source.getStorage().copyItems(chunk, receiver.getStorage());
+                        }
+                    }
+                });
+                int pause = delay;
+                if (pause > 0) {
+                    Thread.sleep(pause);
+                }
+            }
+
+            runOnSource(move, new Runnable() {
+                @Override
+                public void run() {
+                    checkpoint(move);
+                }
+            });
+        }
+
+        private void runOnSource(Move move, Runnable task) throws InterruptedException, ExecutionException {
+            if (move.source.isActive()) {
+                move.source.runOnServerThread(task).get();
+            } else {
+                task.run();
+            }
+        }
+
+        private void checkpoint(Move move) {
+            bucket.configurationRwLock.writeLock().lock();
+            try {
+                VBucketInfo vbi = bucket.getVBucketInfo()[move.vb];
+                if (cancelled || vbi.getOwner() != move.source) {
+                    return;
+                }
+                for (MemcachedServer node : move.target) {
+                    if (!node.isActive()) {
+                        return;
+                    }
+                }
+                vbi.setOwner(move.target.get(0));
+                vbi.setReplicas(move.target.subList(1, move.target.size()));
+                vbi.setPendingReplicas(Collections.<MemcachedServer>emptyList());
+                bucket.configChanged();
+            } finally {
+                bucket.configurationRwLock.writeLock().unlock();
+            }
+            done.incrementAndGet();
+            AtomicInteger[] progress = nodeProgress.get(move.target.get(0));
+            if (progress != null) {
+                progress[1].incrementAndGet();
+            }
+        }
+
+        /**
+         * Discard the vBuckets each node no longer holds. The write lock keeps a new
+         * rebalance from registering receivers meanwhile
+         */
+        private void cleanup() {
+            bucket.configurationRwLock.writeLock().lock();
+            try {
+                if (cancelled) {
+                    return;
+                }
+                VBucketInfo[] vbInfo = bucket.getVBucketInfo();
+                for (MemcachedServer server : bucket.getServers()) {
+                    boolean[] drop = new boolean[vbInfo.length];
+                    boolean any = false;
+                    for (int vb = 0; vb < vbInfo.length; vb++) {
+                        if (!vbInfo[vb].hasAccess(server) && !vbInfo[vb].getPendingReplicas().contains(server)) {
+                            drop[vb] = true;
+                            any = true;
+                        }
+                    }
+                    if (any) {
+                        server.getStorage().dropVBuckets(drop);
+                    }
+                }
+            } finally {
+                bucket.configurationRwLock.writeLock().unlock();
+            }
+        }
+
+        Map<String, Object> getProgress() {
+            Map<String, Object> ret = new HashMap<String, Object>();
+            ret.put("total", moves.size());
+            ret.put("done", done.get());
+            Map<String, Object> nodes = new LinkedHashMap<String, Object>();
+            for (Map.Entry<MemcachedServer, AtomicInteger[]> ent : nodeProgress.entrySet()) {
+                int total = ent.getValue()[0].get();
+                double progress = total == 0 ? 1.0 : (double) ent.getValue()[1].get() / total;
+                nodes.put(ent.getKey().getSocketName(), progress);
+            }
+            ret.put("nodes", nodes);
+            return ret;
+        }
+    }
+
+    Rebalancer(Bucket bucket) {
+        this.bucket = bucket;
+    }
+
+    /**
+     * Start moving vBuckets to a new map, cancelling any rebalance in progress. The
+     * configuration write lock must be held
+     * @param target The nodes of each vBucket, starting with its owner
+     */
+    synchronized void start(List<List<MemcachedServer>> target) {
+        if (current != null) {
+            current.cancel();
+        }
+        current = new Run(target);
+        current.start();
+    }
+
+    /**
+     * Cancel the rebalance in progress, if any
+     */
+    synchronized void cancel() {
+        if (current != null) {
+            current.cancel();
+        }
+    }
+
+    /**
+     * Wait for the current rebalance to complete
+     * @param timeout How long to wait
+     * @param unit The unit of {@code timeout}
+     * @return true if there is no rebalance running
+     */
+    boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        Run run;
+        synchronized (this) {
+            run = current;
+        }
+        return run == null || run.finished.await(timeout, unit);
+    }
+
+    /**
+     * @return The progress of the current rebalance, or null if none is running
+     */
+    Map<String, Object> getProgress() {
+        Run run;
+        synchronized (this) {
+            run = current;
+        }
+        if (run == null || run.finished.getCount() == 0) {
+            return null;
+        }
+        return run.getProgress();
+    }
+
+    void setConcurrency(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be at least 1");
+        }
+        this.concurrency = concurrency;
+    }
+
+    void setDelay(int delay) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("Delay must be >= 0");
+        }
+        this.delay = delay;
+    }
+}
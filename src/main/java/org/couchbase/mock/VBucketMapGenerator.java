@@ -0,0 +1,259 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.couchbase.mock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes vBucket maps.
+ *
+ * Active and replica vBuckets are each spread evenly over the nodes: every node holds either
+ * {@code floor(n/nodes)} or {@code ceil(n/nodes)} of them. A node never holds more than one
+ * copy of a vBucket.
+ *
+ * The map is derived from the current one, keeping every assignment the balance allows. When
+ * a node goes away, only the vBuckets it held are reassigned, preferring to promote a replica
+ * over copying the data; when a node comes back, only the vBuckets it takes over move. The
+ * result depends only on the current map and the node order, so a given sequence of topology
+ * changes always yields the same map.
+ */
+final class VBucketMapGenerator {
+    private VBucketMapGenerator() {
+    }
+
+    /**
+     * Per-node counters of one kind of assignment (active or replica)
+     */
+    private static final class Quota<T> {
+        private final Map<T, Integer> index = new HashMap<T, Integer>();
+        private final int[] limit;
+        private final int[] used;
+
+        /**
+         * @param nodes The nodes
+         * @param total The total number of assignments
+         * @param current How many assignments each node currently has. Nodes with more
+         *                assignments get the larger share, so that fewer of them move
+         */
+        Quota(final List<T> nodes, int total, final int[] current) {
+            limit = new int[nodes.size()];
+            used = new int[nodes.size()];
+            List<Integer> order = new ArrayList<Integer>(nodes.size());
+            for (int i = 0; i < nodes.size(); i++) {
+                index.put(nodes.get(i), i);
+                order.add(i);
+            }
+            Collections.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    if (current[a] != current[b]) {
+                        return current[b] - current[a];
+                    }
+                    return a - b;
+                }
+            });
+            int extra = total % nodes.size();
+            for (int i = 0; i < order.size(); i++) {
+                limit[order.get(i)] = total / nodes.size() + (i < extra ? 1 : 0);
+            }
+        }
+
+        boolean tryTake(T node) {
+            Integer ix = index.get(node);
+            if (ix == null || used[ix] >= limit[ix]) {
+                return false;
+            }
+            used[ix]++;
+            return true;
+        }
+
+        void take(int ix) {
+            used[ix]++;
+        }
+
+        void release(int ix) {
+            used[ix]--;
+        }
+
+        int remaining(int ix) {
+            return limit[ix] - used[ix];
+        }
+    }
+
+    /**
+     * Compute a vBucket map
+     * @param current The current nodes of each vBucket, starting with its owner. Nodes which
+     *                are not in {@code nodes} are ignored. An empty list computes a new map
+     * @param nodes The nodes to distribute the vBuckets over
+     * @param numVBuckets The number of vBuckets
+     * @param numReplicas The number of replicas of each vBucket. There are fewer if there are
+     *                    not enough nodes
+     * @return The nodes of each vBucket, starting with its owner
+     */
+    static <T> List<List<T>> generate(List<List<T>> current, List<T> nodes, int numVBuckets, int numReplicas) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("No nodes");
+        }
+        int replicas = Math.max(0, Math.min(numReplicas, nodes.size() - 1));
+        List<List<T>> ret = new ArrayList<List<T>>(numVBuckets);
+        for (int vb = 0; vb < numVBuckets; vb++) {
+            ret.add(new ArrayList<T>(replicas + 1));
+        }
+
+        Map<T, Integer> index = new HashMap<T, Integer>();
+        for (int i = 0; i < nodes.size(); i++) {
+            index.put(nodes.get(i), i);
+        }
+        int[] activeCount = new int[nodes.size()];
+        int[] replicaCount = new int[nodes.size()];
+        for (List<T> chain : current) {
+            for (int i = 0; i < chain.size(); i++) {
+                Integer ix = index.get(chain.get(i));
+                if (ix == null) {
+                    continue;
+                }
+                if (i == 0) {
+                    activeCount[ix]++;
+                } else if (i <= replicas) {
+                    replicaCount[ix]++;
+                }
+            }
+        }
+
+        // Keep the owners the balance allows, then assign the others, preferring a node
+        // which already has a copy of the vBucket
+        Quota<T> actives = new Quota<T>(nodes, numVBuckets, activeCount);
+        List<Integer> orphans = new ArrayList<Integer>();
+        for (int vb = 0; vb < numVBuckets; vb++) {
+            List<T> chain = vb < current.size() ? current.get(vb) : Collections.<T>emptyList();
+            if (!chain.isEmpty() && actives.tryTake(chain.get(0))) {
+                ret.get(vb).add(chain.get(0));
+            } else {
+                orphans.add(vb);
+            }
+        }
+        for (int vb : orphans) {
+            List<T> chain = vb < current.size() ? current.get(vb) : Collections.<T>emptyList();
+            T owner = null;
+            for (int i = 1; i < chain.size() && owner == null; i++) {
+                if (actives.tryTake(chain.get(i))) {
+                    owner = chain.get(i);
+                }
+            }
+            if (owner == null) {
+                int ix = pick(actives, ret.get(vb), nodes, 0);
+                actives.take(ix);
+                owner = nodes.get(ix);
+            }
+            ret.get(vb).add(owner);
+        }
+
+        if (replicas == 0) {
+            return ret;
+        }
+
+        // Likewise for the replicas, keeping their order. A previous owner which still has
+        // the data may stay on as a replica. The vBuckets of owners with the fewest replicas
+        // (typically new nodes) go first, so that the vBuckets left with free replica slots
+        // are ones those nodes may fill
+        final int[] ownerReplicas = new int[numVBuckets];
+        List<Integer> order = new ArrayList<Integer>(numVBuckets);
+        for (int vb = 0; vb < numVBuckets; vb++) {
+            ownerReplicas[vb] = replicaCount[index.get(ret.get(vb).get(0))];
+            order.add(vb);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                if (ownerReplicas[a] != ownerReplicas[b]) {
+                    return ownerReplicas[a] - ownerReplicas[b];
+                }
+                return a - b;
+            }
+        });
+
+        Quota<T> replicaQuota = new Quota<T>(nodes, numVBuckets * replicas, replicaCount);
+        // Keep one replica per vBucket at a time, so that the replicas which do not fit
+        // are spread over many vBuckets
+        for (int round = 1; round <= replicas; round++) {
+            for (int vb : order) {
+                List<T> chain = vb < current.size() ? current.get(vb) : Collections.<T>emptyList();
+                List<T> target = ret.get(vb);
+                for (int i = 0; i < chain.size() && target.size() <= round; i++) {
+                    T node = chain.get(i);
+                    if (!target.contains(node) && replicaQuota.tryTake(node)) {
+                        target.add(node);
+                    }
+                }
+            }
+        }
+        for (int vb = 0; vb < numVBuckets; vb++) {
+            List<T> target = ret.get(vb);
+            while (target.size() <= replicas) {
+                // Rotate the preferred nodes, so that each node's replicas are spread over
+                // the other nodes rather than paired with a single one
+                int start = index.get(target.get(0)) + target.size() + vb / nodes.size();
+                int ix = pick(replicaQuota, target, nodes, start);
+                replicaQuota.take(ix);
+                target.add(nodes.get(ix));
+            }
+        }
+
+        // A node may have had to exceed its quota where the nodes with room already held
+        // the vBucket. Hand those replicas over to nodes with room elsewhere
+        for (int vb = 0; vb < numVBuckets; vb++) {
+            List<T> target = ret.get(vb);
+            for (int i = 1; i < target.size(); i++) {
+                int over = index.get(target.get(i));
+                if (replicaQuota.remaining(over) >= 0) {
+                    continue;
+                }
+                for (int ix = 0; ix < nodes.size(); ix++) {
+                    if (replicaQuota.remaining(ix) > 0 && !target.contains(nodes.get(ix))) {
+                        replicaQuota.release(over);
+                        replicaQuota.take(ix);
+                        target.set(i, nodes.get(ix));
+                        break;
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Pick the node with the most remaining quota which does not hold the vBucket yet.
+     * Ties go to the first node from {@code start}
+     */
+    private static <T> int pick(Quota<T> quota, List<T> chain, List<T> nodes, int start) {
+        int best = -1;
+        for (int i = 0; i < nodes.size(); i++) {
+            int ix = (start + i) % nodes.size();
+            if (chain.contains(nodes.get(ix))) {
+                continue;
+            }
+            if (best == -1 || quota.remaining(ix) > quota.remaining(best)) {
+                best = ix;
+            }
+        }
+        return best;
+    }
+}
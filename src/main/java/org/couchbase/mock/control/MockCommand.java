@@ -66,7 +66,11 @@ public abstract class MockCommand {
         SET_CCCP,
         GET_MCPORTS,
         REGEN_VBCOORDS,
-        RESET_QUERYSTATE
+        RESET_QUERYSTATE,
+        GET_VIEW_CACHE_STATS,
+        SET_REBALANCE,
+        SET_LATENCY,
+        SET_THROTTLE
     }
 
     /**
@@ -65,6 +65,10 @@ public class MockCommandDispatcher {
         registerClass(MockCommand.Command.GET_MCPORTS, GetMCPortsHandler.class);
         registerClass(MockCommand.Command.REGEN_VBCOORDS, RegenCoordsHandler.class);
         registerClass(MockCommand.Command.RESET_QUERYSTATE, ResetQueryStateHandler.class);
+        registerClass(MockCommand.Command.GET_VIEW_CACHE_STATS, ViewCacheStatsHandler.class);
+        registerClass(MockCommand.Command.SET_REBALANCE, RebalanceCommandHandler.class);
+        registerClass(MockCommand.Command.SET_LATENCY, LatencyCommandHandler.class);
+        registerClass(MockCommand.Command.SET_THROTTLE, ThrottleCommandHandler.class);
     }
 
 
@@ -26,7 +26,8 @@ public final class FailoverCommandHandler extends BucketCommandHandler {
     @Override
     public CommandStatus execute(@NotNull CouchbaseMock mock, @NotNull Command command, @NotNull JsonObject payload) {
         super.execute(mock, command, payload);
-        bucket.failover(idx);
+        boolean reset = payload.has("reset") && payload.get("reset").getAsBoolean();
+        bucket.failover(idx, reset);
         return getResponse();
     }
 }
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.control.handlers;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import org.couchbase.mock.Bucket;
+import org.couchbase.mock.CouchbaseMock;
+import org.couchbase.mock.control.CommandStatus;
+import org.couchbase.mock.control.MockCommand;
+import org.couchbase.mock.memcached.LatencyDistribution;
+import org.couchbase.mock.memcached.MemcachedServer;
+import org.couchbase.mock.memcached.protocol.CommandCode;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Injects latency into the responses of memcached nodes
+ */
+public class LatencyCommandHandler extends MockCommand {
+    private static JsonElement require(JsonObject payload, String name) {
+        if (!payload.has(name)) {
+            throw new IllegalArgumentException("Missing parameter: " + name);
+        }
+        return payload.get(name);
+    }
+
+    private static LatencyDistribution parseDistribution(JsonObject payload) {
+        String dist = require(payload, "dist").getAsString();
+        if (dist.equals("none")) {
+            return null;
+        } else if (dist.equals("fixed")) {
+            return LatencyDistribution.fixed(require(payload, "msecs").getAsDouble());
+        } else if (dist.equals("uniform")) {
+            return LatencyDistribution.uniform(require(payload, "min").getAsDouble(), require(payload, "max").getAsDouble());
+        } else if (dist.equals("lognormal")) {
+            return LatencyDistribution.logNormal(require(payload, "median").getAsDouble(), require(payload, "sigma").getAsDouble());
+        }
+        throw new IllegalArgumentException("Unknown distribution: " + dist);
+    }
+
+    private static CommandCode parseOpcode(JsonPrimitive opcode) {
+        CommandCode cc;
+        if (opcode.isNumber()) {
+            cc = CommandCode.valueOf(opcode.getAsInt());
+        } else {
+            cc = CommandCode.valueOf(opcode.getAsString().toUpperCase());
+        }
+        if (cc == CommandCode.ILLEGAL) {
+            throw new IllegalArgumentException("Unknown opcode: " + opcode);
+        }
+        return cc;
+    }
+
+    @NotNull
+    @Override
+    public CommandStatus execute(@NotNull CouchbaseMock mock, @NotNull Command command, @NotNull JsonObject payload) {
+        Collection<Bucket> buckets;
+        if (payload.has("bucket")) {
+            Bucket bucket = mock.getBuckets().get(payload.get("bucket").getAsString());
+            if (bucket == null) {
+                return new CommandStatus().fail("No such bucket: " + payload.get("bucket").getAsString());
+            }
+            buckets = new ArrayList<Bucket>();
+            buckets.add(bucket);
+        } else {
+            buckets = mock.getBuckets().values();
+        }
+
+        List<Integer> serverList = new LinkedList<Integer>();
+        if (payload.has("servers")) {
+            for (JsonElement ix : payload.get("servers").getAsJsonArray()) {
+                serverList.add(ix.getAsInt());
+            }
+        }
+
+        boolean clear = payload.has("clear") && payload.get("clear").getAsBoolean();
+        CommandCode opcode = null;
+        short vbucket = -1;
+        LatencyDistribution dist = null;
+        try {
+            if (!clear) {
+                if (payload.has("opcode")) {
+                    opcode = parseOpcode(payload.get("opcode").getAsJsonPrimitive());
+                }
+                if (payload.has("vbucket")) {
+                    vbucket = payload.get("vbucket").getAsShort();
+                    if (vbucket < 0) {
+                        throw new IllegalArgumentException("vBucket must be >= 0");
+                    }
+                }
+                if (opcode != null && vbucket >= 0) {
+                    throw new IllegalArgumentException("Latency may be set by opcode or by vBucket, not both");
+                }
+                dist = parseDistribution(payload);
+            }
+        } catch (IllegalArgumentException ex) {
+            return new CommandStatus().fail(ex.getMessage());
+        }
+
+        for (Bucket bucket : buckets) {
+            MemcachedServer[] servers = bucket.getServers();
+            for (int ii = 0; ii < servers.length; ii++) {
+                if (serverList.size() > 0 && !serverList.contains(ii)) {
+                    continue;
+                }
+                if (clear) {
+                    servers[ii].clearLatency();
+                } else {
+                    servers[ii].setLatency(opcode, vbucket, dist);
+                }
+            }
+        }
+        return new CommandStatus();
+    }
+}
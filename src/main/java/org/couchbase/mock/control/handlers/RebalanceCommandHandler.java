@@ -0,0 +1,56 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.control.handlers;
+
+import com.google.gson.JsonObject;
+import org.couchbase.mock.Bucket;
+import org.couchbase.mock.CouchbaseMock;
+import org.couchbase.mock.control.CommandStatus;
+import org.couchbase.mock.control.MockCommand;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Throttles the background data movement of a bucket's rebalances
+ */
+public class RebalanceCommandHandler extends MockCommand {
+    @NotNull
+    @Override
+    public CommandStatus execute(@NotNull CouchbaseMock mock, @NotNull Command command, @NotNull JsonObject payload) {
+        String name;
+        if (payload.has("bucket")) {
+            name = payload.get("bucket").getAsString();
+        } else {
+            name = "default";
+        }
+
+        Bucket bucket = mock.getBuckets().get(name);
+        if (bucket == null) {
+            return new CommandStatus().fail("No such bucket: " + name);
+        }
+        try {
+            if (payload.has("concurrency")) {
+                bucket.setRebalanceConcurrency(payload.get("concurrency").getAsInt());
+            }
+            if (payload.has("delay")) {
+                bucket.setRebalanceDelay(payload.get("delay").getAsInt());
+            }
+        } catch (IllegalArgumentException ex) {
+            return new CommandStatus().fail(ex.getMessage());
+        }
+        return new CommandStatus();
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.control.handlers;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.couchbase.mock.Bucket;
+import org.couchbase.mock.CouchbaseMock;
+import org.couchbase.mock.control.CommandStatus;
+import org.couchbase.mock.control.MockCommand;
+import org.couchbase.mock.memcached.MemcachedServer;
+import org.couchbase.mock.memcached.Throttle;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Limits the bandwidth and operation rate of memcached nodes
+ */
+public class ThrottleCommandHandler extends MockCommand {
+    @NotNull
+    @Override
+    public CommandStatus execute(@NotNull CouchbaseMock mock, @NotNull Command command, @NotNull JsonObject payload) {
+        Collection<Bucket> buckets;
+        if (payload.has("bucket")) {
+            Bucket bucket = mock.getBuckets().get(payload.get("bucket").getAsString());
+            if (bucket == null) {
+                return new CommandStatus().fail("No such bucket: " + payload.get("bucket").getAsString());
+            }
+            buckets = new ArrayList<Bucket>();
+            buckets.add(bucket);
+        } else {
+            buckets = mock.getBuckets().values();
+        }
+
+        List<Integer> serverList = new LinkedList<Integer>();
+        if (payload.has("servers")) {
+            for (JsonElement ix : payload.get("servers").getAsJsonArray()) {
+                serverList.add(ix.getAsInt());
+            }
+        }
+
+        Throttle.Scope scope = Throttle.Scope.NODE;
+        Throttle throttle = null;
+        try {
+            if (payload.has("scope")) {
+                scope = Throttle.Scope.valueOf(payload.get("scope").getAsString().toUpperCase());
+            }
+            long bytes = payload.has("bytes") ? payload.get("bytes").getAsLong() : 0;
+            long ops = payload.has("ops") ? payload.get("ops").getAsLong() : 0;
+            if (bytes != 0 || ops != 0) {
+                throttle = new Throttle(bytes, ops);
+            }
+        } catch (IllegalArgumentException ex) {
+            return new CommandStatus().fail(ex.getMessage());
+        }
+
+        for (Bucket bucket : buckets) {
+            if (scope == Throttle.Scope.BUCKET) {
+                bucket.setThrottle(throttle);
+                continue;
+            }
+            MemcachedServer[] servers = bucket.getServers();
+            for (int ii = 0; ii < servers.length; ii++) {
+                if (serverList.size() > 0 && !serverList.contains(ii)) {
+                    continue;
+                }
+                servers[ii].setThrottle(scope, throttle);
+            }
+        }
+        return new CommandStatus();
+    }
+}
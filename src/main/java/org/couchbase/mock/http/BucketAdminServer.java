@@ -15,7 +15,6 @@ import org.couchbase.mock.httpio.ResponseHandledException;
 import org.couchbase.mock.memcached.MemcachedServer;
 
 import java.io.IOException;
-import java.net.Socket;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -25,6 +24,7 @@ public final class BucketAdminServer {
     private final HttpAuthVerifier verifier;
     private final Bucket bucket;
     private final HttpServer parentServer;
+    private final BucketsStreamingHandler streamingHandler;
 
     private class StreamingHandler implements HttpRequestHandler {
         @Override
@@ -43,14 +43,7 @@ public final class BucketAdminServer {
             htConn.sendResponseHeader(response);
             htConn.flush();
 
-            Socket s = HandlerUtil.getSocket(context);
-            BucketsStreamingHandler streamingHandler = new BucketsStreamingHandler(mock.getMonitor(),bucket, s);
-
-            try {
-                streamingHandler.startStreaming();
-            } catch (InterruptedException ex) {
-                throw new IOException(ex);
-            }
+            streamingHandler.startStreaming(context);
             // Ensure it doesn't get processed
             throw new ResponseHandledException();
         }
@@ -63,7 +56,10 @@ public final class BucketAdminServer {
             }
             String methodName = req.getRequestLine().getMethod();
             if (methodName.equals("GET")) {
-                HandlerUtil.makeJsonResponse(response, StateGrabber.getBucketJSON(bucket));
+                Bucket.ConfigSnapshot snapshot = bucket.getConfigSnapshot();
+                if (!HandlerUtil.checkNotModified(req, response, snapshot.getETag())) {
+                    HandlerUtil.makeJsonResponse(response, snapshot.getBytes(), snapshot.getCompressedBytes());
+                }
             } else if (methodName.equals("DELETE")) {
                 mock.getPoolsHandler().handleDeleteBucket(req, response, context, bucket);
             } else {
@@ -109,6 +105,7 @@ public final class BucketAdminServer {
         this.mock = mock;
         this.parentServer = server;
         this.verifier = new HttpAuthVerifier(bucket, mock.getAuthenticator());
+        this.streamingHandler = new BucketsStreamingHandler(bucket);
     }
 
     private static final String FMT_ONESHOT = "%s/buckets/%s";
@@ -126,6 +123,7 @@ public final class BucketAdminServer {
         parentServer.register(String.format(FMT_STREAM, prefix, bucket.getName()), new StreamingHandler());
         parentServer.register(String.format(FMT_DOFLUSH, prefix, bucket.getName()), new FlushHandler());
         parentServer.register(String.format(FMT_DDOCS, prefix, bucket.getName()), new DesignDocsHandler());
+        bucket.addTopologyListener(streamingHandler);
     }
 
     public void shutdown() {
@@ -134,5 +132,7 @@ public final class BucketAdminServer {
             String path = String.format(s, prefix, bucket.getName());
             parentServer.unregister(path);
         }
+        bucket.removeTopologyListener(streamingHandler);
+        streamingHandler.closeAll();
     }
 }
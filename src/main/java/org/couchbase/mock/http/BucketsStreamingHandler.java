@@ -15,170 +15,98 @@
  */
 package org.couchbase.mock.http;
 
-import java.io.*;
-import java.net.Socket;
-import java.nio.ByteBuffer;
-import java.nio.channels.ClosedChannelException;
-import java.nio.channels.SocketChannel;
-import java.util.Observable;
-import java.util.Observer;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.apache.http.protocol.HttpContext;
 import org.couchbase.mock.Bucket;
-import org.couchbase.mock.harakiri.HarakiriMonitor;
+import org.couchbase.mock.httpio.HandlerUtil;
+import org.couchbase.mock.httpio.ParkedConnection;
 
 /**
+ * Streams the configuration of a bucket to its streaming clients. The current configuration
+ * is sent when a client connects, and again whenever the bucket reports a topology change.
+ *
+ * A single handler serves all the streaming clients of a bucket: each configuration is framed
+ * once, and the same bytes are queued on every connection. Connections are parked with the
+ * HTTP server, so a streaming client costs a selector registration rather than a thread, and
+ * a slow client never holds up the others.
+ *
  * @author M. Nunberg
  */
-class BucketsStreamingHandler implements Observer {
-
-    private final Socket rawSocket;
-    private final OutputStream output;
+class BucketsStreamingHandler implements Bucket.TopologyListener, ParkedConnection.Listener {
     private final Bucket bucket;
-    private final HarakiriMonitor monitor;
-    private final Lock updateHandlerLock = new ReentrantLock();
-    private final Condition condHasUpdatedConfig = updateHandlerLock.newCondition();
-    private volatile boolean hasUpdatedConfig = false;
-    private volatile boolean shouldTerminate = false;
-    // Some more book keeping stuff for the socket
-
-    private final ByteBuffer dummyBuf = ByteBuffer.allocate(1);
-
+    private final Set<ParkedConnection> connections =
+            Collections.newSetFromMap(new ConcurrentHashMap<ParkedConnection, Boolean>());
 
     private static final byte[] chunkedDelimiter = "\n\n\n\n".getBytes();
 
-    public BucketsStreamingHandler(HarakiriMonitor monitor, Bucket bucket, Socket socket) {
+    public BucketsStreamingHandler(Bucket bucket) {
         this.bucket = bucket;
-        this.monitor = monitor;
-        this.rawSocket = socket;
-        try {
-            this.output = socket.getOutputStream();
-        } catch (IOException ex) {
-            throw new RuntimeException(ex);
-        }
     }
 
-    private byte[] getConfigBytes() {
-        return StateGrabber.getBucketJSON(bucket).getBytes();
+    private static byte[] makeChunk(byte[] chunk) {
+        byte[] header = String.format("%x\r\n", chunk.length).getBytes();
+        byte[] ret = new byte[header.length + chunk.length + 2];
+        System.arraycopy(header, 0, ret, 0, header.length);
+        System.arraycopy(chunk, 0, ret, header.length, chunk.length);
+        ret[ret.length - 2] = '\r';
+        ret[ret.length - 1] = '\n';
+        return ret;
     }
 
-    private void writeChunk(byte[] chunk) throws IOException {
-        String s = String.format("%x\r\n", chunk.length);
-        output.write(s.getBytes());
-        output.write(chunk);
-        output.write("\r\n".getBytes());
-
-    }
-
-    private void writeConfigBytes(byte[] payload) throws IOException {
-        writeChunk(payload);
-        writeChunk(chunkedDelimiter);
-        output.flush();
+    /**
+     * Frame a configuration as sent to the client: a chunk with the configuration
+     * followed by a chunk with the delimiter
+     */
+    private static byte[] makeFrame(Bucket.ConfigSnapshot snapshot) {
+        byte[] config = makeChunk(snapshot.getBytes());
+        byte[] delimiter = makeChunk(chunkedDelimiter);
+        byte[] ret = new byte[config.length + delimiter.length];
+        System.arraycopy(config, 0, ret, 0, config.length);
+        System.arraycopy(delimiter, 0, ret, config.length, delimiter.length);
+        return ret;
     }
 
     @Override
-    public void update(Observable o, Object arg) {
-        updateHandlerLock.lock();
-        try {
-            hasUpdatedConfig = true;
-            condHasUpdatedConfig.signalAll();
-        } finally {
-            updateHandlerLock.unlock();
+    public synchronized void topologyChanged(Bucket bucket, Bucket.ConfigSnapshot snapshot) {
+        if (connections.isEmpty()) {
+            return;
         }
-    }
-
-    private boolean checkIfClosed() throws IOException {
-        SocketChannel ch = rawSocket.getChannel();
-        ch.configureBlocking(false);
-
-        dummyBuf.rewind();
-
-        try {
-            int nBytes = ch.read(dummyBuf);
-            // Anything other than 0 bytes is bad (keep in mind that in this case, 0 means "No data")
-            return nBytes == 0;
-        } catch (IOException ex) {
-            return false;
-        } finally {
-            ch.configureBlocking(true);
+        byte[] frame = makeFrame(snapshot);
+        for (ParkedConnection conn : connections) {
+            conn.write(frame);
         }
     }
 
-    private boolean streamNewConfig() throws InterruptedException {
-        updateHandlerLock.lock();
-        boolean isLocked = true;
-        try {
-            while (!shouldTerminate && !hasUpdatedConfig) {
-                condHasUpdatedConfig.await(10, TimeUnit.MILLISECONDS);
-                // See if the underlying connection has been closed yet?
-                try {
-                    if (!checkIfClosed()) {
-                        return false;
-                    }
-                } catch (ClosedChannelException ex) {
-                    return false;
-                } catch (IOException ex) {
-                    ex.printStackTrace();
-                    return false;
-                }
-            }
-
-            isLocked = false;
-            updateHandlerLock.unlock();
-
-            if (hasUpdatedConfig) {
-                writeConfigBytes(getConfigBytes());
-                hasUpdatedConfig = false;
-                return true;
-            } else {
-                return false;
-            }
-        } catch (IOException e) {
-            shouldTerminate = false;
-            return false;
-        } finally {
-            if (isLocked) {
-                updateHandlerLock.unlock();
-            }
-        }
+    @Override
+    public void onClose(ParkedConnection conn) {
+        connections.remove(conn);
     }
 
-    public void startStreaming() throws IOException, InterruptedException {
-        byte[] configBytes;
-        bucket.configReadLock();
-        configBytes = getConfigBytes();
-
-
-        // Lock the updater lock, make sure updates are not received
-        // before we send our initial (older) data.
-        updateHandlerLock.lock();
-
-        if (monitor != null) {
-            monitor.addObserver(this);
-        }
-
-        // This can be unlocked, because we have wired the update() method.
-        // Therefore, any changes will be placed AFTER our 'initial' frozen
-        // snapshot.
-        bucket.configReadUnlock();
-
-        try {
-            writeConfigBytes(configBytes);
-        } finally {
-            // Allow any subsequent updates to be sent
-            updateHandlerLock.unlock();
+    /**
+     * Send the current configuration, and park the connection to receive further updates.
+     * The response headers must already have been sent
+     * @param context The context of the request
+     */
+    public void startStreaming(HttpContext context) throws IOException {
+        // Changes are published under the same lock, so the connection either receives
+        // the change or a configuration which already includes it
+        synchronized (this) {
+            ParkedConnection conn = HandlerUtil.park(context, this);
+            conn.write(makeFrame(bucket.getConfigSnapshot()));
+            connections.add(conn);
         }
+    }
 
-        while (streamNewConfig()) {
-            //
+    /**
+     * Close all streaming connections
+     */
+    public void closeAll() {
+        for (ParkedConnection conn : connections) {
+            conn.close();
         }
-
-        /*
-         * Error or some such
-         */
-        output.close();
     }
 }
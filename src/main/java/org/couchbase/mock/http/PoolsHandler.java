@@ -59,6 +59,38 @@ public class PoolsHandler {
         }
     };
 
+    /**
+     * Reports the progress of the rebalances in progress. Each node is listed with the
+     * fraction of the vBuckets moving to it which it has taken over.
+     */
+    private final HttpRequestHandler rebalanceProgressHandler = new HttpRequestHandler() {
+        @Override
+        public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+            AuthContext authContext = HandlerUtil.getAuth(context, request);
+            if (!mock.getAuthenticator().isAdministrator(authContext)) {
+                response.setStatusCode(HttpStatus.SC_UNAUTHORIZED);
+                return;
+            }
+
+            Map<String, Object> ret = new HashMap<String, Object>();
+            for (Bucket bucket : mock.getBuckets().values()) {
+                Map<String, Object> progress = bucket.getRebalanceProgress();
+                if (progress == null) {
+                    continue;
+                }
+                @SuppressWarnings("unchecked")
+                Map<String, Object> nodes = (Map<String, Object>) progress.get("nodes");
+                for (Map.Entry<String, Object> ent : nodes.entrySet()) {
+                    Map<String, Object> node = new HashMap<String, Object>();
+                    node.put("progress", ent.getValue());
+                    ret.put("ns_1@" + ent.getKey(), node);
+                }
+            }
+            ret.put("status", ret.isEmpty() ? "none" : "running");
+            HandlerUtil.makeJsonResponse(response, JsonUtils.encode(ret));
+        }
+    };
+
     private final HttpRequestHandler sampleBucketsHandler = new HttpRequestHandler() {
         @Override
         public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
@@ -131,7 +163,14 @@ public class PoolsHandler {
                     allowedBuckets.add(bucket);
                 }
             }
-            String payload = StateGrabber.getAllBucketsJSON(allowedBuckets);
+            List<Bucket.ConfigSnapshot> snapshots = new ArrayList<Bucket.ConfigSnapshot>(allowedBuckets.size());
+            for (Bucket bucket : allowedBuckets) {
+                snapshots.add(bucket.getConfigSnapshot());
+            }
+            if (HandlerUtil.checkNotModified(request, response, StateGrabber.getAllBucketsETag(snapshots))) {
+                return;
+            }
+            String payload = StateGrabber.getAllBucketsJSON(snapshots);
             HandlerUtil.makeJsonResponse(response, payload);
         }
 
@@ -244,6 +283,7 @@ public class PoolsHandler {
         server.register("/pools", poolHandler);
         server.register(String.format("/pools/%s", mock.getPoolName()), poolsDefaultHandler);
         server.register(String.format("/pools/%s/buckets", mock.getPoolName()), allBucketsHandler);
+        server.register(String.format("/pools/%s/rebalanceProgress", mock.getPoolName()), rebalanceProgressHandler);
         server.register("/sampleBuckets/install", sampleBucketsHandler);
     }
 }
@@ -15,6 +15,9 @@
  */
 package org.couchbase.mock.http;
 
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -61,22 +64,33 @@ class StateGrabber {
         return JsonUtils.encode(poolInfo);
     }
 
-    static String getBucketJSON(Bucket bucket) {
-        String ret;
-        bucket.configReadLock();
-        try {
-            ret = bucket.getJSON();
-        } finally {
-            bucket.configReadUnlock();
+    /*
+     * The bucket configurations are already encoded, so the list is joined by hand
+     */
+    static String getAllBucketsJSON(List<Bucket.ConfigSnapshot> snapshots) {
+        StringBuilder sb = new StringBuilder("[");
+        for (Bucket.ConfigSnapshot snapshot : snapshots) {
+            if (sb.length() > 1) {
+                sb.append(',');
+            }
+            sb.append(snapshot.getJSON());
         }
-        return ret;
+        return sb.append(']').toString();
     }
 
-    static String getAllBucketsJSON(List<Bucket> allowedBuckets) {
-        List<Map> bucketsJSON = new ArrayList<Map>();
-        for (Bucket bucket : allowedBuckets) {
-            bucketsJSON.add(bucket.getConfigMap());
+    /*
+     * The entity tag of a bucket list is derived from the tags of the bucket configurations
+     */
+    static String getAllBucketsETag(List<Bucket.ConfigSnapshot> snapshots) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        for (Bucket.ConfigSnapshot snapshot : snapshots) {
+            digest.update(snapshot.getETag().getBytes());
         }
-        return JsonUtils.encode(bucketsJSON);
+        return "W/\"" + new BigInteger(1, digest.digest()).toString(16) + "\"";
     }
 }
\ No newline at end of file
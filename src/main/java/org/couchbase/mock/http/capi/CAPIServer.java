@@ -18,12 +18,44 @@ public final class CAPIServer {
     final HttpAuthVerifier verifier;
 
     private final Map<String, DesignDocument> designDocMap;
+    private final BitSet devSample;
+    private final ViewQueryCache viewCache;
     private HttpServer parentServer = null;
 
     public CAPIServer(Bucket bucket, HttpAuthVerifier verifier) {
         this.bucket = bucket;
         this.verifier = verifier;
         this.designDocMap = new ConcurrentHashMap<String, DesignDocument>();
+        this.devSample = makeDevSample(bucket.getVBucketInfo().length, bucket.getDevViewVBuckets());
+        this.viewCache = new ViewQueryCache(bucket, ViewQueryCache.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Get the cache of view query responses
+     * @return The view query cache
+     */
+    public ViewQueryCache getViewCache() {
+        return viewCache;
+    }
+
+    /**
+     * Pick the vBuckets development views are built over, spread evenly across the vBucket space.
+     * @param numVBuckets The number of vBuckets in the bucket
+     * @param sampleSize The number of vBuckets to sample (see {@link org.couchbase.mock.BucketConfiguration#devViewVBuckets})
+     * @return The sampled vBuckets, or null if all vBuckets are indexed
+     */
+    static BitSet makeDevSample(int numVBuckets, int sampleSize) {
+        if (sampleSize < 0) {
+            sampleSize = Math.max(1, numVBuckets / 16);
+        }
+        if (sampleSize == 0 || sampleSize >= numVBuckets) {
+            return null;
+        }
+        BitSet ret = new BitSet(numVBuckets);
+        for (int i = 0; i < sampleSize; i++) {
+            ret.set((int) ((long) i * numVBuckets / sampleSize));
+        }
+        return ret;
     }
 
     public void register(HttpServer server) {
@@ -51,7 +83,7 @@ public final class CAPIServer {
             String path = makeViewPaths(design, view);
             if (enabled) {
                 System.err.printf("Registering name '%s'\n", path);
-                parentServer.register(path, new ViewHandler(view, bucket));
+                parentServer.register(path, new ViewHandler(design, view, bucket, viewCache));
             } else {
                 parentServer.unregister(path);
             }
@@ -70,6 +102,7 @@ public final class CAPIServer {
         if (oldDocument != null) {
             handleViewPaths(design, false);
         }
+        viewCache.invalidate(design.getId());
     }
 
     public void removeDesign(DesignDocument design) {
@@ -79,6 +112,9 @@ public final class CAPIServer {
     void addDesign(DesignDocument design) {
         synchronized (designDocMap) {
             removeDesign(design, false);
+            if (design.isDevelopment()) {
+                design.setVBucketSample(devSample);
+            }
             handleViewPaths(design, true);
             designDocMap.put(design.getId(), design);
         }
@@ -14,6 +14,7 @@ import org.couchbase.mock.httpio.HandlerUtil;
 import org.couchbase.mock.memcached.Item;
 import org.couchbase.mock.memcached.Storage;
 import org.couchbase.mock.views.Configuration;
+import org.couchbase.mock.views.DesignDocument;
 import org.couchbase.mock.views.QueryExecutionException;
 import org.couchbase.mock.views.View;
 
@@ -24,12 +25,16 @@ import java.util.HashMap;
 import java.util.Map;
 
 public class ViewHandler implements HttpRequestHandler {
+    final DesignDocument design;
     final View view;
     final Bucket bucket;
+    final ViewQueryCache cache;
 
-    public ViewHandler(View view, Bucket bucket) {
+    public ViewHandler(DesignDocument design, View view, Bucket bucket, ViewQueryCache cache) {
+        this.design = design;
         this.view = view;
         this.bucket = bucket;
+        this.cache = cache;
     }
 
     @Override
@@ -72,7 +77,14 @@ public class ViewHandler implements HttpRequestHandler {
         }
 
         try {
-            String s = view.executeRaw(items, new Configuration(paramsMap));
+            Configuration config = new Configuration(paramsMap);
+            String cacheKey = ViewQueryCache.makeKey(design, view, config);
+            long[] state = cache.captureState(design, config);
+            String s = cache.get(cacheKey, state);
+            if (s == null) {
+                s = view.executeRaw(items, config);
+                cache.put(cacheKey, state, s);
+            }
             HandlerUtil.makeJsonResponse(response, s);
             response.setStatusCode(HttpStatus.SC_OK);
             StringEntity entity = (StringEntity)response.getEntity();
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.http.capi;
+
+import org.couchbase.mock.Bucket;
+import org.couchbase.mock.memcached.MemcachedServer;
+import org.couchbase.mock.memcached.VBucketCoordinates;
+import org.couchbase.mock.memcached.VBucketInfo;
+import org.couchbase.mock.views.Configuration;
+import org.couchbase.mock.views.DesignDocument;
+import org.couchbase.mock.views.View;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of view query responses.
+ *
+ * Entries are keyed by design document (including its version), view and the normalized
+ * query options, so that a query which was running while its design document was replaced
+ * cannot cache results for the new version. Each entry
+ * also records the state of the vBuckets covered by the query when it was executed: the
+ * vBucket UUID and high seqno on the active node, and the storage generation of each node.
+ * A cached response is only returned while that state is unchanged, i.e. until a covered
+ * vBucket receives a mutation, is flushed or changes hands.
+ */
+public final class ViewQueryCache {
+    /** The default maximum number of cached responses */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private static class Entry {
+        final long[] state;
+        final String response;
+
+        Entry(long[] state, String response) {
+            this.state = state;
+            this.response = response;
+        }
+    }
+
+    private final Bucket bucket;
+    private final Map<String, Entry> entries;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public ViewQueryCache(Bucket bucket, final int capacity) {
+        this.bucket = bucket;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > capacity) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get the cache key for a query
+     * @param design The design document
+     * @param view The queried view
+     * @param config The query options
+     * @return The key
+     */
+    public static String makeKey(DesignDocument design, View view, Configuration config) {
+        StringBuilder sb = new StringBuilder();
+        appendComponent(sb, design.getId());
+        appendComponent(sb, Long.toString(design.getGeneration()));
+        appendComponent(sb, view.getName());
+        for (Map.Entry<String, String> ent : config.getNormalized().entrySet()) {
+            appendComponent(sb, ent.getKey());
+            appendComponent(sb, ent.getValue());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Append a length-prefixed component to a key, so that no two sequences of components
+     * produce the same key
+     */
+    private static void appendComponent(StringBuilder sb, String component) {
+        sb.append(component.length()).append(':').append(component);
+    }
+
+    /**
+     * Capture the state of the vBuckets covered by a query. This must be done before executing
+     * the query, so that the response is never newer than the recorded state.
+     * @param design The design document
+     * @param config The query options
+     * @return The state to pass to {@link #get(String, long[])} and {@link #put(String, long[], String)}
+     */
+    public long[] captureState(DesignDocument design, Configuration config) {
+        VBucketInfo[] vbInfo = bucket.getVBucketInfo();
+        MemcachedServer[] servers = bucket.getServers();
+        BitSet covered = design.getVBucketSample();
+        if (covered != null && "true".equals(config.getNormalized().get(Configuration.PARAM_FULL_SET))) {
+            covered = null;
+        }
+
+        long[] ret = new long[servers.length + vbInfo.length * 2];
+        int pos = 0;
+        for (MemcachedServer server : servers) {
+            ret[pos++] = server.getStorage().getGeneration();
+        }
+        for (int vb = 0; vb < vbInfo.length; vb++) {
+            MemcachedServer owner = vbInfo[vb].getOwner();
+            if ((covered != null && !covered.get(vb)) || owner == null) {
+                ret[pos++] = -1;
+                ret[pos++] = -1;
+                continue;
+            }
+            VBucketCoordinates coords = owner.getStorage().getCache((short) vb).getCurrentCoords(vb);
+            ret[pos++] = coords.getUuid();
+            ret[pos++] = coords.getSeqno();
+        }
+        return ret;
+    }
+
+    /**
+     * Look up a cached response
+     * @param key The key, from {@link #makeKey(DesignDocument, View, Configuration)}
+     * @param state The current state, from {@link #captureState(DesignDocument, Configuration)}
+     * @return The cached response, or null if there is none for this state
+     */
+    public synchronized String get(String key, long[] state) {
+        Entry entry = entries.get(key);
+        if (entry == null || !Arrays.equals(entry.state, state)) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.response;
+    }
+
+    /**
+     * Cache a response
+     * @param key The key, from {@link #makeKey(DesignDocument, View, Configuration)}
+     * @param state The state captured before the query was executed
+     * @param response The response
+     */
+    public synchronized void put(String key, long[] state, String response) {
+        entries.put(key, new Entry(state, response));
+    }
+
+    /**
+     * Drop all the responses for the views of a design document
+     * @param designId The ID of the design document
+     */
+    public synchronized void invalidate(String designId) {
+        StringBuilder sb = new StringBuilder();
+        appendComponent(sb, designId);
+        String prefix = sb.toString();
+        Iterator<String> iter = entries.keySet().iterator();
+        while (iter.hasNext()) {
+            if (iter.next().startsWith(prefix)) {
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Get the cache statistics
+     * @return A map of counter names to their values
+     */
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> ret = new HashMap<String, Object>();
+        ret.put("entries", entries.size());
+        ret.put("hits", hits);
+        ret.put("misses", misses);
+        ret.put("evictions", evictions);
+        return ret;
+    }
+}
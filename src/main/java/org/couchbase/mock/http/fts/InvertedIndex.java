@@ -0,0 +1,361 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.http.fts;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * An in-memory inverted index of analyzed document fields.
+ *
+ * Every version of a document is assigned a new ordinal. Ordinals only grow, so posting lists
+ * are append-only, and are stored as variable-length deltas to keep a large index compact.
+ * Replacing or removing a document merely marks the ordinal of its previous version as
+ * deleted: deleted postings are skipped when the index is read, and are dropped once the
+ * deleted ordinals outnumber the live ones and the index is compacted.
+ *
+ * The index is not thread safe; {@link SearchIndex} guards it with a read-write lock.
+ */
+final class InvertedIndex {
+    /** The composite field which queries without a field are run against */
+    static final String ALL_FIELD = "_all";
+
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    private static final int MIN_COMPACT = 1024;
+
+    /**
+     * The documents containing a term, with the number of occurrences of the term in each
+     */
+    static final class Postings {
+        private byte[] data = new byte[8];
+        private int length = 0;
+        private int lastOrdinal = -1;
+        private int count = 0;
+
+        void add(int ordinal, int frequency) {
+            if (data.length - length < 10) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            writeVarint(ordinal - lastOrdinal);
+            writeVarint(frequency);
+            lastOrdinal = ordinal;
+            count++;
+        }
+
+        private void writeVarint(int value) {
+            while ((value & ~0x7f) != 0) {
+                data[length++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            data[length++] = (byte) value;
+        }
+
+        /**
+         * @return The number of postings, including those of deleted ordinals
+         */
+        int size() {
+            return count;
+        }
+
+        Cursor cursor() {
+            return new Cursor(this);
+        }
+    }
+
+    /**
+     * Reads a posting list in ordinal order
+     */
+    static final class Cursor {
+        private final Postings postings;
+        private int offset = 0;
+        int ordinal = -1;
+        int frequency = 0;
+
+        private Cursor(Postings postings) {
+            this.postings = postings;
+        }
+
+        boolean next() {
+            if (offset >= postings.length) {
+                return false;
+            }
+            ordinal += readVarint();
+            frequency = readVarint();
+            return true;
+        }
+
+        private int readVarint() {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = postings.data[offset++];
+                value |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+    }
+
+    /**
+     * The terms of a single field, and the lengths needed to score them
+     */
+    static final class Field {
+        private final TreeMap<String, Postings> terms = new TreeMap<String, Postings>();
+        private int[] lengths = new int[16];
+        private long totalLength = 0;
+        private int docCount = 0;
+
+        int length(int ordinal) {
+            return ordinal < lengths.length ? lengths[ordinal] : 0;
+        }
+
+        private void setLength(int ordinal, int length) {
+            if (ordinal >= lengths.length) {
+                lengths = Arrays.copyOf(lengths, Math.max(ordinal + 1, lengths.length * 2));
+            }
+            lengths[ordinal] = length;
+        }
+
+        double averageLength() {
+            return docCount == 0 ? 1 : (double) totalLength / docCount;
+        }
+    }
+
+    private final Map<String, Field> fields = new HashMap<String, Field>();
+    private final Map<String, Integer> ordinals = new HashMap<String, Integer>();
+    private final BitSet deleted = new BitSet();
+    private String[] ids = new String[16];
+    private int nextOrdinal = 0;
+
+    /**
+     * Split text into lower case terms at every character which is not a letter or a digit
+     * @param text The text to analyze
+     * @param out The list to add the terms to
+     */
+    static void analyze(String text, List<String> out) {
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                out.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+    }
+
+    /**
+     * Add a document, replacing any previous version of it
+     * @param id The document ID
+     * @param terms The analyzed terms of each field of the document
+     */
+    void add(String id, Map<String, List<String>> terms) {
+        remove(id);
+        int ordinal = nextOrdinal++;
+        if (ordinal >= ids.length) {
+            ids = Arrays.copyOf(ids, ids.length * 2);
+        }
+        ids[ordinal] = id;
+        ordinals.put(id, ordinal);
+
+        Map<String, int[]> frequencies = new HashMap<String, int[]>();
+        for (Map.Entry<String, List<String>> ent : terms.entrySet()) {
+            if (ent.getValue().isEmpty()) {
+                continue;
+            }
+            Field field = fields.get(ent.getKey());
+            if (field == null) {
+                field = new Field();
+                fields.put(ent.getKey(), field);
+            }
+            frequencies.clear();
+            for (String term : ent.getValue()) {
+                int[] freq = frequencies.get(term);
+                if (freq == null) {
+                    frequencies.put(term, new int[] { 1 });
+                } else {
+                    freq[0]++;
+                }
+            }
+            for (Map.Entry<String, int[]> termEnt : frequencies.entrySet()) {
+                Postings postings = field.terms.get(termEnt.getKey());
+                if (postings == null) {
+                    postings = new Postings();
+                    field.terms.put(termEnt.getKey(), postings);
+                }
+                postings.add(ordinal, termEnt.getValue()[0]);
+            }
+            field.setLength(ordinal, ent.getValue().size());
+            field.totalLength += ent.getValue().size();
+            field.docCount++;
+        }
+    }
+
+    /**
+     * Remove a document
+     * @param id The document ID
+     */
+    void remove(String id) {
+        Integer ordinal = ordinals.remove(id);
+        if (ordinal == null) {
+            return;
+        }
+        deleted.set(ordinal);
+        ids[ordinal] = null;
+        for (Field field : fields.values()) {
+            int length = field.length(ordinal);
+            if (length > 0) {
+                field.totalLength -= length;
+                field.docCount--;
+            }
+        }
+        int numDeleted = nextOrdinal - ordinals.size();
+        if (numDeleted > MIN_COMPACT && numDeleted > ordinals.size()) {
+            compact();
+        }
+    }
+
+    void clear() {
+        fields.clear();
+        ordinals.clear();
+        deleted.clear();
+        ids = new String[16];
+        nextOrdinal = 0;
+    }
+
+    /**
+     * Renumber the live documents, dropping the postings of deleted ordinals
+     */
+    private void compact() {
+        int[] remap = new int[nextOrdinal];
+        String[] newIds = new String[Math.max(16, ordinals.size())];
+        int live = 0;
+        for (int ordinal = 0; ordinal < nextOrdinal; ordinal++) {
+            if (deleted.get(ordinal)) {
+                remap[ordinal] = -1;
+            } else {
+                remap[ordinal] = live;
+                newIds[live] = ids[ordinal];
+                ordinals.put(ids[ordinal], live);
+                live++;
+            }
+        }
+
+        for (Iterator<Field> fieldIter = fields.values().iterator(); fieldIter.hasNext(); ) {
+            Field field = fieldIter.next();
+            for (Iterator<Map.Entry<String, Postings>> iter = field.terms.entrySet().iterator(); iter.hasNext(); ) {
+                Map.Entry<String, Postings> ent = iter.next();
+                Postings compacted = new Postings();
+                Cursor cursor = ent.getValue().cursor();
+                while (cursor.next()) {
+                    if (remap[cursor.ordinal] >= 0) {
+                        compacted.add(remap[cursor.ordinal], cursor.frequency);
+                    }
+                }
+                if (compacted.size() == 0) {
+                    iter.remove();
+                } else {
+                    ent.setValue(compacted);
+                }
+            }
+            if (field.docCount == 0) {
+                fieldIter.remove();
+                continue;
+            }
+            int[] lengths = new int[newIds.length];
+            for (int ordinal = 0; ordinal < nextOrdinal && ordinal < field.lengths.length; ordinal++) {
+                if (remap[ordinal] >= 0) {
+                    lengths[remap[ordinal]] = field.lengths[ordinal];
+                }
+            }
+            field.lengths = lengths;
+        }
+
+        ids = newIds;
+        nextOrdinal = live;
+        deleted.clear();
+    }
+
+    /**
+     * @return The number of live documents
+     */
+    int size() {
+        return ordinals.size();
+    }
+
+    /**
+     * @return The number of ordinals assigned, which bounds every ordinal in the index
+     */
+    int maxOrdinal() {
+        return nextOrdinal;
+    }
+
+    boolean isLive(int ordinal) {
+        return !deleted.get(ordinal);
+    }
+
+    String getId(int ordinal) {
+        return ids[ordinal];
+    }
+
+    Field getField(String name) {
+        return fields.get(name);
+    }
+
+    Postings getPostings(String field, String term) {
+        Field f = fields.get(field);
+        return f == null ? null : f.terms.get(term);
+    }
+
+    /**
+     * @return The posting lists of the terms of a field starting with {@code prefix}
+     */
+    SortedMap<String, Postings> getPrefixed(String field, String prefix) {
+        Field f = fields.get(field);
+        if (f == null) {
+            return new TreeMap<String, Postings>();
+        }
+        return f.terms.subMap(prefix, prefix + Character.MAX_VALUE);
+    }
+
+    /**
+     * The BM25 inverse document frequency of a term. Postings of deleted ordinals are still
+     * counted, as they are by most search engines until segments are merged.
+     */
+    double idf(Postings postings) {
+        double n = size();
+        double df = Math.min(postings.size(), n);
+        return Math.log(1 + (n - df + 0.5) / (df + 0.5));
+    }
+
+    /**
+     * The BM25 score of a term occurring {@code frequency} times in a document's field
+     */
+    static double score(Field field, int ordinal, int frequency, double idf) {
+        double norm = 1 - B + B * field.length(ordinal) / field.averageLength();
+        return idf * frequency * (K1 + 1) / (frequency + K1 * norm);
+    }
+}
@@ -0,0 +1,511 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.http.fts;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.couchbase.mock.Bucket;
+import org.couchbase.mock.Info;
+import org.couchbase.mock.memcached.Item;
+import org.couchbase.mock.memcached.KeySpec;
+import org.couchbase.mock.memcached.MemcachedServer;
+import org.couchbase.mock.memcached.Storage;
+import org.couchbase.mock.memcached.VBucketCoordinates;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A full-text index over the documents of a bucket.
+ *
+ * The index is built in the background when it is defined, and then maintained incrementally:
+ * every mutation of a vBucket's master copy is queued by
+ * {@link #onMutation(KeySpec, VBucketCoordinates)}, and applied in batches by re-reading the
+ * current document from storage, so that replaying a mutation is harmless. Modifications
+ * which bypass the mutation hooks (flushes and direct cache manipulation by mock commands)
+ * are detected by the storage generation and cause the index to be rebuilt. Builds and
+ * batches are applied by a single maintenance thread, so they never interleave.
+ *
+ * The string values of a JSON document are analyzed by {@link InvertedIndex#analyze(String, List)}
+ * and indexed under their dotted path, as well as under the composite {@code _all} field.
+ * Which fields are indexed is determined by the default mapping of the index definition:
+ * fields listed in its {@code properties} are always indexed (unless {@code include_in_all}
+ * is false, they are also part of {@code _all}), and other fields are indexed if the mapping
+ * is {@code dynamic}, which it is by default. Type mappings are not supported.
+ */
+final class SearchIndex implements Storage.MutationListener {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BATCH_SIZE = 1024;
+    private static final ExecutorService MAINTENANCE = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thr = new Thread(r, "FTS maintenance");
+            thr.setDaemon(true);
+            return thr;
+        }
+    });
+
+    /**
+     * A document matched by a search
+     */
+    static final class Hit {
+        final String id;
+        final float score;
+
+        Hit(String id, float score) {
+            this.id = id;
+            this.score = score;
+        }
+    }
+
+    /**
+     * Orders hits by ascending rank: by score, and then by descending ID so that ties are
+     * returned in ID order
+     */
+    private static final Comparator<Hit> HIT_ORDER = new Comparator<Hit>() {
+        @Override
+        public int compare(Hit a, Hit b) {
+            int rv = Float.compare(a.score, b.score);
+            return rv != 0 ? rv : b.id.compareTo(a.id);
+        }
+    };
+
+    /**
+     * A page of search results
+     */
+    static final class Result {
+        final List<Hit> hits;
+        final long totalHits;
+        final float maxScore;
+
+        Result(List<Hit> hits, long totalHits, float maxScore) {
+            this.hits = hits;
+            this.totalHits = totalHits;
+            this.maxScore = maxScore;
+        }
+    }
+
+    private final String name;
+    private final String uuid;
+    private final JsonObject definition;
+    private final Bucket bucket;
+
+    private boolean enabled = true;
+    private boolean dynamic = true;
+    /** Explicitly mapped fields, and whether they are included in {@code _all} */
+    private final Map<String, Boolean> mappedFields = new HashMap<String, Boolean>();
+
+    private final InvertedIndex index = new InvertedIndex();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Queue<KeySpec> queue = new ConcurrentLinkedQueue<KeySpec>();
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    /** The storage generation of each node when the index was last built. Guarded by this */
+    private final long[] generations;
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    private final Runnable refreshTask = new Runnable() {
+        @Override
+        public void run() {
+            // Another query may have scheduled the rebuild already
+            if (generationsChanged()) {
+                rebuild();
+            }
+        }
+    };
+
+    /**
+     * Create an index, and start building it
+     * @param name The name of the index
+     * @param uuid The UUID of this version of the index definition
+     * @param definition The index definition
+     * @param bucket The source bucket
+     * @throws IllegalArgumentException if the mapping in the definition is not valid
+     */
+    SearchIndex(String name, String uuid, JsonObject definition, Bucket bucket) {
+        this.name = name;
+        this.uuid = uuid;
+        this.definition = definition;
+        this.bucket = bucket;
+        parseMapping(definition);
+        generations = new long[bucket.getServers().length];
+
+        for (MemcachedServer server : bucket.getServers()) {
+            server.getStorage().addMutationListener(this);
+        }
+        MAINTENANCE.execute(new Runnable() {
+            @Override
+            public void run() {
+                rebuild();
+            }
+        });
+    }
+
+    void close() {
+        for (MemcachedServer server : bucket.getServers()) {
+            server.getStorage().removeMutationListener(this);
+        }
+    }
+
+    String getName() {
+        return name;
+    }
+
+    String getUuid() {
+        return uuid;
+    }
+
+    JsonObject getDefinition() {
+        return definition;
+    }
+
+    Bucket getBucket() {
+        return bucket;
+    }
+
+    private static JsonObject getObject(JsonObject parent, String name) {
+        JsonElement elem = parent == null ? null : parent.get(name);
+        if (elem == null || elem.isJsonNull()) {
+            return null;
+        }
+        if (!elem.isJsonObject()) {
+            throw new IllegalArgumentException(name + " must be an object");
+        }
+        return elem.getAsJsonObject();
+    }
+
+    private static boolean getBoolean(JsonObject obj, String name, boolean defaultValue) {
+        JsonElement elem = obj.get(name);
+        return elem == null || elem.isJsonNull() ? defaultValue : elem.getAsBoolean();
+    }
+
+    private void parseMapping(JsonObject definition) {
+        JsonObject mapping = getObject(getObject(definition, "params"), "mapping");
+        JsonObject defaultMapping = getObject(mapping, "default_mapping");
+        if (defaultMapping == null) {
+            return;
+        }
+        enabled = getBoolean(defaultMapping, "enabled", true);
+        dynamic = getBoolean(defaultMapping, "dynamic", true);
+        parseProperties(defaultMapping, "");
+    }
+
+    private void parseProperties(JsonObject docMapping, String prefix) {
+        JsonObject properties = getObject(docMapping, "properties");
+        if (properties == null) {
+            return;
+        }
+        for (Map.Entry<String, JsonElement> ent : properties.entrySet()) {
+            if (!ent.getValue().isJsonObject()) {
+                throw new IllegalArgumentException("mapping for " + prefix + ent.getKey() + " must be an object");
+            }
+            JsonObject property = ent.getValue().getAsJsonObject();
+            String path = prefix + ent.getKey();
+            if (!getBoolean(property, "enabled", true)) {
+                continue;
+            }
+            JsonElement fields = property.get("fields");
+            if (fields != null && fields.isJsonArray()) {
+                for (JsonElement field : fields.getAsJsonArray()) {
+                    JsonObject fieldObj = field.getAsJsonObject();
+                    if (fieldObj.has("type") && !fieldObj.get("type").getAsString().equals("text")) {
+                        continue;
+                    }
+                    mappedFields.put(path, getBoolean(fieldObj, "include_in_all", true));
+                }
+            }
+            parseProperties(property, path + ".");
+        }
+    }
+
+    @Override
+    public void onMutation(KeySpec ks, VBucketCoordinates coords) {
+        queue.add(ks);
+        if (draining.compareAndSet(false, true)) {
+            MAINTENANCE.execute(drainTask);
+        }
+    }
+
+    private void drain() {
+        List<KeySpec> batch = new ArrayList<KeySpec>(BATCH_SIZE);
+        boolean released = false;
+        try {
+            while (true) {
+                KeySpec ks = queue.poll();
+                if (ks != null) {
+                    batch.add(ks);
+                    if (batch.size() < BATCH_SIZE) {
+                        continue;
+                    }
+                }
+                apply(batch);
+                batch.clear();
+                if (ks == null) {
+                    draining.set(false);
+                    released = true;
+                    // A mutation may have been queued after the poll, but before the flag was reset
+                    if (queue.isEmpty() || !draining.compareAndSet(false, true)) {
+                        return;
+                    }
+                    released = false;
+                }
+            }
+        } finally {
+            // If applying a batch failed, let the next mutation schedule a new drain
+            if (!released) {
+                draining.set(false);
+            }
+        }
+    }
+
+    /**
+     * Bring the index up to date with the current versions of a batch of documents
+     */
+    private void apply(List<KeySpec> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis() + Info.getClockOffset() * 1000L;
+        lock.writeLock().lock();
+        try {
+            for (KeySpec ks : batch) {
+                MemcachedServer owner = bucket.getVBucketInfo()[ks.vbId].getOwner();
+                Item item = owner == null ? null : owner.getStorage().getCached(ks);
+                Map<String, List<String>> terms = null;
+                if (item != null && (item.getExpiryTime() == 0 || now < item.getExpiryTimeInMillis())) {
+                    terms = analyze(item.getValue());
+                }
+                if (terms == null) {
+                    index.remove(ks.key);
+                } else {
+                    index.add(ks.key, terms);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Index the current contents of the bucket from scratch
+     */
+    private void rebuild() {
+        List<KeySpec> keys = new ArrayList<KeySpec>();
+        synchronized (this) {
+            MemcachedServer[] servers = bucket.getServers();
+            for (int i = 0; i < servers.length; i++) {
+                generations[i] = servers[i].getStorage().getGeneration();
+                for (Item item : servers[i].getStorage().getMasterStore(Storage.StorageType.CACHE)) {
+                    keys.add(item.getKeySpec());
+                }
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            index.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        for (int i = 0; i < keys.size(); i += BATCH_SIZE) {
+            apply(keys.subList(i, Math.min(keys.size(), i + BATCH_SIZE)));
+        }
+    }
+
+    private synchronized boolean generationsChanged() {
+        MemcachedServer[] servers = bucket.getServers();
+        for (int i = 0; i < servers.length; i++) {
+            if (servers[i].getStorage().getGeneration() != generations[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Rebuild the index if the storage was modified without notifying it, and wait for the rebuild
+     */
+    private void checkGenerations() {
+        if (!generationsChanged()) {
+            return;
+        }
+        Future<?> future = MAINTENANCE.submit(refreshTask);
+        try {
+            future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            throw new RuntimeException("Failed to rebuild index " + name, ex.getCause());
+        }
+    }
+
+    /**
+     * Extract and analyze the indexed fields of a document
+     * @param value The raw document
+     * @return The terms of each field, or null if the document is not a JSON object
+     */
+    Map<String, List<String>> analyze(byte[] value) {
+        Map<String, List<String>> terms = new HashMap<String, List<String>>();
+        if (!enabled) {
+            return terms;
+        }
+        JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(value), UTF8));
+        try {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                return null;
+            }
+            terms.put(InvertedIndex.ALL_FIELD, new ArrayList<String>());
+            analyzeValue(reader, "", terms);
+        } catch (IOException ex) {
+            return null;
+        } catch (IllegalStateException ex) {
+            return null;
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        return terms;
+    }
+
+    private void analyzeValue(JsonReader reader, String path, Map<String, List<String>> terms) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    analyzeValue(reader, path.isEmpty() ? name : path + "." + name, terms);
+                }
+                reader.endObject();
+                break;
+            case BEGIN_ARRAY:
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    analyzeValue(reader, path, terms);
+                }
+                reader.endArray();
+                break;
+            case STRING:
+                String text = reader.nextString();
+                Boolean includeInAll = mappedFields.get(path);
+                if (includeInAll == null) {
+                    if (!dynamic) {
+                        break;
+                    }
+                    includeInAll = true;
+                }
+                List<String> fieldTerms = terms.get(path);
+                if (fieldTerms == null) {
+                    fieldTerms = new ArrayList<String>();
+                    terms.put(path, fieldTerms);
+                }
+                int start = fieldTerms.size();
+                InvertedIndex.analyze(text, fieldTerms);
+                if (includeInAll) {
+                    terms.get(InvertedIndex.ALL_FIELD).addAll(fieldTerms.subList(start, fieldTerms.size()));
+                }
+                break;
+            default:
+                reader.skipValue();
+                break;
+        }
+    }
+
+    /**
+     * @return The number of documents in the index
+     */
+    long count() {
+        checkGenerations();
+        lock.readLock().lock();
+        try {
+            return index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Run a query
+     * @param query The query
+     * @param from The number of top-scoring hits to skip
+     * @param size The maximum number of hits to return
+     * @return The requested page of hits, ordered by descending score
+     */
+    Result search(SearchQuery query, int from, int size) {
+        checkGenerations();
+        // Both are non-negative ints, so their sum may only exceed the range upwards
+        int wanted = (int) Math.min((long) from + size, Integer.MAX_VALUE);
+        PriorityQueue<Hit> top = new PriorityQueue<Hit>(Math.max(1, Math.min(wanted, 1024)), HIT_ORDER);
+        long total = 0;
+        float maxScore = 0;
+
+        lock.readLock().lock();
+        try {
+            SearchQuery.Hits hits = query.execute(index);
+            for (int ordinal = hits.docs.nextSetBit(0); ordinal >= 0; ordinal = hits.docs.nextSetBit(ordinal + 1)) {
+                total++;
+                float score = hits.scores[ordinal];
+                maxScore = Math.max(maxScore, score);
+                if (wanted == 0) {
+                    continue;
+                }
+                Hit hit = new Hit(index.getId(ordinal), score);
+                if (top.size() < wanted) {
+                    top.add(hit);
+                } else if (HIT_ORDER.compare(hit, top.peek()) > 0) {
+                    top.poll();
+                    top.add(hit);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        List<Hit> page = new ArrayList<Hit>(top.size());
+        while (!top.isEmpty()) {
+            page.add(top.poll());
+        }
+        // The queue yields the lowest ranked hit first
+        List<Hit> ret = new ArrayList<Hit>(Math.max(0, page.size() - from));
+        for (int i = page.size() - 1 - from; i >= 0; i--) {
+            ret.add(page.get(i));
+        }
+        return new Result(ret, total, maxScore);
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.http.fts;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A parsed search query.
+ *
+ * The following query types are supported:
+ * <ul>
+ *     <li>{@code {"match": text, "field": f, "operator": "or"|"and"}}: the text is analyzed
+ *     like the indexed fields, and documents containing any (or all) of its terms match</li>
+ *     <li>{@code {"term": t, "field": f}}: an exact, unanalyzed term</li>
+ *     <li>{@code {"prefix": p, "field": f}}: any term starting with the prefix</li>
+ *     <li>{@code {"conjuncts": [queries]}} and {@code {"disjuncts": [queries], "min": n}}</li>
+ *     <li>{@code {"match_all": {}}} and {@code {"match_none": {}}}</li>
+ * </ul>
+ * Queries without a field search the composite {@code _all} field, and every query may have a
+ * {@code boost}. Term matches are scored with BM25, and their scores are summed by compound
+ * queries. Prefix matches have a constant score.
+ */
+abstract class SearchQuery {
+    /**
+     * The documents matched by a query, and their scores. Both are indexed by ordinal.
+     */
+    static final class Hits {
+        final BitSet docs;
+        final float[] scores;
+
+        Hits(int maxOrdinal) {
+            docs = new BitSet(maxOrdinal);
+            scores = new float[maxOrdinal];
+        }
+    }
+
+    double boost = 1;
+
+    /**
+     * Run the query
+     * @param index The index to search. Deleted documents are never matched
+     * @return The matching documents
+     */
+    abstract Hits execute(InvertedIndex index);
+
+    private static final class MatchAll extends SearchQuery {
+        @Override
+        Hits execute(InvertedIndex index) {
+            Hits hits = new Hits(index.maxOrdinal());
+            for (int ordinal = 0; ordinal < index.maxOrdinal(); ordinal++) {
+                if (index.isLive(ordinal)) {
+                    hits.docs.set(ordinal);
+                    hits.scores[ordinal] = (float) boost;
+                }
+            }
+            return hits;
+        }
+    }
+
+    private static final class MatchNone extends SearchQuery {
+        @Override
+        Hits execute(InvertedIndex index) {
+            return new Hits(index.maxOrdinal());
+        }
+    }
+
+    private static final class Term extends SearchQuery {
+        private final String field;
+        private final String term;
+
+        Term(String field, String term) {
+            this.field = field;
+            this.term = term;
+        }
+
+        @Override
+        Hits execute(InvertedIndex index) {
+            Hits hits = new Hits(index.maxOrdinal());
+            InvertedIndex.Postings postings = index.getPostings(field, term);
+            if (postings == null) {
+                return hits;
+            }
+            InvertedIndex.Field f = index.getField(field);
+            double idf = index.idf(postings);
+            InvertedIndex.Cursor cursor = postings.cursor();
+            while (cursor.next()) {
+                if (index.isLive(cursor.ordinal)) {
+                    hits.docs.set(cursor.ordinal);
+                    hits.scores[cursor.ordinal] = (float) (boost * InvertedIndex.score(f, cursor.ordinal, cursor.frequency, idf));
+                }
+            }
+            return hits;
+        }
+    }
+
+    private static final class Prefix extends SearchQuery {
+        private final String field;
+        private final String prefix;
+
+        Prefix(String field, String prefix) {
+            this.field = field;
+            this.prefix = prefix;
+        }
+
+        @Override
+        Hits execute(InvertedIndex index) {
+            Hits hits = new Hits(index.maxOrdinal());
+            for (InvertedIndex.Postings postings : index.getPrefixed(field, prefix).values()) {
+                InvertedIndex.Cursor cursor = postings.cursor();
+                while (cursor.next()) {
+                    if (index.isLive(cursor.ordinal)) {
+                        hits.docs.set(cursor.ordinal);
+                        hits.scores[cursor.ordinal] = (float) boost;
+                    }
+                }
+            }
+            return hits;
+        }
+    }
+
+    private static final class Conjunction extends SearchQuery {
+        private final List<SearchQuery> children;
+
+        Conjunction(List<SearchQuery> children) {
+            this.children = children;
+        }
+
+        @Override
+        Hits execute(InvertedIndex index) {
+            Hits hits = null;
+            for (SearchQuery child : children) {
+                Hits childHits = child.execute(index);
+                if (hits == null) {
+                    hits = childHits;
+                    continue;
+                }
+                hits.docs.and(childHits.docs);
+                for (int ordinal = hits.docs.nextSetBit(0); ordinal >= 0; ordinal = hits.docs.nextSetBit(ordinal + 1)) {
+                    hits.scores[ordinal] += childHits.scores[ordinal];
+                }
+            }
+            if (hits == null) {
+                return new Hits(index.maxOrdinal());
+            }
+            applyBoost(hits);
+            return hits;
+        }
+    }
+
+    private static final class Disjunction extends SearchQuery {
+        private final List<SearchQuery> children;
+        private final int min;
+
+        Disjunction(List<SearchQuery> children, int min) {
+            this.children = children;
+            this.min = min;
+        }
+
+        @Override
+        Hits execute(InvertedIndex index) {
+            Hits hits = new Hits(index.maxOrdinal());
+            int[] counts = min > 1 ? new int[index.maxOrdinal()] : null;
+            for (SearchQuery child : children) {
+                Hits childHits = child.execute(index);
+                hits.docs.or(childHits.docs);
+                for (int ordinal = childHits.docs.nextSetBit(0); ordinal >= 0; ordinal = childHits.docs.nextSetBit(ordinal + 1)) {
+                    hits.scores[ordinal] += childHits.scores[ordinal];
+                    if (counts != null) {
+                        counts[ordinal]++;
+                    }
+                }
+            }
+            if (counts != null) {
+                for (int ordinal = hits.docs.nextSetBit(0); ordinal >= 0; ordinal = hits.docs.nextSetBit(ordinal + 1)) {
+                    if (counts[ordinal] < min) {
+                        hits.docs.clear(ordinal);
+                    }
+                }
+            }
+            applyBoost(hits);
+            return hits;
+        }
+    }
+
+    void applyBoost(Hits hits) {
+        if (boost == 1) {
+            return;
+        }
+        for (int ordinal = hits.docs.nextSetBit(0); ordinal >= 0; ordinal = hits.docs.nextSetBit(ordinal + 1)) {
+            hits.scores[ordinal] *= boost;
+        }
+    }
+
+    private static String getString(JsonObject obj, String name, String defaultValue) {
+        JsonElement elem = obj.get(name);
+        if (elem == null) {
+            return defaultValue;
+        }
+        if (!elem.isJsonPrimitive() || !elem.getAsJsonPrimitive().isString()) {
+            throw new IllegalArgumentException(name + " must be a string");
+        }
+        return elem.getAsString();
+    }
+
+    private static Number getNumber(JsonObject obj, String name) {
+        JsonElement elem = obj.get(name);
+        if (!elem.isJsonPrimitive() || !elem.getAsJsonPrimitive().isNumber()) {
+            throw new IllegalArgumentException(name + " must be a number");
+        }
+        return elem.getAsNumber();
+    }
+
+    private static List<SearchQuery> parseList(JsonObject obj, String name) {
+        JsonElement elem = obj.get(name);
+        if (!elem.isJsonArray()) {
+            throw new IllegalArgumentException(name + " must be an array");
+        }
+        JsonArray arr = elem.getAsJsonArray();
+        List<SearchQuery> ret = new ArrayList<SearchQuery>(arr.size());
+        for (JsonElement child : arr) {
+            ret.add(parse(child));
+        }
+        return ret;
+    }
+
+    /**
+     * Parse a query
+     * @param elem The {@code query} member of a search request
+     * @return The query
+     * @throws IllegalArgumentException if the query is not valid or not supported
+     */
+    static SearchQuery parse(JsonElement elem) {
+        if (elem == null || !elem.isJsonObject()) {
+            throw new IllegalArgumentException("query must be an object");
+        }
+        JsonObject obj = elem.getAsJsonObject();
+        String field = getString(obj, "field", InvertedIndex.ALL_FIELD);
+        SearchQuery ret;
+
+        if (obj.has("match")) {
+            String operator = getString(obj, "operator", "or");
+            if (!operator.equals("or") && !operator.equals("and")) {
+                throw new IllegalArgumentException("unknown match operator: " + operator);
+            }
+            List<String> terms = new ArrayList<String>();
+            InvertedIndex.analyze(getString(obj, "match", null), terms);
+            List<SearchQuery> children = new ArrayList<SearchQuery>(terms.size());
+            for (String term : terms) {
+                children.add(new Term(field, term));
+            }
+            if (children.isEmpty()) {
+                ret = new MatchNone();
+            } else if (operator.equals("and")) {
+                ret = new Conjunction(children);
+            } else {
+                ret = new Disjunction(children, 1);
+            }
+        } else if (obj.has("term")) {
+            ret = new Term(field, getString(obj, "term", null));
+        } else if (obj.has("prefix")) {
+            ret = new Prefix(field, getString(obj, "prefix", null));
+        } else if (obj.has("conjuncts")) {
+            ret = new Conjunction(parseList(obj, "conjuncts"));
+        } else if (obj.has("disjuncts")) {
+            List<SearchQuery> children = parseList(obj, "disjuncts");
+            int min = obj.has("min") ? getNumber(obj, "min").intValue() : 0;
+            if (min > children.size()) {
+                throw new IllegalArgumentException("disjunction query has fewer than the minimum number of clauses");
+            }
+            ret = new Disjunction(children, min);
+        } else if (obj.has("match_all")) {
+            ret = new MatchAll();
+        } else if (obj.has("match_none")) {
+            ret = new MatchNone();
+        } else {
+            StringBuilder names = new StringBuilder();
+            for (Map.Entry<String, JsonElement> ent : obj.entrySet()) {
+                names.append(names.length() == 0 ? "" : ", ").append(ent.getKey());
+            }
+            throw new IllegalArgumentException("unknown query type: {" + names + "}");
+        }
+
+        if (obj.has("boost")) {
+            ret.boost = getNumber(obj, "boost").doubleValue();
+        }
+        return ret;
+    }
+}
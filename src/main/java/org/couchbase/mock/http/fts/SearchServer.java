@@ -0,0 +1,337 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.http.fts;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.couchbase.mock.Bucket;
+import org.couchbase.mock.CouchbaseMock;
+import org.couchbase.mock.JsonUtils;
+import org.couchbase.mock.httpio.HandlerUtil;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * Emulates the REST API of the full-text search service.
+ *
+ * <ul>
+ *     <li>{@code GET /api/index} lists the index definitions</li>
+ *     <li>{@code PUT /api/index/NAME} creates an index (or updates it, if the definition
+ *     contains the current {@code prevIndexUUID}), {@code GET} returns its definition and
+ *     {@code DELETE} drops it</li>
+ *     <li>{@code GET /api/index/NAME/count} returns the number of indexed documents</li>
+ *     <li>{@code POST /api/index/NAME/query} runs a {@link SearchQuery}, returning the
+ *     {@code size} best hits after skipping the first {@code from}</li>
+ * </ul>
+ *
+ * Indexes are kept by {@link SearchIndex}.
+ */
+public class SearchServer implements HttpRequestHandler {
+    private final CouchbaseMock mock;
+    private final Map<String, SearchIndex> indexes = new TreeMap<String, SearchIndex>();
+    private String defsUuid = UUID.randomUUID().toString();
+
+    public SearchServer(CouchbaseMock mock) {
+        this.mock = mock;
+    }
+
+    private static void makeError(HttpResponse response, int status, String msg) {
+        JsonObject obj = new JsonObject();
+        obj.addProperty("error", msg);
+        obj.addProperty("status", "fail");
+        response.setStatusCode(status);
+        HandlerUtil.makeJsonResponse(response, obj.toString());
+    }
+
+    private static void makeOk(HttpResponse response, JsonObject obj) {
+        obj.addProperty("status", "ok");
+        HandlerUtil.makeJsonResponse(response, JsonUtils.GSON.toJson(obj));
+    }
+
+    private static JsonObject readBody(HttpRequest request) throws IOException {
+        if (!(request instanceof HttpEntityEnclosingRequest)) {
+            return null;
+        }
+        String txt = EntityUtils.toString(((HttpEntityEnclosingRequest) request).getEntity());
+        try {
+            JsonElement elem = JsonUtils.GSON.fromJson(txt, JsonElement.class);
+            return elem != null && elem.isJsonObject() ? elem.getAsJsonObject() : null;
+        } catch (RuntimeException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Get an index by name. An index whose source bucket was deleted and created again is
+     * rebuilt over the new bucket
+     * @return The index, or null if it does not exist or its source bucket does not
+     */
+    private synchronized SearchIndex getIndex(String name) {
+        SearchIndex index = indexes.get(name);
+        if (index == null) {
+            return null;
+        }
+        Bucket bucket = mock.getBuckets().get(index.getBucket().getName());
+        if (bucket == index.getBucket()) {
+            return index;
+        }
+        index.close();
+        if (bucket == null || bucket.getType() != Bucket.BucketType.COUCHBASE) {
+            return null;
+        }
+        index = new SearchIndex(name, index.getUuid(), index.getDefinition(), bucket);
+        indexes.put(name, index);
+        return index;
+    }
+
+    private synchronized void handleList(HttpResponse response) {
+        JsonObject defs = new JsonObject();
+        for (SearchIndex index : indexes.values()) {
+            defs.add(index.getName(), index.getDefinition());
+        }
+        JsonObject indexDefs = new JsonObject();
+        indexDefs.addProperty("uuid", defsUuid);
+        indexDefs.add("indexDefs", defs);
+        indexDefs.addProperty("implVersion", "5.0.0");
+        JsonObject obj = new JsonObject();
+        obj.add("indexDefs", indexDefs);
+        makeOk(response, obj);
+    }
+
+    private synchronized void handleCreate(String name, JsonObject def, HttpResponse response) {
+        if (def == null) {
+            makeError(response, HttpStatus.SC_BAD_REQUEST, "rest_create_index: could not parse index definition");
+            return;
+        }
+        String defName, type, sourceType, sourceName, prevUuid;
+        try {
+            defName = getString(def, "name");
+            type = getString(def, "type");
+            sourceType = getString(def, "sourceType");
+            sourceName = getString(def, "sourceName");
+            prevUuid = getString(def, "prevIndexUUID");
+        } catch (IllegalArgumentException ex) {
+            makeError(response, HttpStatus.SC_BAD_REQUEST, "rest_create_index: " + ex.getMessage());
+            return;
+        }
+        if (defName != null && !name.equals(defName)) {
+            makeError(response, HttpStatus.SC_BAD_REQUEST, "rest_create_index: index name mismatch");
+            return;
+        }
+        if (type != null && !type.equals("fulltext-index")) {
+            makeError(response, HttpStatus.SC_BAD_REQUEST, "rest_create_index: unknown indexType: " + type);
+            return;
+        }
+        if (sourceType != null && !sourceType.equals("couchbase")) {
+            makeError(response, HttpStatus.SC_BAD_REQUEST, "rest_create_index: unknown sourceType: " + sourceType);
+            return;
+        }
+        Bucket bucket = sourceName == null ? null : mock.getBuckets().get(sourceName);
+        if (bucket == null || bucket.getType() != Bucket.BucketType.COUCHBASE) {
+            makeError(response, HttpStatus.SC_BAD_REQUEST, "rest_create_index: unknown source bucket: " + sourceName);
+            return;
+        }
+
+        SearchIndex existing = indexes.get(name);
+        if (existing != null && !existing.getUuid().equals(prevUuid)) {
+            makeError(response, HttpStatus.SC_BAD_REQUEST,
+                    "rest_create_index: cannot create index because an index with the same name already exists: " + name);
+            return;
+        }
+        if (existing == null && prevUuid != null && !prevUuid.isEmpty()) {
+            makeError(response, HttpStatus.SC_BAD_REQUEST, "rest_create_index: index not found for update: " + name);
+            return;
+        }
+
+        String uuid = UUID.randomUUID().toString().replace("-", "").substring(0, 16);
+        JsonObject stored = new JsonObject();
+        for (Map.Entry<String, JsonElement> ent : def.entrySet()) {
+            stored.add(ent.getKey(), ent.getValue());
+        }
+        stored.remove("prevIndexUUID");
+        stored.addProperty("type", "fulltext-index");
+        stored.addProperty("name", name);
+        stored.addProperty("uuid", uuid);
+        stored.addProperty("sourceType", "couchbase");
+        stored.addProperty("sourceUUID", bucket.getUUID());
+
+        SearchIndex index;
+        try {
+            index = new SearchIndex(name, uuid, stored, bucket);
+        } catch (RuntimeException ex) {
+            makeError(response, HttpStatus.SC_BAD_REQUEST, "rest_create_index: invalid mapping: " + ex.getMessage());
+            return;
+        }
+        if (existing != null) {
+            existing.close();
+        }
+        indexes.put(name, index);
+        defsUuid = UUID.randomUUID().toString();
+
+        JsonObject obj = new JsonObject();
+        obj.addProperty("uuid", uuid);
+        makeOk(response, obj);
+    }
+
+    private synchronized void handleDelete(String name, HttpResponse response) {
+        SearchIndex index = indexes.remove(name);
+        if (index == null) {
+            makeError(response, HttpStatus.SC_BAD_REQUEST, "rest_delete_index: index not found: " + name);
+            return;
+        }
+        index.close();
+        defsUuid = UUID.randomUUID().toString();
+        makeOk(response, new JsonObject());
+    }
+
+    /**
+     * @return The string member, or null if it is absent
+     * @throws IllegalArgumentException if the member is not a string
+     */
+    private static String getString(JsonObject obj, String name) {
+        JsonElement elem = obj.get(name);
+        if (elem == null || elem.isJsonNull()) {
+            return null;
+        }
+        if (!elem.isJsonPrimitive() || !elem.getAsJsonPrimitive().isString()) {
+            throw new IllegalArgumentException(name + " must be a string");
+        }
+        return elem.getAsString();
+    }
+
+    private static int getInt(JsonObject obj, String name, int defaultValue) {
+        JsonElement elem = obj.get(name);
+        if (elem == null || elem.isJsonNull()) {
+            return defaultValue;
+        }
+        if (!elem.isJsonPrimitive() || !elem.getAsJsonPrimitive().isNumber()) {
+            throw new IllegalArgumentException(name + " must be a number");
+        }
+        int value = elem.getAsInt();
+        if (value < 0) {
+            throw new IllegalArgumentException(name + " must not be negative");
+        }
+        return value;
+    }
+
+    private static void handleQuery(SearchIndex index, JsonObject request, HttpResponse response) {
+        if (request == null) {
+            makeError(response, HttpStatus.SC_BAD_REQUEST, "rest_index: Query, could not parse request");
+            return;
+        }
+        long start = System.nanoTime();
+        SearchIndex.Result result;
+        try {
+            SearchQuery query = SearchQuery.parse(request.get("query"));
+            int size = getInt(request, "size", 10);
+            int from = getInt(request, "from", 0);
+            result = index.search(query, from, size);
+        } catch (RuntimeException ex) {
+            makeError(response, HttpStatus.SC_BAD_REQUEST, "rest_index: Query, err: " + ex.getMessage());
+            return;
+        }
+
+        JsonObject status = new JsonObject();
+        status.addProperty("total", 1);
+        status.addProperty("failed", 0);
+        status.addProperty("successful", 1);
+
+        JsonArray hits = new JsonArray();
+        for (SearchIndex.Hit hit : result.hits) {
+            JsonObject obj = new JsonObject();
+            obj.addProperty("index", index.getName());
+            obj.addProperty("id", hit.id);
+            obj.addProperty("score", hit.score);
+            JsonArray sort = new JsonArray();
+            sort.add(new JsonPrimitive("_score"));
+            obj.add("sort", sort);
+            hits.add(obj);
+        }
+
+        JsonObject obj = new JsonObject();
+        obj.add("status", status);
+        obj.add("request", request);
+        obj.add("hits", hits);
+        obj.addProperty("total_hits", result.totalHits);
+        obj.addProperty("max_score", result.maxScore);
+        obj.addProperty("took", System.nanoTime() - start);
+        HandlerUtil.makeJsonResponse(response, JsonUtils.GSON.toJson(obj));
+    }
+
+    @Override
+    public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        String method = request.getRequestLine().getMethod();
+        String[] components = HandlerUtil.getUrl(request).getPath().replaceAll("^/+|/+$", "").split("/+");
+        if (components.length < 2 || !components[0].equals("api") || !components[1].equals("index") || components.length > 4) {
+            makeError(response, HttpStatus.SC_NOT_FOUND, "page not found");
+            return;
+        }
+
+        if (components.length == 2) {
+            if (method.equals("GET")) {
+                handleList(response);
+            } else {
+                response.setStatusCode(HttpStatus.SC_METHOD_NOT_ALLOWED);
+            }
+            return;
+        }
+
+        String name = components[2];
+        if (components.length == 3 && method.equals("PUT")) {
+            handleCreate(name, readBody(request), response);
+            return;
+        }
+        if (components.length == 3 && method.equals("DELETE")) {
+            handleDelete(name, response);
+            return;
+        }
+
+        SearchIndex index = getIndex(name);
+        if (index == null) {
+            makeError(response, HttpStatus.SC_BAD_REQUEST, "rest_auth: preparePerms, err: index not found");
+            return;
+        }
+        if (components.length == 3 && method.equals("GET")) {
+            JsonObject obj = new JsonObject();
+            obj.add("indexDef", index.getDefinition());
+            makeOk(response, obj);
+        } else if (components.length == 4 && components[3].equals("count") && method.equals("GET")) {
+            JsonObject obj = new JsonObject();
+            obj.addProperty("count", index.count());
+            makeOk(response, obj);
+        } else if (components.length == 4 && components[3].equals("query") && method.equals("POST")) {
+            handleQuery(index, readBody(request), response);
+        } else if (components.length == 4 && (components[3].equals("count") || components[3].equals("query"))) {
+            response.setStatusCode(HttpStatus.SC_METHOD_NOT_ALLOWED);
+        } else {
+            makeError(response, HttpStatus.SC_NOT_FOUND, "page not found");
+        }
+    }
+}
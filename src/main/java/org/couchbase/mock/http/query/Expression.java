@@ -0,0 +1,822 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.http.query;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * A compiled N1QL expression. Evaluation never fails: operands of the wrong type yield
+ * {@code NULL}, and references to absent fields yield {@code MISSING}, as described in
+ * {@link Values}.
+ */
+abstract class Expression {
+    abstract JsonElement evaluate(Row row);
+
+    /**
+     * @return The name given to the expression's value when it is projected without an alias,
+     * or null if it is named by its position
+     */
+    String getImplicitName() {
+        return null;
+    }
+
+    /**
+     * @return Whether the expression has the same value for every row of a query
+     */
+    boolean isConstant() {
+        return false;
+    }
+
+    /**
+     * Get a canonical text for the expression, used to match query predicates against
+     * index keys. Document fields are written relative to the document, regardless of
+     * whether they were qualified by the keyspace alias.
+     *
+     * @param alias The keyspace alias
+     * @return The canonical text, or null if the expression cannot be matched
+     */
+    String canonical(String alias) {
+        return null;
+    }
+
+    private static String quoteName(String name) {
+        return "`" + name.replace("`", "``") + "`";
+    }
+
+    static final class Literal extends Expression {
+        private final JsonElement value;
+
+        Literal(JsonElement value) {
+            this.value = value;
+        }
+
+        @Override
+        JsonElement evaluate(Row row) {
+            return value;
+        }
+
+        @Override
+        boolean isConstant() {
+            return true;
+        }
+
+        @Override
+        String canonical(String alias) {
+            return value == null ? "MISSING" : value.toString();
+        }
+    }
+
+    /**
+     * An unqualified identifier. This is the keyspace alias, an alias from the projection
+     * when used in ORDER BY, or else a field of the document
+     */
+    static final class Identifier extends Expression {
+        private final String name;
+
+        Identifier(String name) {
+            this.name = name;
+        }
+
+        @Override
+        JsonElement evaluate(Row row) {
+            if (row.projection != null && row.projection.has(name)) {
+                return row.projection.get(name);
+            }
+            if (name.equals(row.scope.alias)) {
+                return row.doc;
+            }
+            if (row.doc != null && row.doc.isJsonObject()) {
+                return row.doc.getAsJsonObject().get(name);
+            }
+            return null;
+        }
+
+        @Override
+        String getImplicitName() {
+            return name;
+        }
+
+        @Override
+        String canonical(String alias) {
+            return name.equals(alias) ? "" : quoteName(name);
+        }
+    }
+
+    static final class Field extends Expression {
+        private final Expression base;
+        private final String name;
+
+        Field(Expression base, String name) {
+            this.base = base;
+            this.name = name;
+        }
+
+        @Override
+        JsonElement evaluate(Row row) {
+            JsonElement v = base.evaluate(row);
+            if (v != null && v.isJsonObject()) {
+                return v.getAsJsonObject().get(name);
+            }
+            return null;
+        }
+
+        @Override
+        String getImplicitName() {
+            return name;
+        }
+
+        @Override
+        String canonical(String alias) {
+            String prefix = base.canonical(alias);
+            if (prefix == null) {
+                return null;
+            }
+            return prefix.isEmpty() ? quoteName(name) : prefix + "." + quoteName(name);
+        }
+    }
+
+    static final class Element extends Expression {
+        private final Expression base;
+        private final Expression index;
+
+        Element(Expression base, Expression index) {
+            this.base = base;
+            this.index = index;
+        }
+
+        @Override
+        JsonElement evaluate(Row row) {
+            JsonElement v = base.evaluate(row);
+            JsonElement idx = index.evaluate(row);
+            if (v == null || idx == null) {
+                return null;
+            }
+            if (v.isJsonArray() && Values.isNumber(idx)) {
+                JsonArray arr = v.getAsJsonArray();
+                int i = idx.getAsInt();
+                if (i < 0) {
+                    i += arr.size();
+                }
+                return i >= 0 && i < arr.size() ? arr.get(i) : null;
+            } else if (v.isJsonObject() && Values.isString(idx)) {
+                return v.getAsJsonObject().get(idx.getAsString());
+            }
+            return null;
+        }
+
+        @Override
+        String canonical(String alias) {
+            String prefix = base.canonical(alias);
+            if (prefix == null || !(index instanceof Literal)) {
+                return null;
+            }
+            return prefix + "[" + index.canonical(alias) + "]";
+        }
+    }
+
+    /**
+     * A query parameter, either positional ({@code $1}, {@code ?}) or named ({@code $name})
+     */
+    static final class Parameter extends Expression {
+        private final int position;
+        private final String name;
+
+        Parameter(int position) {
+            this.position = position;
+            this.name = null;
+        }
+
+        Parameter(String name) {
+            this.position = 0;
+            this.name = name;
+        }
+
+        @Override
+        JsonElement evaluate(Row row) {
+            if (name != null) {
+                return row.scope.named.get(name);
+            }
+            JsonArray args = row.scope.positional;
+            if (args == null || position > args.size()) {
+                return null;
+            }
+            return args.get(position - 1);
+        }
+
+        @Override
+        boolean isConstant() {
+            return true;
+        }
+    }
+
+    /**
+     * {@code META()} or {@code META(alias)}
+     */
+    static final class Meta extends Expression {
+        @Override
+        JsonElement evaluate(Row row) {
+            return row.meta;
+        }
+
+        @Override
+        String canonical(String alias) {
+            return "META()";
+        }
+    }
+
+    static final class ArrayConstruct extends Expression {
+        private final List<Expression> elements;
+
+        ArrayConstruct(List<Expression> elements) {
+            this.elements = elements;
+        }
+
+        @Override
+        JsonElement evaluate(Row row) {
+            JsonArray ret = new JsonArray();
+            for (Expression elem : elements) {
+                JsonElement v = elem.evaluate(row);
+                ret.add(v == null ? JsonNull.INSTANCE : v);
+            }
+            return ret;
+        }
+    }
+
+    static final class ObjectConstruct extends Expression {
+        private final List<String> names;
+        private final List<Expression> values;
+
+        ObjectConstruct(List<String> names, List<Expression> values) {
+            this.names = names;
+            this.values = values;
+        }
+
+        @Override
+        JsonElement evaluate(Row row) {
+            JsonObject ret = new JsonObject();
+            for (int i = 0; i < names.size(); i++) {
+                JsonElement v = values.get(i).evaluate(row);
+                if (v != null) {
+                    ret.add(names.get(i), v);
+                }
+            }
+            return ret;
+        }
+    }
+
+    static final class Negate extends Expression {
+        private final Expression operand;
+
+        Negate(Expression operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        JsonElement evaluate(Row row) {
+            JsonElement v = operand.evaluate(row);
+            if (v == null) {
+                return null;
+            }
+            return Values.isNumber(v) ? Values.of(-v.getAsDouble()) : JsonNull.INSTANCE;
+        }
+    }
+
+    static final class Arithmetic extends Expression {
+        private final char op;
+        private final Expression left;
+        private final Expression right;
+
+        Arithmetic(char op, Expression left, Expression right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        JsonElement evaluate(Row row) {
+            JsonElement a = left.evaluate(row);
+            JsonElement b = right.evaluate(row);
+            if (a == null || b == null) {
+                return null;
+            }
+            if (!Values.isNumber(a) || !Values.isNumber(b)) {
+                return JsonNull.INSTANCE;
+            }
+            double x = a.getAsDouble();
+            double y = b.getAsDouble();
+            switch (op) {
+                case '+':
+                    return Values.of(x + y);
+                case '-':
+                    return Values.of(x - y);
+                case '*':
+                    return Values.of(x * y);
+                case '/':
+                    return y == 0 ? JsonNull.INSTANCE : Values.of(x / y);
+                default:
+                    return y == 0 ? JsonNull.INSTANCE : Values.of(x % y);
+            }
+        }
+    }
+
+    static final class Concat extends Expression {
+        private final Expression left;
+        private final Expression right;
+
+        Concat(Expression left, Expression right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        JsonElement evaluate(Row row) {
+            JsonElement a = left.evaluate(row);
+            JsonElement b = right.evaluate(row);
+            if (a == null || b == null) {
+                return null;
+            }
+            if (!Values.isString(a) || !Values.isString(b)) {
+                return JsonNull.INSTANCE;
+            }
+            return new JsonPrimitive(a.getAsString() + b.getAsString());
+        }
+    }
+
+    static final class Comparison extends Expression {
+        final String op;
+        final Expression left;
+        final Expression right;
+
+        Comparison(String op, Expression left, Expression right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        JsonElement evaluate(Row row) {
+            JsonElement a = left.evaluate(row);
+            JsonElement b = right.evaluate(row);
+            if (a == null || b == null) {
+                return null;
+            }
+            if (a.isJsonNull() || b.isJsonNull()) {
+                return JsonNull.INSTANCE;
+            }
+            int rv = Values.compare(a, b);
+            if (op.equals("=")) {
+                return Values.of(rv == 0);
+            } else if (op.equals("!=")) {
+                return Values.of(rv != 0);
+            } else if (op.equals("<")) {
+                return Values.of(rv < 0);
+            } else if (op.equals("<=")) {
+                return Values.of(rv <= 0);
+            } else if (op.equals(">")) {
+                return Values.of(rv > 0);
+            } else {
+                return Values.of(rv >= 0);
+            }
+        }
+
+        @Override
+        String canonical(String alias) {
+            String a = left.canonical(alias);
+            String b = right.canonical(alias);
+            if (a == null || b == null) {
+                return null;
+            }
+            return "(" + a + " " + op + " " + b + ")";
+        }
+    }
+
+    /**
+     * AND and OR. For AND, FALSE takes precedence over MISSING, which takes precedence over
+     * NULL. For OR, TRUE takes precedence over NULL, which takes precedence over MISSING
+     */
+    static final class Logical extends Expression {
+        final boolean isAnd;
+        final Expression left;
+        final Expression right;
+
+        Logical(boolean isAnd, Expression left, Expression right) {
+            this.isAnd = isAnd;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        JsonElement evaluate(Row row) {
+            JsonElement a = left.evaluate(row);
+            if (isDecided(a)) {
+                return Values.of(!isAnd);
+            }
+            JsonElement b = right.evaluate(row);
+            if (isDecided(b)) {
+                return Values.of(!isAnd);
+            }
+            boolean anyMissing = a == null || b == null;
+            boolean anyNull = Values.isNull(a) || Values.isNull(b);
+            if (isAnd) {
+                return anyMissing ? null : anyNull ? JsonNull.INSTANCE : Values.TRUE;
+            } else {
+                return anyNull ? JsonNull.INSTANCE : anyMissing ? null : Values.FALSE;
+            }
+        }
+
+        /**
+         * @return Whether the operand alone decides the result: FALSE for AND, TRUE for OR
+         */
+        private boolean isDecided(JsonElement v) {
+            if (v == null || v.isJsonNull()) {
+                return false;
+            }
+            return Values.isTrue(v) != isAnd;
+        }
+
+        @Override
+        String canonical(String alias) {
+            String a = left.canonical(alias);
+            String b = right.canonical(alias);
+            if (a == null || b == null) {
+                return null;
+            }
+            return "(" + a + (isAnd ? " AND " : " OR ") + b + ")";
+        }
+    }
+
+    static final class Not extends Expression {
+        private final Expression operand;
+
+        Not(Expression operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        JsonElement evaluate(Row row) {
+            JsonElement v = operand.evaluate(row);
+            if (v == null || v.isJsonNull()) {
+                return v;
+            }
+            return Values.of(!Values.isTrue(v));
+        }
+    }
+
+    static final class Like extends Expression {
+        private final Expression operand;
+        private final Expression pattern;
+
+        Like(Expression operand, Expression pattern) {
+            this.operand = operand;
+            this.pattern = pattern;
+        }
+
+        @Override
+        JsonElement evaluate(Row row) {
+            JsonElement v = operand.evaluate(row);
+            JsonElement p = pattern.evaluate(row);
+            if (v == null || p == null) {
+                return null;
+            }
+            if (!Values.isString(v) || !Values.isString(p)) {
+                return JsonNull.INSTANCE;
+            }
+            return Values.of(compile(p.getAsString()).matcher(v.getAsString()).matches());
+        }
+
+        /**
+         * Translate a LIKE pattern into a regular expression. {@code %} matches any sequence,
+         * {@code _} any single character, and a backslash escapes the following character
+         */
+        static Pattern compile(String like) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < like.length(); i++) {
+                char c = like.charAt(i);
+                if (c == '\\' && i + 1 < like.length()) {
+                    sb.append(Pattern.quote(String.valueOf(like.charAt(++i))));
+                } else if (c == '%') {
+                    sb.append(".*");
+                } else if (c == '_') {
+                    sb.append('.');
+                } else {
+                    sb.append(Pattern.quote(String.valueOf(c)));
+                }
+            }
+            return Pattern.compile(sb.toString(), Pattern.DOTALL);
+        }
+    }
+
+    static final class In extends Expression {
+        private final Expression operand;
+        private final Expression list;
+
+        In(Expression operand, Expression list) {
+            this.operand = operand;
+            this.list = list;
+        }
+
+        @Override
+        JsonElement evaluate(Row row) {
+            JsonElement v = operand.evaluate(row);
+            JsonElement l = list.evaluate(row);
+            if (v == null || l == null) {
+                return null;
+            }
+            if (v.isJsonNull() || !l.isJsonArray()) {
+                return JsonNull.INSTANCE;
+            }
+            for (JsonElement elem : l.getAsJsonArray()) {
+                if (Values.compare(v, elem) == 0) {
+                    return Values.TRUE;
+                }
+            }
+            return Values.FALSE;
+        }
+    }
+
+    /**
+     * {@code IS [NOT] NULL}, {@code IS [NOT] MISSING} and {@code IS [NOT] VALUED}
+     */
+    static final class Is extends Expression {
+        enum Kind { NULL, MISSING, VALUED }
+
+        private final Expression operand;
+        private final Kind kind;
+        private final boolean negate;
+
+        Is(Expression operand, Kind kind, boolean negate) {
+            this.operand = operand;
+            this.kind = kind;
+            this.negate = negate;
+        }
+
+        @Override
+        JsonElement evaluate(Row row) {
+            JsonElement v = operand.evaluate(row);
+            boolean rv;
+            switch (kind) {
+                case NULL:
+                    if (v == null) {
+                        return null;
+                    }
+                    rv = v.isJsonNull();
+                    break;
+                case MISSING:
+                    rv = v == null;
+                    break;
+                default:
+                    rv = v != null && !v.isJsonNull();
+                    break;
+            }
+            return Values.of(rv != negate);
+        }
+    }
+
+    /**
+     * A scalar function. Functions yield MISSING if any argument is MISSING, and NULL if an
+     * argument has the wrong type
+     */
+    static final class Function extends Expression {
+        static final Set<String> NAMES = new HashSet<String>();
+        static {
+            for (String name : new String[] {
+                    "LOWER", "UPPER", "LENGTH", "ABS", "FLOOR", "CEIL", "ROUND", "TOSTRING", "TONUMBER",
+                    "CONTAINS", "ARRAY_LENGTH", "ARRAY_CONTAINS", "TYPE", "IFMISSING", "IFNULL" }) {
+                NAMES.add(name);
+            }
+        }
+
+        private final String name;
+        private final List<Expression> args;
+
+        Function(String name, List<Expression> args) {
+            this.name = name;
+            this.args = args;
+        }
+
+        @Override
+        JsonElement evaluate(Row row) {
+            if (name.equals("IFMISSING") || name.equals("IFNULL")) {
+                for (Expression arg : args) {
+                    JsonElement v = arg.evaluate(row);
+                    if (v != null && (name.equals("IFMISSING") || !v.isJsonNull())) {
+                        return v;
+                    }
+                }
+                return name.equals("IFMISSING") ? null : JsonNull.INSTANCE;
+            }
+
+            JsonElement[] vals = new JsonElement[args.size()];
+            for (int i = 0; i < vals.length; i++) {
+                vals[i] = args.get(i).evaluate(row);
+                if (vals[i] == null && !name.equals("TYPE")) {
+                    return null;
+                }
+            }
+            JsonElement v = vals.length > 0 ? vals[0] : null;
+
+            if (name.equals("TYPE")) {
+                return new JsonPrimitive(Values.typeName(v));
+            } else if (name.equals("LOWER") || name.equals("UPPER")) {
+                if (!Values.isString(v)) {
+                    return JsonNull.INSTANCE;
+                }
+                String s = v.getAsString();
+                return new JsonPrimitive(name.equals("LOWER") ? s.toLowerCase(Locale.ROOT) : s.toUpperCase(Locale.ROOT));
+            } else if (name.equals("LENGTH")) {
+                return Values.isString(v) ? Values.of(v.getAsString().length()) : JsonNull.INSTANCE;
+            } else if (name.equals("ARRAY_LENGTH")) {
+                return v.isJsonArray() ? Values.of(v.getAsJsonArray().size()) : JsonNull.INSTANCE;
+            } else if (name.equals("ARRAY_CONTAINS")) {
+                if (!v.isJsonArray()) {
+                    return JsonNull.INSTANCE;
+                }
+                for (JsonElement elem : v.getAsJsonArray()) {
+                    if (Values.compare(elem, vals[1]) == 0) {
+                        return Values.TRUE;
+                    }
+                }
+                return Values.FALSE;
+            } else if (name.equals("CONTAINS")) {
+                if (!Values.isString(v) || !Values.isString(vals[1])) {
+                    return JsonNull.INSTANCE;
+                }
+                return Values.of(v.getAsString().contains(vals[1].getAsString()));
+            } else if (name.equals("TOSTRING")) {
+                if (v.isJsonNull()) {
+                    return v;
+                }
+                return new JsonPrimitive(Values.isString(v) ? v.getAsString() : v.toString());
+            } else if (name.equals("TONUMBER")) {
+                if (Values.isNumber(v) || v.isJsonNull()) {
+                    return v;
+                } else if (Values.isBoolean(v)) {
+                    return Values.of(v.getAsBoolean() ? 1 : 0);
+                } else if (Values.isString(v)) {
+                    try {
+                        return Values.of(Double.parseDouble(v.getAsString().trim()));
+                    } catch (NumberFormatException ex) {
+                        return JsonNull.INSTANCE;
+                    }
+                }
+                return JsonNull.INSTANCE;
+            }
+
+            // Numeric functions
+            if (!Values.isNumber(v)) {
+                return JsonNull.INSTANCE;
+            }
+            double d = v.getAsDouble();
+            if (name.equals("ABS")) {
+                return Values.of(Math.abs(d));
+            } else if (name.equals("FLOOR")) {
+                return Values.of(Math.floor(d));
+            } else if (name.equals("CEIL")) {
+                return Values.of(Math.ceil(d));
+            } else {
+                int digits = vals.length > 1 && Values.isNumber(vals[1]) ? vals[1].getAsInt() : 0;
+                double scale = Math.pow(10, digits);
+                return Values.of(Math.round(d * scale) / scale);
+            }
+        }
+
+        @Override
+        String canonical(String alias) {
+            StringBuilder sb = new StringBuilder(name).append('(');
+            for (int i = 0; i < args.size(); i++) {
+                String arg = args.get(i).canonical(alias);
+                if (arg == null) {
+                    return null;
+                }
+                sb.append(i > 0 ? "," : "").append(arg);
+            }
+            return sb.append(')').toString();
+        }
+
+        /**
+         * @return The number of arguments the function accepts, as {minimum, maximum}
+         */
+        static int[] arity(String name) {
+            if (name.equals("CONTAINS") || name.equals("ARRAY_CONTAINS")) {
+                return new int[] { 2, 2 };
+            } else if (name.equals("ROUND")) {
+                return new int[] { 1, 2 };
+            } else if (name.equals("IFMISSING") || name.equals("IFNULL")) {
+                return new int[] { 2, Integer.MAX_VALUE };
+            }
+            return new int[] { 1, 1 };
+        }
+    }
+
+    /**
+     * An aggregate function. The values are accumulated per group by the executor; once the
+     * group is complete, evaluating the aggregate yields its result for the group
+     */
+    static final class Aggregate extends Expression {
+        static final Set<String> NAMES = new HashSet<String>();
+        static {
+            for (String name : new String[] { "COUNT", "SUM", "AVG", "MIN", "MAX", "ARRAY_AGG" }) {
+                NAMES.add(name);
+            }
+        }
+
+        static final class State {
+            long count = 0;
+            long numbers = 0;
+            double sum = 0;
+            JsonElement min = null;
+            JsonElement max = null;
+            JsonArray values = new JsonArray();
+            Set<String> seen = new HashSet<String>();
+        }
+
+        private final String name;
+        /** The argument, or null for {@code COUNT(*)} */
+        private final Expression arg;
+        private final boolean distinct;
+        private final int index;
+
+        Aggregate(String name, Expression arg, boolean distinct, int index) {
+            this.name = name;
+            this.arg = arg;
+            this.distinct = distinct;
+            this.index = index;
+        }
+
+        @Override
+        JsonElement evaluate(Row row) {
+            if (row.aggregates == null) {
+                throw new IllegalStateException("Aggregate evaluated outside of a group");
+            }
+            return row.aggregates[index];
+        }
+
+        void accumulate(State state, Row row) {
+            if (arg == null) {
+                state.count++;
+                return;
+            }
+            JsonElement v = arg.evaluate(row);
+            if (v == null || v.isJsonNull()) {
+                return;
+            }
+            if (distinct && !state.seen.add(Values.groupKey(v))) {
+                return;
+            }
+            state.count++;
+            if (Values.isNumber(v)) {
+                state.numbers++;
+                state.sum += v.getAsDouble();
+            }
+            if (state.min == null || Values.compare(v, state.min) < 0) {
+                state.min = v;
+            }
+            if (state.max == null || Values.compare(v, state.max) > 0) {
+                state.max = v;
+            }
+            if (name.equals("ARRAY_AGG")) {
+                state.values.add(v);
+            }
+        }
+
+        JsonElement getResult(State state) {
+            if (name.equals("COUNT")) {
+                return Values.of(state.count);
+            } else if (name.equals("SUM")) {
+                return state.numbers == 0 ? JsonNull.INSTANCE : Values.of(state.sum);
+            } else if (name.equals("AVG")) {
+                return state.numbers == 0 ? JsonNull.INSTANCE : Values.of(state.sum / state.numbers);
+            } else if (name.equals("MIN")) {
+                return state.min == null ? JsonNull.INSTANCE : state.min;
+            } else if (name.equals("MAX")) {
+                return state.max == null ? JsonNull.INSTANCE : state.max;
+            } else {
+                return state.values.size() == 0 ? JsonNull.INSTANCE : state.values;
+            }
+        }
+    }
+}
@@ -0,0 +1,495 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.http.query;
+
+import com.google.gson.JsonElement;
+import org.couchbase.mock.Bucket;
+import org.couchbase.mock.memcached.Item;
+import org.couchbase.mock.memcached.KeySpec;
+import org.couchbase.mock.memcached.MemcachedServer;
+import org.couchbase.mock.memcached.Storage;
+import org.couchbase.mock.memcached.VBucketCoordinates;
+import org.couchbase.mock.memcached.VBucketInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * The secondary indexes of a bucket.
+ *
+ * Indexes are maintained incrementally: every mutation of a vBucket's master copy is queued
+ * by {@link #onMutation(KeySpec, VBucketCoordinates)}, and applied in the background by
+ * re-reading the current document from storage, which makes replaying a mutation harmless.
+ * The highest sequence number applied for each vBucket is tracked, so that a
+ * {@code request_plus} scan may wait until the indexes reflect every mutation made before
+ * the request. Modifications which bypass the mutation hooks (flushes and direct cache
+ * manipulation by mock commands) are detected by the storage generation and cause the
+ * indexes to be rebuilt.
+ */
+final class IndexManager implements Storage.MutationListener {
+    private static final ExecutorService MAINTENANCE = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thr = new Thread(r, "GSI maintenance");
+            thr.setDaemon(true);
+            return thr;
+        }
+    });
+
+    /**
+     * The index managers of a cluster, by bucket name
+     */
+    static final class Registry {
+        private final Map<String, IndexManager> managers = new HashMap<String, IndexManager>();
+
+        /**
+         * Get the manager for a bucket
+         * @param bucket The bucket
+         * @param create Whether to create the manager if the bucket has none
+         * @return The manager, or null if there is none and {@code create} is false
+         */
+        synchronized IndexManager get(Bucket bucket, boolean create) {
+            IndexManager ret = managers.get(bucket.getName());
+            if (ret != null && ret.bucket != bucket) {
+                // The bucket was deleted and created again
+                ret.close();
+                managers.remove(bucket.getName());
+                ret = null;
+            }
+            if (ret == null && create) {
+                ret = new IndexManager(bucket);
+                managers.put(bucket.getName(), ret);
+            }
+            return ret;
+        }
+
+        synchronized List<IndexManager> getAll() {
+            return new ArrayList<IndexManager>(managers.values());
+        }
+    }
+
+    /**
+     * A range scan of an index, chosen by {@link #plan(Expression, Row.Scope)}
+     */
+    static final class IndexScan {
+        final SecondaryIndex index;
+        JsonElement low = null;
+        boolean lowInclusive = true;
+        JsonElement high = null;
+        boolean highInclusive = true;
+        /** Set if a bound is NULL or MISSING, which no comparison is true for */
+        boolean empty = false;
+
+        IndexScan(SecondaryIndex index) {
+            this.index = index;
+        }
+
+        void restrict(String op, JsonElement value) {
+            if (value == null || value.isJsonNull()) {
+                empty = true;
+            } else if (op.equals("=")) {
+                restrictLow(value, true);
+                restrictHigh(value, true);
+            } else if (op.equals(">") || op.equals(">=")) {
+                restrictLow(value, op.equals(">="));
+            } else {
+                restrictHigh(value, op.equals("<="));
+            }
+        }
+
+        private void restrictLow(JsonElement value, boolean inclusive) {
+            int rv = low == null ? 1 : Values.compare(value, low);
+            if (rv > 0 || (rv == 0 && !inclusive)) {
+                low = value;
+                lowInclusive = inclusive;
+            }
+        }
+
+        private void restrictHigh(JsonElement value, boolean inclusive) {
+            int rv = high == null ? -1 : Values.compare(value, high);
+            if (rv < 0 || (rv == 0 && !inclusive)) {
+                high = value;
+                highInclusive = inclusive;
+            }
+        }
+
+        Iterator<String> iterator() {
+            if (empty) {
+                return Collections.<String>emptyList().iterator();
+            }
+            return index.scan(low, lowInclusive, high, highInclusive);
+        }
+    }
+
+    private static final class Mutation {
+        final KeySpec ks;
+        final long seqno;
+
+        Mutation(KeySpec ks, long seqno) {
+            this.ks = ks;
+            this.seqno = seqno;
+        }
+    }
+
+    private final Bucket bucket;
+    private final Row.Scope scope;
+    private final Map<String, SecondaryIndex> indexes = new ConcurrentHashMap<String, SecondaryIndex>();
+    private final Queue<Mutation> queue = new ConcurrentLinkedQueue<Mutation>();
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    /** The number of queued mutations per vBucket */
+    private final AtomicIntegerArray pending;
+    /** The highest sequence number applied per vBucket. Guarded by this */
+    private final long[] indexedSeqnos;
+    /** The storage generation of each node when the indexes were last built. Guarded by this */
+    private final long[] generations;
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    private IndexManager(Bucket bucket) {
+        this.bucket = bucket;
+        this.scope = new Row.Scope(bucket.getName(), null, Collections.<String, JsonElement>emptyMap());
+        int numVBuckets = bucket.getVBucketInfo().length;
+        pending = new AtomicIntegerArray(numVBuckets);
+        indexedSeqnos = new long[numVBuckets];
+        MemcachedServer[] servers = bucket.getServers();
+        generations = new long[servers.length];
+        for (MemcachedServer server : servers) {
+            server.getStorage().addMutationListener(this);
+        }
+    }
+
+    private void close() {
+        for (MemcachedServer server : bucket.getServers()) {
+            server.getStorage().removeMutationListener(this);
+        }
+    }
+
+    String getKeyspace() {
+        return bucket.getName();
+    }
+
+    /**
+     * @return The indexes, ordered by name
+     */
+    List<SecondaryIndex> getIndexes() {
+        List<SecondaryIndex> ret = new ArrayList<SecondaryIndex>(indexes.values());
+        Collections.sort(ret, new Comparator<SecondaryIndex>() {
+            @Override
+            public int compare(SecondaryIndex a, SecondaryIndex b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        return ret;
+    }
+
+    @Override
+    public void onMutation(KeySpec ks, VBucketCoordinates coords) {
+        if (indexes.isEmpty()) {
+            return;
+        }
+        pending.incrementAndGet(ks.vbId);
+        queue.add(new Mutation(ks, coords.getSeqno()));
+        if (draining.compareAndSet(false, true)) {
+            MAINTENANCE.execute(drainTask);
+        }
+    }
+
+    private void drain() {
+        boolean released = false;
+        try {
+            while (true) {
+                Mutation mut = queue.poll();
+                if (mut == null) {
+                    draining.set(false);
+                    released = true;
+                    // A mutation may have been queued after the poll, but before the flag was reset
+                    if (queue.isEmpty() || !draining.compareAndSet(false, true)) {
+                        return;
+                    }
+                    released = false;
+                    continue;
+                }
+                synchronized (this) {
+                    try {
+                        apply(mut.ks, QueryExecutor.now());
+                    } finally {
+                        if (mut.seqno > indexedSeqnos[mut.ks.vbId]) {
+                            indexedSeqnos[mut.ks.vbId] = mut.seqno;
+                        }
+                        pending.decrementAndGet(mut.ks.vbId);
+                        notifyAll();
+                    }
+                }
+            }
+        } finally {
+            // If applying a mutation failed, let the next one schedule a new drain
+            if (!released) {
+                draining.set(false);
+            }
+        }
+    }
+
+    private List<SecondaryIndex> getOnline() {
+        List<SecondaryIndex> ret = new ArrayList<SecondaryIndex>(indexes.size());
+        for (SecondaryIndex index : indexes.values()) {
+            if (index.getState() == SecondaryIndex.State.ONLINE) {
+                ret.add(index);
+            }
+        }
+        return ret;
+    }
+
+    private void apply(KeySpec ks, long now) {
+        List<SecondaryIndex> online = getOnline();
+        if (online.isEmpty()) {
+            return;
+        }
+        Item item = QueryExecutor.lookup(bucket, ks);
+        Row row = item == null || QueryExecutor.isExpired(item, now) ? null : Row.create(scope, item);
+        for (SecondaryIndex index : online) {
+            index.update(ks.key, row);
+        }
+    }
+
+    /**
+     * Build indexes from the current contents of the bucket, decoding each document once.
+     * If the storage was modified without notifying the indexes, every online index is
+     * rebuilt along with the targets
+     */
+    private void populate(List<SecondaryIndex> targets) {
+        MemcachedServer[] servers = bucket.getServers();
+        boolean changed = false;
+        for (int i = 0; i < servers.length; i++) {
+            changed |= servers[i].getStorage().getGeneration() != generations[i];
+        }
+        if (changed) {
+            targets = new ArrayList<SecondaryIndex>(targets);
+            for (SecondaryIndex index : getOnline()) {
+                if (!targets.contains(index)) {
+                    targets.add(index);
+                }
+            }
+            for (int i = 0; i < servers.length; i++) {
+                generations[i] = servers[i].getStorage().getGeneration();
+            }
+        }
+        for (SecondaryIndex index : targets) {
+            index.clear();
+        }
+        long now = QueryExecutor.now();
+        for (MemcachedServer server : servers) {
+            for (Item item : server.getStorage().getMasterStore(Storage.StorageType.CACHE)) {
+                if (QueryExecutor.isExpired(item, now)) {
+                    continue;
+                }
+                Row row = Row.create(scope, item);
+                for (SecondaryIndex index : targets) {
+                    index.update(item.getKeySpec().key, row);
+                }
+            }
+        }
+    }
+
+    private synchronized void checkGenerations() {
+        MemcachedServer[] servers = bucket.getServers();
+        for (int i = 0; i < servers.length; i++) {
+            if (servers[i].getStorage().getGeneration() != generations[i]) {
+                populate(getOnline());
+                return;
+            }
+        }
+    }
+
+    synchronized void execute(IndexStatement stmt) throws QueryException {
+        if (stmt.kind == IndexStatement.Kind.CREATE) {
+            String name = stmt.names.get(0);
+            if (indexes.containsKey(name)) {
+                throw new QueryException(QueryException.INTERNAL_ERROR,
+                        "The index " + name + " already exists.");
+            }
+            SecondaryIndex index = new SecondaryIndex(name, bucket.getName(),
+                    stmt.primary ? null : stmt.keys, stmt.condition, stmt.deferBuild);
+            // Registered first, so that mutations made while it is populated are not missed
+            indexes.put(name, index);
+            if (!stmt.deferBuild) {
+                populate(Collections.singletonList(index));
+            }
+        } else if (stmt.kind == IndexStatement.Kind.DROP) {
+            String name = stmt.names.get(0);
+            if (indexes.remove(name) == null) {
+                throw new QueryException(QueryException.INTERNAL_ERROR,
+                        "GSI index " + name + " not found.");
+            }
+        } else {
+            List<SecondaryIndex> targets = new ArrayList<SecondaryIndex>();
+            for (String name : stmt.names) {
+                SecondaryIndex index = indexes.get(name);
+                if (index == null) {
+                    throw new QueryException(QueryException.INTERNAL_ERROR,
+                            "GSI index " + name + " not found.");
+                }
+                if (index.getState() == SecondaryIndex.State.DEFERRED) {
+                    targets.add(index);
+                }
+            }
+            populate(targets);
+            for (SecondaryIndex index : targets) {
+                index.setState(SecondaryIndex.State.ONLINE);
+            }
+        }
+    }
+
+    private static void addConjuncts(Expression expr, List<Expression> out) {
+        if (expr instanceof Expression.Logical && ((Expression.Logical) expr).isAnd) {
+            addConjuncts(((Expression.Logical) expr).left, out);
+            addConjuncts(((Expression.Logical) expr).right, out);
+        } else {
+            out.add(expr);
+        }
+    }
+
+    private static int rank(SecondaryIndex index) {
+        return index.isPrimary() ? 0 : index.isPartial() ? 2 : 1;
+    }
+
+    /**
+     * Choose an index for a query. An index is usable if a conjunct of the WHERE clause
+     * compares its leading key with a constant, and, for a partial index, if its condition
+     * is one of the conjuncts. Partial indexes are preferred over other secondary indexes,
+     * which are preferred over the primary index.
+     *
+     * @param where The WHERE clause of the query
+     * @param queryScope The scope of the query, used to evaluate constants
+     * @return The scan to perform, or null if no index is usable
+     */
+    IndexScan plan(Expression where, Row.Scope queryScope) {
+        if (where == null || indexes.isEmpty()) {
+            return null;
+        }
+        checkGenerations();
+
+        List<Expression> conjuncts = new ArrayList<Expression>();
+        addConjuncts(where, conjuncts);
+        Set<String> texts = new HashSet<String>();
+        for (Expression expr : conjuncts) {
+            String text = expr.canonical(queryScope.alias);
+            if (text != null) {
+                texts.add(text);
+            }
+        }
+
+        Row constants = new Row(queryScope, null, null);
+        IndexScan best = null;
+        for (SecondaryIndex index : getIndexes()) {
+            String key = index.getLeadingKey();
+            if (index.getState() != SecondaryIndex.State.ONLINE || key == null ||
+                    (index.isPartial() && !texts.contains(index.getCondition()))) {
+                continue;
+            }
+
+            IndexScan scan = null;
+            for (Expression expr : conjuncts) {
+                if (!(expr instanceof Expression.Comparison)) {
+                    continue;
+                }
+                Expression.Comparison cmp = (Expression.Comparison) expr;
+                String op = cmp.op;
+                Expression value;
+                if (cmp.right.isConstant() && key.equals(cmp.left.canonical(queryScope.alias))) {
+                    value = cmp.right;
+                } else if (cmp.left.isConstant() && key.equals(cmp.right.canonical(queryScope.alias))) {
+                    value = cmp.left;
+                    op = op.startsWith("<") ? ">" + op.substring(1) : op.startsWith(">") ? "<" + op.substring(1) : op;
+                } else {
+                    continue;
+                }
+                if (op.equals("!=")) {
+                    continue;
+                }
+                if (scan == null) {
+                    scan = new IndexScan(index);
+                }
+                scan.restrict(op, value.evaluate(constants));
+            }
+
+            if (scan != null && (best == null || rank(index) > rank(best.index))) {
+                best = scan;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Wait until the indexes reflect all mutations made before the call
+     * @param timeout The maximum time to wait, in milliseconds
+     * @throws QueryException if the indexes did not catch up in time
+     */
+    void waitForConsistency(long timeout) throws QueryException {
+        VBucketInfo[] vbInfo = bucket.getVBucketInfo();
+        long[] targets = new long[vbInfo.length];
+        for (short vb = 0; vb < vbInfo.length; vb++) {
+            MemcachedServer owner = vbInfo[vb].getOwner();
+            if (owner != null) {
+                targets[vb] = owner.getStorage().getCache(vb).getCurrentCoords(vb).getSeqno();
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (this) {
+            while (!isCaughtUp(targets)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new QueryException(QueryException.SCAN_TIMEOUT, "Index scan timed out");
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException ex) {
+                    throw new QueryException(QueryException.SCAN_TIMEOUT, "Interrupted while waiting for index");
+                }
+            }
+        }
+    }
+
+    private boolean isCaughtUp(long[] targets) {
+        for (int vb = 0; vb < targets.length; vb++) {
+            if (pending.get(vb) != 0 && indexedSeqnos[vb] < targets[vb]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
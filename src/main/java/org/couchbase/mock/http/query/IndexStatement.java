@@ -0,0 +1,42 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.http.query;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A parsed CREATE INDEX, DROP INDEX or BUILD INDEX statement
+ */
+final class IndexStatement {
+    enum Kind { CREATE, DROP, BUILD }
+
+    final Kind kind;
+    final String keyspace;
+    /** The index names. A single name for CREATE and DROP */
+    final List<String> names = new ArrayList<String>();
+    boolean primary = false;
+    /** The key expressions of a secondary index being created */
+    final List<Expression> keys = new ArrayList<Expression>();
+    Expression condition = null;
+    boolean deferBuild = false;
+
+    IndexStatement(Kind kind, String keyspace) {
+        this.kind = kind;
+        this.keyspace = keyspace;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.http.query;
+
+/**
+ * An error raised while parsing, planning or executing a query. The code and message are
+ * returned to the client in the {@code errors} array of the response.
+ */
+class QueryException extends Exception {
+    static final int INVALID_PARAMETER = 1050;
+    static final int SYNTAX_ERROR = 3000;
+    static final int NO_SUCH_PREPARED = 4040;
+    static final int PREPARED_ENCODING = 4070;
+    static final int INTERNAL_ERROR = 5000;
+    static final int EVALUATION_ERROR = 5010;
+    static final int KEYSPACE_NOT_FOUND = 12003;
+    static final int SCAN_TIMEOUT = 12015;
+
+    private final int code;
+
+    QueryException(int code, String msg) {
+        super(msg);
+        this.code = code;
+    }
+
+    int getCode() {
+        return code;
+    }
+}
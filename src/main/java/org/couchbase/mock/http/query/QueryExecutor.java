@@ -0,0 +1,545 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.http.query;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.couchbase.mock.Bucket;
+import org.couchbase.mock.CouchbaseMock;
+import org.couchbase.mock.Info;
+import org.couchbase.mock.memcached.Item;
+import org.couchbase.mock.memcached.KeySpec;
+import org.couchbase.mock.memcached.MemcachedServer;
+import org.couchbase.mock.memcached.Storage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Executes a {@link SelectStatement} against the documents of a bucket.
+ *
+ * If a secondary index can satisfy part of the WHERE clause (see
+ * {@link IndexManager#plan(Expression, Row.Scope)}), the documents it yields are fetched
+ * and filtered in index order. Otherwise the bucket is scanned in parallel, one partition per node covering the vBuckets that node
+ * is master for. Statements without grouping, ordering or DISTINCT are streamed: partitions
+ * hand their projected rows to the writer through a bounded queue, and the scan stops as soon
+ * as LIMIT rows were written. Other statements, and those using {@code USE KEYS}, collect the
+ * filtered rows before grouping, sorting and projecting them.
+ */
+final class QueryExecutor {
+    /**
+     * Receives the result rows as they are produced
+     */
+    interface ResultSink {
+        void write(JsonElement row) throws IOException;
+    }
+
+    private static final int QUEUE_DEPTH = 256;
+    static final long DEFAULT_SCAN_WAIT = 10000;
+    private static final Object PARTITION_DONE = new Object();
+
+    // Streaming scans block while the client is slow to read the results, so a bounded pool
+    // would let a few slow clients stall every other query. Idle threads are reclaimed.
+    private static final ExecutorService SCAN_POOL = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thr = new Thread(r, "N1QL scan");
+                    thr.setDaemon(true);
+                    return thr;
+                }
+            });
+
+    private final SelectStatement stmt;
+    private final Bucket bucket;
+    private final IndexManager.Registry registry;
+    /** The indexes of the bucket, or null if it has none */
+    private final IndexManager indexes;
+    private final Row.Scope scope;
+    private boolean requestPlus = false;
+    private long scanWait = DEFAULT_SCAN_WAIT;
+    private final long offset;
+    /** The maximum number of rows to return, or -1 for no limit */
+    private final long limit;
+
+    /**
+     * @param stmt The statement to execute
+     * @param mock The cluster holding the keyspace
+     * @param registry The indexes of the cluster
+     * @param positional The positional parameters, or null
+     * @param named The named parameters, without their leading {@code $}
+     * @throws QueryException if the keyspace does not exist, or LIMIT or OFFSET are invalid
+     */
+    QueryExecutor(SelectStatement stmt, CouchbaseMock mock, IndexManager.Registry registry,
+                  JsonArray positional, Map<String, JsonElement> named) throws QueryException {
+        this.stmt = stmt;
+        this.registry = registry;
+        this.scope = new Row.Scope(stmt.alias, positional, named);
+        if (stmt.keyspace == null || isSystemIndexes()) {
+            bucket = null;
+        } else {
+            bucket = stmt.namespace.equals("default") ? mock.getBuckets().get(stmt.keyspace) : null;
+            if (bucket == null || bucket.getType() != Bucket.BucketType.COUCHBASE) {
+                throw new QueryException(QueryException.KEYSPACE_NOT_FOUND,
+                        "Keyspace not found keyspace " + stmt.keyspace + " - cause: No bucket named " + stmt.keyspace);
+            }
+        }
+        indexes = bucket == null ? null : registry.get(bucket, false);
+        offset = evaluateCount(stmt.offset, "OFFSET", 0);
+        limit = evaluateCount(stmt.limit, "LIMIT", -1);
+    }
+
+    private boolean isSystemIndexes() {
+        return stmt.namespace.equals("system") && stmt.keyspace.equals("indexes");
+    }
+
+    /**
+     * Set the consistency required of index scans
+     * @param requestPlus Whether index scans must reflect all mutations made before the query
+     * @param scanWait How long to wait for the indexes to catch up, in milliseconds
+     */
+    void setScanConsistency(boolean requestPlus, long scanWait) {
+        this.requestPlus = requestPlus;
+        this.scanWait = scanWait;
+    }
+
+    private long evaluateCount(Expression expr, String clause, long dflt) throws QueryException {
+        if (expr == null) {
+            return dflt;
+        }
+        JsonElement v = expr.evaluate(new Row(scope, null, null));
+        if (!Values.isNumber(v) || v.getAsDouble() < 0) {
+            throw new QueryException(QueryException.EVALUATION_ERROR,
+                    "Invalid " + clause + " value " + v + ": must be a non-negative number");
+        }
+        return v.getAsLong();
+    }
+
+    /**
+     * Run the statement
+     * @param sink Receives the result rows
+     * @throws QueryException if the statement fails during execution. Rows already written
+     * to the sink remain written
+     * @throws IOException if the sink fails
+     */
+    void execute(ResultSink sink) throws QueryException, IOException {
+        boolean streamable = !stmt.isAggregate() && stmt.orderBy.isEmpty() && !stmt.distinct;
+        IndexManager.IndexScan indexScan = null;
+        if (indexes != null && stmt.useKeys == null) {
+            indexScan = indexes.plan(stmt.where, scope);
+        }
+
+        if (indexScan != null) {
+            if (requestPlus) {
+                indexes.waitForConsistency(scanWait);
+            }
+            if (streamable) {
+                streamIndex(indexScan, sink);
+            } else {
+                process(collectIndex(indexScan), sink);
+            }
+        } else if (bucket != null && stmt.useKeys == null && streamable) {
+            stream(sink);
+        } else {
+            process(collect(), sink);
+        }
+    }
+
+    /**
+     * @return The row for the item, or null if the item has expired or does not match WHERE
+     */
+    private Row filter(Item item, long now) {
+        if (isExpired(item, now)) {
+            return null;
+        }
+        Row row = Row.create(scope, item);
+        if (stmt.where != null && !Values.isTrue(stmt.where.evaluate(row))) {
+            return null;
+        }
+        return row;
+    }
+
+    static long now() {
+        return System.currentTimeMillis() + Info.getClockOffset() * 1000L;
+    }
+
+    static boolean isExpired(Item item, long now) {
+        return item.getExpiryTime() != 0 && now >= item.getExpiryTimeInMillis();
+    }
+
+    /**
+     * @return The result row, or null (MISSING) if a RAW projection has no value
+     */
+    private JsonElement project(Row row) {
+        if (stmt.raw) {
+            return stmt.projections.get(0).expr.evaluate(row);
+        }
+        JsonObject ret = new JsonObject();
+        for (SelectStatement.Projection proj : stmt.projections) {
+            if (proj.expr == null) {
+                if (scope.alias != null && row.doc != null) {
+                    ret.add(scope.alias, row.doc);
+                }
+                continue;
+            }
+            JsonElement v = proj.expr.evaluate(row);
+            if (v == null) {
+                continue;
+            }
+            if (!proj.star) {
+                ret.add(proj.name, v);
+            } else if (v.isJsonObject()) {
+                for (Map.Entry<String, JsonElement> ent : v.getAsJsonObject().entrySet()) {
+                    ret.add(ent.getKey(), ent.getValue());
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return The next row yielded by the index scan which matches WHERE, or null
+     */
+    private Row nextIndexed(Iterator<String> ids, long now) {
+        while (ids.hasNext()) {
+            String id = ids.next();
+            Item item = lookup(id);
+            Row row = item == null ? null : filter(item, now);
+            if (row != null) {
+                return row;
+            }
+        }
+        return null;
+    }
+
+    private void streamIndex(IndexManager.IndexScan indexScan, ResultSink sink) throws IOException {
+        Iterator<String> ids = indexScan.iterator();
+        long now = now();
+        long skip = offset;
+        long written = 0;
+        Row row;
+        while ((limit < 0 || written < limit) && (row = nextIndexed(ids, now)) != null) {
+            JsonElement result = project(row);
+            if (result == null) {
+                continue;
+            }
+            if (skip > 0) {
+                skip--;
+            } else {
+                sink.write(result);
+                written++;
+            }
+        }
+    }
+
+    private List<Row> collectIndex(IndexManager.IndexScan indexScan) {
+        Iterator<String> ids = indexScan.iterator();
+        long now = now();
+        List<Row> rows = new ArrayList<Row>();
+        Row row;
+        while ((row = nextIndexed(ids, now)) != null) {
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private void stream(ResultSink sink) throws QueryException, IOException {
+        final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(QUEUE_DEPTH);
+        final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+        final long now = now();
+        MemcachedServer[] servers = bucket.getServers();
+        List<Future<?>> futures = new ArrayList<Future<?>>(servers.length);
+
+        for (final MemcachedServer server : servers) {
+            futures.add(SCAN_POOL.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (Item item : server.getStorage().getMasterStore(Storage.StorageType.CACHE)) {
+                            if (Thread.currentThread().isInterrupted()) {
+                                return;
+                            }
+                            Row row = filter(item, now);
+                            JsonElement result = row == null ? null : project(row);
+                            if (result != null) {
+                                queue.put(result);
+                            }
+                        }
+                    } catch (InterruptedException ex) {
+                        return;
+                    } catch (RuntimeException ex) {
+                        failure.compareAndSet(null, ex);
+                    }
+                    try {
+                        queue.put(PARTITION_DONE);
+                    } catch (InterruptedException ex) {
+                        // The writer is gone
+                    }
+                }
+            }));
+        }
+
+        try {
+            long skip = offset;
+            long written = 0;
+            int pending = servers.length;
+            while (pending > 0 && (limit < 0 || written < limit)) {
+                Object obj = queue.take();
+                if (obj == PARTITION_DONE) {
+                    pending--;
+                } else if (skip > 0) {
+                    skip--;
+                } else {
+                    sink.write((JsonElement) obj);
+                    written++;
+                }
+            }
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("Interrupted while waiting for query results");
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        if (failure.get() != null) {
+            throw new QueryException(QueryException.EVALUATION_ERROR, "Error evaluating query: " + failure.get());
+        }
+    }
+
+    /**
+     * @return The rows matching the FROM, USE KEYS and WHERE clauses
+     */
+    private List<Row> collect() throws QueryException, IOException {
+        final long now = now();
+        List<Row> rows = new ArrayList<Row>();
+        if (stmt.keyspace != null && isSystemIndexes()) {
+            for (IndexManager manager : registry.getAll()) {
+                for (SecondaryIndex index : manager.getIndexes()) {
+                    JsonObject doc = index.toJson();
+                    JsonObject meta = new JsonObject();
+                    meta.add("id", doc.get("id"));
+                    Row row = new Row(scope, doc, meta);
+                    if (stmt.where == null || Values.isTrue(stmt.where.evaluate(row))) {
+                        rows.add(row);
+                    }
+                }
+            }
+            return rows;
+        }
+        if (bucket == null) {
+            rows.add(new Row(scope, null, null));
+            return rows;
+        }
+
+        if (stmt.useKeys != null) {
+            JsonElement keys = stmt.useKeys.evaluate(new Row(scope, null, null));
+            List<String> ids = new ArrayList<String>();
+            if (Values.isString(keys)) {
+                ids.add(keys.getAsString());
+            } else if (keys != null && keys.isJsonArray()) {
+                for (JsonElement key : keys.getAsJsonArray()) {
+                    if (Values.isString(key)) {
+                        ids.add(key.getAsString());
+                    }
+                }
+            }
+            for (String id : ids) {
+                Item item = lookup(id);
+                Row row = item == null ? null : filter(item, now);
+                if (row != null) {
+                    rows.add(row);
+                }
+            }
+            return rows;
+        }
+
+        List<Future<List<Row>>> futures = new ArrayList<Future<List<Row>>>();
+        for (final MemcachedServer server : bucket.getServers()) {
+            futures.add(SCAN_POOL.submit(new Callable<List<Row>>() {
+                @Override
+                public List<Row> call() {
+                    List<Row> ret = new ArrayList<Row>();
+                    for (Item item : server.getStorage().getMasterStore(Storage.StorageType.CACHE)) {
+                        Row row = filter(item, now);
+                        if (row != null) {
+                            ret.add(row);
+                        }
+                    }
+                    return ret;
+                }
+            }));
+        }
+        try {
+            for (Future<List<Row>> future : futures) {
+                rows.addAll(future.get());
+            }
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("Interrupted while scanning keyspace");
+        } catch (ExecutionException ex) {
+            throw new QueryException(QueryException.EVALUATION_ERROR, "Error evaluating query: " + ex.getCause());
+        } finally {
+            for (Future<List<Row>> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return rows;
+    }
+
+    private Item lookup(String id) {
+        short vb = bucket.getVbIndexForKey(id);
+        if (vb < 0) {
+            return null;
+        }
+        return lookup(bucket, new KeySpec(id, vb));
+    }
+
+    /**
+     * @return The current item from the master of its vBucket, or null if it does not exist
+     */
+    static Item lookup(Bucket bucket, KeySpec ks) {
+        MemcachedServer owner = bucket.getVBucketInfo()[ks.vbId].getOwner();
+        if (owner == null) {
+            return null;
+        }
+        return owner.getStorage().getCached(ks);
+    }
+
+    private static final class Group {
+        final Row first;
+        final Expression.Aggregate.State[] states;
+
+        Group(Row first, int numAggregates) {
+            this.first = first;
+            states = new Expression.Aggregate.State[numAggregates];
+            for (int i = 0; i < numAggregates; i++) {
+                states[i] = new Expression.Aggregate.State();
+            }
+        }
+    }
+
+    private List<Row> group(List<Row> rows) {
+        Map<String, Group> groups = new LinkedHashMap<String, Group>();
+        for (Row row : rows) {
+            StringBuilder sb = new StringBuilder();
+            for (Expression expr : stmt.groupBy) {
+                sb.append(Values.groupKey(expr.evaluate(row))).append('\u0000');
+            }
+            String key = sb.toString();
+            Group grp = groups.get(key);
+            if (grp == null) {
+                grp = new Group(row, stmt.aggregates.size());
+                groups.put(key, grp);
+            }
+            for (int i = 0; i < grp.states.length; i++) {
+                stmt.aggregates.get(i).accumulate(grp.states[i], row);
+            }
+        }
+        if (groups.isEmpty() && stmt.groupBy.isEmpty()) {
+            // Aggregates over no rows still yield a single row
+            groups.put("", new Group(new Row(scope, null, null), stmt.aggregates.size()));
+        }
+
+        List<Row> ret = new ArrayList<Row>(groups.size());
+        for (Group grp : groups.values()) {
+            Row row = grp.first;
+            row.aggregates = new JsonElement[grp.states.length];
+            for (int i = 0; i < grp.states.length; i++) {
+                row.aggregates[i] = stmt.aggregates.get(i).getResult(grp.states[i]);
+            }
+            if (stmt.having == null || Values.isTrue(stmt.having.evaluate(row))) {
+                ret.add(row);
+            }
+        }
+        return ret;
+    }
+
+    private static final class Result {
+        final Row row;
+        final JsonElement value;
+        JsonElement[] sortKeys;
+
+        Result(Row row, JsonElement value) {
+            this.row = row;
+            this.value = value;
+        }
+    }
+
+    private void process(List<Row> rows, ResultSink sink) throws IOException {
+        if (stmt.isAggregate()) {
+            rows = group(rows);
+        }
+
+        List<Result> results = new ArrayList<Result>(rows.size());
+        Set<String> seen = stmt.distinct ? new HashSet<String>() : null;
+        for (Row row : rows) {
+            JsonElement value = project(row);
+            if (value == null || (seen != null && !seen.add(Values.groupKey(value)))) {
+                continue;
+            }
+            results.add(new Result(row, value));
+        }
+
+        if (!stmt.orderBy.isEmpty()) {
+            for (Result res : results) {
+                if (res.value.isJsonObject()) {
+                    res.row.projection = res.value.getAsJsonObject();
+                }
+                res.sortKeys = new JsonElement[stmt.orderBy.size()];
+                for (int i = 0; i < res.sortKeys.length; i++) {
+                    res.sortKeys[i] = stmt.orderBy.get(i).expr.evaluate(res.row);
+                }
+            }
+            Collections.sort(results, new Comparator<Result>() {
+                @Override
+                public int compare(Result a, Result b) {
+                    for (int i = 0; i < a.sortKeys.length; i++) {
+                        int rv = Values.compare(a.sortKeys[i], b.sortKeys[i]);
+                        if (rv != 0) {
+                            return stmt.orderBy.get(i).descending ? -rv : rv;
+                        }
+                    }
+                    return 0;
+                }
+            });
+        }
+
+        long end = limit < 0 ? results.size() : Math.min(results.size(), offset + limit);
+        for (long i = offset; i < end; i++) {
+            sink.write(results.get((int) i).value);
+        }
+    }
+}
@@ -0,0 +1,816 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.http.query;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonPrimitive;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Parses the subset of N1QL understood by the mock:
+ *
+ * <pre>
+ * [PREPARE [name (FROM|AS)]]
+ * SELECT [DISTINCT] [RAW|ELEMENT|VALUE] projection [, ...]
+ * [FROM keyspace [[AS] alias] [USE [PRIMARY] KEYS expr]]
+ * [WHERE expr]
+ * [GROUP BY expr [, ...] [HAVING expr]]
+ * [ORDER BY expr [ASC|DESC] [, ...]]
+ * [LIMIT expr] [OFFSET expr]
+ * </pre>
+ *
+ * Projections may be {@code *}, {@code expr.*} or {@code expr [[AS] name]}. The keyspace may be
+ * {@code system:indexes} to list the indexes. Indexes are managed with:
+ *
+ * <pre>
+ * CREATE PRIMARY INDEX [name] ON keyspace [USING GSI] [WITH {"defer_build": true}]
+ * CREATE INDEX name ON keyspace(expr [, ...]) [WHERE expr] [USING GSI] [WITH {"defer_build": true}]
+ * DROP PRIMARY INDEX ON keyspace [USING GSI]
+ * DROP INDEX keyspace.name [USING GSI]
+ * BUILD INDEX ON keyspace(name [, ...]) [USING GSI]
+ * </pre>
+ *
+ * Expressions support
+ * literals, array and object constructors, field and element access, {@code META()}, positional
+ * ({@code $1}, {@code ?}) and named ({@code $name}) parameters, arithmetic, {@code ||},
+ * comparisons, {@code [NOT] LIKE}, {@code [NOT] IN}, {@code [NOT] BETWEEN},
+ * {@code IS [NOT] NULL|MISSING|VALUED}, {@code AND}, {@code OR}, {@code NOT}, the scalar
+ * functions in {@link Expression.Function} and the aggregates in {@link Expression.Aggregate}.
+ */
+final class QueryParser {
+    /**
+     * A parsed statement
+     */
+    static final class Statement {
+        /** The SELECT statement, or null for index statements */
+        final SelectStatement select;
+        /** The index statement, or null for SELECT statements */
+        final IndexStatement index;
+        /** Whether the statement is to be prepared rather than executed */
+        final boolean prepare;
+        /** The name given to the prepared statement, if any */
+        final String name;
+        /** The text of the SELECT statement */
+        final String text;
+
+        Statement(SelectStatement select, IndexStatement index, boolean prepare, String name, String text) {
+            this.select = select;
+            this.index = index;
+            this.prepare = prepare;
+            this.name = name;
+            this.text = text;
+        }
+    }
+
+    private static final Set<String> RESERVED = new HashSet<String>(Arrays.asList(
+            "ALL", "AND", "AS", "ASC", "BETWEEN", "BY", "DESC", "DISTINCT", "ELEMENT", "FALSE", "FROM",
+            "GROUP", "HAVING", "IN", "IS", "KEYS", "LIKE", "LIMIT", "MISSING", "NOT", "NULL", "OFFSET",
+            "OR", "ORDER", "PREPARE", "PRIMARY", "RAW", "SELECT", "TRUE", "USE", "VALUE", "VALUED", "WHERE"
+    ));
+
+    // Tokenizer
+
+    private enum TokenType {
+        IDENT,
+        QUOTED_IDENT,
+        STRING,
+        NUMBER,
+        PARAM,
+        PUNCT,
+        EOF
+    }
+
+    private static final class Token {
+        final TokenType type;
+        final String text;
+        final int offset;
+
+        Token(TokenType type, String text, int offset) {
+            this.type = type;
+            this.text = text;
+            this.offset = offset;
+        }
+
+        boolean is(String s) {
+            if (type == TokenType.PUNCT) {
+                return text.equals(s);
+            }
+            return type == TokenType.IDENT && text.equalsIgnoreCase(s);
+        }
+
+        boolean isName() {
+            return type == TokenType.QUOTED_IDENT ||
+                    (type == TokenType.IDENT && !RESERVED.contains(text.toUpperCase(Locale.ROOT)));
+        }
+    }
+
+    private static final String[] PUNCTUATORS = {
+            "==", "!=", "<>", "<=", ">=", "||", "=", "<", ">", "(", ")", "[", "]", "{", "}",
+            ",", ".", ":", ";", "*", "/", "%", "+", "-"
+    };
+
+    private static boolean isIdentStart(char c) {
+        return Character.isLetter(c) || c == '_';
+    }
+
+    private static boolean isIdentPart(char c) {
+        return isIdentStart(c) || Character.isDigit(c) || c == '$';
+    }
+
+    private static QueryException syntaxError(String msg) {
+        return new QueryException(QueryException.SYNTAX_ERROR, "syntax error - " + msg);
+    }
+
+    private static List<Token> tokenize(String src) throws QueryException {
+        List<Token> tokens = new ArrayList<Token>();
+        int i = 0;
+        int len = src.length();
+        int positional = 0;
+
+        while (i < len) {
+            char c = src.charAt(i);
+            int begin = i;
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (src.startsWith("--", i)) {
+                while (i < len && src.charAt(i) != '\n') {
+                    i++;
+                }
+            } else if (src.startsWith("/*", i)) {
+                int end = src.indexOf("*/", i + 2);
+                if (end < 0) {
+                    throw syntaxError("unterminated comment");
+                }
+                i = end + 2;
+            } else if (isIdentStart(c)) {
+                while (i < len && isIdentPart(src.charAt(i))) {
+                    i++;
+                }
+                tokens.add(new Token(TokenType.IDENT, src.substring(begin, i), begin));
+            } else if (c == '$') {
+                i++;
+                while (i < len && isIdentPart(src.charAt(i))) {
+                    i++;
+                }
+                if (i == begin + 1) {
+                    throw syntaxError("invalid parameter at offset " + begin);
+                }
+                tokens.add(new Token(TokenType.PARAM, src.substring(begin + 1, i), begin));
+            } else if (c == '?') {
+                i++;
+                tokens.add(new Token(TokenType.PARAM, Integer.toString(++positional), begin));
+            } else if (Character.isDigit(c)) {
+                while (i < len && (Character.isDigit(src.charAt(i)) || src.charAt(i) == '.' ||
+                        src.charAt(i) == 'e' || src.charAt(i) == 'E' ||
+                        ((src.charAt(i) == '+' || src.charAt(i) == '-') && (src.charAt(i - 1) == 'e' || src.charAt(i - 1) == 'E')))) {
+                    i++;
+                }
+                String num = src.substring(begin, i);
+                if (!num.matches("[0-9]+(\\.[0-9]+)?([eE][+-]?[0-9]+)?")) {
+                    throw syntaxError("invalid number " + num);
+                }
+                tokens.add(new Token(TokenType.NUMBER, num, begin));
+            } else if (c == '"' || c == '\'' || c == '`') {
+                StringBuilder sb = new StringBuilder();
+                i++;
+                while (true) {
+                    if (i >= len) {
+                        throw syntaxError("unterminated string at offset " + begin);
+                    }
+                    char sc = src.charAt(i++);
+                    if (sc == c) {
+                        if (i < len && src.charAt(i) == c) {
+                            sb.append(c);
+                            i++;
+                            continue;
+                        }
+                        break;
+                    } else if (sc != '\\' || c == '`') {
+                        sb.append(sc);
+                        continue;
+                    }
+                    if (i >= len) {
+                        throw syntaxError("unterminated string at offset " + begin);
+                    }
+                    char esc = src.charAt(i++);
+                    switch (esc) {
+                        case 'n': sb.append('\n'); break;
+                        case 't': sb.append('\t'); break;
+                        case 'r': sb.append('\r'); break;
+                        case 'b': sb.append('\b'); break;
+                        case 'f': sb.append('\f'); break;
+                        case 'u':
+                            if (i + 4 > len) {
+                                throw syntaxError("invalid escape at offset " + i);
+                            }
+                            try {
+                                sb.append((char) Integer.parseInt(src.substring(i, i + 4), 16));
+                            } catch (NumberFormatException ex) {
+                                throw syntaxError("invalid escape at offset " + i);
+                            }
+                            i += 4;
+                            break;
+                        default:
+                            sb.append(esc);
+                            break;
+                    }
+                }
+                tokens.add(new Token(c == '`' ? TokenType.QUOTED_IDENT : TokenType.STRING, sb.toString(), begin));
+            } else {
+                String punct = null;
+                for (String p : PUNCTUATORS) {
+                    if (src.startsWith(p, i)) {
+                        punct = p;
+                        break;
+                    }
+                }
+                if (punct == null) {
+                    throw syntaxError("unexpected character '" + c + "' at offset " + i);
+                }
+                tokens.add(new Token(TokenType.PUNCT, punct, begin));
+                i += punct.length();
+            }
+        }
+        tokens.add(new Token(TokenType.EOF, "", len));
+        return tokens;
+    }
+
+    // Parser
+
+    private final String src;
+    private final List<Token> tokens;
+    private int pos = 0;
+    private SelectStatement stmt;
+    private boolean inAggregate = false;
+
+    private QueryParser(String src, List<Token> tokens) {
+        this.src = src;
+        this.tokens = tokens;
+    }
+
+    /**
+     * Parse a statement
+     * @param src The text of the statement
+     * @return The parsed statement
+     * @throws QueryException if the statement is not valid, or not in the supported subset
+     */
+    static Statement parse(String src) throws QueryException {
+        QueryParser parser = new QueryParser(src, tokenize(src));
+        return parser.parseStatement();
+    }
+
+    private Token peek() {
+        return tokens.get(pos);
+    }
+
+    private Token peek(int ahead) {
+        return tokens.get(Math.min(pos + ahead, tokens.size() - 1));
+    }
+
+    private Token next() {
+        Token ret = tokens.get(pos);
+        if (ret.type != TokenType.EOF) {
+            pos++;
+        }
+        return ret;
+    }
+
+    private boolean accept(String s) {
+        if (peek().is(s)) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private QueryException unexpected() {
+        Token tok = peek();
+        if (tok.type == TokenType.EOF) {
+            return syntaxError("unexpected end of statement");
+        }
+        return syntaxError("unexpected '" + tok.text + "' at offset " + tok.offset);
+    }
+
+    private void expect(String s) throws QueryException {
+        if (!accept(s)) {
+            throw unexpected();
+        }
+    }
+
+    private String expectName() throws QueryException {
+        if (!peek().isName()) {
+            throw unexpected();
+        }
+        return next().text;
+    }
+
+    private Statement parseStatement() throws QueryException {
+        if (peek().is("CREATE") || peek().is("DROP") || peek().is("BUILD")) {
+            IndexStatement index = parseIndexStatement();
+            accept(";");
+            if (peek().type != TokenType.EOF) {
+                throw unexpected();
+            }
+            return new Statement(null, index, false, null, src.trim());
+        }
+
+        boolean prepare = false;
+        String name = null;
+        if (accept("PREPARE")) {
+            prepare = true;
+            if (!peek().is("SELECT")) {
+                if (peek().type == TokenType.STRING) {
+                    name = next().text;
+                } else {
+                    name = expectName();
+                }
+                if (!accept("FROM")) {
+                    expect("AS");
+                }
+            }
+        }
+
+        int textBegin = peek().offset;
+        SelectStatement select = parseSelect();
+        accept(";");
+        if (peek().type != TokenType.EOF) {
+            throw unexpected();
+        }
+        return new Statement(select, null, prepare, name, src.substring(textBegin).trim());
+    }
+
+    private String parseKeyspace() throws QueryException {
+        String keyspace = expectName();
+        if (accept(":")) {
+            if (!keyspace.equals("default")) {
+                throw syntaxError("namespace " + keyspace + " does not exist");
+            }
+            keyspace = expectName();
+        }
+        return keyspace;
+    }
+
+    private IndexStatement parseIndexStatement() throws QueryException {
+        stmt = new SelectStatement();
+        IndexStatement ret;
+        if (accept("BUILD")) {
+            expect("INDEX");
+            expect("ON");
+            ret = new IndexStatement(IndexStatement.Kind.BUILD, parseKeyspace());
+            expect("(");
+            do {
+                ret.names.add(peek().type == TokenType.STRING ? next().text : expectName());
+            } while (accept(","));
+            expect(")");
+        } else if (accept("DROP")) {
+            boolean primary = accept("PRIMARY");
+            expect("INDEX");
+            if (primary) {
+                expect("ON");
+                ret = new IndexStatement(IndexStatement.Kind.DROP, parseKeyspace());
+                ret.primary = true;
+                ret.names.add(SecondaryIndex.PRIMARY_NAME);
+            } else {
+                String first = expectName();
+                if (accept(".")) {
+                    ret = new IndexStatement(IndexStatement.Kind.DROP, first);
+                    ret.names.add(expectName());
+                } else {
+                    expect("ON");
+                    ret = new IndexStatement(IndexStatement.Kind.DROP, parseKeyspace());
+                    ret.names.add(first);
+                }
+            }
+        } else {
+            expect("CREATE");
+            boolean primary = accept("PRIMARY");
+            expect("INDEX");
+            String name = primary ? SecondaryIndex.PRIMARY_NAME : null;
+            if (!peek().is("ON")) {
+                name = expectName();
+            }
+            if (name == null) {
+                throw unexpected();
+            }
+            expect("ON");
+            ret = new IndexStatement(IndexStatement.Kind.CREATE, parseKeyspace());
+            ret.names.add(name);
+            ret.primary = primary;
+            if (!primary) {
+                expect("(");
+                do {
+                    ret.keys.add(parseExpression());
+                } while (accept(","));
+                expect(")");
+                if (accept("WHERE")) {
+                    ret.condition = parseExpression();
+                }
+            }
+            if (!stmt.aggregates.isEmpty()) {
+                throw syntaxError("aggregates are not allowed in index definitions");
+            }
+        }
+
+        if (accept("USING")) {
+            if (!accept("GSI")) {
+                throw syntaxError("only GSI indexes are supported");
+            }
+        }
+        if (accept("WITH")) {
+            JsonElement with = parsePrimary().evaluate(new Row(new Row.Scope(null, null, null), null, null));
+            if (with == null || !with.isJsonObject()) {
+                throw syntaxError("WITH requires an object");
+            }
+            JsonElement defer = with.getAsJsonObject().get("defer_build");
+            ret.deferBuild = defer != null && Values.isTrue(defer);
+        }
+        return ret;
+    }
+
+    private SelectStatement parseSelect() throws QueryException {
+        stmt = new SelectStatement();
+        expect("SELECT");
+        if (accept("DISTINCT")) {
+            stmt.distinct = true;
+        } else {
+            accept("ALL");
+        }
+        if (accept("RAW") || accept("ELEMENT") || accept("VALUE")) {
+            stmt.raw = true;
+        }
+
+        do {
+            parseProjection();
+        } while (accept(","));
+        if (stmt.raw && (stmt.projections.size() != 1 || stmt.projections.get(0).star)) {
+            throw syntaxError("RAW requires a single expression");
+        }
+
+        if (accept("FROM")) {
+            String keyspace = expectName();
+            if (accept(":")) {
+                stmt.namespace = keyspace;
+                keyspace = expectName();
+            }
+            stmt.keyspace = keyspace;
+            stmt.alias = keyspace;
+            if (accept("AS")) {
+                stmt.alias = expectName();
+            } else if (peek().isName()) {
+                stmt.alias = next().text;
+            }
+            if (accept("USE")) {
+                accept("PRIMARY");
+                expect("KEYS");
+                stmt.useKeys = parseExpression();
+            }
+        }
+
+        int numAggregates = stmt.aggregates.size();
+        if (accept("WHERE")) {
+            stmt.where = parseExpression();
+        }
+        if (accept("GROUP")) {
+            expect("BY");
+            do {
+                stmt.groupBy.add(parseExpression());
+            } while (accept(","));
+        }
+        if (stmt.aggregates.size() != numAggregates) {
+            throw syntaxError("aggregates are not allowed in WHERE or GROUP BY");
+        }
+        if (!stmt.groupBy.isEmpty() && accept("HAVING")) {
+            stmt.having = parseExpression();
+        }
+        if (accept("ORDER")) {
+            expect("BY");
+            do {
+                Expression expr = parseExpression();
+                boolean desc = false;
+                if (accept("DESC")) {
+                    desc = true;
+                } else {
+                    accept("ASC");
+                }
+                stmt.orderBy.add(new SelectStatement.Ordering(expr, desc));
+            } while (accept(","));
+        }
+
+        numAggregates = stmt.aggregates.size();
+        if (accept("LIMIT")) {
+            stmt.limit = parseExpression();
+        }
+        if (accept("OFFSET")) {
+            stmt.offset = parseExpression();
+        }
+        if (stmt.limit == null && accept("LIMIT")) {
+            stmt.limit = parseExpression();
+        }
+        if (stmt.aggregates.size() != numAggregates) {
+            throw syntaxError("aggregates are not allowed in LIMIT or OFFSET");
+        }
+
+        if (stmt.keyspace == null && stmt.isAggregate()) {
+            throw syntaxError("aggregates require a FROM clause");
+        }
+        return stmt;
+    }
+
+    private void parseProjection() throws QueryException {
+        if (accept("*")) {
+            stmt.projections.add(new SelectStatement.Projection(null, null, true));
+            return;
+        }
+
+        Expression expr = parseExpression();
+        if (peek().is(".") && peek(1).is("*")) {
+            pos += 2;
+            stmt.projections.add(new SelectStatement.Projection(expr, null, true));
+            return;
+        }
+
+        String name;
+        if (accept("AS")) {
+            name = expectName();
+        } else if (peek().isName()) {
+            name = next().text;
+        } else {
+            name = expr.getImplicitName();
+            if (name == null) {
+                name = "$" + (stmt.projections.size() + 1);
+            }
+        }
+        stmt.projections.add(new SelectStatement.Projection(expr, name, false));
+    }
+
+    // Expressions, in increasing order of precedence
+
+    private Expression parseExpression() throws QueryException {
+        Expression left = parseAnd();
+        while (accept("OR")) {
+            left = new Expression.Logical(false, left, parseAnd());
+        }
+        return left;
+    }
+
+    private Expression parseAnd() throws QueryException {
+        Expression left = parseNot();
+        while (accept("AND")) {
+            left = new Expression.Logical(true, left, parseNot());
+        }
+        return left;
+    }
+
+    private Expression parseNot() throws QueryException {
+        if (accept("NOT")) {
+            return new Expression.Not(parseNot());
+        }
+        return parseComparison();
+    }
+
+    private Expression parseComparison() throws QueryException {
+        Expression left = parseConcat();
+        Token tok = peek();
+        if (tok.is("=") || tok.is("==")) {
+            next();
+            return new Expression.Comparison("=", left, parseConcat());
+        } else if (tok.is("!=") || tok.is("<>")) {
+            next();
+            return new Expression.Comparison("!=", left, parseConcat());
+        } else if (tok.is("<") || tok.is("<=") || tok.is(">") || tok.is(">=")) {
+            next();
+            return new Expression.Comparison(tok.text, left, parseConcat());
+        } else if (tok.is("IS")) {
+            next();
+            boolean negate = accept("NOT");
+            Expression.Is.Kind kind;
+            if (accept("NULL")) {
+                kind = Expression.Is.Kind.NULL;
+            } else if (accept("MISSING")) {
+                kind = Expression.Is.Kind.MISSING;
+            } else {
+                expect("VALUED");
+                kind = Expression.Is.Kind.VALUED;
+            }
+            return new Expression.Is(left, kind, negate);
+        }
+
+        boolean negate = false;
+        if (tok.is("NOT") && (peek(1).is("LIKE") || peek(1).is("IN") || peek(1).is("BETWEEN"))) {
+            next();
+            negate = true;
+        }
+        Expression ret;
+        if (accept("LIKE")) {
+            ret = new Expression.Like(left, parseConcat());
+        } else if (accept("IN")) {
+            ret = new Expression.In(left, parseConcat());
+        } else if (accept("BETWEEN")) {
+            Expression low = parseConcat();
+            expect("AND");
+            Expression high = parseConcat();
+            ret = new Expression.Logical(true,
+                    new Expression.Comparison(">=", left, low),
+                    new Expression.Comparison("<=", left, high));
+        } else {
+            return left;
+        }
+        return negate ? new Expression.Not(ret) : ret;
+    }
+
+    private Expression parseConcat() throws QueryException {
+        Expression left = parseAdditive();
+        while (accept("||")) {
+            left = new Expression.Concat(left, parseAdditive());
+        }
+        return left;
+    }
+
+    private Expression parseAdditive() throws QueryException {
+        Expression left = parseMultiplicative();
+        while (peek().is("+") || peek().is("-")) {
+            char op = next().text.charAt(0);
+            left = new Expression.Arithmetic(op, left, parseMultiplicative());
+        }
+        return left;
+    }
+
+    private Expression parseMultiplicative() throws QueryException {
+        Expression left = parseUnary();
+        while (peek().is("*") || peek().is("/") || peek().is("%")) {
+            char op = next().text.charAt(0);
+            left = new Expression.Arithmetic(op, left, parseUnary());
+        }
+        return left;
+    }
+
+    private Expression parseUnary() throws QueryException {
+        if (accept("-")) {
+            return new Expression.Negate(parseUnary());
+        }
+        return parsePostfix();
+    }
+
+    private Expression parsePostfix() throws QueryException {
+        Expression expr = parsePrimary();
+        while (true) {
+            if (peek().is(".") && !peek(1).is("*")) {
+                next();
+                Token tok = next();
+                if (tok.type != TokenType.IDENT && tok.type != TokenType.QUOTED_IDENT) {
+                    pos--;
+                    throw unexpected();
+                }
+                expr = new Expression.Field(expr, tok.text);
+            } else if (accept("[")) {
+                expr = new Expression.Element(expr, parseExpression());
+                expect("]");
+            } else {
+                return expr;
+            }
+        }
+    }
+
+    private Expression parsePrimary() throws QueryException {
+        Token tok = peek();
+        switch (tok.type) {
+            case STRING:
+                next();
+                return new Expression.Literal(new JsonPrimitive(tok.text));
+            case NUMBER:
+                next();
+                return new Expression.Literal(Values.of(Double.parseDouble(tok.text)));
+            case PARAM:
+                next();
+                if (Character.isDigit(tok.text.charAt(0))) {
+                    try {
+                        return new Expression.Parameter(Integer.parseInt(tok.text));
+                    } catch (NumberFormatException ex) {
+                        throw syntaxError("invalid parameter $" + tok.text);
+                    }
+                }
+                return new Expression.Parameter(tok.text);
+            case QUOTED_IDENT:
+                next();
+                return new Expression.Identifier(tok.text);
+            case EOF:
+                throw unexpected();
+            default:
+                break;
+        }
+
+        if (accept("(")) {
+            Expression ret = parseExpression();
+            expect(")");
+            return ret;
+        } else if (accept("[")) {
+            List<Expression> elems = new ArrayList<Expression>();
+            if (!accept("]")) {
+                do {
+                    elems.add(parseExpression());
+                } while (accept(","));
+                expect("]");
+            }
+            return new Expression.ArrayConstruct(elems);
+        } else if (accept("{")) {
+            List<String> names = new ArrayList<String>();
+            List<Expression> values = new ArrayList<Expression>();
+            if (!accept("}")) {
+                do {
+                    if (peek().type != TokenType.STRING) {
+                        throw unexpected();
+                    }
+                    names.add(next().text);
+                    expect(":");
+                    values.add(parseExpression());
+                } while (accept(","));
+                expect("}");
+            }
+            return new Expression.ObjectConstruct(names, values);
+        } else if (accept("TRUE")) {
+            return new Expression.Literal(Values.TRUE);
+        } else if (accept("FALSE")) {
+            return new Expression.Literal(Values.FALSE);
+        } else if (accept("NULL")) {
+            return new Expression.Literal(JsonNull.INSTANCE);
+        } else if (accept("MISSING")) {
+            return new Expression.Literal(null);
+        }
+
+        if (tok.type != TokenType.IDENT || !tok.isName()) {
+            throw unexpected();
+        }
+        next();
+        if (!accept("(")) {
+            return new Expression.Identifier(tok.text);
+        }
+        return parseFunction(tok.text.toUpperCase(Locale.ROOT));
+    }
+
+    private Expression parseFunction(String name) throws QueryException {
+        if (name.equals("META")) {
+            if (!accept(")")) {
+                // There is only ever one keyspace, so the alias needs no resolution
+                expectName();
+                expect(")");
+            }
+            return new Expression.Meta();
+        }
+
+        if (Expression.Aggregate.NAMES.contains(name)) {
+            if (inAggregate) {
+                throw syntaxError("aggregates may not be nested");
+            }
+            boolean distinct = accept("DISTINCT");
+            Expression arg = null;
+            if (name.equals("COUNT") && !distinct && accept("*")) {
+                expect(")");
+            } else {
+                inAggregate = true;
+                arg = parseExpression();
+                inAggregate = false;
+                expect(")");
+            }
+            Expression.Aggregate agg = new Expression.Aggregate(name, arg, distinct, stmt.aggregates.size());
+            stmt.aggregates.add(agg);
+            return agg;
+        }
+
+        if (!Expression.Function.NAMES.contains(name)) {
+            throw syntaxError("invalid function " + name);
+        }
+        List<Expression> args = new ArrayList<Expression>();
+        if (!accept(")")) {
+            do {
+                args.add(parseExpression());
+            } while (accept(","));
+            expect(")");
+        }
+        int[] arity = Expression.Function.arity(name);
+        if (args.size() < arity[0] || args.size() > arity[1]) {
+            throw syntaxError("wrong number of arguments to " + name);
+        }
+        return new Expression.Function(name, args);
+    }
+}
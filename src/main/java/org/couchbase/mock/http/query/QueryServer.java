@@ -16,23 +16,82 @@
 
 package org.couchbase.mock.http.query;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonWriter;
 import org.apache.http.*;
+import org.apache.http.entity.ContentProducer;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.EntityTemplate;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpRequestHandler;
 import org.apache.http.util.EntityUtils;
+import org.couchbase.mock.Bucket;
+import org.couchbase.mock.CouchbaseMock;
 import org.couchbase.mock.JsonUtils;
 import org.couchbase.mock.httpio.HandlerUtil;
 import org.couchbase.mock.util.Base64;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
 import java.util.*;
 
 /**
- * Designed to handle fake N1QL queries
+ * Designed to handle fake N1QL queries.
+ *
+ * SELECT statements in the subset described by {@link QueryParser} are executed against the
+ * documents of the mock's buckets by {@link QueryExecutor}, and their results are streamed
+ * into the response as they are produced. Prepared statements are cached by name and by
+ * encoded plan, keeping the most recently used ones. Secondary indexes created with CREATE INDEX are kept by {@link IndexManager}
+ * and used by queries they can satisfy. The fixed {@code mockrow} and {@code emptyrow} statements used by older
+ * tests are still recognized.
  */
 public class QueryServer implements HttpRequestHandler {
     static private volatile int randNumber = new Random().nextInt();
-    public QueryServer() {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final TypeAdapter<JsonElement> ELEMENT_ADAPTER = JsonUtils.GSON.getAdapter(JsonElement.class);
+    /** The number of prepared statements kept by name and by plan */
+    static final int MAX_PREPARED = 1024;
+
+    private static final class Prepared {
+        final String name;
+        final String encodedPlan;
+        final SelectStatement select;
+        final int randomNumber;
+
+        Prepared(String name, String encodedPlan, SelectStatement select, int randomNumber) {
+            this.name = name;
+            this.encodedPlan = encodedPlan;
+            this.select = select;
+            this.randomNumber = randomNumber;
+        }
+    }
+
+    private final CouchbaseMock mock;
+    private final IndexManager.Registry indexes = new IndexManager.Registry();
+    private final Map<String, Prepared> preparedByName = lruMap(MAX_PREPARED);
+    private final Map<String, Prepared> preparedByPlan = lruMap(MAX_PREPARED);
+
+    public QueryServer(CouchbaseMock mock) {
+        this.mock = mock;
+    }
+
+    /**
+     * @return A map evicting its least recently used entry when it grows beyond the capacity
+     */
+    private static <V> Map<String, V> lruMap(final int capacity) {
+        return Collections.synchronizedMap(new LinkedHashMap<String, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > capacity;
+            }
+        });
     }
 
     /**
@@ -62,7 +121,8 @@ public class QueryServer implements HttpRequestHandler {
     }
 
     static private void addResult(Map<String,Object> meta, Map<String,Object> row) {
-        List<Object> results = (List)meta.get("results");
+        @SuppressWarnings("unchecked")
+        List<Object> results = (List<Object>) meta.get("results");
         results.add(row);
     }
 
@@ -72,17 +132,16 @@ public class QueryServer implements HttpRequestHandler {
         return mm;
     }
 
-    private void handleString(String query, HttpResponse response) {
-        query = query.toLowerCase();
+    /**
+     * Handle the fixed statements of the original query emulation
+     * @return true if the statement was one of them
+     */
+    private boolean handleLegacy(String query, HttpResponse response) {
+        query = query.trim().toLowerCase();
 
         Map<String,Object> result;
 
-        if (query.startsWith("prepare")) {
-            if (!query.equals("prepare select mockrow")) {
-                doError(response, "keyspace not found", 12003);
-                return;
-            }
-
+        if (query.equals("prepare select mockrow")) {
             // Return the plan and the encoded form...
             Map<String, Object> mm = new HashMap<String, Object>();
 
@@ -98,8 +157,7 @@ public class QueryServer implements HttpRequestHandler {
             // No rows!
             result = null;
         } else {
-            doError(response, "keyspace not found", 12003);
-            return;
+            return false;
         }
         Map<String,Object> payload = resultMeta();
         if (result != null) {
@@ -107,31 +165,256 @@ public class QueryServer implements HttpRequestHandler {
         }
         String resStr = JsonUtils.encode(payload);
         HandlerUtil.makeJsonResponse(response, resStr);
+        return true;
+    }
+
+    private void handleString(String query, JsonObject body, HttpResponse response) {
+        if (handleLegacy(query, response)) {
+            return;
+        }
+
+        QueryParser.Statement stmt;
+        try {
+            stmt = QueryParser.parse(query);
+        } catch (QueryException ex) {
+            doError(response, ex.getMessage(), ex.getCode());
+            return;
+        }
+        if (stmt.index != null) {
+            executeIndexStatement(stmt.index, response);
+            return;
+        }
+        if (!stmt.prepare) {
+            execute(stmt.select, body, response);
+            return;
+        }
+
+        String name = stmt.name == null ? UUID.randomUUID().toString() : stmt.name;
+        Map<String, Object> plan = new HashMap<String, Object>();
+        plan.put("randomNumber", randNumber);
+        plan.put("name", name);
+        plan.put("text", stmt.text);
+        String encoded = Base64.encode(JsonUtils.encode(plan));
+        Prepared prepared = new Prepared(name, encoded, stmt.select, randNumber);
+        preparedByName.put(name, prepared);
+        preparedByPlan.put(encoded, prepared);
+
+        Map<String, Object> row = new HashMap<String, Object>();
+        row.put("name", name);
+        row.put("encoded_plan", encoded);
+        row.put("text", stmt.text);
+        Map<String, Object> payload = resultMeta();
+        addResult(payload, row);
+        HandlerUtil.makeJsonResponse(response, JsonUtils.encode(payload));
+    }
+
+    private void executeIndexStatement(IndexStatement stmt, HttpResponse response) {
+        Bucket bucket = mock.getBuckets().get(stmt.keyspace);
+        if (bucket == null || bucket.getType() != Bucket.BucketType.COUCHBASE) {
+            doError(response, "Keyspace not found keyspace " + stmt.keyspace + " - cause: No bucket named " + stmt.keyspace,
+                    QueryException.KEYSPACE_NOT_FOUND);
+            return;
+        }
+        try {
+            indexes.get(bucket, true).execute(stmt);
+        } catch (QueryException ex) {
+            doError(response, ex.getMessage(), ex.getCode());
+            return;
+        }
+        HandlerUtil.makeJsonResponse(response, JsonUtils.encode(resultMeta()));
+    }
+
+    /**
+     * Parse a duration such as {@code "1.5s"} or {@code "200ms"}
+     * @return The duration in milliseconds, or -1 if it is not valid
+     */
+    static long parseDuration(String s) {
+        String[] units = { "ms", "us", "ns", "s", "m", "h" };
+        double[] factors = { 1, 1e-3, 1e-6, 1e3, 60e3, 3600e3 };
+        for (int i = 0; i < units.length; i++) {
+            if (s.endsWith(units[i])) {
+                try {
+                    return (long) (Double.parseDouble(s.substring(0, s.length() - units[i].length())) * factors[i]);
+                } catch (NumberFormatException ex) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static String getString(JsonObject body, String name) {
+        JsonElement elem = body.get(name);
+        if (elem == null || !elem.isJsonPrimitive()) {
+            return null;
+        }
+        return elem.getAsString();
     }
-    private void handlePrepared(Map<String,Object> body, HttpResponse response) {
-        // Check the encoded plan
-        String name = (String) body.get("prepared");
-        String encoded = (String) body.get("encoded_plan");
-        if (name == null || encoded == null) {
+
+    private void handlePrepared(JsonObject body, HttpResponse response) {
+        String name = getString(body, "prepared");
+        String encoded = getString(body, "encoded_plan");
+        if (name == null && encoded == null) {
             System.err.println(body.toString());
             doError(response, "missing field", 4040);
             return;
         }
-        String decoded = Base64.decode(encoded);
-        if (decoded.isEmpty()) {
-            doError(response, "could not decode base64", 4070);
+
+        Prepared prepared = encoded == null ? null : preparedByPlan.get(encoded);
+        if (prepared == null && name != null) {
+            prepared = preparedByName.get(name);
+        }
+        if (prepared == null) {
+            if (encoded == null) {
+                doError(response, "No such prepared statement: " + name, QueryException.NO_SUCH_PREPARED);
+                return;
+            }
+            // Statements prepared by another mock instance, or the legacy plan
+            String decoded = Base64.decode(encoded);
+            if (decoded.isEmpty()) {
+                doError(response, "could not decode base64", QueryException.PREPARED_ENCODING);
+                return;
+            }
+            Map<String,Object> mm;
+            try {
+                mm = JsonUtils.decodeAsMap(decoded);
+            } catch (JsonParseException ex) {
+                mm = null;
+            }
+            if (mm == null || !(mm.get("randomNumber") instanceof Number)) {
+                doError(response, "could not decode plan", QueryException.PREPARED_ENCODING);
+                return;
+            }
+            int randNum = ((Number) mm.get("randomNumber")).intValue();
+            if (!(mm.get("text") instanceof String)) {
+                if (randNum == randNumber) {
+                    Map<String,Object> payload = resultMeta();
+                    addResult(payload, okRow());
+                    String resStr = JsonUtils.encode(payload);
+                    HandlerUtil.makeJsonResponse(response, resStr);
+                } else {
+                    doError(response, "index deleted or node hosting the index is down - cause: queryport.indexNotFound", QueryException.INTERNAL_ERROR);
+                }
+                return;
+            }
+            try {
+                String planName = mm.get("name") instanceof String ? (String) mm.get("name") : name;
+                prepared = new Prepared(planName, encoded, QueryParser.parse((String) mm.get("text")).select, randNum);
+            } catch (QueryException ex) {
+                doError(response, ex.getMessage(), ex.getCode());
+                return;
+            }
+            if (prepared.name != null) {
+                preparedByName.put(prepared.name, prepared);
+            }
+            preparedByPlan.put(encoded, prepared);
+        }
+
+        if (prepared.randomNumber != randNumber) {
+            if (prepared.name != null) {
+                preparedByName.remove(prepared.name);
+            }
+            preparedByPlan.remove(prepared.encodedPlan);
+            doError(response, "index deleted or node hosting the index is down - cause: queryport.indexNotFound", QueryException.INTERNAL_ERROR);
             return;
         }
-        Map<String,Object> mm = JsonUtils.decodeAsMap(decoded);
-        int randNum = ((Number) mm.get("randomNumber")).intValue();
-        if (randNum == randNumber) {
-            Map<String,Object> payload = resultMeta();
-            addResult(payload, okRow());
-            String resStr = JsonUtils.encode(payload);
-            HandlerUtil.makeJsonResponse(response, resStr);
-        } else {
-            doError(response, "index deleted or node hosting the index is down - cause: queryport.indexNotFound", 5000);
+        execute(prepared.select, body, response);
+    }
+
+    private void execute(SelectStatement select, JsonObject body, HttpResponse response) {
+        JsonArray positional = null;
+        if (body.get("args") != null && body.get("args").isJsonArray()) {
+            positional = body.getAsJsonArray("args");
+        }
+        Map<String, JsonElement> named = new HashMap<String, JsonElement>();
+        for (Map.Entry<String, JsonElement> ent : body.entrySet()) {
+            if (ent.getKey().startsWith("$")) {
+                named.put(ent.getKey().substring(1), ent.getValue());
+            }
+        }
+
+        final QueryExecutor executor;
+        try {
+            executor = new QueryExecutor(select, mock, indexes, positional, named);
+        } catch (QueryException ex) {
+            doError(response, ex.getMessage(), ex.getCode());
+            return;
+        }
+
+        String consistency = getString(body, "scan_consistency");
+        long scanWait = QueryExecutor.DEFAULT_SCAN_WAIT;
+        if (getString(body, "scan_wait") != null) {
+            scanWait = parseDuration(getString(body, "scan_wait"));
+        }
+        if (consistency != null && !consistency.equals("not_bounded") &&
+                !consistency.equals("request_plus") && !consistency.equals("at_plus")) {
+            doError(response, "Invalid value for scan_consistency: " + consistency, QueryException.INVALID_PARAMETER);
+            return;
+        }
+        if (scanWait < 0) {
+            doError(response, "Invalid value for scan_wait", QueryException.INVALID_PARAMETER);
+            return;
+        }
+        // at_plus is treated as request_plus, which implies it
+        executor.setScanConsistency(consistency != null && !consistency.equals("not_bounded"), scanWait);
+
+        EntityTemplate entity = new EntityTemplate(new ContentProducer() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                writeResults(executor, out);
+            }
+        });
+        entity.setContentType(ContentType.APPLICATION_JSON.toString());
+        response.setEntity(entity);
+    }
+
+    private static String formatDuration(long nanos) {
+        return String.format(Locale.ROOT, "%.6fms", nanos / 1e6);
+    }
+
+    /**
+     * Run the query, writing each result row to the response as it is produced
+     */
+    private static void writeResults(QueryExecutor executor, OutputStream out) throws IOException {
+        long start = System.nanoTime();
+        final JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(out, UTF8)));
+        final long[] count = new long[] { 0 };
+
+        writer.beginObject();
+        writer.name("requestID").value(UUID.randomUUID().toString());
+        writer.name("results").beginArray();
+        QueryException error = null;
+        try {
+            executor.execute(new QueryExecutor.ResultSink() {
+                @Override
+                public void write(JsonElement row) throws IOException {
+                    ELEMENT_ADAPTER.write(writer, row);
+                    count[0]++;
+                }
+            });
+        } catch (QueryException ex) {
+            error = ex;
+        }
+        writer.endArray();
+
+        if (error != null) {
+            writer.name("errors").beginArray().beginObject();
+            writer.name("code").value(error.getCode());
+            writer.name("msg").value(error.getMessage());
+            writer.endObject().endArray();
+        }
+        writer.name("status").value(error == null ? "success" : "errors");
+        String elapsed = formatDuration(System.nanoTime() - start);
+        writer.name("metrics").beginObject();
+        writer.name("elapsedTime").value(elapsed);
+        writer.name("executionTime").value(elapsed);
+        writer.name("resultCount").value(count[0]);
+        if (error != null) {
+            writer.name("errorCount").value(1);
         }
+        writer.endObject();
+        writer.endObject();
+        writer.flush();
     }
 
     @Override
@@ -142,21 +425,22 @@ public class QueryServer implements HttpRequestHandler {
         }
         HttpEntity entity = ((HttpEntityEnclosingRequest)request).getEntity();
         String txt = EntityUtils.toString(entity);
-        Map<String,Object> mm;
+        JsonObject body;
 
         try {
-            mm = JsonUtils.decodeAsMap(txt);
-            if (mm == null) {
+            body = JsonUtils.GSON.fromJson(txt, JsonObject.class);
+            if (body == null) {
                 throw new RuntimeException("Body is empty: " + txt);
             }
         } catch (Exception ex) {
             HandlerUtil.make400Response(response, ex.toString());
             return;
         }
-        if (!mm.containsKey("statement")) {
-            handlePrepared(mm, response);
+        String statement = getString(body, "statement");
+        if (statement == null) {
+            handlePrepared(body, response);
         } else {
-            handleString((String)mm.get("statement"), response);
+            handleString(statement, body, response);
         }
     }
 }
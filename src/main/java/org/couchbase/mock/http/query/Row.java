@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.http.query;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.couchbase.mock.JsonUtils;
+import org.couchbase.mock.memcached.Item;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+/**
+ * A single document flowing through a query, together with the state expressions may refer to
+ */
+final class Row {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    // Unlike JsonParser, the adapter does not make the reader lenient
+    private static final TypeAdapter<JsonElement> ELEMENT_ADAPTER = JsonUtils.GSON.getAdapter(JsonElement.class);
+
+    /**
+     * State shared by all rows of a single query execution
+     */
+    static final class Scope {
+        final String alias;
+        final JsonArray positional;
+        final Map<String, JsonElement> named;
+
+        Scope(String alias, JsonArray positional, Map<String, JsonElement> named) {
+            this.alias = alias;
+            this.positional = positional;
+            this.named = named;
+        }
+    }
+
+    final Scope scope;
+    /** The document, or {@code null} (MISSING) if it is not JSON */
+    final JsonElement doc;
+    final JsonObject meta;
+    /** The aggregate values of the row's group, once grouped */
+    JsonElement[] aggregates;
+    /** The projected row, once projected. Allows ORDER BY to refer to result aliases */
+    JsonObject projection;
+
+    Row(Scope scope, JsonElement doc, JsonObject meta) {
+        this.scope = scope;
+        this.doc = doc;
+        this.meta = meta;
+    }
+
+    /**
+     * Create the row for a stored item
+     */
+    static Row create(Scope scope, Item item) {
+        JsonElement doc = decode(item.getValue());
+        JsonObject meta = new JsonObject();
+        meta.addProperty("id", item.getKeySpec().key);
+        meta.addProperty("cas", item.getCas());
+        meta.addProperty("expiration", item.getExpiryTime());
+        meta.addProperty("flags", item.getFlags());
+        meta.addProperty("type", doc == null ? "base64" : "json");
+        return new Row(scope, doc, meta);
+    }
+
+    /**
+     * Decode a document. Documents which are not JSON are MISSING
+     */
+    private static JsonElement decode(byte[] value) {
+        // Strict readers only accept arrays and objects at the top level, so wrap the value
+        JsonReader reader = new JsonReader(new InputStreamReader(new SequenceInputStream(
+                new SequenceInputStream(new ByteArrayInputStream(new byte[] { '[' }), new ByteArrayInputStream(value)),
+                new ByteArrayInputStream(new byte[] { ']' })), UTF8.newDecoder()));
+        try {
+            reader.beginArray();
+            JsonElement ret = ELEMENT_ADAPTER.read(reader);
+            reader.endArray();
+            if (reader.peek() != JsonToken.END_DOCUMENT) {
+                return null;
+            }
+            return ret;
+        } catch (IOException ex) {
+            return null;
+        } catch (RuntimeException ex) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.http.query;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * An ordered secondary index, mapping the values of its key expressions to document IDs.
+ *
+ * Entries are kept in a skip list ordered by N1QL collation of the keys, then by document
+ * ID, so that range scans are a walk of a sub-set, and may proceed while the index is
+ * being updated. Documents whose leading key is MISSING, or which do not satisfy the
+ * index condition, are not indexed. The primary index is keyed by {@code META().id}.
+ */
+final class SecondaryIndex {
+    static final String PRIMARY_NAME = "#primary";
+
+    enum State { DEFERRED, ONLINE }
+
+    private static final class Entry {
+        final JsonElement[] keys;
+        final String id;
+        /** For range bounds: sort before (-1) or after (1) all entries with an equal leading key */
+        final int bound;
+
+        Entry(JsonElement[] keys, String id, int bound) {
+            this.keys = keys;
+            this.id = id;
+            this.bound = bound;
+        }
+    }
+
+    private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            int rv = Values.compare(a.keys[0], b.keys[0]);
+            if (rv != 0) {
+                return rv;
+            }
+            if (a.bound != 0 || b.bound != 0) {
+                return a.bound - b.bound;
+            }
+            for (int i = 1; i < a.keys.length; i++) {
+                rv = Values.compare(a.keys[i], b.keys[i]);
+                if (rv != 0) {
+                    return rv;
+                }
+            }
+            return a.id.compareTo(b.id);
+        }
+    };
+
+    private final String name;
+    private final String keyspace;
+    private final boolean primary;
+    private final List<Expression> keys;
+    private final List<String> keyTexts;
+    private final Expression condition;
+    private final String conditionText;
+    private volatile State state;
+
+    private final NavigableSet<Entry> entries = new ConcurrentSkipListSet<Entry>(ORDER);
+    private final Map<String, Entry> byId = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * @param name The name of the index
+     * @param keyspace The bucket being indexed
+     * @param keys The key expressions, or null for the primary index
+     * @param condition The condition documents must satisfy to be indexed, or null
+     * @param deferred Whether the index waits for BUILD INDEX before being built
+     */
+    SecondaryIndex(String name, String keyspace, List<Expression> keys, Expression condition, boolean deferred) {
+        this.name = name;
+        this.keyspace = keyspace;
+        this.primary = keys == null;
+        if (primary) {
+            keys = new ArrayList<Expression>();
+            keys.add(new Expression.Field(new Expression.Meta(), "id"));
+        }
+        this.keys = keys;
+        this.keyTexts = new ArrayList<String>(keys.size());
+        for (Expression key : keys) {
+            keyTexts.add(key.canonical(keyspace));
+        }
+        this.condition = condition;
+        this.conditionText = condition == null ? null : condition.canonical(keyspace);
+        this.state = deferred ? State.DEFERRED : State.ONLINE;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    boolean isPrimary() {
+        return primary;
+    }
+
+    State getState() {
+        return state;
+    }
+
+    void setState(State state) {
+        this.state = state;
+    }
+
+    /**
+     * @return The canonical text of the leading key, or null if it cannot be matched by a predicate
+     */
+    String getLeadingKey() {
+        return keyTexts.get(0);
+    }
+
+    /**
+     * @return The canonical text of the index condition, or null if the index is not partial
+     */
+    String getCondition() {
+        return conditionText;
+    }
+
+    boolean isPartial() {
+        return condition != null;
+    }
+
+    int size() {
+        return byId.size();
+    }
+
+    /**
+     * Update the entry of a document. Only called by the index maintenance of the owning
+     * {@link IndexManager}, one document at a time
+     * @param id The ID of the document
+     * @param row The current document, or null if it was deleted
+     */
+    void update(String id, Row row) {
+        Entry entry = null;
+        if (row != null && (condition == null || Values.isTrue(condition.evaluate(row)))) {
+            JsonElement[] values = new JsonElement[keys.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = keys.get(i).evaluate(row);
+            }
+            if (values[0] != null) {
+                entry = new Entry(values, id, 0);
+            }
+        }
+
+        Entry old = entry == null ? byId.remove(id) : byId.put(id, entry);
+        if (old != null) {
+            entries.remove(old);
+        }
+        if (entry != null) {
+            entries.add(entry);
+        }
+    }
+
+    void clear() {
+        entries.clear();
+        byId.clear();
+    }
+
+    /**
+     * Get the IDs of the documents whose leading key is within a range, in index order
+     * @param low The lower bound, or null for none
+     * @param lowInclusive Whether the lower bound is inclusive
+     * @param high The upper bound, or null for none
+     * @param highInclusive Whether the upper bound is inclusive
+     * @return An iterator over the document IDs. It reflects updates made while it is in use
+     */
+    Iterator<String> scan(JsonElement low, boolean lowInclusive, JsonElement high, boolean highInclusive) {
+        NavigableSet<Entry> range = entries;
+        if (low != null) {
+            range = range.tailSet(new Entry(new JsonElement[] { low }, null, lowInclusive ? -1 : 1), false);
+        }
+        if (high != null) {
+            range = range.headSet(new Entry(new JsonElement[] { high }, null, highInclusive ? 1 : -1), false);
+        }
+        final Iterator<Entry> iter = range.iterator();
+        return new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return iter.hasNext();
+            }
+
+            @Override
+            public String next() {
+                return iter.next().id;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * @return The description of the index, as found in {@code system:indexes}
+     */
+    JsonObject toJson() {
+        JsonObject ret = new JsonObject();
+        ret.addProperty("id", keyspace + "/" + name);
+        ret.addProperty("name", name);
+        ret.addProperty("keyspace_id", keyspace);
+        ret.addProperty("namespace_id", "default");
+        ret.addProperty("state", state == State.ONLINE ? "online" : "deferred");
+        ret.addProperty("using", "gsi");
+        if (primary) {
+            ret.addProperty("is_primary", true);
+        } else {
+            JsonArray indexKey = new JsonArray();
+            for (String text : keyTexts) {
+                indexKey.add(new JsonPrimitive(text == null ? "" : text));
+            }
+            ret.add("index_key", indexKey);
+        }
+        if (conditionText != null) {
+            ret.addProperty("condition", conditionText);
+        }
+        return ret;
+    }
+}
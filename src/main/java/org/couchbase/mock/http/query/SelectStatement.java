@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.http.query;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A parsed SELECT statement
+ */
+final class SelectStatement {
+    static final class Projection {
+        /** The projected expression, or null for {@code *} */
+        final Expression expr;
+        /** The name of the projected value, or null for star projections */
+        final String name;
+        /** Whether this is {@code *} or {@code expr.*} */
+        final boolean star;
+
+        Projection(Expression expr, String name, boolean star) {
+            this.expr = expr;
+            this.name = name;
+            this.star = star;
+        }
+    }
+
+    static final class Ordering {
+        final Expression expr;
+        final boolean descending;
+
+        Ordering(Expression expr, boolean descending) {
+            this.expr = expr;
+            this.descending = descending;
+        }
+    }
+
+    boolean distinct = false;
+    /** Whether the single projection is returned as the row itself ({@code RAW}/{@code VALUE}) */
+    boolean raw = false;
+    final List<Projection> projections = new ArrayList<Projection>();
+    /** The namespace of the keyspace: {@code default}, or {@code system} for system keyspaces */
+    String namespace = "default";
+    /** The bucket to read from, or null if there is no FROM clause */
+    String keyspace = null;
+    String alias = null;
+    Expression useKeys = null;
+    Expression where = null;
+    final List<Expression> groupBy = new ArrayList<Expression>();
+    Expression having = null;
+    final List<Ordering> orderBy = new ArrayList<Ordering>();
+    Expression limit = null;
+    Expression offset = null;
+    final List<Expression.Aggregate> aggregates = new ArrayList<Expression.Aggregate>();
+
+    /**
+     * @return Whether rows are grouped before they are projected
+     */
+    boolean isAggregate() {
+        return !groupBy.isEmpty() || !aggregates.isEmpty();
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.http.query;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Helpers for N1QL values. Values are represented as {@link JsonElement}s, with Java
+ * {@code null} standing for {@code MISSING} and {@link JsonNull} for {@code NULL}.
+ */
+final class Values {
+    static final JsonPrimitive TRUE = new JsonPrimitive(true);
+    static final JsonPrimitive FALSE = new JsonPrimitive(false);
+
+    /**
+     * Orders values by N1QL collation:
+     * {@code MISSING < NULL < FALSE < TRUE < numbers < strings < arrays < objects}
+     */
+    static final Comparator<JsonElement> COLLATION = new Comparator<JsonElement>() {
+        @Override
+        public int compare(JsonElement a, JsonElement b) {
+            return Values.compare(a, b);
+        }
+    };
+
+    private Values() {
+    }
+
+    static boolean isMissing(JsonElement v) {
+        return v == null;
+    }
+
+    static boolean isNull(JsonElement v) {
+        return v != null && v.isJsonNull();
+    }
+
+    static boolean isNumber(JsonElement v) {
+        return v != null && v.isJsonPrimitive() && v.getAsJsonPrimitive().isNumber();
+    }
+
+    static boolean isString(JsonElement v) {
+        return v != null && v.isJsonPrimitive() && v.getAsJsonPrimitive().isString();
+    }
+
+    static boolean isBoolean(JsonElement v) {
+        return v != null && v.isJsonPrimitive() && v.getAsJsonPrimitive().isBoolean();
+    }
+
+    static JsonPrimitive of(boolean b) {
+        return b ? TRUE : FALSE;
+    }
+
+    /**
+     * Create a number, keeping integral values integral so that they are rendered without
+     * a fractional part. Values which JSON cannot represent are NULL
+     */
+    static JsonElement of(double d) {
+        if (Double.isNaN(d) || Double.isInfinite(d)) {
+            return JsonNull.INSTANCE;
+        }
+        if (d == Math.rint(d) && Math.abs(d) < 1e15) {
+            return new JsonPrimitive((long) d);
+        }
+        return new JsonPrimitive(d);
+    }
+
+    /**
+     * The boolean interpretation of a value. {@code MISSING}, {@code NULL}, {@code false},
+     * zero, and empty strings, arrays and objects are false
+     */
+    static boolean isTrue(JsonElement v) {
+        if (v == null || v.isJsonNull()) {
+            return false;
+        } else if (v.isJsonArray()) {
+            return v.getAsJsonArray().size() > 0;
+        } else if (v.isJsonObject()) {
+            return !v.getAsJsonObject().entrySet().isEmpty();
+        }
+        JsonPrimitive prim = v.getAsJsonPrimitive();
+        if (prim.isBoolean()) {
+            return prim.getAsBoolean();
+        } else if (prim.isNumber()) {
+            return prim.getAsDouble() != 0;
+        } else {
+            return !prim.getAsString().isEmpty();
+        }
+    }
+
+    private static int typeRank(JsonElement v) {
+        if (v == null) {
+            return 0;
+        } else if (v.isJsonNull()) {
+            return 1;
+        } else if (v.isJsonArray()) {
+            return 6;
+        } else if (v.isJsonObject()) {
+            return 7;
+        }
+        JsonPrimitive prim = v.getAsJsonPrimitive();
+        if (prim.isBoolean()) {
+            return prim.getAsBoolean() ? 3 : 2;
+        } else if (prim.isNumber()) {
+            return 4;
+        } else {
+            return 5;
+        }
+    }
+
+    static int compare(JsonElement a, JsonElement b) {
+        int ra = typeRank(a);
+        int rb = typeRank(b);
+        if (ra != rb) {
+            return ra < rb ? -1 : 1;
+        }
+        switch (ra) {
+            case 4:
+                return Double.compare(a.getAsDouble(), b.getAsDouble());
+            case 5:
+                return a.getAsString().compareTo(b.getAsString());
+            case 6:
+                return compareArrays(a.getAsJsonArray(), b.getAsJsonArray());
+            case 7:
+                return compareObjects(a.getAsJsonObject(), b.getAsJsonObject());
+            default:
+                return 0;
+        }
+    }
+
+    private static int compareArrays(JsonArray a, JsonArray b) {
+        int len = Math.min(a.size(), b.size());
+        for (int i = 0; i < len; i++) {
+            int rv = compare(a.get(i), b.get(i));
+            if (rv != 0) {
+                return rv;
+            }
+        }
+        return a.size() - b.size();
+    }
+
+    private static List<String> sortedNames(JsonObject obj) {
+        List<String> names = new ArrayList<String>();
+        for (Map.Entry<String, JsonElement> ent : obj.entrySet()) {
+            names.add(ent.getKey());
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Objects are ordered by size, then by their sorted member names, then by the values
+     * of those members
+     */
+    private static int compareObjects(JsonObject a, JsonObject b) {
+        List<String> na = sortedNames(a);
+        List<String> nb = sortedNames(b);
+        if (na.size() != nb.size()) {
+            return na.size() - nb.size();
+        }
+        for (int i = 0; i < na.size(); i++) {
+            int rv = na.get(i).compareTo(nb.get(i));
+            if (rv != 0) {
+                return rv;
+            }
+        }
+        for (String name : na) {
+            int rv = compare(a.get(name), b.get(name));
+            if (rv != 0) {
+                return rv;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Get a key which is equal for two values if and only if they compare equal. Used to
+     * group and de-duplicate values
+     */
+    static String groupKey(JsonElement v) {
+        if (v == null) {
+            return "";
+        } else if (isNumber(v)) {
+            return Double.toString(v.getAsDouble());
+        } else if (v.isJsonObject()) {
+            StringBuilder sb = new StringBuilder("{");
+            JsonObject obj = v.getAsJsonObject();
+            for (String name : sortedNames(obj)) {
+                sb.append(new JsonPrimitive(name)).append(':').append(groupKey(obj.get(name))).append(',');
+            }
+            return sb.append('}').toString();
+        } else if (v.isJsonArray()) {
+            StringBuilder sb = new StringBuilder("[");
+            for (JsonElement elem : v.getAsJsonArray()) {
+                sb.append(groupKey(elem)).append(',');
+            }
+            return sb.append(']').toString();
+        }
+        return v.toString();
+    }
+
+    static String typeName(JsonElement v) {
+        switch (typeRank(v)) {
+            case 0:
+                return "missing";
+            case 1:
+                return "null";
+            case 2:
+            case 3:
+                return "boolean";
+            case 4:
+                return "number";
+            case 5:
+                return "string";
+            case 6:
+                return "array";
+            default:
+                return "object";
+        }
+    }
+}
@@ -5,6 +5,7 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import org.apache.http.*;
 import org.apache.http.entity.ContentType;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpCoreContext;
@@ -154,6 +155,60 @@ public class HandlerUtil {
         response.setEntity(ent);
     }
 
+    /**
+     * Sets a JSON encoded response from already encoded bytes. The array is not copied and must not be modified
+     * @param response The response object
+     * @param encoded The UTF-8 encoded JSON
+     */
+    public static void makeJsonResponse(HttpResponse response, byte[] encoded) {
+        ByteArrayEntity ent = new ByteArrayEntity(encoded, ContentType.APPLICATION_JSON);
+        response.setEntity(ent);
+    }
+
+    /**
+     * Sets a JSON encoded response whose gzip compressed form is already known. The compressed
+     * form is sent if the client accepts it. The arrays are not copied and must not be modified
+     * @param response The response object
+     * @param encoded The UTF-8 encoded JSON
+     * @param compressed The encoded JSON compressed with gzip
+     */
+    public static void makeJsonResponse(HttpResponse response, byte[] encoded, byte[] compressed) {
+        response.setEntity(new PrecompressedEntity(encoded, compressed, ContentType.APPLICATION_JSON));
+    }
+
+    /**
+     * Set the {@code ETag} of the response, and check whether the client already has the
+     * current version of the resource
+     * @param request The request
+     * @param response The response object
+     * @param etag The entity tag of the current version of the resource, including its quotes
+     * @return true if the request's {@code If-None-Match} header matches, in which case the
+     * response has been set to {@code 304 Not Modified} and should not be given an entity
+     */
+    public static boolean checkNotModified(HttpRequest request, HttpResponse response, String etag) {
+        response.setHeader(HttpHeaders.ETAG, etag);
+        String method = request.getRequestLine().getMethod();
+        if (!method.equals("GET") && !method.equals("HEAD")) {
+            return false;
+        }
+        String opaque = opaqueTag(etag);
+        for (Header header : request.getHeaders(HttpHeaders.IF_NONE_MATCH)) {
+            for (String tag : header.getValue().split(",")) {
+                tag = tag.trim();
+                // If-None-Match uses the weak comparison
+                if (tag.equals("*") || opaqueTag(tag).equals(opaque)) {
+                    response.setStatusCode(HttpStatus.SC_NOT_MODIFIED);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String opaqueTag(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
     /**
      * Send and flush the response object over the current connection and close the connection
      * @param cx The context
@@ -168,6 +223,19 @@ public class HandlerUtil {
         conn.flush();
     }
 
+    /**
+     * Take over the connection of the current request, to stream data to the client without
+     * occupying a thread. Once the response headers have been sent, the handler should park
+     * the connection and then throw {@link ResponseHandledException}.
+     * @param cx The context
+     * @param listener Notified when the connection is closed. May be null
+     * @return The parked connection
+     * @throws IOException if the response headers could not be flushed
+     */
+    public static ParkedConnection park(HttpContext cx, ParkedConnection.Listener listener) throws IOException {
+        return HttpServer.park(cx, listener);
+    }
+
     /**
      * Get any authorization credentials supplied over the connection. If no credentials were provided in the request,
      * an empty AuthContex is returned
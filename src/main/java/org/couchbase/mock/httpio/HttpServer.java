@@ -1,17 +1,43 @@
 package org.couchbase.mock.httpio;
 
 import org.apache.http.*;
-import org.apache.http.impl.DefaultBHttpServerConnectionFactory;
+import org.apache.http.impl.DefaultBHttpServerConnection;
+import org.apache.http.impl.io.SessionInputBufferImpl;
 import org.apache.http.protocol.*;
 import org.apache.http.util.VersionInfo;
 import org.couchbase.mock.Info;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
-import java.util.HashSet;
-import java.util.Set;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * The mock's HTTP server.
+ *
+ * The server thread runs a selector which accepts connections and watches idle ones. When a
+ * request arrives on a connection, it is handed to a bounded pool of workers which run the
+ * blocking handlers, and the connection returns to the selector once the request (and any
+ * pipelined requests) have been handled. Long-lived streaming responses are served from
+ * {@link ParkedConnection}s, which are also owned by the selector, so that idle and streaming
+ * clients do not occupy a thread each.
+ */
 public class HttpServer extends Thread {
     /**
      * Subclass of HttpService which adds some additional hooks to all responses
@@ -48,18 +74,64 @@ public class HttpServer extends Thread {
         }
     }
 
+    /**
+     * The default number of threads requests are handled by
+     */
+    public static final int DEFAULT_MAX_WORKERS = 32;
+
+    /**
+     * A client connection. Between requests, and while it is parked, the connection's channel
+     * is in non-blocking mode and registered with the selector; it is switched to blocking mode
+     * while a worker handles a request on it.
+     */
+    private final class ClientConnection {
+        final HttpServer server = HttpServer.this;
+        final SocketChannel channel;
+        final BufferedConnection htConn;
+        final HttpContext context = new BasicHttpContext();
+        volatile ParkedConnection parked = null;
+
+        ClientConnection(SocketChannel channel, BufferedConnection htConn) {
+            this.channel = channel;
+            this.htConn = htConn;
+        }
+    }
+
+    /**
+     * Connection which can tell whether a pipelined request has already been read from the socket
+     */
+    private static final class BufferedConnection extends DefaultBHttpServerConnection {
+        BufferedConnection() {
+            super(8 * 1024);
+        }
+
+        void bindSocket(Socket socket) throws IOException {
+            bind(socket);
+        }
+
+        boolean hasBufferedInput() {
+            return ((SessionInputBufferImpl) getSessionInputBuffer()).hasBufferedData();
+        }
+    }
+
     private volatile boolean shouldRun = true;
-    private final DefaultBHttpServerConnectionFactory connectionFactory;
     private final HttpService httpService;
     private final UriHttpRequestHandlerMapper registry;
-    private final Set<Worker> allWorkers = new HashSet<Worker>();
+    private final ThreadPoolExecutor workers;
+    private final Map<SocketChannel, ClientConnection> allConnections = new HashMap<SocketChannel, ClientConnection>();
+    /** Connections to register with the selector once the current request is done */
+    private final Queue<ClientConnection> idle = new ConcurrentLinkedQueue<ClientConnection>();
+    /** Parked connections with data to write */
+    private final Queue<ParkedConnection> writable = new ConcurrentLinkedQueue<ParkedConnection>();
     private static final String serverString = String.format("CouchbaseMock/%s (mcd; views) httpcomponents/%s",
             Info.getVersion(), VersionInfo.loadVersionInfo("org.apache.http", null).getRelease());
 
     private ServerSocketChannel listener;
+    private final Selector selector;
 
     final public static String CX_SOCKET = "couchbase.mock.http.socket";
     final public static String CX_AUTH = "couchbase.mock.http.auth";
+    final static String CX_CLIENT = "couchbase.mock.http.client";
 
     /**
      * Creates a new server. To make the server respond to requests, invoke
@@ -70,11 +142,39 @@ public class HttpServer extends Thread {
      * handlers which respond to various URL paths
      */
     public HttpServer() {
-        this.connectionFactory = new DefaultBHttpServerConnectionFactory();
+        this(DEFAULT_MAX_WORKERS);
+    }
+
+    /**
+     * Creates a new server whose requests are handled by a bounded number of threads.
+     * Connections which are idle between requests, or which have been parked by a handler,
+     * do not occupy a thread.
+     * @param maxWorkers The maximum number of requests handled concurrently. Further
+     *                   requests wait for a worker to become available
+     */
+    public HttpServer(int maxWorkers) {
         this.registry = new MyRequestHandlerMapper();
+        try {
+            this.selector = Selector.open();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        this.workers = new ThreadPoolExecutor(maxWorkers, maxWorkers, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thr = new Thread(r, "Mock Http Worker " + counter.incrementAndGet());
+                thr.setDaemon(true);
+                return thr;
+            }
+        });
+        this.workers.allowCoreThreadTimeOut(true);
 
         HttpProcessor httpProcessor = HttpProcessorBuilder.create()
                 .add(new ResponseServer(serverString))
+                .add(new ResponseCompression())
                 .add(new ResponseContent())
                 .add(new ResponseConnControl())
                 .build();
@@ -135,93 +235,241 @@ public class HttpServer extends Thread {
         registry.unregister(pattern + "/");
     }
 
+    /**
+     * Park the connection of the current request. Once the handler returns (by throwing
+     * {@link ResponseHandledException}), the connection is owned by the selector.
+     */
+    static ParkedConnection park(HttpContext cx, ParkedConnection.Listener listener) throws IOException {
+        ClientConnection conn = (ClientConnection) cx.getAttribute(CX_CLIENT);
+        conn.htConn.flush();
+        ParkedConnection parked = new ParkedConnection(conn.server, conn.channel, listener);
+        conn.parked = parked;
+        return parked;
+    }
 
-    class Worker extends Thread {
-        final HttpServerConnection htConn;
-        final Socket rawSocket;
-        private volatile boolean closeRequested = false;
+    void wantWrite(ParkedConnection parked) {
+        writable.add(parked);
+        selector.wakeup();
+    }
 
-        Worker(HttpServerConnection htConn, Socket rawSocket) {
-            this.htConn = htConn;
-            this.rawSocket = rawSocket;
-            setName("Mock Http Worker: " + rawSocket.getRemoteSocketAddress());
+    void closeParked(ParkedConnection parked) {
+        synchronized (allConnections) {
+            allConnections.remove(parked.getChannel());
+        }
+        parked.markClosed();
+    }
+
+    private void close(ClientConnection conn) {
+        if (conn.parked != null) {
+            closeParked(conn.parked);
+            return;
+        }
+        synchronized (allConnections) {
+            allConnections.remove(conn.channel);
+        }
+        try {
+            conn.channel.close();
+        } catch (IOException ex) {
+            // Don't care
+        }
+    }
+
+    /**
+     * Handle requests on a connection until it has no more input
+     */
+    private void serve(ClientConnection conn) {
+        boolean keepOpen = false;
+        try {
+            do {
+                // Clear the context from any auth settings; since this is done
+                // anew on each request..
+                conn.context.removeAttribute(CX_AUTH);
+                httpService.handleRequest(conn.htConn, conn.context);
+            } while (shouldRun && conn.htConn.isOpen() && conn.htConn.hasBufferedInput());
+            keepOpen = shouldRun && conn.htConn.isOpen();
+        } catch (ConnectionClosedException ex_closed) {
+            // Client went away
+        } catch (IOException ex) {
+            if (shouldRun) {
+                ex.printStackTrace();
+            }
+        } catch (HttpException ex) {
+            ex.printStackTrace();
+        } catch (ResponseHandledException ex) {
+            keepOpen = shouldRun && conn.parked != null;
         }
 
-        void stopSocket() {
-            closeRequested = true;
+        if (keepOpen) {
             try {
-                this.rawSocket.close();
+                conn.channel.configureBlocking(false);
+                idle.add(conn);
+                selector.wakeup();
+                return;
             } catch (IOException ex) {
-                //
+                // Fall through
             }
         }
+        close(conn);
+    }
 
-        private void bail() {
-            this.stopSocket();
+    private void accept() throws IOException {
+        SocketChannel ch;
+        while ((ch = listener.accept()) != null) {
+            BufferedConnection htConn = new BufferedConnection();
+            htConn.bindSocket(ch.socket());
+            ClientConnection conn = new ClientConnection(ch, htConn);
+            conn.context.setAttribute(CX_SOCKET, ch.socket());
+            conn.context.setAttribute(CX_CLIENT, conn);
+            synchronized (allConnections) {
+                allConnections.put(ch, conn);
+            }
+            try {
+                ch.configureBlocking(false);
+                ch.register(selector, SelectionKey.OP_READ, conn);
+            } catch (IOException ex) {
+                close(conn);
+            }
         }
+    }
 
-        public void doReadLoop() {
-            HttpContext context = new BasicHttpContext();
-            context.setAttribute(CX_SOCKET, rawSocket);
+    private void registerIdle() {
+        ClientConnection conn;
+        while ((conn = idle.poll()) != null) {
+            int ops = SelectionKey.OP_READ;
+            if (conn.parked != null && conn.parked.hasPending()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            try {
+                conn.channel.register(selector, ops, conn);
+            } catch (IOException ex) {
+                close(conn);
+            }
+        }
+    }
 
-            while (!Thread.interrupted() && this.htConn.isOpen() && HttpServer.this.shouldRun) {
-                // Clear the context from any auth settings; since this is done
-                // anew on each connection..
-                context.removeAttribute(CX_AUTH);
-
-                try {
-                    HttpServer.this.httpService.handleRequest(htConn, context);
-                } catch (ConnectionClosedException ex_closed) {
-                    break;
-                } catch (IOException ex) {
-                    if (!closeRequested) {
-                        ex.printStackTrace();
-                    }
-                    break;
-                } catch (HttpException ex) {
-                    ex.printStackTrace();
-                    break;
-                } catch (ResponseHandledException ex) {
-                    break;
-                }
+    private void enableWrites() {
+        ParkedConnection parked;
+        while ((parked = writable.poll()) != null) {
+            SelectionKey key = parked.getChannel().keyFor(selector);
+            // Connections which are not registered yet are checked for pending data when they are
+            if (key != null && key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
             }
-            bail();
         }
+    }
 
-        @Override
-        public void run() {
-            try {
-                doReadLoop();
-            } finally {
-                synchronized (HttpServer.this.allWorkers) {
-                    HttpServer.this.allWorkers.remove(this);
+    private void serviceParked(SelectionKey key, ParkedConnection parked, ByteBuffer scratch) {
+        try {
+            if (key.isReadable()) {
+                // Anything the client sends is ignored; we only care whether it has gone away
+                scratch.clear();
+                if (parked.getChannel().read(scratch) < 0) {
+                    closeParked(parked);
+                    return;
                 }
-                bail();
             }
+            if (key.isValid() && key.isWritable() && parked.flush()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        } catch (IOException ex) {
+            closeParked(parked);
+        }
+    }
+
+    /**
+     * Hand a connection with a pending request to a worker
+     */
+    private void dispatch(final ClientConnection conn) {
+        try {
+            conn.channel.configureBlocking(true);
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    serve(conn);
+                }
+            });
+        } catch (IOException ex) {
+            close(conn);
+        } catch (RejectedExecutionException ex) {
+            close(conn);
         }
     }
 
+    /**
+     * Accepts connections, and waits for requests on idle connections and for parked
+     * connections to become writable or be closed
+     */
     @Override
     public void run() {
         setName("Mock HTTP Listener: "+listener.socket().getInetAddress());
+        ByteBuffer scratch = ByteBuffer.allocate(4096);
+        List<ClientConnection> ready = new ArrayList<ClientConnection>();
+        try {
+            listener.configureBlocking(false);
+            listener.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException ex) {
+            if (shouldRun) {
+                ex.printStackTrace();
+            }
+            shouldRun = false;
+        }
+
         while (shouldRun) {
-            Socket incoming;
             try {
-                incoming = listener.accept().socket();
-                HttpServerConnection conn = connectionFactory.createConnection(incoming);
-                Worker worker = new Worker(conn, incoming);
+                selector.select();
+                registerIdle();
+                enableWrites();
 
-                synchronized (allWorkers) {
-                    allWorkers.add(worker);
+                for (Iterator<SelectionKey> iter = selector.selectedKeys().iterator(); iter.hasNext(); ) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    ClientConnection conn = (ClientConnection) key.attachment();
+                    if (conn.parked != null) {
+                        serviceParked(key, conn.parked, scratch);
+                    } else if (key.isReadable()) {
+                        key.cancel();
+                        ready.add(conn);
+                    }
                 }
-                worker.start();
 
+                if (!ready.isEmpty()) {
+                    // Deregister the cancelled keys, so that the channels may be made blocking
+                    selector.selectNow();
+                    for (ClientConnection conn : ready) {
+                        dispatch(conn);
+                    }
+                    ready.clear();
+                }
             } catch (IOException ex) {
                 if (shouldRun) {
                     ex.printStackTrace();
                 }
             }
         }
+
+        closeAll();
+        try {
+            selector.close();
+        } catch (IOException ex) {
+            // Don't care
+        }
+    }
+
+    private void closeAll() {
+        List<ClientConnection> conns;
+        synchronized (allConnections) {
+            conns = new ArrayList<ClientConnection>(allConnections.values());
+        }
+        for (ClientConnection conn : conns) {
+            close(conn);
+        }
     }
 
     /**
@@ -234,22 +482,20 @@ public class HttpServer extends Thread {
         } catch (IOException ex) {
             // Don't care
         }
-        while (true) {
-            synchronized (allWorkers) {
-                if (allWorkers.isEmpty()) {
-                    break;
-                }
-                for (Worker w : allWorkers) {
-                    w.stopSocket();
-                    w.interrupt();
-                }
-            }
+        selector.wakeup();
+        try {
+            join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         }
 
+        // Closing the connections unblocks any workers waiting on them
+        workers.shutdownNow();
+        closeAll();
         try {
-            listener.close();
-        } catch (IOException ex) {
-            ex.printStackTrace();
+            workers.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         }
     }
 }
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.httpio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+import java.util.Queue;
+
+/**
+ * A connection which a handler has taken over to stream data to the client, such as a
+ * streaming configuration connection. Parked connections are owned by the server's selector
+ * rather than by a thread: data passed to {@link #write(byte[])} is queued and written as the
+ * socket becomes writable, and the connection is closed when the client disconnects.
+ *
+ * Use {@link HandlerUtil#park(org.apache.http.protocol.HttpContext, Listener)} to park the
+ * connection of the current request, and then throw {@link ResponseHandledException}.
+ */
+public final class ParkedConnection {
+    /**
+     * The most data which may be waiting to be written. A client which falls further
+     * behind is disconnected
+     */
+    public static final int MAX_PENDING = 4 * 1024 * 1024;
+
+    /**
+     * Notified when a parked connection is closed
+     */
+    public interface Listener {
+        void onClose(ParkedConnection conn);
+    }
+
+    private final HttpServer server;
+    private final SocketChannel channel;
+    private final Listener listener;
+    private final Queue<ByteBuffer> pending = new LinkedList<ByteBuffer>();
+    private int pendingBytes = 0;
+    private boolean closed = false;
+
+    ParkedConnection(HttpServer server, SocketChannel channel, Listener listener) {
+        this.server = server;
+        this.channel = channel;
+        this.listener = listener;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Queue data to be sent to the client. This never blocks
+     * @param data The data to send
+     */
+    public void write(byte[] data) {
+        boolean overflow;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            overflow = pendingBytes + data.length > MAX_PENDING;
+            if (!overflow) {
+                pending.add(ByteBuffer.wrap(data));
+                pendingBytes += data.length;
+            }
+        }
+        if (overflow) {
+            server.closeParked(this);
+        } else {
+            server.wantWrite(this);
+        }
+    }
+
+    /**
+     * Write as much queued data as the socket accepts. Called by the selector
+     * @return true if all queued data was written
+     */
+    synchronized boolean flush() throws IOException {
+        while (!pending.isEmpty()) {
+            ByteBuffer buf = pending.peek();
+            pendingBytes -= channel.write(buf);
+            if (buf.hasRemaining()) {
+                return false;
+            }
+            pending.remove();
+        }
+        return true;
+    }
+
+    synchronized boolean hasPending() {
+        return !pending.isEmpty();
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Close the connection
+     */
+    public void close() {
+        server.closeParked(this);
+    }
+
+    /**
+     * Mark the connection as closed
+     * @return true if it was open
+     */
+    boolean markClosed() {
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            closed = true;
+            pending.clear();
+            pendingBytes = 0;
+        }
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            // Don't care
+        }
+        if (listener != null) {
+            listener.onClose(this);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.couchbase.mock.httpio;
+
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+
+/**
+ * An entity whose gzip compressed form is already known, such as a cached configuration.
+ * {@link ResponseCompression} sends the compressed form to clients which accept it.
+ */
+public class PrecompressedEntity extends ByteArrayEntity {
+    private final byte[] compressed;
+
+    /**
+     * @param content The content. The array is not copied and must not be modified
+     * @param compressed The content compressed with gzip. The array is not copied and must not be modified
+     * @param contentType The type of the content
+     */
+    public PrecompressedEntity(byte[] content, byte[] compressed, ContentType contentType) {
+        super(content, contentType);
+        this.compressed = compressed;
+    }
+
+    /**
+     * @return The content compressed with gzip
+     */
+    public byte[] getCompressed() {
+        return compressed;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.couchbase.mock.httpio;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpStatus;
+import org.apache.http.NameValuePair;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+import org.apache.http.util.EntityUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses JSON responses with gzip when the client accepts it.
+ *
+ * Responses with a {@link PrecompressedEntity} are sent using the entity's cached compressed
+ * form. Other JSON responses are compressed when they are at least {@link #MIN_LENGTH} bytes
+ * long. This must run before {@link org.apache.http.protocol.ResponseContent}, which derives the
+ * content headers from the entity.
+ */
+public final class ResponseCompression implements HttpResponseInterceptor {
+    /**
+     * Smaller responses are sent as they are, unless they have a cached compressed form
+     */
+    public static final int MIN_LENGTH = 1024;
+
+    @Override
+    public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity == null || response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+            return;
+        }
+        if (entity.getContentEncoding() != null || response.containsHeader(HttpHeaders.CONTENT_ENCODING)) {
+            return;
+        }
+        HttpRequest request = HttpCoreContext.adapt(context).getRequest();
+        if (request == null || !acceptsGzip(request)) {
+            return;
+        }
+
+        byte[] compressed;
+        if (entity instanceof PrecompressedEntity) {
+            compressed = ((PrecompressedEntity) entity).getCompressed();
+        } else {
+            ContentType contentType = ContentType.get(entity);
+            if (contentType == null || !contentType.getMimeType().equals(ContentType.APPLICATION_JSON.getMimeType())) {
+                return;
+            }
+            long length = entity.getContentLength();
+            if (length < MIN_LENGTH || !entity.isRepeatable()) {
+                return;
+            }
+            compressed = gzip(EntityUtils.toByteArray(entity));
+        }
+
+        ByteArrayEntity ent = new ByteArrayEntity(compressed);
+        ent.setContentType(entity.getContentType());
+        ent.setContentEncoding("gzip");
+        response.setEntity(ent);
+        response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+    }
+
+    /**
+     * @param request The request
+     * @return true if the request's {@code Accept-Encoding} header allows gzip
+     */
+    static boolean acceptsGzip(HttpRequest request) {
+        for (Header header : request.getHeaders(HttpHeaders.ACCEPT_ENCODING)) {
+            for (HeaderElement elem : header.getElements()) {
+                String name = elem.getName();
+                if (!name.equalsIgnoreCase("gzip") && !name.equalsIgnoreCase("x-gzip") && !name.equals("*")) {
+                    continue;
+                }
+                NameValuePair q = elem.getParameterByName("q");
+                if (q == null) {
+                    return true;
+                }
+                try {
+                    if (Double.parseDouble(q.getValue()) > 0) {
+                        return true;
+                    }
+                } catch (NumberFormatException ex) {
+                    // Ignore the malformed element
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compress data with gzip
+     * @param data The data to compress
+     * @return The compressed data
+     */
+    public static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 4 + 64);
+        try {
+            GZIPOutputStream gzos = new GZIPOutputStream(bos);
+            gzos.write(data);
+            gzos.close();
+        } catch (IOException ex) {
+            // Not thrown by in-memory streams
+            throw new IllegalStateException(ex);
+        }
+        return bos.toByteArray();
+    }
+}
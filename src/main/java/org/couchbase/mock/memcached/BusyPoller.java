@@ -0,0 +1,56 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.couchbase.mock.memcached;
+
+import java.io.IOException;
+import java.nio.channels.Selector;
+
+/**
+ * Selects for a node thread or event loop, polling the selector without blocking for a
+ * while after each event so that the thread does not have to be woken up for the next one.
+ *
+ * Wakeups are consumed by the non-blocking polls, so the thread must handle its tasks and
+ * timers after every call, whether or not any keys are ready.
+ */
+final class BusyPoller {
+    private final long pollNanos;
+    private long lastEvent = System.nanoTime();
+
+    /**
+     * @param pollMicros How long to keep polling after an event, in microseconds
+     */
+    BusyPoller(int pollMicros) {
+        pollNanos = pollMicros * 1000L;
+    }
+
+    /**
+     * @param selector The selector
+     * @param waitMillis How long a blocking select may wait, as for {@link TimerWheel#select(Selector, long)}
+     * @return The number of ready keys
+     */
+    int select(Selector selector, long waitMillis) throws IOException {
+        int ready;
+        if (pollNanos > 0 && System.nanoTime() - lastEvent < pollNanos) {
+            ready = selector.selectNow();
+        } else {
+            ready = TimerWheel.select(selector, waitMillis);
+        }
+        if (ready > 0) {
+            lastEvent = System.nanoTime();
+        }
+        return ready;
+    }
+}
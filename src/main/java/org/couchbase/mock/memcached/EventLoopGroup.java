@@ -0,0 +1,233 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.couchbase.mock.memcached;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A fixed set of threads serving the memcached nodes of all buckets.
+ *
+ * By default each {@link MemcachedServer} runs its own thread and selector. When nodes are
+ * started on a group instead (see {@link MemcachedServer#startOn(EventLoopGroup)}), they are
+ * assigned to its loops round-robin, and each loop's selector watches the listening and
+ * client channels of all its nodes. The state of a node (failover, truncation, injected
+ * failures) still only applies to the node's own channels.
+ *
+ * A loop may also serve a {@link SharedKvPort}, in which case the nodes of all buckets
+ * listening on the port are served by the port's loop.
+ */
+public class EventLoopGroup {
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    static final class EventLoop extends Thread {
+        private final Selector selector;
+        private final SocketTuning tuning;
+        private final Queue<FutureTask<?>> pending = new ConcurrentLinkedQueue<FutureTask<?>>();
+        /** The nodes served by this loop. Only accessed by the loop thread */
+        private final List<MemcachedServer> servers = new ArrayList<MemcachedServer>();
+
+        EventLoop(String name, SocketTuning tuning) throws IOException {
+            super(name);
+            setDaemon(true);
+            this.tuning = tuning;
+            selector = Selector.open();
+        }
+
+        Selector getSelector() {
+            return selector;
+        }
+
+        SocketTuning getTuning() {
+            return tuning;
+        }
+
+        /**
+         * Run a task on the loop thread
+         * @param task The task
+         * @return A future which completes when the task has run
+         */
+        Future<?> submit(Runnable task) {
+            FutureTask<Object> ft = new FutureTask<Object>(task, null);
+            pending.add(ft);
+            selector.wakeup();
+            return ft;
+        }
+
+        void addServer(MemcachedServer server) {
+            servers.add(server);
+        }
+
+        void removeServer(MemcachedServer server) {
+            servers.remove(server);
+        }
+
+        private static void dispatch(SelectionKey key) throws IOException {
+            Object attachment = key.attachment();
+            if (attachment instanceof MemcachedConnection) {
+                MemcachedConnection client = (MemcachedConnection) attachment;
+                if (client.getServer() == null) {
+                    // Not bound to a bucket yet
+                    client.getSharedPort().handleEvent(key);
+                } else {
+                    client.getServer().handleEvent(key);
+                }
+            } else if (attachment instanceof SharedKvPort) {
+                ((SharedKvPort) attachment).handleEvent(key);
+            } else {
+                ((MemcachedServer) attachment).handleEvent(key);
+            }
+        }
+
+        @Override
+        public void run() {
+            BusyPoller poller = new BusyPoller(tuning.busyPollMicros);
+            try {
+                while (!isInterrupted()) {
+                    long wait = -1;
+                    for (MemcachedServer server : servers) {
+                        long serverWait = server.timerWaitMillis();
+                        if (serverWait >= 0 && (wait < 0 || serverWait < wait)) {
+                            wait = serverWait;
+                        }
+                    }
+                    try {
+                        poller.select(selector, wait);
+                    } catch (IOException ex) {
+                        continue;
+                    }
+
+                    FutureTask<?> task;
+                    while ((task = pending.poll()) != null) {
+                        task.run();
+                    }
+                    for (MemcachedServer server : servers) {
+                        server.onWakeup();
+                    }
+
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        try {
+                            dispatch(key);
+                        } catch (IOException ex) {
+                            Logger.getLogger(EventLoopGroup.class.getName()).log(Level.SEVERE, null, ex);
+                        } catch (RuntimeException ex) {
+                            // Don't let one connection take down the other nodes of the loop
+                            Logger.getLogger(EventLoopGroup.class.getName()).log(Level.SEVERE, null, ex);
+                            key.cancel();
+                            try {
+                                key.channel().close();
+                            } catch (IOException ignored) {
+                            }
+                        }
+                    }
+                }
+            } finally {
+                FutureTask<?> task;
+                while ((task = pending.poll()) != null) {
+                    task.cancel(false);
+                }
+                try {
+                    selector.close();
+                } catch (IOException ex) {
+                    Logger.getLogger(EventLoopGroup.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Create and start the loops
+     * @param size The number of loop threads
+     * @throws IOException If a selector could not be opened
+     */
+    public EventLoopGroup(int size) throws IOException {
+        this(size, SocketTuning.defaults());
+    }
+
+    /**
+     * Create and start the loops
+     * @param size The number of loop threads
+     * @param tuning The socket options and polling behavior of the loops
+     * @throws IOException If a selector could not be opened
+     */
+    public EventLoopGroup(int size, SocketTuning tuning) throws IOException {
+        if (size < 1) {
+            throw new IllegalArgumentException("Group must have at least one thread");
+        }
+        loops = new EventLoop[size];
+        for (int i = 0; i < size; i++) {
+            loops[i] = new EventLoop(String.format("MCD event loop[%d]", i), tuning);
+        }
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+    }
+
+    /**
+     * @return The number of loop threads
+     */
+    public int size() {
+        return loops.length;
+    }
+
+    EventLoop next() {
+        return loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    }
+
+    /**
+     * @return The loop at a fixed position, so that the same index always maps to the same loop
+     */
+    EventLoop loopAt(int index) {
+        return loops[index % loops.length];
+    }
+
+    /**
+     * Stop the loops. Nodes should be stopped first
+     */
+    public void shutdown() {
+        for (EventLoop loop : loops) {
+            loop.interrupt();
+        }
+        for (EventLoop loop : loops) {
+            boolean interrupted = false;
+            while (loop.isAlive()) {
+                try {
+                    loop.join();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
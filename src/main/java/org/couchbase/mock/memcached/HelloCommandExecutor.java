@@ -25,7 +25,8 @@ import org.couchbase.mock.memcached.protocol.*;
 public class HelloCommandExecutor implements CommandExecutor {
     @Override
     public void execute(BinaryCommand cmd, MemcachedServer server, MemcachedConnection client) {
-        if (server.getBucket().getType() != Bucket.BucketType.COUCHBASE) {
+        // Connections on a shared port may negotiate before selecting a bucket
+        if (server != null && server.getBucket().getType() != Bucket.BucketType.COUCHBASE) {
             client.sendResponse(new BinaryResponse(cmd, ErrorCode.NOT_SUPPORTED));
             return;
         }
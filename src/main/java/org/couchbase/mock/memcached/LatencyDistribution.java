@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.couchbase.mock.memcached;
+
+import java.util.Random;
+
+/**
+ * A distribution of injected response latencies
+ */
+public abstract class LatencyDistribution {
+    private static final long NANOS_PER_MS = 1000000L;
+
+    /**
+     * Draw a latency
+     * @param random The source of randomness. This belongs to the calling thread
+     * @return The latency in nanoseconds
+     */
+    abstract long sample(Random random);
+
+    private static void checkNonNegative(double ms) {
+        if (ms < 0 || Double.isNaN(ms) || Double.isInfinite(ms)) {
+            throw new IllegalArgumentException("Latency must be a finite number >= 0");
+        }
+    }
+
+    /**
+     * @param ms The latency of every response, in milliseconds
+     */
+    public static LatencyDistribution fixed(double ms) {
+        checkNonNegative(ms);
+        final long nanos = (long) (ms * NANOS_PER_MS);
+        return new LatencyDistribution() {
+            @Override
+            long sample(Random random) {
+                return nanos;
+            }
+        };
+    }
+
+    /**
+     * @param minMs The lowest latency, in milliseconds
+     * @param maxMs The highest latency, in milliseconds
+     */
+    public static LatencyDistribution uniform(double minMs, double maxMs) {
+        checkNonNegative(minMs);
+        checkNonNegative(maxMs);
+        if (maxMs < minMs) {
+            throw new IllegalArgumentException("Maximum latency must be >= minimum");
+        }
+        final long min = (long) (minMs * NANOS_PER_MS);
+        final long range = (long) (maxMs * NANOS_PER_MS) - min;
+        return new LatencyDistribution() {
+            @Override
+            long sample(Random random) {
+                return min + (long) (random.nextDouble() * range);
+            }
+        };
+    }
+
+    /**
+     * A log-normal distribution, which models the long tail of real latencies
+     * @param medianMs The median latency, in milliseconds
+     * @param sigma The standard deviation of the latency's natural logarithm. Larger values
+     *              give a longer tail
+     */
+    public static LatencyDistribution logNormal(double medianMs, final double sigma) {
+        checkNonNegative(medianMs);
+        checkNonNegative(sigma);
+        final double median = medianMs * NANOS_PER_MS;
+        return new LatencyDistribution() {
+            @Override
+            long sample(Random random) {
+                return (long) (median * Math.exp(sigma * random.nextGaussian()));
+            }
+        };
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.couchbase.mock.memcached;
+
+import org.couchbase.mock.memcached.protocol.BinaryCommand;
+import org.couchbase.mock.memcached.protocol.CommandCode;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The latencies injected into a node's responses. A node-wide distribution may be combined
+ * with distributions for specific opcodes and vBuckets; the latency of a response is the sum
+ * of the latencies drawn from each distribution which applies to its command.
+ *
+ * Profiles are immutable, so that the node may use one while another thread replaces it.
+ */
+final class LatencyProfile {
+    static final LatencyProfile NONE = new LatencyProfile(null,
+            new HashMap<CommandCode, LatencyDistribution>(), new HashMap<Short, LatencyDistribution>());
+
+    private final LatencyDistribution all;
+    private final Map<CommandCode, LatencyDistribution> byOpcode;
+    private final Map<Short, LatencyDistribution> byVBucket;
+
+    private LatencyProfile(LatencyDistribution all, Map<CommandCode, LatencyDistribution> byOpcode,
+                           Map<Short, LatencyDistribution> byVBucket) {
+        this.all = all;
+        this.byOpcode = byOpcode;
+        this.byVBucket = byVBucket;
+    }
+
+    boolean isEmpty() {
+        return all == null && byOpcode.isEmpty() && byVBucket.isEmpty();
+    }
+
+    /**
+     * Get a copy of the profile with one distribution replaced
+     * @param opcode The opcode the distribution applies to, or null
+     * @param vbucket The vBucket the distribution applies to, or -1
+     * @param dist The distribution, or null to remove it
+     */
+    LatencyProfile with(CommandCode opcode, short vbucket, LatencyDistribution dist) {
+        if (opcode != null && vbucket >= 0) {
+            throw new IllegalArgumentException("Latency may be set by opcode or by vBucket, not both");
+        }
+        LatencyDistribution newAll = all;
+        Map<CommandCode, LatencyDistribution> newByOpcode = byOpcode;
+        Map<Short, LatencyDistribution> newByVBucket = byVBucket;
+        if (opcode != null) {
+            newByOpcode = new HashMap<CommandCode, LatencyDistribution>(byOpcode);
+            if (dist == null) {
+                newByOpcode.remove(opcode);
+            } else {
+                newByOpcode.put(opcode, dist);
+            }
+        } else if (vbucket >= 0) {
+            newByVBucket = new HashMap<Short, LatencyDistribution>(byVBucket);
+            if (dist == null) {
+                newByVBucket.remove(vbucket);
+            } else {
+                newByVBucket.put(vbucket, dist);
+            }
+        } else {
+            newAll = dist;
+        }
+        return new LatencyProfile(newAll, newByOpcode, newByVBucket);
+    }
+
+    /**
+     * Draw the latency of the response to a command
+     * @return The latency in nanoseconds
+     */
+    long sample(BinaryCommand cmd, Random random) {
+        long total = 0;
+        if (all != null) {
+            total += all.sample(random);
+        }
+        if (!byOpcode.isEmpty()) {
+            LatencyDistribution dist = byOpcode.get(cmd.getComCode());
+            if (dist != null) {
+                total += dist.sample(random);
+            }
+        }
+        if (!byVBucket.isEmpty()) {
+            LatencyDistribution dist = byVBucket.get(cmd.getVBucketId());
+            if (dist != null) {
+                total += dist.sample(random);
+            }
+        }
+        return total;
+    }
+}
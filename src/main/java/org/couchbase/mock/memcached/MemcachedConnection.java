@@ -15,13 +15,17 @@
  */
 package org.couchbase.mock.memcached;
 
+import org.couchbase.mock.memcached.protocol.BinaryClustermapNotification;
 import org.couchbase.mock.memcached.protocol.BinaryHelloCommand;
 import org.couchbase.mock.memcached.protocol.BinaryResponse;
 import org.couchbase.mock.memcached.protocol.BinaryCommand;
 
 import java.io.IOException;
+import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 import java.util.Arrays;
 import java.util.List;
 import java.util.LinkedList;
@@ -33,15 +37,35 @@ import org.couchbase.mock.memcached.protocol.CommandFactory;
  */
 public class MemcachedConnection {
 
-    private final BinaryProtocolHandler protocolHandler;
+    private BinaryProtocolHandler protocolHandler;
+    private MemcachedServer server;
+    /** The shared port the connection was accepted on, or null if it belongs to a single node */
+    private final SharedKvPort sharedPort;
     private final byte header[];
     private BinaryCommand command;
     private final ByteBuffer input;
     private List<ByteBuffer> pending = new LinkedList<ByteBuffer>();
     private boolean authenticated;
+    /** The user the connection authenticated as on a shared port */
+    private String user;
     private boolean closed;
     private final MutationInfoWriter miw = new MutationInfoWriter();
     private boolean[] supportedFeatures = new boolean[BinaryHelloCommand.Feature.MAX.getValue()];
+    /** The latest configuration revision the client was notified of */
+    private long notifiedRev = -1;
+    private SelectionKey selectionKey;
+    /** Responses held back by injected latency, in order, and the times they are due */
+    private final LinkedList<ByteBuffer> held = new LinkedList<ByteBuffer>();
+    private final LinkedList<Long> heldUntil = new LinkedList<Long>();
+    /** When responses sent by the current command are due, or 0 to send them right away */
+    private long holdUntil = 0;
+    /** Whether the output is stalled by a hiccup or a throttle */
+    private boolean stalled;
+    /** Whether the output being written has already stalled once for a hiccup */
+    private boolean hiccupDone;
+    /** The connection's own throttle, and the node's template it was copied from */
+    private Throttle throttle;
+    private Throttle throttleTemplate;
 
     public MemcachedConnection(MemcachedServer server) {
         closed = false;
@@ -49,6 +73,61 @@ public class MemcachedConnection {
         header = new byte[24];
         input = ByteBuffer.wrap(header);
         protocolHandler = server.getProtocolHandler();
+        this.server = server;
+        sharedPort = server.getSharedPort();
+    }
+
+    /**
+     * Create a connection accepted on a shared port. The connection does not belong to
+     * any bucket until it is bound with {@link #bind(MemcachedServer, boolean)}
+     * @param sharedPort The port
+     */
+    MemcachedConnection(SharedKvPort sharedPort) {
+        closed = false;
+        authenticated = false;
+        header = new byte[24];
+        input = ByteBuffer.wrap(header);
+        protocolHandler = sharedPort;
+        server = null;
+        this.sharedPort = sharedPort;
+    }
+
+    /**
+     * @return The node the connection belongs to, or null if it is not bound to a bucket yet
+     */
+    MemcachedServer getServer() {
+        return server;
+    }
+
+    /**
+     * @return The shared port the connection was accepted on, or null
+     */
+    SharedKvPort getSharedPort() {
+        return sharedPort;
+    }
+
+    /**
+     * Bind the connection to the node of another bucket. Subsequent commands are executed
+     * by that node
+     * @param server The node
+     * @param authenticated Whether the connection may access the bucket
+     */
+    void bind(MemcachedServer server, boolean authenticated) {
+        this.server = server;
+        this.authenticated = authenticated;
+        protocolHandler = server.getProtocolHandler();
+        notifiedRev = -1;
+    }
+
+    /**
+     * @return The user the connection authenticated as on a shared port, or null
+     */
+    String getUser() {
+        return user;
+    }
+
+    void setUser(String user) {
+        this.user = user;
     }
 
     /**
@@ -81,17 +160,128 @@ public class MemcachedConnection {
      * @param response the response to enqueue
      */
     public synchronized void sendResponse(BinaryResponse response) {
+        if (holdUntil != 0 || !held.isEmpty()) {
+            // Responses must not overtake the ones held before them
+            long due = holdUntil;
+            if (!heldUntil.isEmpty() && (due == 0 || heldUntil.getLast() - due > 0)) {
+                due = heldUntil.getLast();
+            }
+            held.add(response.getBuffer());
+            heldUntil.add(due);
+            return;
+        }
         if (pending == null) {
             pending = new LinkedList<ByteBuffer>();
         }
         pending.add(response.getBuffer());
     }
 
+    /**
+     * Hold back the responses sent until the next call, for injected latency
+     * @param until When the responses are due, in terms of {@link System#nanoTime()}, or
+     *              0 to stop holding responses back
+     */
+    void holdResponses(long until) {
+        holdUntil = until;
+    }
+
+    /**
+     * Queue the held responses which are due for output
+     * @param now The current time, in terms of {@link System#nanoTime()}
+     * @return true if any responses were queued
+     */
+    synchronized boolean releaseHeld(long now) {
+        boolean released = false;
+        while (!held.isEmpty() && heldUntil.getFirst() - now <= 0) {
+            if (pending == null) {
+                pending = new LinkedList<ByteBuffer>();
+            }
+            pending.add(held.removeFirst());
+            heldUntil.removeFirst();
+            released = true;
+        }
+        return released;
+    }
+
+    /**
+     * Stop output until {@link #resumeOutput()} is called
+     */
+    void stallOutput() {
+        stalled = true;
+    }
+
+    void resumeOutput() {
+        stalled = false;
+    }
+
+    /**
+     * @return true if the output being written has stalled already, and should be written
+     * without stalling again
+     */
+    boolean isHiccupDone() {
+        return hiccupDone;
+    }
+
+    void setHiccupDone() {
+        hiccupDone = true;
+    }
+
+    /**
+     * Called when all output has been written
+     */
+    void outputDrained() {
+        hiccupDone = false;
+    }
+
+    /**
+     * Get the connection's own throttle, which is a copy of the node's per-connection template
+     * @param template The node's current template, or null if connections are not throttled
+     * @return The throttle, or null
+     */
+    Throttle getThrottle(Throttle template) {
+        if (template != throttleTemplate) {
+            throttleTemplate = template;
+            throttle = template == null ? null : template.copy();
+        }
+        return throttle;
+    }
+
+    SelectionKey getSelectionKey() {
+        return selectionKey;
+    }
+
+    void setSelectionKey(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    /**
+     * Queue a clustermap change notification, if the client asked for them and has not
+     * been notified of this revision yet
+     * @param bucketName The name of the bucket
+     * @param rev The new configuration revision
+     * @return true if a notification was queued
+     */
+    boolean notifyClustermapChange(String bucketName, long rev) {
+        if (!supportedFeatures[BinaryHelloCommand.Feature.CLUSTERMAP_CHANGE_NOTIFICATION.getValue()]) {
+            return false;
+        }
+        if (rev <= notifiedRev) {
+            return false;
+        }
+        notifiedRev = rev;
+        sendResponse(new BinaryClustermapNotification(bucketName, rev));
+        return true;
+    }
+
     /**
      * Determines whether this connection has pending responses to be sent
      * @return true  there are pending responses
      */
     boolean hasOutput() {
+        if (stalled) {
+            return false;
+        }
+
         if (pending == null) {
             return false;
         }
@@ -180,12 +370,20 @@ public class MemcachedConnection {
         return Arrays.copyOf(supportedFeatures, supportedFeatures.length);
     }
 
+    /**
+     * @return Whether Nagle's algorithm is disabled for the connection
+     */
+    public boolean isTcpNoDelay() throws SocketException {
+        return ((SocketChannel) selectionKey.channel()).socket().getTcpNoDelay();
+    }
+
     /**
      * Sets the supported features from a HELLO command.
      *
      * Note that the actual enabled features will be the ones supported by the mock
-     * and also supported by the client. Currently the only supported feature is
-     * MUTATION_SEQNO.
+     * and also supported by the client. Clustermap change notifications are only
+     * enabled if duplex mode is enabled as well. Nagle's algorithm is disabled while the
+     * latest HELLO requests {@code TCP_NODELAY}, unless the node disables it for all connections.
      *
      * @param input The features requested by the client.
      */
@@ -203,13 +401,19 @@ public class MemcachedConnection {
             }
 
             switch (feature) {
+                case TCP_NODELAY:
                 case MUTATION_SEQNO:
                 case XERROR:
                 case XATTR:
                 case SELECT_BUCKET:
+                case DUPLEX:
                     supportedFeatures[i] = input[i];
                     break;
 
+                case CLUSTERMAP_CHANGE_NOTIFICATION:
+                    supportedFeatures[i] = input[i] && input[BinaryHelloCommand.Feature.DUPLEX.getValue()];
+                    break;
+
                 default:
                     supportedFeatures[i] = false;
                     break;
@@ -222,5 +426,14 @@ public class MemcachedConnection {
         } else {
             miw.setEnabled(false);
         }
+        if (selectionKey != null) {
+            SocketTuning tuning = sharedPort != null ? sharedPort.getLoop().getTuning() : server.getSocketTuning();
+            boolean noDelay = supportedFeatures[BinaryHelloCommand.Feature.TCP_NODELAY.getValue()] || tuning.tcpNoDelay;
+            try {
+                ((SocketChannel) selectionKey.channel()).socket().setTcpNoDelay(noDelay);
+            } catch (SocketException ex) {
+                // The connection is gone; this surfaces with its next read or write
+            }
+        }
     }
 }
@@ -37,10 +37,18 @@ import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.security.AccessControlException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -50,21 +58,49 @@ import java.util.logging.Logger;
  *
  * @author Trond Norbye
  */
-public class MemcachedServer extends Thread implements BinaryProtocolHandler {
+public class MemcachedServer extends Thread implements BinaryProtocolHandler, Bucket.TopologyListener {
     private final Storage storage;
     private final long bootTime;
     private final String hostname;
+    /** The node's own listening socket, or null if it listens on a shared port */
     private final ServerSocketChannel server;
-    private Selector selector;
+    private final SharedKvPort sharedPort;
+    private volatile Selector selector;
+    /** The shared loop serving this node, or null if the node runs its own thread */
+    private volatile EventLoopGroup.EventLoop loop;
+    private volatile boolean attached = false;
+    /** Keys of a suspended node which were disabled by its thread or event loop. Only used by that thread */
+    private final List<SelectionKey> suspendedKeys = new ArrayList<SelectionKey>();
     private final int port;
     private final CommandExecutor[] executors = new CommandExecutor[0xff];
     private static final CommandExecutor unknownHandler = new UnknownCommandExecutor();
     private final Bucket bucket;
-    private boolean active = true;
+    private volatile boolean active = true;
+    /** Delayed responses and output stalls. Only used by the server thread */
+    private final TimerWheel timers = new TimerWheel(TimeUnit.MILLISECONDS.toNanos(1), 512);
+    private final Random random = new Random();
+    private volatile LatencyProfile latency = LatencyProfile.NONE;
+    private final Object latencyLock = new Object();
+    /** The throttle of the node, and the template of its connections' own throttles */
+    private volatile Throttle nodeThrottle = null;
+    private volatile Throttle connectionThrottle = null;
+    private static final Throttle.Scope[] THROTTLE_SCOPES = Throttle.Scope.values();
+    /** Throttling counters. Only used by the server thread */
+    private long throttledWrites = 0;
+    private long throttledOps = 0;
     private int hiccupTime = 0;
     private int hiccupOffset = 0;
     private int truncateLimit = 0;
     private boolean cccpEnabled = false;
+    /** The latest configuration revision to notify clients of. Set by the topology notifier */
+    private volatile long clustermapRev = -1;
+    /** The latest configuration revision clients were notified of. Only used by the server thread */
+    private long notifiedRev = -1;
+    private final Queue<FutureTask<?>> tasks = new ConcurrentLinkedQueue<FutureTask<?>>();
+    /** Whether tasks are queued for the server's thread rather than run by the caller. Guarded by tasks */
+    private boolean acceptingTasks = false;
+    private final SocketTuning tuning;
+    private final SubdocIndexCache subdocIndexCache = new SubdocIndexCache(SubdocIndexCache.DEFAULT_MAX_BYTES);
 
 
     public class FailMaker {
@@ -99,8 +135,28 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
      * @throws IOException If we fail to create the server socket
      */
     public MemcachedServer(Bucket bucket, String hostname, int port, VBucketInfo[] vbi) throws IOException {
+        this(bucket, vbi, openListener(hostname, port), hostname, null);
+    }
+
+    /**
+     * Create a memcached server which accepts its clients on a port shared with the
+     * nodes of other buckets. Such a server must be started with
+     * {@link #startOn(EventLoopGroup)}
+     *
+     * @param bucket     The bucket owning all of the stores
+     * @param sharedPort The port
+     * @throws IOException If we fail to create the selector
+     */
+    public MemcachedServer(Bucket bucket, SharedKvPort sharedPort, VBucketInfo[] vbi) throws IOException {
+        this(bucket, vbi, null, null, sharedPort);
+    }
+
+    private MemcachedServer(Bucket bucket, VBucketInfo[] vbi, ServerSocketChannel server, String hostname,
+                            SharedKvPort sharedPort) throws IOException {
         this.bucket = bucket;
         this.storage = new Storage(vbi, this);
+        CouchbaseMock mock = bucket.getCluster();
+        tuning = mock == null ? SocketTuning.defaults() : mock.getSocketTuning();
 
         for (int ii = 0; ii < executors.length; ++ii) {
             executors[ii] = unknownHandler;
@@ -174,34 +230,67 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
 
         bootTime = System.currentTimeMillis() / 1000;
         selector = Selector.open();
-        server = ServerSocketChannel.open();
-        server.configureBlocking(false);
+        this.server = server;
+        this.sharedPort = sharedPort;
+        if (sharedPort != null) {
+            this.hostname = sharedPort.getHostname();
+            this.port = sharedPort.getPort();
+        } else {
+            this.hostname = listenerHostname(hostname, server);
+            this.port = server.socket().getLocalPort();
+            server.register(selector, SelectionKey.OP_ACCEPT, this);
+        }
+    }
+
+    /**
+     * Open a non-blocking listening socket
+     * @param hostname The hostname to bind to (null or "*" == any)
+     * @param port The port, or 0 to choose an ephemeral port
+     */
+    static ServerSocketChannel openListener(String hostname, int port) throws IOException {
+        ServerSocketChannel ch = ServerSocketChannel.open();
+        ch.configureBlocking(false);
         if (hostname != null && !hostname.equals("*")) {
-            server.socket().bind(new InetSocketAddress(hostname, port));
-            this.hostname = hostname;
+            ch.socket().bind(new InetSocketAddress(hostname, port));
         } else {
-            server.socket().bind(new InetSocketAddress(port));
-            InetAddress address = server.socket().getInetAddress();
-            if (address.isAnyLocalAddress()) {
-                String name;
-                try {
-                    name = InetAddress.getLocalHost().getHostAddress();
-                } catch (UnknownHostException ex) {
-                    name = "localhost";
-                }
-                this.hostname = name;
-            } else {
-                this.hostname = address.getHostName();
+            ch.socket().bind(new InetSocketAddress(port));
+        }
+        return ch;
+    }
+
+    /**
+     * @return The hostname clients should use to reach a socket opened by {@link #openListener(String, int)}
+     */
+    static String listenerHostname(String hostname, ServerSocketChannel ch) {
+        if (hostname != null && !hostname.equals("*")) {
+            return hostname;
+        }
+        InetAddress address = ch.socket().getInetAddress();
+        if (address.isAnyLocalAddress()) {
+            try {
+                return InetAddress.getLocalHost().getHostAddress();
+            } catch (UnknownHostException ex) {
+                return "localhost";
             }
         }
-        this.port = server.socket().getLocalPort();
-        server.register(selector, SelectionKey.OP_ACCEPT);
+        return address.getHostName();
     }
 
     public Storage getStorage() {
         return storage;
     }
 
+    /**
+     * @return The cache of document indexes used by subdoc lookups
+     */
+    public SubdocIndexCache getSubdocIndexCache() {
+        return subdocIndexCache;
+    }
+
+    SocketTuning getSocketTuning() {
+        return tuning;
+    }
+
     public void updateFailMakerContext(ErrorCode code, int count) {
         failmaker.update(code, count);
     }
@@ -211,6 +300,7 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
         Map<String, Object> map = new HashMap<String, Object>();
         CouchbaseMock mock = bucket.getCluster();
 
+        // Bucket configurations are cached, so this is the uptime at the last topology change
         map.put("uptime", Long.toString(System.currentTimeMillis() - bootTime));
         map.put("replication", 1);
         map.put("clusterMembership", "active");
@@ -253,6 +343,19 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
         return stats;
     }
 
+    private Map<String, String> getThrottleStats() {
+        Map<String, String> stats = new HashMap<String, String>();
+        for (Throttle.Scope scope : THROTTLE_SCOPES) {
+            Throttle throttle = getThrottle(scope);
+            String prefix = "throttle_" + scope.name().toLowerCase();
+            stats.put(prefix + "_bytes_per_sec", Long.toString(throttle == null ? 0 : throttle.getBytesPerSec()));
+            stats.put(prefix + "_ops_per_sec", Long.toString(throttle == null ? 0 : throttle.getOpsPerSec()));
+        }
+        stats.put("throttle_write_stalls", Long.toString(throttledWrites));
+        stats.put("throttle_ops_delayed", Long.toString(throttledOps));
+        return stats;
+    }
+
     @SuppressWarnings("SpellCheckingInspection")
     public Map<String, String> getStats(String about) {
         if (about == null || about.isEmpty()) {
@@ -268,6 +371,10 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
             Map<String, String> tapStats = new HashMap<String, String>();
             tapStats.put("ep_tap_count", "0");
             return tapStats;
+        } else if (about.equals("subdoc")) {
+            return subdocIndexCache.getStats();
+        } else if (about.equals("throttle")) {
+            return getThrottleStats();
         } else if (about.equals("__MOCK__")) {
             Map<String,String> mockInfo = new HashMap<String, String>();
             mockInfo.put("implementation", "java");
@@ -290,7 +397,7 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
         return hostname;
     }
 
-    private void writeResponse(SocketChannel channel, OutputContext ctx) throws IOException {
+    static void writeResponse(SocketChannel channel, OutputContext ctx) throws IOException {
         while (ctx.hasRemaining()) {
             ByteBuffer[] bufs = ctx.getIov();
             long nw = channel.write(bufs);
@@ -306,19 +413,18 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
 
     @Override
     public void run() {
+        acceptTasks();
+        BusyPoller poller = new BusyPoller(tuning.busyPollMicros);
         try {
             while (!Thread.currentThread().isInterrupted()) {
                 try {
-                    selector.select();
-                    if (!active) {
-                        // server is suspended: ignore all events
-                        selector.selectedKeys().clear();
-                        continue;
-                    }
+                    poller.select(selector, timerWaitMillis());
                 } catch (IOException ex) {
                     continue;
                 }
 
+                onWakeup();
+
                 try {
                     Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
 
@@ -328,7 +434,7 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
                     while (iterator.hasNext()) {
                         SelectionKey key = iterator.next();
                         iterator.remove();
-                        handleClient(key);
+                        handleEvent(key);
                     }
                 } catch (IOException e) {
 
@@ -336,8 +442,11 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
                 }
             }
         } finally {
+            cancelTasks();
             try {
-                server.close();
+                if (server != null) {
+                    server.close();
+                }
                 selector.close();
             } catch (IOException e) {
                 Logger.getLogger(MemcachedServer.class.getName()).log(Level.SEVERE, null, e);
@@ -345,22 +454,348 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
         }
     }
 
-    private void handleClientWrite(SocketChannel channel, OutputContext ctx) throws IOException {
-        OutputContext effectiveCtx = ctx;
-        if (truncateLimit > 0) {
-            effectiveCtx = ctx.getSlice(truncateLimit);
-        } else if (hiccupOffset > 0) {
-            effectiveCtx = ctx.getSlice(hiccupOffset);
-        }
+    /**
+     * Serve this node from a shared event loop rather than its own thread. This is used
+     * instead of {@link #start()}
+     * @param group The group to pick the loop from
+     */
+    public void startOn(EventLoopGroup group) throws IOException {
+        // All nodes on a shared port must be served by the port's loop
+        final EventLoopGroup.EventLoop newLoop = sharedPort != null ? sharedPort.getLoop() : group.next();
+        Selector own = selector;
+        loop = newLoop;
+        selector = newLoop.getSelector();
+        attached = true;
+        acceptTasks();
+        // Closing the node's own selector deregisters the listening channel
+        own.close();
+        newLoop.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (sharedPort != null) {
+                        sharedPort.addServer(MemcachedServer.this);
+                    } else {
+                        server.register(newLoop.getSelector(), SelectionKey.OP_ACCEPT, MemcachedServer.this);
+                    }
+                    newLoop.addServer(MemcachedServer.this);
+                } catch (ClosedChannelException ex) {
+                    Logger.getLogger(MemcachedServer.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        });
+    }
 
-        writeResponse(channel, effectiveCtx);
-        if (hiccupOffset > 0) {
+    /**
+     * @return true if the node is served by a shared event loop
+     */
+    public boolean isOnEventLoop() {
+        return loop != null;
+    }
+
+    /**
+     * Stop serving a node started with {@link #startOn(EventLoopGroup)}, closing its
+     * listening socket and client connections
+     */
+    public void stopOnEventLoop() {
+        final EventLoopGroup.EventLoop curLoop = loop;
+        if (curLoop == null || !attached) {
+            return;
+        }
+        attached = false;
+        Future<?> done = curLoop.submit(new Runnable() {
+            @Override
+            public void run() {
+                curLoop.removeServer(MemcachedServer.this);
+                if (sharedPort != null) {
+                    sharedPort.removeServer(MemcachedServer.this);
+                }
+                cancelTasks();
+                for (SelectionKey key : selector.keys()) {
+                    Object attachment = key.attachment();
+                    if (attachment == MemcachedServer.this ||
+                            (attachment instanceof MemcachedConnection && ((MemcachedConnection) attachment).getServer() == MemcachedServer.this)) {
+                        key.cancel();
+                        try {
+                            key.channel().close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
+                suspendedKeys.clear();
+            }
+        });
+        boolean interrupted = false;
+        while (true) {
             try {
-                Thread.sleep(hiccupTime);
+                done.get();
+                break;
             } catch (InterruptedException ex) {
+                interrupted = true;
+            } catch (Exception ex) {
+                // The loop was stopped first
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Called by the server thread or shared event loop on every wakeup
+     */
+    void onWakeup() {
+        runTasks();
+        timers.expire(System.nanoTime());
+        if (active) {
+            pushClustermapChanges();
+        }
+    }
+
+    /**
+     * Called by the server thread or shared event loop for a ready key of this node. The keys
+     * of a suspended node are disabled until it is started up again, so that a suspended node
+     * neither accepts nor reads, and doesn't keep the thread busy
+     */
+    void handleEvent(SelectionKey key) throws IOException {
+        if (!active) {
+            if (key.isValid()) {
+                key.interestOps(0);
+                suspendedKeys.add(key);
+            }
+            return;
+        }
+        handleClient(key);
+    }
+
+    private void resumeKeys() {
+        for (SelectionKey key : suspendedKeys) {
+            if (!key.isValid()) {
+                continue;
+            }
+            Object attachment = key.attachment();
+            if (attachment instanceof MemcachedConnection) {
+                int ops = SelectionKey.OP_READ;
+                if (((MemcachedConnection) attachment).hasOutput()) {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+                key.interestOps(ops);
+            } else {
+                key.interestOps(SelectionKey.OP_ACCEPT);
+            }
+        }
+        suspendedKeys.clear();
+    }
+
+    /**
+     * @return How long the thread serving the node may wait before the next timer is due, in
+     * milliseconds, or -1 if there are no timers
+     */
+    long timerWaitMillis() {
+        return timers.waitMillis(System.nanoTime());
+    }
+
+    /**
+     * Enable write events for a connection whose output became ready outside of its own events
+     */
+    private void armWrite(MemcachedConnection client) {
+        SelectionKey key = client.getSelectionKey();
+        // Keys of suspended nodes are re-armed when the node is started up again
+        if (key == null || !key.isValid() || !active || (key.interestOps() & SelectionKey.OP_READ) == 0) {
+            return;
+        }
+        if (client.hasOutput()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void acceptTasks() {
+        synchronized (tasks) {
+            acceptingTasks = true;
+        }
+    }
+
+    /**
+     * Cancel the queued tasks. Tasks submitted from then on are run by their callers
+     */
+    private void cancelTasks() {
+        synchronized (tasks) {
+            acceptingTasks = false;
+            FutureTask<?> task;
+            while ((task = tasks.poll()) != null) {
+                task.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Run a task on the server's thread, so that it does not race with the commands the
+     * server executes. Tasks run even while the server is suspended. If the server is not
+     * running, the task is run by the caller
+     * @param task The task
+     * @return A future which completes when the task has run
+     */
+    public Future<?> runOnServerThread(Runnable task) {
+        FutureTask<Object> ft = new FutureTask<Object>(task, null);
+        // Queued under the lock, so that no task is left behind once the queue is cancelled
+        synchronized (tasks) {
+            if (acceptingTasks) {
+                tasks.add(ft);
+                selector.wakeup();
+                return ft;
+            }
+        }
+        ft.run();
+        return ft;
+    }
+
+    private void runTasks() {
+        FutureTask<?> task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    @Override
+    public void topologyChanged(Bucket bucket, Bucket.ConfigSnapshot snapshot) {
+        clustermapRev = snapshot.getRev();
+        selector.wakeup();
+    }
+
+    /**
+     * Notify connections which asked for clustermap change notifications of a new
+     * configuration revision, once per revision
+     */
+    private void pushClustermapChanges() {
+        long rev = clustermapRev;
+        if (rev == notifiedRev) {
+            return;
+        }
+        notifiedRev = rev;
+        if (!isCccpEnabled()) {
+            return;
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (!key.isValid() || !(key.attachment() instanceof MemcachedConnection)) {
+                continue;
             }
+            MemcachedConnection client = (MemcachedConnection) key.attachment();
+            if (client.getServer() != this) {
+                // Another node on the same event loop
+                continue;
+            }
+            if (client.notifyClustermapChange(bucket.getName(), rev)) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    private void handleClientWrite(SocketChannel channel, MemcachedConnection client, OutputContext ctx) throws IOException {
+        long now = System.nanoTime();
+        long allowed = bytesAllowed(client, now);
+        if (allowed == 0) {
+            throttledWrites++;
+            stallOutput(client, now + nanosUntilBytesAllowed(client, now));
+            return;
+        }
+
+        boolean hiccup = hiccupOffset > 0 && !client.isHiccupDone() && allowed >= hiccupOffset;
+        if (truncateLimit > 0) {
+            writeResponse(channel, ctx.getSlice(truncateLimit));
+        } else if (hiccup || allowed != Long.MAX_VALUE) {
+            bytesWritten(client, ctx.write(channel, hiccup ? hiccupOffset : allowed), now);
+        } else {
             writeResponse(channel, ctx);
         }
+
+        if (hiccup && ctx.hasRemaining()) {
+            client.setHiccupDone();
+            stallOutput(client, now + TimeUnit.MILLISECONDS.toNanos(hiccupTime));
+        } else if (!ctx.hasRemaining()) {
+            client.outputDrained();
+        }
+    }
+
+    /**
+     * Stall the output of a single connection; the rest is sent once the timer is due
+     */
+    private void stallOutput(final MemcachedConnection client, long until) {
+        client.stallOutput();
+        timers.schedule(until, new Runnable() {
+            @Override
+            public void run() {
+                client.resumeOutput();
+                armWrite(client);
+            }
+        });
+    }
+
+    private Throttle getThrottle(Throttle.Scope scope) {
+        switch (scope) {
+            case NODE:
+                return nodeThrottle;
+            case BUCKET:
+                return bucket.getThrottle();
+            default:
+                return connectionThrottle;
+        }
+    }
+
+    private Throttle getThrottle(Throttle.Scope scope, MemcachedConnection client) {
+        if (scope == Throttle.Scope.CONNECTION) {
+            return client.getThrottle(connectionThrottle);
+        }
+        return getThrottle(scope);
+    }
+
+    /**
+     * @return The number of bytes the throttles allow to be written to the client right away
+     */
+    private long bytesAllowed(MemcachedConnection client, long now) {
+        long allowed = Long.MAX_VALUE;
+        for (Throttle.Scope scope : THROTTLE_SCOPES) {
+            Throttle throttle = getThrottle(scope, client);
+            if (throttle != null) {
+                allowed = Math.min(allowed, throttle.bytesAvailable(now));
+            }
+        }
+        return allowed;
+    }
+
+    private long nanosUntilBytesAllowed(MemcachedConnection client, long now) {
+        long wait = 0;
+        for (Throttle.Scope scope : THROTTLE_SCOPES) {
+            Throttle throttle = getThrottle(scope, client);
+            if (throttle != null) {
+                wait = Math.max(wait, throttle.nanosUntilBytes(now));
+            }
+        }
+        return wait;
+    }
+
+    private void bytesWritten(MemcachedConnection client, long count, long now) {
+        for (Throttle.Scope scope : THROTTLE_SCOPES) {
+            Throttle throttle = getThrottle(scope, client);
+            if (throttle != null) {
+                throttle.bytesWritten(count, now);
+            }
+        }
+    }
+
+    /**
+     * Account for a command in the throttles
+     * @return How long the response must be held back to honor the operation rates, in nanoseconds
+     */
+    private long takeOp(MemcachedConnection client, long now) {
+        long wait = 0;
+        for (Throttle.Scope scope : THROTTLE_SCOPES) {
+            Throttle throttle = getThrottle(scope, client);
+            if (throttle != null) {
+                wait = Math.max(wait, throttle.takeOp(now));
+            }
+        }
+        return wait;
     }
 
 
@@ -374,20 +809,23 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
     }
 
     private void handleNewClient() throws IOException {
-        SocketChannel cc = server.accept();
-        cc.configureBlocking(false);
-        cc.socket().setTcpNoDelay(false);
-        cc.socket().setSendBufferSize(1<<20);
-        cc.socket().setReceiveBufferSize(1<<20);
-        cc.register(selector, SelectionKey.OP_READ, new MemcachedConnection(this));
+        for (int i = 0; i < tuning.acceptBatch; i++) {
+            SocketChannel cc = server.accept();
+            if (cc == null) {
+                return;
+            }
+            tuning.configure(cc);
+            MemcachedConnection client = new MemcachedConnection(this);
+            client.setSelectionKey(cc.register(selector, SelectionKey.OP_READ, client));
+        }
     }
 
     private void handleClient(SelectionKey key) throws IOException {
-        MemcachedConnection client = (MemcachedConnection) key.attachment();
-        if (client == null) {
+        if (!(key.attachment() instanceof MemcachedConnection)) {
             handleNewClient();
             return;
         }
+        MemcachedConnection client = (MemcachedConnection) key.attachment();
 
         SocketChannel channel = (SocketChannel) key.channel();
         try {
@@ -400,7 +838,7 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
 
                 if (ctx != null) {
                     try {
-                        handleClientWrite(channel, ctx);
+                        handleClientWrite(channel, client, ctx);
                     } finally {
                         client.returnOutputContext(ctx);
                     }
@@ -466,8 +904,28 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
     }
 
     @Override
-    public void execute(BinaryCommand cmd, MemcachedConnection client)
+    public void execute(BinaryCommand cmd, final MemcachedConnection client)
             throws IOException {
+        long now = System.nanoTime();
+        LatencyProfile profile = latency;
+        long delay = profile.isEmpty() ? 0 : profile.sample(cmd, random);
+        long throttled = takeOp(client, now);
+        if (throttled > 0) {
+            throttledOps++;
+            delay += throttled;
+        }
+        if (delay > 0) {
+            long due = now + delay;
+            client.holdResponses(due);
+            timers.schedule(due, new Runnable() {
+                @Override
+                public void run() {
+                    if (client.releaseHeld(System.nanoTime())) {
+                        armWrite(client);
+                    }
+                }
+            });
+        }
         try {
 
             ErrorCode failcode = failmaker.getFailCode();
@@ -480,6 +938,10 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
             }
         } catch (AccessControlException ex) {
             client.sendResponse(BinaryConfigResponse.createNotMyVbucket(cmd, this));
+        } finally {
+            if (delay > 0) {
+                client.holdResponses(0);
+            }
         }
     }
 
@@ -487,12 +949,56 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
         return this;
     }
 
+    /**
+     * @return The port shared with the nodes of other buckets, or null if the node has its own
+     */
+    public SharedKvPort getSharedPort() {
+        return sharedPort;
+    }
+
     public void shutdown() {
+        shutdown(false);
+    }
+
+    /**
+     * Suspend the node. Clients of a suspended node get no responses, and new connections
+     * are left in the listen backlog until the node is started up again
+     * @param resetConnections Whether to close the existing client connections rather than
+     *                         leave them hanging
+     */
+    public void shutdown(boolean resetConnections) {
         active = false;
+        if (resetConnections) {
+            runOnServerThread(new Runnable() {
+                @Override
+                public void run() {
+                    closeConnections();
+                }
+            });
+        }
+    }
+
+    private void closeConnections() {
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof MemcachedConnection && ((MemcachedConnection) attachment).getServer() == this) {
+                key.cancel();
+                try {
+                    key.channel().close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
     }
 
     public void startup() {
         active = true;
+        runOnServerThread(new Runnable() {
+            @Override
+            public void run() {
+                resumeKeys();
+            }
+        });
     }
 
     /**
@@ -508,6 +1014,49 @@ public class MemcachedServer extends Thread implements BinaryProtocolHandler {
         hiccupOffset = offset;
     }
 
+    /**
+     * Inject latency into the node's responses. Responses are delayed without blocking
+     * the node, and are sent in order.
+     * @param opcode The opcode the latency applies to, or null for all commands
+     * @param vbucket The vBucket the latency applies to, or -1 for all vBuckets
+     * @param dist The distribution of latencies, or null to remove it
+     */
+    public void setLatency(CommandCode opcode, short vbucket, LatencyDistribution dist) {
+        synchronized (latencyLock) {
+            latency = latency.with(opcode, vbucket, dist);
+        }
+    }
+
+    /**
+     * Remove all injected latency
+     */
+    public void clearLatency() {
+        synchronized (latencyLock) {
+            latency = LatencyProfile.NONE;
+        }
+    }
+
+    /**
+     * Limit the bandwidth and operation rate of the node. Throttled output and responses are
+     * delayed without blocking the node
+     * @param scope Whether the throttle applies to the node, to all nodes of its bucket, or to
+     *              each of the node's connections on its own
+     * @param throttle The throttle, or null to remove it
+     */
+    public void setThrottle(Throttle.Scope scope, Throttle throttle) {
+        switch (scope) {
+            case NODE:
+                nodeThrottle = throttle;
+                break;
+            case BUCKET:
+                bucket.setThrottle(throttle);
+                break;
+            default:
+                connectionThrottle = throttle;
+                break;
+        }
+    }
+
     public void setTruncateLimit(int limit) {
         truncateLimit = limit;
     }
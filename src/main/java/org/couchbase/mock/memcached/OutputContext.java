@@ -15,7 +15,11 @@
  */
 package org.couchbase.mock.memcached;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -75,6 +79,49 @@ public class OutputContext {
         return new OutputContext(newBufs);
     }
 
+    /**
+     * Write at most a given number of bytes of the chunks. This is used to stall in the
+     * middle of a packet
+     * @param channel The channel to write to
+     * @param limit The maximum number of bytes to write
+     * @return The number of bytes written
+     * @throws IOException If the channel failed or was closed
+     */
+    public long write(GatheringByteChannel channel, long limit) throws IOException {
+        List<ByteBuffer> iov = new ArrayList<ByteBuffer>();
+        long total = 0;
+        for (ByteBuffer cur : buffers) {
+            if (total >= limit) {
+                break;
+            }
+            // Write through a duplicate so that the chunk itself is not limited
+            ByteBuffer dup = cur.duplicate();
+            long room = limit - total;
+            if (dup.remaining() > room) {
+                dup.limit(dup.position() + (int) room);
+            }
+            iov.add(dup);
+            total += dup.remaining();
+        }
+
+        long nw = channel.write(iov.toArray(new ByteBuffer[iov.size()]));
+        if (nw < 0) {
+            channel.close();
+            throw new ClosedChannelException();
+        }
+        long left = nw;
+        for (ByteBuffer cur : buffers) {
+            if (left == 0) {
+                break;
+            }
+            int advance = (int) Math.min(left, cur.remaining());
+            cur.position(cur.position() + advance);
+            left -= advance;
+        }
+        updateBytesSent(nw);
+        return nw;
+    }
+
     /**
      * Indicate that some data has been flushed to the network
      * @param num ignored for now. This is because each individual {@link java.nio.ByteBuffer} keeps track
@@ -52,6 +52,12 @@ public class SaslCommandExecutor implements CommandExecutor {
                 String user = strs[1];
                 String pass = strs[2];
 
+                if (client.getSharedPort() != null) {
+                    // Any bucket on the port may be authenticated to
+                    client.getSharedPort().authenticate(cmd, user, pass, client);
+                    break;
+                }
+
                 Bucket bucket = server.getBucket();
                 if (!bucket.getName().equals(user)) {
                     client.sendResponse(new BinarySaslResponse(cmd));
@@ -28,6 +28,10 @@ public class SelectBucketCommandExecutor implements CommandExecutor {
     @Override
     public void execute(BinaryCommand cmdBase, MemcachedServer server, MemcachedConnection client) {
         BinarySelectBucketCommand cmd = (BinarySelectBucketCommand)cmdBase;
+        if (client.getSharedPort() != null) {
+            client.getSharedPort().selectBucket(cmd, client);
+            return;
+        }
         if (!cmd.getKey().equals(server.getBucket().getName())) {
             client.sendResponse(new BinaryResponse(cmd, ErrorCode.EACCESS));
         } else {
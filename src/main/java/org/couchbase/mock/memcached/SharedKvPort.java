@@ -0,0 +1,288 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.couchbase.mock.memcached;
+
+import org.couchbase.mock.http.Authenticator;
+import org.couchbase.mock.memcached.protocol.BinaryCommand;
+import org.couchbase.mock.memcached.protocol.BinaryResponse;
+import org.couchbase.mock.memcached.protocol.BinarySaslResponse;
+import org.couchbase.mock.memcached.protocol.BinarySelectBucketCommand;
+import org.couchbase.mock.memcached.protocol.CommandCode;
+import org.couchbase.mock.memcached.protocol.ErrorCode;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A KV port shared by the nodes of all buckets at the same position in the cluster, the way
+ * a real Couchbase node serves all of its buckets from a single port.
+ *
+ * Connections accepted on the port do not belong to any bucket until they authenticate as a
+ * bucket (SASL PLAIN with the bucket name as the user) or issue {@code SELECT_BUCKET}. The
+ * administrative user may authenticate as well, in which case any bucket may be selected.
+ * Connections are bound to the {@code default} bucket on accept if it has no password.
+ *
+ * The port and the nodes listening on it are served by the same event loop, so buckets may
+ * be switched between commands without handing the connection over to another thread.
+ */
+public class SharedKvPort implements BinaryProtocolHandler {
+    private final EventLoopGroup.EventLoop loop;
+    private final ServerSocketChannel channel;
+    private final String hostname;
+    private final int port;
+    private final Authenticator authenticator;
+    /** The nodes listening on the port, by bucket name. Only accessed by the loop thread */
+    private final Map<String, MemcachedServer> servers = new HashMap<String, MemcachedServer>();
+    private final CommandExecutor[] executors = new CommandExecutor[0xff];
+    private static final CommandExecutor noBucketHandler = new CommandExecutor() {
+        @Override
+        public void execute(BinaryCommand cmd, MemcachedServer server, MemcachedConnection client) {
+            client.sendResponse(new BinaryResponse(cmd, ErrorCode.NO_BUCKET));
+        }
+    };
+
+    /**
+     * Open a shared port
+     * @param group The group serving the port
+     * @param index The position of the node in the cluster. This selects the loop serving the port
+     * @param hostname The hostname to bind to (null == any)
+     * @param port The port to listen to (0 to choose an ephemeral port)
+     * @param authenticator The cluster's administrative credentials
+     * @throws IOException If we fail to create the server socket
+     */
+    public SharedKvPort(EventLoopGroup group, int index, String hostname, int port, Authenticator authenticator) throws IOException {
+        this.loop = group.loopAt(index);
+        this.authenticator = authenticator;
+        channel = MemcachedServer.openListener(hostname, port);
+        this.hostname = MemcachedServer.listenerHostname(hostname, channel);
+        this.port = channel.socket().getLocalPort();
+
+        for (int ii = 0; ii < executors.length; ++ii) {
+            executors[ii] = noBucketHandler;
+        }
+        executors[CommandCode.QUIT.cc()] = new QuitCommandExecutor();
+        executors[CommandCode.QUITQ.cc()] = executors[CommandCode.QUIT.cc()];
+        executors[CommandCode.NOOP.cc()] = new NoopCommandExecutor();
+        executors[CommandCode.VERSION.cc()] = new VersionCommandExecutor();
+        executors[CommandCode.SASL_LIST_MECHS.cc()] = new SaslCommandExecutor();
+        executors[CommandCode.SASL_AUTH.cc()] = executors[CommandCode.SASL_LIST_MECHS.cc()];
+        executors[CommandCode.SASL_STEP.cc()] = executors[CommandCode.SASL_LIST_MECHS.cc()];
+        executors[CommandCode.HELLO.cc()] = new HelloCommandExecutor();
+        executors[CommandCode.SELECT_BUCKET.cc()] = new SelectBucketCommandExecutor();
+        executors[CommandCode.GET_ERRMAP.cc()] = new GetErrmapCommandExecutor();
+
+        loop.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.register(loop.getSelector(), SelectionKey.OP_ACCEPT, SharedKvPort.this);
+                } catch (ClosedChannelException ex) {
+                    Logger.getLogger(SharedKvPort.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        });
+    }
+
+    public String getHostname() {
+        return hostname;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    EventLoopGroup.EventLoop getLoop() {
+        return loop;
+    }
+
+    void addServer(MemcachedServer server) {
+        servers.put(server.getBucket().getName(), server);
+    }
+
+    void removeServer(MemcachedServer server) {
+        String name = server.getBucket().getName();
+        if (servers.get(name) == server) {
+            servers.remove(name);
+        }
+    }
+
+    private boolean isAdministrator(String user) {
+        return user != null && user.equals(authenticator.getAdminName());
+    }
+
+    /**
+     * Authenticate a connection accepted on this port
+     * @param cmd The SASL_AUTH command
+     * @param user The user, which is either a bucket name or the administrative user
+     * @param pass The password
+     * @param client The connection
+     */
+    void authenticate(BinaryCommand cmd, String user, String pass, MemcachedConnection client) {
+        if (isAdministrator(user)) {
+            if (authenticator.getAdminPass().equals(pass)) {
+                client.setUser(user);
+                client.sendResponse(new BinarySaslResponse(cmd, "Authenticated"));
+            } else {
+                client.sendResponse(new BinarySaslResponse(cmd));
+            }
+            return;
+        }
+
+        MemcachedServer target = user == null ? null : servers.get(user);
+        if (target == null) {
+            client.sendResponse(new BinarySaslResponse(cmd));
+            return;
+        }
+        String bPass = target.getBucket().getPassword();
+        if (bPass.isEmpty() || bPass.equals(pass)) {
+            client.setUser(user);
+            client.bind(target, true);
+            client.sendResponse(new BinarySaslResponse(cmd, "Authenticated"));
+        } else {
+            client.sendResponse(new BinarySaslResponse(cmd));
+        }
+    }
+
+    /**
+     * Bind a connection accepted on this port to another bucket
+     * @param cmd The SELECT_BUCKET command
+     * @param client The connection
+     */
+    void selectBucket(BinarySelectBucketCommand cmd, MemcachedConnection client) {
+        MemcachedServer target = servers.get(cmd.getKey());
+        if (target == null) {
+            client.sendResponse(new BinaryResponse(cmd, ErrorCode.KEY_ENOENT));
+            return;
+        }
+        String user = client.getUser();
+        if (isAdministrator(user) || target.getBucket().getName().equals(user) || target.getBucket().getPassword().isEmpty()) {
+            client.bind(target, true);
+            client.sendResponse(new BinaryResponse(cmd, ErrorCode.SUCCESS));
+        } else {
+            client.sendResponse(new BinaryResponse(cmd, ErrorCode.EACCESS));
+        }
+    }
+
+    /**
+     * Execute a command from a connection which is not bound to a bucket
+     */
+    @Override
+    public void execute(BinaryCommand cmd, MemcachedConnection client) throws IOException {
+        CommandCode cc = cmd.getComCode();
+        CommandExecutor executor = cc == CommandCode.ILLEGAL ? noBucketHandler : executors[cc.cc()];
+        executor.execute(cmd, null, client);
+    }
+
+    private void handleNewClient() throws IOException {
+        SocketTuning tuning = loop.getTuning();
+        for (int i = 0; i < tuning.acceptBatch; i++) {
+            SocketChannel cc = channel.accept();
+            if (cc == null) {
+                return;
+            }
+            tuning.configure(cc);
+            MemcachedConnection client = new MemcachedConnection(this);
+            MemcachedServer defaultServer = servers.get("default");
+            if (defaultServer != null && defaultServer.getBucket().getPassword().isEmpty()) {
+                client.bind(defaultServer, true);
+            }
+            client.setSelectionKey(cc.register(loop.getSelector(), SelectionKey.OP_READ, client));
+        }
+    }
+
+    /**
+     * Called by the event loop for the listening socket, and for connections which are not
+     * bound to a bucket
+     */
+    void handleEvent(SelectionKey key) throws IOException {
+        if (key.attachment() == this) {
+            handleNewClient();
+            return;
+        }
+
+        MemcachedConnection client = (MemcachedConnection) key.attachment();
+        SocketChannel cc = (SocketChannel) key.channel();
+        try {
+            if (key.isReadable()) {
+                if (cc.read(client.getInputBuffer()) == -1) {
+                    throw new ClosedChannelException();
+                }
+                client.step();
+            }
+            if (key.isWritable()) {
+                OutputContext ctx = client.borrowOutputContext();
+                if (ctx != null) {
+                    try {
+                        MemcachedServer.writeResponse(cc, ctx);
+                    } finally {
+                        client.returnOutputContext(ctx);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            key.cancel();
+            cc.close();
+            return;
+        }
+
+        int ops = SelectionKey.OP_READ;
+        if (client.hasOutput()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    /**
+     * Close the port and the connections which are not bound to a bucket. The nodes
+     * listening on the port should be stopped first
+     */
+    public void close() {
+        Future<?> done = loop.submit(new Runnable() {
+            @Override
+            public void run() {
+                for (SelectionKey key : loop.getSelector().keys()) {
+                    Object attachment = key.attachment();
+                    if (attachment == SharedKvPort.this ||
+                            (attachment instanceof MemcachedConnection && ((MemcachedConnection) attachment).getSharedPort() == SharedKvPort.this)) {
+                        key.cancel();
+                        try {
+                            key.channel().close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
+            }
+        });
+        try {
+            done.get();
+        } catch (Exception ex) {
+            // The loop was stopped first
+        }
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            Logger.getLogger(SharedKvPort.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.couchbase.mock.memcached;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Socket options and polling behavior of the memcached nodes.
+ *
+ * The defaults favor throughput. {@link #lowLatency()} returns settings for benchmarks
+ * of small request/response exchanges, where the latency should be that of the client
+ * rather than of the mock.
+ */
+public class SocketTuning {
+    /** Disable Nagle's algorithm for all connections. Otherwise it is only disabled for
+     * connections which ask for it with the {@code TCP_NODELAY} HELLO feature */
+    public boolean tcpNoDelay = false;
+
+    /** The send buffer size of each connection, in bytes */
+    public int sendBufferSize = 1 << 20;
+
+    /** The receive buffer size of each connection, in bytes */
+    public int receiveBufferSize = 1 << 20;
+
+    /** How long a node thread keeps polling its selector without blocking after it last saw
+     * an event, in microseconds. This trades CPU time for the wakeup latency of the thread */
+    public int busyPollMicros = 0;
+
+    /** The most connections accepted each time the listening socket is ready */
+    public int acceptBatch = 1;
+
+    private SocketTuning() {
+    }
+
+    /**
+     * @return The default settings
+     */
+    public static SocketTuning defaults() {
+        return new SocketTuning();
+    }
+
+    /**
+     * @return Settings which favor latency over CPU usage
+     */
+    public static SocketTuning lowLatency() {
+        SocketTuning tuning = new SocketTuning();
+        tuning.tcpNoDelay = true;
+        tuning.busyPollMicros = 50;
+        tuning.acceptBatch = 64;
+        return tuning;
+    }
+
+    /**
+     * Apply the socket options to a newly accepted connection
+     */
+    void configure(SocketChannel cc) throws IOException {
+        cc.configureBlocking(false);
+        cc.socket().setTcpNoDelay(tcpNoDelay);
+        cc.socket().setSendBufferSize(sendBufferSize);
+        cc.socket().setReceiveBufferSize(receiveBufferSize);
+    }
+}
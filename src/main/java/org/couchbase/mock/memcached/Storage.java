@@ -17,6 +17,8 @@ package org.couchbase.mock.memcached;
 
 import java.security.AccessControlException;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.couchbase.mock.Bucket;
 
@@ -38,12 +40,24 @@ import org.couchbase.mock.Bucket;
  */
 public class Storage {
     public enum StorageType { CACHE, DISK }
+
+    /**
+     * Notified of every mutation and deletion of an item in a vBucket this node is master
+     * for. Listeners are called synchronously with the mutation, and should do no more
+     * than record it.
+     */
+    public interface MutationListener {
+        void onMutation(KeySpec ks, VBucketCoordinates coords);
+    }
+
     private final VBucketInfo vbInfo[];
     private final VBucketStore cacheStore;
     private final PersistentStorage persistStore;
     private final MemcachedServer server;
     private boolean persistEnabled = true;
     private boolean replicationEnabled = true;
+    private final AtomicLong generation = new AtomicLong();
+    private final List<MutationListener> mutationListeners = new CopyOnWriteArrayList<MutationListener>();
 
     private final static VBucketCoordinates EMPTY_COORDS = new BasicVBucketCoordinates(0, 0);
     private class PersistentStorage {
@@ -105,6 +119,13 @@ public class Storage {
             updateCommon(ks, coords).mm.remove(ks);
         }
 
+        void clear(int vbid) {
+            Slot s = slots[vbid];
+            if (s != null) {
+                s.mm.clear();
+            }
+        }
+
         VBucketCoordinates getCoords(int vbid) {
             Slot ss = slots[vbid];
             long seqno = 0;
@@ -140,6 +161,7 @@ public class Storage {
             if (storage.replicationEnabled) {
                 storage.replicateDeletedItem(itm.getKeySpec(), coords);
             }
+            storage.notifyMutation(itm.getKeySpec(), coords);
         }
     }
 
@@ -157,6 +179,7 @@ public class Storage {
             if (storage.replicationEnabled) {
                 storage.replicateMutatedItem(itm, coords);
             }
+            storage.notifyMutation(itm.getKeySpec(), coords);
         }
     }
 
@@ -171,6 +194,23 @@ public class Storage {
         this.server = server;
     }
 
+    public void addMutationListener(MutationListener listener) {
+        mutationListeners.add(listener);
+    }
+
+    public void removeMutationListener(MutationListener listener) {
+        mutationListeners.remove(listener);
+    }
+
+    private void notifyMutation(KeySpec ks, VBucketCoordinates coords) {
+        if (mutationListeners.isEmpty() || vbInfo[ks.vbId].getOwner() != server) {
+            return;
+        }
+        for (MutationListener listener : mutationListeners) {
+            listener.onMutation(ks, coords);
+        }
+    }
+
     public void persistDeletedItem(KeySpec ks, VBucketCoordinates coords) {
         persistStore.remove(ks, coords);
     }
@@ -184,7 +224,7 @@ public class Storage {
         if (vbi.getOwner() != server) {
             return;
         }
-        for (MemcachedServer replica : vbi.getReplicas()) {
+        for (MemcachedServer replica : vbi.getReplicationTargets()) {
             Item newItem = new Item(itm);
             VBucketStore rStore = replica.getStorage().cacheStore;
             rStore.forceStorageMutation(newItem, coords);
@@ -197,7 +237,7 @@ public class Storage {
             return;
         }
         Item itm = new Item(ks);
-        for (MemcachedServer replica : vbi.getReplicas()) {
+        for (MemcachedServer replica : vbi.getReplicationTargets()) {
             VBucketStore rStore = replica.getStorage().cacheStore;
             PersistentStorage pStore = replica.getStorage().persistStore;
             rStore.forceDeleteMutation(itm, coords);
@@ -217,12 +257,14 @@ public class Storage {
     }
     public void putCached(Item itm) {
         cacheStore.getMap().put(itm.getKeySpec(), itm);
+        generation.incrementAndGet();
     }
     public void putPersisted(Item itm) {
         persistStore.put(itm, EMPTY_COORDS);
     }
     public void removeCached(KeySpec ks) {
         cacheStore.getMap().remove(ks);
+        generation.incrementAndGet();
     }
     public void removePersisted(KeySpec ks) {
         persistStore.remove(ks, EMPTY_COORDS);
@@ -288,9 +330,88 @@ public class Storage {
         return validItems;
     }
 
+    /**
+     * Get the keys of the cached items of some vBuckets, in a single pass over the cache
+     * @param vbs The vBuckets to include
+     * @return The keys of each included vBucket, indexed by vBucket
+     */
+    public Map<Short, List<KeySpec>> getKeysByVBucket(boolean[] vbs) {
+        Map<Short, List<KeySpec>> ret = new HashMap<Short, List<KeySpec>>();
+        for (KeySpec ks : cacheStore.getMap().keySet()) {
+            if (!vbs[ks.vbId]) {
+                continue;
+            }
+            List<KeySpec> keys = ret.get(ks.vbId);
+            if (keys == null) {
+                keys = new ArrayList<KeySpec>();
+                ret.put(ks.vbId, keys);
+            }
+            keys.add(ks);
+        }
+        return ret;
+    }
+
+    /**
+     * Copy the current state of cached items to another node which is taking over their
+     * vBucket. Items which no longer exist are skipped, as their deletion has already been
+     * replicated to the other node.
+     * @param keys The keys of the items. They must all belong to the same vBucket
+     * @param target The storage of the other node
+     */
+    public void copyItems(Collection<KeySpec> keys, Storage target) {
+        for (KeySpec ks : keys) {
+            Item itm = cacheStore.getMap().get(ks);
+            if (itm == null) {
+                continue;
+            }
+            target.cacheStore.forceStorageMutation(new Item(itm), cacheStore.getCurrentCoords(ks.vbId));
+        }
+    }
+
+    /**
+     * Prepare to receive a vBucket from another node by continuing from the other node's
+     * coordinates. Any stale items of the vBucket should first be discarded with
+     * {@link #dropVBuckets(boolean[])}
+     * @param vb The vBucket
+     * @param source The storage of the vBucket's current owner
+     */
+    public void prepareTakeover(short vb, Storage source) {
+        VBucketCoordinates coords = source.cacheStore.getCurrentCoords(vb);
+        cacheStore.seedCoords(vb, coords);
+        persistStore.updateSingleCoords(vb, coords);
+    }
+
+    /**
+     * Discard the cached and persisted items of some vBuckets, in a single pass over the cache
+     * @param vbs The vBuckets to discard
+     */
+    public void dropVBuckets(boolean[] vbs) {
+        Iterator<KeySpec> iter = cacheStore.getMap().keySet().iterator();
+        while (iter.hasNext()) {
+            if (vbs[iter.next().vbId]) {
+                iter.remove();
+            }
+        }
+        for (int i = 0; i < vbs.length; i++) {
+            if (vbs[i]) {
+                persistStore.clear(i);
+            }
+        }
+    }
+
     public void flush() {
         cacheStore.getMap().clear();
         persistStore.clear();
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Get a counter of the modifications to the cache which are not reflected in the
+     * vBucket sequence numbers (i.e. flushes and direct cache manipulation)
+     * @return The current generation of the cache
+     */
+    public long getGeneration() {
+        return generation.get();
     }
 
     public void updateCoordinateInfo(VBucketInfo[] vbi) {
@@ -16,6 +16,7 @@
 
 package org.couchbase.mock.memcached;
 
+import com.google.gson.JsonElement;
 import org.couchbase.mock.memcached.protocol.*;
 import org.couchbase.mock.subdoc.*;
 
@@ -39,44 +40,65 @@ public class SubdocCommandExecutor implements CommandExecutor {
         }
     }
 
+    /**
+     * Get the status code for a failed subdoc operation
+     * @param ex The exception thrown by the operation
+     * @return The status to return to the client
+     */
+    static ErrorCode getErrorCode(SubdocException ex) {
+        if (ex instanceof PathNotFoundException) {
+            return ErrorCode.SUBDOC_PATH_ENOENT;
+        } else if (ex instanceof PathExistsException) {
+            return ErrorCode.SUBDOC_PATH_EEXISTS;
+        } else if (ex instanceof BadNumberException) {
+            return ErrorCode.SUBDOC_DELTA_ERANGE;
+        } else if (ex instanceof EmptyValueException) {
+            return ErrorCode.SUBDOC_VALUE_CANTINSERT;
+        } else if (ex instanceof DocNotJsonException) {
+            return ErrorCode.SUBDOC_DOC_NOTJSON;
+        } else if (ex instanceof InvalidPathException) {
+            return ErrorCode.SUBDOC_PATH_EINVAL;
+        } else if (ex instanceof NumberTooBigException) {
+            return ErrorCode.SUBDOC_NUM_ERANGE;
+        } else if (ex instanceof DeltaTooBigException) {
+            return ErrorCode.SUBDOC_DELTA_ERANGE;
+        } else if (ex instanceof CannotInsertException) {
+            return ErrorCode.SUBDOC_VALUE_CANTINSERT;
+        } else if (ex instanceof PathParseException) {
+            return ErrorCode.SUBDOC_PATH_EINVAL;
+        } else if (ex instanceof PathMismatchException) {
+            return ErrorCode.SUBDOC_PATH_MISMATCH;
+        } else if (ex instanceof ZeroDeltaException) {
+            return ErrorCode.SUBDOC_DELTA_ERANGE;
+        } else {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    static boolean isMkdirP(byte flags) {
+        return (flags & (BinarySubdocCommand.FLAG_MKDIR_P | BinarySubdocCommand.FLAG_MKDOC)) != 0;
+    }
+
     static ResultInfo executeSubdocOperation(Operation op, String doc, String path, String value, byte flags) {
-        ErrorCode ec = ErrorCode.SUCCESS;
-        Result result = null;
-        boolean isMkdirP = (flags & (BinarySubdocCommand.FLAG_MKDIR_P | BinarySubdocCommand.FLAG_MKDOC)) != 0;
+        boolean isMkdirP = isMkdirP(flags);
         try {
-            result = Executor.execute(doc, path, op, value, isMkdirP);
-        } catch (PathNotFoundException ex2) {
-            ec = ErrorCode.SUBDOC_PATH_ENOENT;
-        } catch (PathExistsException ex3) {
-            ec = ErrorCode.SUBDOC_PATH_EEXISTS;
-        } catch (BadNumberException ex4_1) {
-            ec = ErrorCode.SUBDOC_DELTA_ERANGE;
-        } catch (EmptyValueException ex4) {
-            ec = ErrorCode.SUBDOC_VALUE_CANTINSERT;
-        } catch (DocNotJsonException ex5) {
-            ec = ErrorCode.SUBDOC_DOC_NOTJSON;
-        } catch (InvalidPathException ex6) {
-            ec = ErrorCode.SUBDOC_PATH_EINVAL;
-        } catch (NumberTooBigException ex7) {
-            ec = ErrorCode.SUBDOC_NUM_ERANGE;
-        } catch (DeltaTooBigException ex8) {
-            ec = ErrorCode.SUBDOC_DELTA_ERANGE;
-        } catch (CannotInsertException ex9) {
-            ec = ErrorCode.SUBDOC_VALUE_CANTINSERT;
-        } catch (PathParseException ex10) {
-            ec = ErrorCode.SUBDOC_PATH_EINVAL;
-        } catch (PathMismatchException ex11) {
-            ec = ErrorCode.SUBDOC_PATH_MISMATCH;
-        } catch (ZeroDeltaException ex12) {
-            ec = ErrorCode.SUBDOC_DELTA_ERANGE;
-        } catch (SubdocException exFallback) {
-            throw new RuntimeException(exFallback);
-        }
-        return new ResultInfo(result, ec);
+            return new ResultInfo(Executor.execute(doc, path, op, value, isMkdirP), ErrorCode.SUCCESS);
+        } catch (SubdocException ex) {
+            return new ResultInfo(null, getErrorCode(ex));
+        }
     }
 
-    public static ResultInfo executeSubdocLookup(Operation op, String doc, String path) {
-        return executeSubdocOperation(op, doc, path, null, (byte)0);
+    /**
+     * Execute an operation against a parsed document, modifying it in place
+     * @see Executor#execute(JsonElement, String, Operation, String, boolean)
+     */
+    static ResultInfo executeSubdocOperation(Operation op, JsonElement root, String path, String value, byte flags) {
+        boolean isMkdirP = isMkdirP(flags);
+        try {
+            return new ResultInfo(Executor.execute(root, path, op, value, isMkdirP), ErrorCode.SUCCESS);
+        } catch (SubdocException ex) {
+            return new ResultInfo(null, getErrorCode(ex));
+        }
     }
 
     @Override
@@ -140,53 +162,85 @@ public class SubdocCommandExecutor implements CommandExecutor {
             }
         }
 
-        ResultInfo rci = executeSubdocOperation(subdocOp,
-                new String(curValue),
-                subdocInput.getPath(),
-                new String(subdocInput.getValue()),
-                command.getSubdocFlags());
-
-        if (rci.getStatus() != ErrorCode.SUCCESS) {
-            client.sendResponse(new BinaryResponse(cmd, rci.getStatus()));
+        if (subdocOp.isLookup()) {
+            // Lookups are resolved against the raw bytes, without building a tree
+            byte[] match;
+            try {
+                if (isXattr) {
+                    match = StreamingLookup.execute(curValue, subdocInput.getPath(), subdocOp);
+                } else {
+                    match = StreamingLookup.execute(server.getSubdocIndexCache().get(existing),
+                            subdocInput.getPath(), subdocOp);
+                }
+            } catch (SubdocException ex) {
+                client.sendResponse(new BinaryResponse(cmd, getErrorCode(ex)));
+                return;
+            }
+            client.sendResponse(BinaryResponse.createWithValue(
+                    command, subdocOp.returnsMatch() ? match : null, existing.getCas()));
             return;
         }
 
+        byte[] newDoc;
         byte[] value = null;
-        if (subdocOp.returnsMatch()) {
-            value = rci.getMatchString().getBytes();
-        }
-
-        if (subdocOp.isMutator()) {
-            MutationStatus ms;
-            MutationInfoWriter miw = client.getMutinfoWriter();
-            byte[] xattr, body;
-            if (isXattr) {
-                xattr = rci.getNewDocString().getBytes();
-                body = existing.getValue();
-            } else {
-                xattr = existing.getXattr();
-                body = rci.getNewDocString().getBytes();
+        if (SpliceExecutor.supports(subdocOp)) {
+            // Splice the new value into the raw document
+            SpliceExecutor.Output output;
+            try {
+                output = SpliceExecutor.execute(curValue, subdocInput.getPath(), subdocOp,
+                        new String(subdocInput.getValue()), isMkdirP(command.getSubdocFlags()));
+            } catch (SubdocException ex) {
+                client.sendResponse(new BinaryResponse(cmd, getErrorCode(ex)));
+                return;
             }
-            Item newItm = new Item(
-                    existing.getKeySpec(), existing.getFlags(), subdocInput.getExpiryTime(),
-                    body, xattr, subdocInput.getCas());
-            if (needsCreate) {
-                ms = cache.add(newItm);
-                if (ms.getStatus() == ErrorCode.KEY_EEXISTS) {
-                    execute(cmd, server, client);
-                    return;
-                }
-            } else {
-                ms = cache.replace(newItm);
+            newDoc = output.getNewDoc();
+            if (subdocOp.returnsMatch()) {
+                value = output.getMatch();
+            }
+        } else {
+            ResultInfo rci = executeSubdocOperation(subdocOp,
+                    new String(curValue),
+                    subdocInput.getPath(),
+                    new String(subdocInput.getValue()),
+                    command.getSubdocFlags());
+
+            if (rci.getStatus() != ErrorCode.SUCCESS) {
+                client.sendResponse(new BinaryResponse(cmd, rci.getStatus()));
+                return;
             }
+            newDoc = rci.getNewDocString().getBytes();
+            if (subdocOp.returnsMatch()) {
+                value = rci.getMatchString().getBytes();
+            }
+        }
 
-            if (ms.getStatus() == ErrorCode.SUCCESS) {
-                client.sendResponse(new BinaryResponse(cmd, ms, miw, newItm.getCas(), value));
-            } else {
-                client.sendResponse(new BinaryResponse(cmd, ms.getStatus()));
+        MutationStatus ms;
+        MutationInfoWriter miw = client.getMutinfoWriter();
+        byte[] xattr, body;
+        if (isXattr) {
+            xattr = newDoc;
+            body = existing.getValue();
+        } else {
+            xattr = existing.getXattr();
+            body = newDoc;
+        }
+        Item newItm = new Item(
+                existing.getKeySpec(), existing.getFlags(), subdocInput.getExpiryTime(),
+                body, xattr, subdocInput.getCas());
+        if (needsCreate) {
+            ms = cache.add(newItm);
+            if (ms.getStatus() == ErrorCode.KEY_EEXISTS) {
+                execute(cmd, server, client);
+                return;
             }
         } else {
-            client.sendResponse(BinaryResponse.createWithValue(command, value, existing.getCas()));
+            ms = cache.replace(newItm);
+        }
+
+        if (ms.getStatus() == ErrorCode.SUCCESS) {
+            client.sendResponse(new BinaryResponse(cmd, ms, miw, newItm.getCas(), value));
+        } else {
+            client.sendResponse(new BinaryResponse(cmd, ms.getStatus()));
         }
     }
 }
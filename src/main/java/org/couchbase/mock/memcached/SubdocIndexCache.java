@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.memcached;
+
+import org.couchbase.mock.subdoc.DocumentIndex;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of the {@link DocumentIndex} of recently accessed documents, so that bursts
+ * of subdoc lookups against the same document reuse the offsets discovered by earlier ones.
+ *
+ * Entries are keyed by the item's key and CAS. Any mutation of the item changes its CAS (and
+ * its value), so a stale index is never returned. The cache is bounded by the total weight
+ * of its entries, which includes the documents they retain.
+ */
+public final class SubdocIndexCache {
+    /** The default maximum total weight of the cached entries, in bytes */
+    public static final int DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    private static class Entry {
+        final long cas;
+        final DocumentIndex index;
+        final int weight;
+
+        Entry(long cas, DocumentIndex index) {
+            this.cas = cas;
+            this.index = index;
+            this.weight = index.getWeight();
+        }
+    }
+
+    private final int maxBytes;
+    private final Map<KeySpec, Entry> entries = new LinkedHashMap<KeySpec, Entry>(16, 0.75f, true);
+    private long usedBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public SubdocIndexCache(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Get the index for the body of an item
+     * @param item The current item
+     * @return The cached index, or a new one
+     */
+    public synchronized DocumentIndex get(Item item) {
+        Entry ent = entries.get(item.getKeySpec());
+        if (ent != null && ent.cas == item.getCas() && ent.index.getDocument() == item.getValue()) {
+            hits++;
+            return ent.index;
+        }
+
+        misses++;
+        if (ent != null) {
+            entries.remove(item.getKeySpec());
+            usedBytes -= ent.weight;
+        }
+        DocumentIndex index = new DocumentIndex(item.getValue());
+        ent = new Entry(item.getCas(), index);
+        // Don't let a single large document flush everything else
+        if (ent.weight <= maxBytes / 8) {
+            entries.put(item.getKeySpec(), ent);
+            usedBytes += ent.weight;
+            evict();
+        }
+        return index;
+    }
+
+    private void evict() {
+        Iterator<Entry> iter = entries.values().iterator();
+        while (usedBytes > maxBytes && iter.hasNext()) {
+            usedBytes -= iter.next().weight;
+            iter.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * @return The cache statistics, as reported by the {@code subdoc} STAT group. The hit rate
+     * is a percentage
+     */
+    public synchronized Map<String, String> getStats() {
+        Map<String, String> ret = new HashMap<String, String>();
+        long lookups = hits + misses;
+        ret.put("subdoc_index_entries", Integer.toString(entries.size()));
+        ret.put("subdoc_index_bytes", Long.toString(usedBytes));
+        ret.put("subdoc_index_max_bytes", Integer.toString(maxBytes));
+        ret.put("subdoc_index_hits", Long.toString(hits));
+        ret.put("subdoc_index_misses", Long.toString(misses));
+        ret.put("subdoc_index_evictions", Long.toString(evictions));
+        ret.put("subdoc_index_hit_rate", Long.toString(lookups == 0 ? 0 : hits * 100 / lookups));
+        return ret;
+    }
+}
@@ -16,10 +16,17 @@
 
 package org.couchbase.mock.memcached;
 
+import com.google.gson.JsonElement;
 import org.couchbase.mock.memcached.SubdocCommandExecutor.ResultInfo;
 import org.couchbase.mock.memcached.client.CommandBuilder;
 import org.couchbase.mock.memcached.protocol.*;
+import org.couchbase.mock.subdoc.DocNotJsonException;
+import org.couchbase.mock.subdoc.DocumentIndex;
+import org.couchbase.mock.subdoc.Executor;
 import org.couchbase.mock.subdoc.Operation;
+import org.couchbase.mock.subdoc.SpliceExecutor;
+import org.couchbase.mock.subdoc.StreamingLookup;
+import org.couchbase.mock.subdoc.SubdocException;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -51,30 +58,96 @@ public class SubdocMultiCommandExecutor implements CommandExecutor {
         final MemcachedConnection client;
         final Item existing;
         final VBucketStore cache;
+        final SubdocIndexCache indexCache;
 
         // True if we've encountered at least *ONE* extended attribute in the spec to create.
         // This tells us whether if the xattribute is simply "{}" to write it or not.
         boolean hasXattrSpec;
         boolean needCreate;
-        String currentDoc;
-        String currentAttrs;
+
+        // The current body and xattrs. A mutation which is the only one for its target is spliced
+        // into the raw bytes; splicing validates and copies the whole document, so when several
+        // specs touch the same target the bytes are instead parsed (once) into the trees below,
+        // which from then on hold the current state and are serialized once when the item is stored.
+        byte[] docBytes;
+        byte[] attrBytes;
+        JsonElement docRoot;
+        JsonElement attrRoot;
+        boolean docNotJson;
+        boolean attrsNotJson;
+        // Number of mutation specs for the body and for the xattrs
+        int docSpecCount;
+        int attrSpecCount;
+        // Offsets shared by the lookup specs
+        DocumentIndex docIndex;
 
         boolean isMutator() {
             return command.getComCode() == CommandCode.SUBDOC_MULTI_MUTATION;
         }
 
         ExecutorContext(
-                BinaryCommand cmd, MemcachedConnection client, Item existing, VBucketStore cache, boolean needCreate) {
+                BinaryCommand cmd, MemcachedConnection client, Item existing, VBucketStore cache,
+                SubdocIndexCache indexCache, boolean needCreate) {
             this.existing = existing;
-            currentDoc = new String(existing.getValue());
-            currentAttrs = new String(existing.getValue() == null ? "{}".getBytes() : existing.getValue());
             this.command = (BinarySubdocMultiCommand)cmd;
             this.client = client;
             this.specs = command.getLookupSpecs();
             this.cache = cache;
+            this.indexCache = indexCache;
             this.needCreate = needCreate;
             this.hasXattrSpec = false;
             results = new ArrayList<SpecResult>();
+            for (BinarySubdocMultiCommand.MultiSpec spec : specs) {
+                if ((spec.getFlags() & BinarySubdocCommand.FLAG_XATTR_PATH) != 0) {
+                    attrSpecCount++;
+                } else {
+                    docSpecCount++;
+                }
+            }
+            reset();
+        }
+
+        private void reset() {
+            docBytes = existing.getValue();
+            attrBytes = existing.getXattr() == null ? "{}".getBytes() : existing.getXattr();
+            docRoot = attrRoot = null;
+            docNotJson = attrsNotJson = false;
+            hasXattrSpec = false;
+        }
+
+        /**
+         * @return The parsed body, or null if it is not JSON
+         */
+        private JsonElement getDocRoot() {
+            if (docRoot == null && !docNotJson) {
+                try {
+                    docRoot = Executor.parseDocument(new String(docBytes));
+                } catch (DocNotJsonException ex) {
+                    docNotJson = true;
+                }
+            }
+            return docRoot;
+        }
+
+        /**
+         * @return The parsed xattrs, or null if they are not JSON
+         */
+        private JsonElement getAttrRoot() {
+            if (attrRoot == null && !attrsNotJson) {
+                try {
+                    attrRoot = Executor.parseDocument(new String(attrBytes));
+                } catch (DocNotJsonException ex) {
+                    attrsNotJson = true;
+                }
+            }
+            return attrRoot;
+        }
+
+        private DocumentIndex getDocIndex() {
+            if (docIndex == null) {
+                docIndex = indexCache.get(existing);
+            }
+            return docIndex;
         }
 
         private boolean handleLookupSpec(BinarySubdocMultiCommand.MultiSpec spec, int index) {
@@ -87,23 +160,27 @@ public class SubdocMultiCommandExecutor implements CommandExecutor {
                 client.sendResponse(new BinaryResponse(command, ErrorCode.SUBDOC_INVALID_COMBO));
                 return false;
             }
-            ResultInfo rsi = SubdocCommandExecutor.executeSubdocLookup(op, currentDoc, spec.getPath());
-            switch (rsi.getStatus()) {
-                case SUCCESS:
-                    if (op.returnsMatch()) {
-                        results.add(new SpecResult(index, rsi.getMatchString()));
-                    } else {
-                        results.add(new SpecResult(index, ErrorCode.SUCCESS));
-                    }
-                    return true;
-                case SUBDOC_DOC_NOTJSON:
-                case SUBDOC_DOC_E2DEEP:
-                    client.sendResponse(new BinaryResponse(command, rsi.getStatus()));
-                    return false;
-                default:
-                    results.add(new SpecResult(index, rsi.getStatus()));
-                    return true;
+            byte[] match;
+            try {
+                match = StreamingLookup.execute(getDocIndex(), spec.getPath(), op);
+            } catch (SubdocException ex) {
+                ErrorCode ec = SubdocCommandExecutor.getErrorCode(ex);
+                switch (ec) {
+                    case SUBDOC_DOC_NOTJSON:
+                    case SUBDOC_DOC_E2DEEP:
+                        client.sendResponse(new BinaryResponse(command, ec));
+                        return false;
+                    default:
+                        results.add(new SpecResult(index, ec));
+                        return true;
+                }
             }
+            if (op.returnsMatch()) {
+                results.add(new SpecResult(index, new String(match)));
+            } else {
+                results.add(new SpecResult(index, ErrorCode.SUCCESS));
+            }
+            return true;
         }
 
         private boolean sendMutationError(ErrorCode ec, int index) {
@@ -128,16 +205,44 @@ public class SubdocMultiCommandExecutor implements CommandExecutor {
             }
         }
 
-        private ResultInfo handleMutationSpecInner(Operation op, String input,
-                                                   BinarySubdocMultiMutationCommand.MultiSpec spec)
+        /**
+         * Apply a mutation to the body or the xattrs
+         * @return The match, or null if the operation does not return one
+         */
+        private String handleMutationSpecInner(Operation op, boolean isXattr,
+                                               BinarySubdocMultiMutationCommand.MultiSpec spec)
                 throws MutationError {
 
-            ResultInfo rsi = SubdocCommandExecutor.executeSubdocOperation(op, input, spec.getPath(),
-                    spec.getValue(), spec.getFlags());
+            if ((isXattr ? attrSpecCount : docSpecCount) == 1 && SpliceExecutor.supports(op)) {
+                SpliceExecutor.Output output;
+                try {
+                    output = SpliceExecutor.execute(isXattr ? attrBytes : docBytes, spec.getPath(), op,
+                            spec.getValue(), SubdocCommandExecutor.isMkdirP(spec.getFlags()));
+                } catch (SubdocException ex) {
+                    throw new MutationError(SubdocCommandExecutor.getErrorCode(ex));
+                }
+                if (isXattr) {
+                    attrBytes = output.getNewDoc();
+                } else {
+                    docBytes = output.getNewDoc();
+                }
+                return op.returnsMatch() ? new String(output.getMatch()) : null;
+            }
+
+            JsonElement root = isXattr ? getAttrRoot() : getDocRoot();
+            ResultInfo rsi;
+            if (root == null) {
+                // Let the executor report the error for the unparseable document
+                rsi = SubdocCommandExecutor.executeSubdocOperation(op, new String(isXattr ? attrBytes : docBytes),
+                        spec.getPath(), spec.getValue(), spec.getFlags());
+            } else {
+                rsi = SubdocCommandExecutor.executeSubdocOperation(op, root, spec.getPath(),
+                        spec.getValue(), spec.getFlags());
+            }
             if (rsi.getStatus() != ErrorCode.SUCCESS) {
                 throw new MutationError(rsi.getStatus());
             }
-            return rsi;
+            return op.returnsMatch() ? rsi.getMatchString() : null;
         }
 
         private boolean handleMutationSpec(BinarySubdocMultiCommand.MultiSpec spec, int index) {
@@ -152,22 +257,18 @@ public class SubdocMultiCommandExecutor implements CommandExecutor {
             }
 
             boolean isXattr = (spec.getFlags() & BinarySubdocCommand.FLAG_XATTR_PATH) != 0;
-            ResultInfo rsi;
+            String match;
             try {
-                if (isXattr) {
-                    rsi = handleMutationSpecInner(op, currentAttrs, spec);
-                    currentAttrs = rsi.getNewDocString();
-                    hasXattrSpec = true;
-                } else {
-                    rsi = handleMutationSpecInner(op, currentDoc, spec);
-                    currentDoc = rsi.getNewDocString();
-                }
+                match = handleMutationSpecInner(op, isXattr, spec);
             } catch (MutationError ex) {
                 return sendMutationError(ex.code, index);
             }
+            if (isXattr) {
+                hasXattrSpec = true;
+            }
 
             if (op.returnsMatch()) {
-                results.add(new SpecResult(index, rsi.getMatchString()));
+                results.add(new SpecResult(index, match));
             }
 
             return true;
@@ -192,7 +293,7 @@ public class SubdocMultiCommandExecutor implements CommandExecutor {
                 MutationInfoWriter miw = client.getMutinfoWriter();
                 byte[] newXattrs;
                 if (hasXattrSpec) {
-                    newXattrs = currentAttrs.getBytes();
+                    newXattrs = attrRoot == null ? attrBytes : attrRoot.toString().getBytes();
                 } else if (needCreate) {
                     newXattrs = null;
                 } else {
@@ -202,7 +303,7 @@ public class SubdocMultiCommandExecutor implements CommandExecutor {
                         existing.getKeySpec(),
                         existing.getFlags(),
                         command.getNewExpiry(existing.getExpiryTime()),
-                        currentDoc.getBytes(),
+                        docRoot == null ? docBytes : docRoot.toString().getBytes(),
                         newXattrs,
                         command.getCas());
 
@@ -212,6 +313,7 @@ public class SubdocMultiCommandExecutor implements CommandExecutor {
                     ms = cache.add(newItem);
                     if (ms.getStatus() == ErrorCode.KEY_EEXISTS) {
                         results.clear();
+                        reset();
                         execute();
                         return;
                     }
@@ -299,10 +401,10 @@ public class SubdocMultiCommandExecutor implements CommandExecutor {
             }
 
             Item newItem = new Item(cmd.getKeySpec(), 0, 0, rootString.getBytes(), "{}".getBytes(), 0);
-            cx = new ExecutorContext(cmd, client, newItem, cache, true);
+            cx = new ExecutorContext(cmd, client, newItem, cache, server.getSubdocIndexCache(), true);
 
         } else {
-            cx = new ExecutorContext(cmd, client, existing, cache, false);
+            cx = new ExecutorContext(cmd, client, existing, cache, server.getSubdocIndexCache(), false);
         }
 
         cx.execute();
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.couchbase.mock.memcached;
+
+/**
+ * Limits the bandwidth and the operation rate of memcached nodes, to emulate constrained
+ * links. A throttle may apply to a single node, to all nodes of a bucket, or to each
+ * connection of a node (see {@link Scope}).
+ *
+ * Throttling never blocks the thread serving the node: output beyond the byte rate is
+ * left in the connection's buffer until enough tokens have accrued, and responses beyond
+ * the operation rate are held back like responses with injected latency.
+ */
+public final class Throttle {
+    public enum Scope {
+        /** Shared by all connections of a node */
+        NODE,
+        /** Shared by all nodes of a bucket */
+        BUCKET,
+        /** Applied to each connection of a node on its own */
+        CONNECTION
+    }
+
+    private final TokenBucket bytes;
+    private final TokenBucket ops;
+
+    /**
+     * @param bytesPerSec The number of bytes which may be sent per second, or 0 for no limit
+     * @param opsPerSec The number of commands which may be answered per second, or 0 for no limit
+     */
+    public Throttle(long bytesPerSec, long opsPerSec) {
+        if (bytesPerSec < 0 || opsPerSec < 0) {
+            throw new IllegalArgumentException("Rates must be >= 0");
+        }
+        if (bytesPerSec == 0 && opsPerSec == 0) {
+            throw new IllegalArgumentException("At least one rate must be set");
+        }
+        bytes = bytesPerSec == 0 ? null : new TokenBucket(bytesPerSec);
+        ops = opsPerSec == 0 ? null : new TokenBucket(opsPerSec);
+    }
+
+    public long getBytesPerSec() {
+        return bytes == null ? 0 : bytes.getRate();
+    }
+
+    public long getOpsPerSec() {
+        return ops == null ? 0 : ops.getRate();
+    }
+
+    /**
+     * @return A throttle with the same rates and full buckets, for a single connection
+     */
+    Throttle copy() {
+        return new Throttle(getBytesPerSec(), getOpsPerSec());
+    }
+
+    /**
+     * @param now The current time, in terms of {@link System#nanoTime()}
+     * @return The number of bytes which may be written right away
+     */
+    long bytesAvailable(long now) {
+        return bytes == null ? Long.MAX_VALUE : bytes.available(now);
+    }
+
+    /**
+     * @param now The current time, in terms of {@link System#nanoTime()}
+     * @return How long output must be stalled until bytes may be written, in nanoseconds
+     */
+    long nanosUntilBytes(long now) {
+        return bytes == null ? 0 : bytes.nanosUntilAvailable(now);
+    }
+
+    void bytesWritten(long count, long now) {
+        if (bytes != null) {
+            bytes.take(count, now);
+        }
+    }
+
+    /**
+     * Account for a command
+     * @param now The current time, in terms of {@link System#nanoTime()}
+     * @return How long the response must be held back, in nanoseconds
+     */
+    long takeOp(long now) {
+        return ops == null ? 0 : ops.take(1, now);
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.couchbase.mock.memcached;
+
+import java.io.IOException;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A hashed timer wheel driven by a selector thread. Timers are hashed into slots by the
+ * tick in which they are due, and the thread expires them after each wakeup, so that
+ * delays never block the thread itself.
+ *
+ * This class is not thread safe; it must only be used by the thread which drives it.
+ */
+final class TimerWheel {
+    private static final class Timeout {
+        final long deadline;
+        final Runnable task;
+
+        Timeout(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+    }
+
+    private static final Comparator<Timeout> BY_DEADLINE = new Comparator<Timeout>() {
+        @Override
+        public int compare(Timeout a, Timeout b) {
+            long diff = a.deadline - b.deadline;
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+    };
+
+    private final long origin = System.nanoTime();
+    private final long tickNanos;
+    private final List<List<Timeout>> slots;
+    private final int mask;
+    /** The earliest tick which may still hold due timers */
+    private long currentTick = 0;
+    private int size = 0;
+
+    /**
+     * @param tickNanos The resolution of the wheel
+     * @param numSlots The number of slots. Must be a power of two
+     */
+    TimerWheel(long tickNanos, int numSlots) {
+        if (numSlots <= 0 || (numSlots & (numSlots - 1)) != 0) {
+            throw new IllegalArgumentException("Slot count must be a power of 2");
+        }
+        this.tickNanos = tickNanos;
+        mask = numSlots - 1;
+        slots = new ArrayList<List<Timeout>>(numSlots);
+        for (int i = 0; i < numSlots; i++) {
+            slots.add(new ArrayList<Timeout>());
+        }
+    }
+
+    private long tickOf(long nanos) {
+        return Math.max(0, nanos - origin) / tickNanos;
+    }
+
+    /**
+     * Schedule a task
+     * @param deadline When the task should run, in terms of {@link System#nanoTime()}
+     * @param task The task. It is run by {@link #expire(long)}
+     */
+    void schedule(long deadline, Runnable task) {
+        long tick = Math.max(tickOf(deadline), currentTick);
+        slots.get((int) (tick & mask)).add(new Timeout(deadline, task));
+        size++;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Run the tasks which are due, in order of their deadlines
+     * @param now The current time, in terms of {@link System#nanoTime()}
+     */
+    void expire(long now) {
+        long nowTick = tickOf(now);
+        if (size == 0) {
+            currentTick = nowTick;
+            return;
+        }
+
+        List<Timeout> due = null;
+        long first = Math.max(currentTick, nowTick - mask);
+        for (long tick = first; tick <= nowTick; tick++) {
+            Iterator<Timeout> iter = slots.get((int) (tick & mask)).iterator();
+            while (iter.hasNext()) {
+                Timeout timeout = iter.next();
+                if (timeout.deadline - now <= 0) {
+                    if (due == null) {
+                        due = new ArrayList<Timeout>();
+                    }
+                    due.add(timeout);
+                    iter.remove();
+                }
+            }
+        }
+        currentTick = nowTick;
+        if (due == null) {
+            return;
+        }
+
+        size -= due.size();
+        Collections.sort(due, BY_DEADLINE);
+        for (Timeout timeout : due) {
+            timeout.task.run();
+        }
+    }
+
+    /**
+     * Get how long the driving thread may wait before it must call {@link #expire(long)}
+     * @param now The current time, in terms of {@link System#nanoTime()}
+     * @return The time to wait in milliseconds, or -1 if there are no timers
+     */
+    long waitMillis(long now) {
+        if (size == 0) {
+            return -1;
+        }
+        for (long tick = currentTick; tick <= currentTick + mask; tick++) {
+            long earliest = 0;
+            boolean found = false;
+            for (Timeout timeout : slots.get((int) (tick & mask))) {
+                // Skip timers due in a later rotation of the wheel
+                if (tickOf(timeout.deadline) <= tick && (!found || timeout.deadline - earliest < 0)) {
+                    earliest = timeout.deadline;
+                    found = true;
+                }
+            }
+            if (found) {
+                return toMillis(earliest - now);
+            }
+        }
+        // Nothing due within a rotation; check again once it has passed
+        return toMillis(origin + (currentTick + mask + 1) * tickNanos - now);
+    }
+
+    private static long toMillis(long nanos) {
+        if (nanos <= 0) {
+            return 0;
+        }
+        return (nanos + 999999) / 1000000;
+    }
+
+    /**
+     * Wait on a selector until it is woken up, a channel is ready or a timer is due
+     * @param selector The selector
+     * @param waitMillis The result of {@link #waitMillis(long)}
+     * @return The number of ready keys
+     */
+    static int select(Selector selector, long waitMillis) throws IOException {
+        if (waitMillis < 0) {
+            return selector.select();
+        } else if (waitMillis == 0) {
+            return selector.selectNow();
+        } else {
+            return selector.select(waitMillis);
+        }
+    }
+}
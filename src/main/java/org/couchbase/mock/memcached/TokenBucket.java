@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.couchbase.mock.memcached;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket. Tokens accrue at a fixed rate up to a burst capacity, and are
+ * taken out for each unit of work. Callers which may not wait for the tokens to
+ * accrue take them on credit, which pushes the bucket into debt, and delay the
+ * work by the time the debt takes to be paid back.
+ *
+ * This class is thread safe, as a bucket may be shared by the nodes of several threads.
+ */
+final class TokenBucket {
+    /** The share of a second's tokens that may be used in a single burst */
+    private static final int BURST_DIVISOR = 10;
+
+    private final long rate;
+    private final double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param rate The number of tokens accrued per second
+     */
+    TokenBucket(long rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("Rate must be > 0");
+        }
+        this.rate = rate;
+        capacity = Math.max(1, rate / BURST_DIVISOR);
+        tokens = capacity;
+        lastRefill = System.nanoTime();
+    }
+
+    long getRate() {
+        return rate;
+    }
+
+    private void refill(long now) {
+        long elapsed = now - lastRefill;
+        if (elapsed <= 0) {
+            return;
+        }
+        tokens = Math.min(capacity, tokens + elapsed * (double) rate / TimeUnit.SECONDS.toNanos(1));
+        lastRefill = now;
+    }
+
+    /**
+     * @param now The current time, in terms of {@link System#nanoTime()}
+     * @return The number of whole tokens which may be taken right away
+     */
+    synchronized long available(long now) {
+        refill(now);
+        return tokens < 1 ? 0 : (long) tokens;
+    }
+
+    /**
+     * Take tokens out of the bucket, on credit if there are not enough of them
+     * @param count The number of tokens
+     * @param now The current time, in terms of {@link System#nanoTime()}
+     * @return How long it takes for the bucket to be out of debt again, in nanoseconds
+     */
+    synchronized long take(long count, long now) {
+        refill(now);
+        tokens -= count;
+        return tokens >= 0 ? 0 : nanosFor(-tokens);
+    }
+
+    /**
+     * @param now The current time, in terms of {@link System#nanoTime()}
+     * @return How long it takes until a token may be taken, in nanoseconds
+     */
+    synchronized long nanosUntilAvailable(long now) {
+        refill(now);
+        return tokens >= 1 ? 0 : nanosFor(1 - tokens);
+    }
+
+    private long nanosFor(double count) {
+        return (long) Math.ceil(count * TimeUnit.SECONDS.toNanos(1) / rate);
+    }
+}
@@ -30,6 +30,7 @@ public class VBucketInfo {
     private final int REPLICAS_MAX = 3;
     private MemcachedServer owner;
     private final List<MemcachedServer> replicas = new ArrayList<MemcachedServer>();
+    private final List<MemcachedServer> pendingReplicas = new ArrayList<MemcachedServer>();
     private volatile long uuid;
 
     public VBucketInfo(MemcachedServer owner) {
@@ -64,6 +65,31 @@ public class VBucketInfo {
         return new ArrayList<MemcachedServer>(replicas);
     }
 
+    /**
+     * Set the nodes the vBucket is being moved to. These receive the owner's mutations
+     * like replicas do, but are not part of the vBucket map
+     * @param rl The nodes
+     */
+    public synchronized void setPendingReplicas(List<MemcachedServer> rl) {
+        pendingReplicas.clear();
+        pendingReplicas.addAll(rl);
+    }
+
+    public synchronized List<MemcachedServer> getPendingReplicas() {
+        return new ArrayList<MemcachedServer>(pendingReplicas);
+    }
+
+    /**
+     * @return The nodes the owner replicates mutations to: the replicas, and the nodes the
+     * vBucket is being moved to
+     */
+    public synchronized List<MemcachedServer> getReplicationTargets() {
+        List<MemcachedServer> ret = new ArrayList<MemcachedServer>(replicas.size() + pendingReplicas.size());
+        ret.addAll(replicas);
+        ret.addAll(pendingReplicas);
+        return ret;
+    }
+
     public synchronized MemcachedServer getOwner() {
         return owner;
     }
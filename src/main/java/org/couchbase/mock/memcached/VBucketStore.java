@@ -80,6 +80,20 @@ public class VBucketStore {
         return vbCoords[vbid];
     }
 
+    /**
+     * Continue a vBucket's history from another node's coordinates, when the vBucket is
+     * moved to this node
+     * @param vbid The vBucket
+     * @param coords The current coordinates of the vBucket on its previous owner
+     */
+    void seedCoords(int vbid, VBucketCoordinates coords) {
+        StorageVBucketCoordinates cur = new StorageVBucketCoordinates(coords);
+        synchronized (vbCoords) {
+            vbCoords[vbid] = cur;
+        }
+        logCoords(vbid, cur);
+    }
+
     /**
      * Increments the current coordinates for a new mutation.
      * @param ks The key spec containing the vBucket ID whose coordinates should be increases
@@ -20,6 +20,7 @@ public class ClientResponse {
     private byte[] body;
     private int opaque;
     private byte opcode;
+    private boolean serverRequest;
 
     long cas;
 
@@ -61,6 +62,13 @@ public class ClientResponse {
 
     public boolean success() { return status == ErrorCode.SUCCESS; }
 
+    /**
+     * @return true if this is a request pushed by the server, such as a clustermap change notification
+     */
+    public boolean isServerRequest() {
+        return serverRequest;
+    }
+
 
     public static ClientResponse read(InputStream input) throws IOException {
         byte[] header = new byte[24];
@@ -80,11 +88,12 @@ public class ClientResponse {
 
         ByteBuffer buf = ByteBuffer.wrap(header);
         byte magic = buf.get();
-        if (magic != (byte)0x81) {
+        if (magic != (byte)0x81 && magic != (byte)0x82) {
             throw new IOException("Illegal magic: " + magic);
         }
 
         ClientResponse ret = new ClientResponse();
+        ret.serverRequest = magic == (byte)0x82;
         ret.opcode = buf.get();
         ret.code = CommandCode.valueOf(ret.opcode);
 
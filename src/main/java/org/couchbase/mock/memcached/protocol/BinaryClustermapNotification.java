@@ -0,0 +1,54 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.couchbase.mock.memcached.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A clustermap change notification, pushed by the server to connections which negotiated
+ * duplex mode and clustermap change notifications with HELLO.
+ *
+ * This is a server request rather than a response. The key is the name of the bucket and the
+ * extras contain the new configuration revision. The value is empty: a client which has an
+ * older configuration fetches the new one with {@code GET_CLUSTER_CONFIG}. Clients do not
+ * respond to the notification.
+ */
+public class BinaryClustermapNotification extends BinaryResponse {
+    private static final byte MAGIC = (byte) 0x82;
+    private static final byte OPCODE = 0x01;
+
+    public BinaryClustermapNotification(String bucketName, long rev) {
+        super(create(bucketName, rev));
+    }
+
+    private static ByteBuffer create(String bucketName, long rev) {
+        byte[] key = bucketName.getBytes();
+        ByteBuffer message = ByteBuffer.allocate(24 + 4 + key.length);
+        message.put(MAGIC);
+        message.put(OPCODE);
+        message.putShort((short) key.length);
+        message.put((byte) 4);
+        message.put((byte) 0);
+        message.putShort((short) 0);
+        message.putInt(4 + key.length);
+        message.putInt(0);
+        message.putLong(0);
+        message.putInt((int) rev);
+        message.put(key);
+        message.rewind();
+        return message;
+    }
+}
@@ -3,8 +3,6 @@ package org.couchbase.mock.memcached.protocol;
 import org.couchbase.mock.memcached.MemcachedServer;
 
 import java.nio.ByteBuffer;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * @author Mark Nunberg
@@ -31,11 +29,7 @@ public class BinaryConfigResponse extends BinaryResponse {
             return new BinaryResponse(command, errNotSupp);
         }
 
-        String config = server.getBucket().getJSON();
-        config = config.replaceAll(Pattern.quote(server.getHostname()),
-                                   Matcher.quoteReplacement("$HOST"));
-
-        byte[] jsBytes = config.getBytes();
+        byte[] jsBytes = server.getBucket().getConfigSnapshot().getBytesForHost(server.getHostname());
         ByteBuffer buf = create(command, errOk, 0, 0, jsBytes.length, 0);
         buf.put(jsBytes);
         buf.rewind();
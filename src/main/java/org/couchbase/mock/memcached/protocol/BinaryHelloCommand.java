@@ -53,7 +53,8 @@ public class BinaryHelloCommand extends BinaryCommand {
     }
 
     public enum Feature {
-        DATATYPE (1), TLS (2), TCP_NODELAY (3), MUTATION_SEQNO (4), XATTR(6), XERROR(7), SELECT_BUCKET(8), MAX (9);
+        DATATYPE (1), TLS (2), TCP_NODELAY (3), MUTATION_SEQNO (4), XATTR(6), XERROR(7), SELECT_BUCKET(8),
+        DUPLEX(12), CLUSTERMAP_CHANGE_NOTIFICATION(13), MAX (14);
 
         private final int value;
         private Feature(int value) {
@@ -22,7 +22,7 @@ package org.couchbase.mock.memcached.protocol;
 @SuppressWarnings({"SpellCheckingInspection", "UnusedDeclaration"})
 public enum ErrorCode {
     SUCCESS(0x00), KEY_ENOENT(0x01), KEY_EEXISTS(0x02), E2BIG(0x03), EINVAL(
-            0x04), NOT_STORED(0x05), DELTA_BADVAL(0x06), NOT_MY_VBUCKET(0x07), AUTH_ERROR(
+            0x04), NOT_STORED(0x05), DELTA_BADVAL(0x06), NOT_MY_VBUCKET(0x07), NO_BUCKET(0x08), AUTH_ERROR(
             0x20), AUTH_CONTINUE(0x21), UNKNOWN_COMMAND(0x81), ENOMEM(0x82), NOT_SUPPORTED(
             0x83), EINTERNAL(0x84), EBUSY(0x85), ETMPFAIL(0x86),
             // RBAC:
@@ -23,4 +23,8 @@ public class DocNotJsonException extends SubdocException {
     public DocNotJsonException(Throwable e) {
         super(e);
     }
+
+    public DocNotJsonException(String s) {
+        super(s);
+    }
 }
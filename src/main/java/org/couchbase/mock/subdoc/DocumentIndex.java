@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.subdoc;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The structural offsets of a document, as discovered by the lookups made against it.
+ *
+ * Each path followed by {@link StreamingLookup} records the offset of every value along the
+ * way, so that later lookups sharing a prefix with an earlier one resume from the deepest
+ * known value rather than scanning from the start of the document. The index is only valid
+ * for the exact bytes it was created for.
+ */
+public final class DocumentIndex {
+    /** Number of values remembered for a single document */
+    static final int MAX_ENTRIES = 256;
+    /** Estimated cost of a single entry, in bytes */
+    private static final int ENTRY_WEIGHT = 64;
+
+    private final JsonScanner sc;
+    // Offsets of values (start, and end if known) keyed by the canonical form of their path
+    private final Map<String, int[]> offsets = new HashMap<String, int[]>();
+
+    public DocumentIndex(byte[] doc) {
+        sc = new JsonScanner(doc);
+    }
+
+    /**
+     * @return The document the index refers to
+     */
+    public byte[] getDocument() {
+        return sc.getBytes();
+    }
+
+    JsonScanner getScanner() {
+        return sc;
+    }
+
+    /**
+     * @return The approximate amount of memory the index may retain, including the document
+     */
+    public int getWeight() {
+        return sc.length() + MAX_ENTRIES * ENTRY_WEIGHT;
+    }
+
+    private static String[] prefixKeys(Path path) {
+        String[] keys = new String[path.size()];
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < path.size(); i++) {
+            Component comp = path.get(i);
+            if (comp.isIndex()) {
+                sb.append('[').append(comp.getIndex()).append(']');
+            } else {
+                // Length-prefixed, as names may contain any character
+                sb.append('.').append(comp.getString().length()).append(':').append(comp.getString());
+            }
+            keys[i] = sb.toString();
+        }
+        return keys;
+    }
+
+    private void remember(String key, int start, int end) {
+        int[] known = offsets.get(key);
+        if (known != null) {
+            if (end != -1) {
+                known[1] = end;
+            }
+        } else if (offsets.size() < MAX_ENTRIES) {
+            offsets.put(key, new int[] { start, end });
+        }
+    }
+
+    /**
+     * Locate the value at the given path
+     * @return The location of the value, or null if it does not exist
+     * @throws PathMismatchException if a component does not match the type of its parent
+     * @throws DocNotJsonException if the document is malformed
+     */
+    synchronized StreamingLookup.Span locate(Path path) throws SubdocException {
+        if (path.size() == 0) {
+            int[] span = offsets.get("");
+            if (span == null) {
+                int start = sc.skipWhitespace(0);
+                int end = sc.skipValue(start);
+                sc.expectEnd(end);
+                span = new int[] { start, end };
+                offsets.put("", span);
+            }
+            return new StreamingLookup.Span(span[0], span[1]);
+        }
+
+        String[] keys = prefixKeys(path);
+        int i = path.size();
+        int[] known = null;
+        while (i > 0 && (known = offsets.get(keys[i - 1])) == null) {
+            i--;
+        }
+        int pos = known == null ? sc.skipWhitespace(0) : known[0];
+        for (; i < path.size(); i++) {
+            pos = StreamingLookup.follow(sc, pos, path.get(i));
+            if (pos < 0) {
+                return null;
+            }
+            remember(keys[i], pos, -1);
+        }
+
+        int[] target = offsets.get(keys[keys.length - 1]);
+        int end = target != null && target[1] != -1 ? target[1] : sc.skipValue(pos);
+        remember(keys[keys.length - 1], pos, end);
+        return new StreamingLookup.Span(pos, end);
+    }
+}
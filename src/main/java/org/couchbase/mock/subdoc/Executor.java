@@ -33,7 +33,7 @@ public class Executor {
     private final JsonElement value;
     private final boolean isCreate;
     private final boolean isMultiValue;
-    private final Match match;
+    private Match match;
 
     private static <T> T parseStrictJson(String text, Class<T> klass) {
         try {
@@ -50,6 +50,18 @@ public class Executor {
 
     private Executor(String input, Path path, Operation code, String valueFragment, boolean shouldCreateParents)
             throws SubdocException {
+        this(path, code, valueFragment, shouldCreateParents);
+        match = new Match(parseDocument(input), path);
+    }
+
+    private Executor(JsonElement root, Path path, Operation code, String valueFragment, boolean shouldCreateParents)
+            throws SubdocException {
+        this(path, code, valueFragment, shouldCreateParents);
+        match = new Match(root, path);
+    }
+
+    private Executor(Path path, Operation code, String valueFragment, boolean shouldCreateParents)
+            throws SubdocException {
         this.path = path;
         this.code = code;
         this.isCreate = shouldCreateParents;
@@ -94,15 +106,21 @@ public class Executor {
         if (isMultiValue && !code.allowsMultiValue()) {
             throw new CannotInsertException("Multi value not allowed!");
         }
+    }
 
-        JsonElement root;
+    /**
+     * Parse a document into a tree which may be passed to
+     * {@link #execute(JsonElement, Path, Operation, String, boolean)}
+     * @param input The document
+     * @return The root of the parsed document
+     * @throws DocNotJsonException if the document is not valid JSON
+     */
+    public static JsonElement parseDocument(String input) throws DocNotJsonException {
         try {
-            root = parseStrictJson(input, JsonElement.class);
+            return parseStrictJson(input, JsonElement.class);
         } catch (JsonSyntaxException e) {
             throw new DocNotJsonException(e);
         }
-
-        match = new Match(root, path);
     }
 
     public static JsonElement executeGet(String input, String path) throws SubdocException {
@@ -135,6 +153,26 @@ public class Executor {
         return p.operate();
     }
 
+    /**
+     * Execute an operation against an already parsed document. Mutations modify the tree in place,
+     * so that several operations may be applied to a document which is parsed and serialized once.
+     * If an operation fails, the tree may have been partially modified and should be discarded.
+     *
+     * @param root The root of the document, from {@link #parseDocument(String)}
+     * @param path The path to operate on
+     * @param code The operation
+     * @param valueFragment The value for the operation, if required
+     * @param isMkdirP Whether missing parents should be created
+     * @return The result. Its new document is {@code root}
+     * @throws SubdocException if the operation failed
+     */
+    public static Result execute(JsonElement root, String path, Operation code, String valueFragment, boolean isMkdirP)
+            throws SubdocException {
+        Executor p = new Executor(root, new Path(path), code, valueFragment, isMkdirP);
+        p.match.execute();
+        return p.operate();
+    }
+
     private void insertInJsonArray(JsonArray array, int index) {
         // Because JsonArray doesn't implement Collection or List, we need
         // to use a temporary list, and then reassemble the contents into
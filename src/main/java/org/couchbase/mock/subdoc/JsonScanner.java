@@ -0,0 +1,348 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.subdoc;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Validating tokenizer over a raw UTF-8 JSON document.
+ *
+ * The scanner never builds a tree: it only reports offsets into the document, so that callers
+ * may locate a value and skip unrelated subtrees without materializing them. Values are
+ * checked against the JSON grammar as they are skipped; anything malformed raises
+ * {@link DocNotJsonException}.
+ */
+final class JsonScanner {
+    private final byte[] doc;
+    private final int end;
+
+    JsonScanner(byte[] doc) {
+        this.doc = doc;
+        this.end = doc.length;
+    }
+
+    byte[] getBytes() {
+        return doc;
+    }
+
+    int length() {
+        return end;
+    }
+
+    private DocNotJsonException malformed(int pos) {
+        return new DocNotJsonException("Malformed JSON at offset " + pos);
+    }
+
+    /**
+     * @return The byte at {@code pos}, or fails if the document ends before it
+     */
+    byte at(int pos) throws DocNotJsonException {
+        if (pos >= end) {
+            throw malformed(pos);
+        }
+        return doc[pos];
+    }
+
+    /**
+     * @return The offset of the first non-whitespace byte at or after {@code pos}
+     */
+    int skipWhitespace(int pos) {
+        while (pos < end) {
+            byte b = doc[pos];
+            if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+                break;
+            }
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * Skip whitespace, then require the given byte
+     * @return The offset just past {@code expected}
+     */
+    int expect(int pos, char expected) throws DocNotJsonException {
+        pos = skipWhitespace(pos);
+        if (at(pos) != expected) {
+            throw malformed(pos);
+        }
+        return pos + 1;
+    }
+
+    /**
+     * Ensure that nothing but whitespace follows {@code pos}
+     */
+    void expectEnd(int pos) throws DocNotJsonException {
+        pos = skipWhitespace(pos);
+        if (pos != end) {
+            throw malformed(pos);
+        }
+    }
+
+    /**
+     * Skip a string
+     * @param pos The offset of the opening quote
+     * @return The offset just past the closing quote
+     */
+    int skipString(int pos) throws DocNotJsonException {
+        if (at(pos) != '"') {
+            throw malformed(pos);
+        }
+        pos++;
+        while (true) {
+            byte b = at(pos);
+            if (b == '"') {
+                return pos + 1;
+            } else if (b == '\\') {
+                byte esc = at(pos + 1);
+                switch (esc) {
+                    case '"': case '\\': case '/': case 'b': case 'f': case 'n': case 'r': case 't':
+                        pos += 2;
+                        break;
+                    case 'u':
+                        for (int i = 2; i < 6; i++) {
+                            if (Character.digit(at(pos + i), 16) < 0) {
+                                throw malformed(pos);
+                            }
+                        }
+                        pos += 6;
+                        break;
+                    default:
+                        throw malformed(pos);
+                }
+            } else {
+                pos++;
+            }
+        }
+    }
+
+    /**
+     * Decode a string
+     * @param pos The offset of the opening quote
+     * @return The decoded string
+     */
+    String readString(int pos) throws DocNotJsonException {
+        int stop = skipString(pos) - 1;
+        pos++;
+        int runStart = pos;
+        StringBuilder sb = null;
+        while (pos < stop) {
+            if (doc[pos] != '\\') {
+                pos++;
+                continue;
+            }
+            if (sb == null) {
+                sb = new StringBuilder();
+            }
+            sb.append(utf8(runStart, pos));
+            byte esc = doc[pos + 1];
+            switch (esc) {
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'u':
+                    sb.append((char) Integer.parseInt(new String(doc, pos + 2, 4), 16));
+                    pos += 4;
+                    break;
+                default:
+                    sb.append((char) esc);
+                    break;
+            }
+            pos += 2;
+            runStart = pos;
+        }
+        if (sb == null) {
+            return utf8(runStart, stop);
+        }
+        return sb.append(utf8(runStart, stop)).toString();
+    }
+
+    /**
+     * Compare a string in the document with a given value
+     * @param pos The offset of the opening quote
+     * @param stop The offset just past the closing quote
+     * @param utf8 The UTF-8 encoding of {@code value}
+     * @param value The value to compare with
+     * @return true if the string decodes to {@code value}
+     */
+    boolean stringEquals(int pos, int stop, byte[] utf8, String value) throws DocNotJsonException {
+        int len = stop - pos - 2;
+        boolean escaped = false;
+        for (int i = pos + 1; i < stop - 1; i++) {
+            if (doc[i] == '\\') {
+                escaped = true;
+                break;
+            }
+        }
+        if (escaped) {
+            return readString(pos).equals(value);
+        }
+        if (len != utf8.length) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (doc[pos + 1 + i] != utf8[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String utf8(int start, int stop) {
+        try {
+            return new String(doc, start, stop - start, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private int skipDigits(int pos) {
+        while (pos < end && doc[pos] >= '0' && doc[pos] <= '9') {
+            pos++;
+        }
+        return pos;
+    }
+
+    private int skipNumber(int pos) throws DocNotJsonException {
+        int begin = pos;
+        if (doc[pos] == '-') {
+            pos++;
+        }
+        byte b = at(pos);
+        if (b == '0') {
+            pos++;
+        } else if (b >= '1' && b <= '9') {
+            pos = skipDigits(pos);
+        } else {
+            throw malformed(begin);
+        }
+        if (pos < end && doc[pos] == '.') {
+            int fracStart = ++pos;
+            pos = skipDigits(pos);
+            if (pos == fracStart) {
+                throw malformed(begin);
+            }
+        }
+        if (pos < end && (doc[pos] == 'e' || doc[pos] == 'E')) {
+            pos++;
+            if (pos < end && (doc[pos] == '+' || doc[pos] == '-')) {
+                pos++;
+            }
+            int expStart = pos;
+            pos = skipDigits(pos);
+            if (pos == expStart) {
+                throw malformed(begin);
+            }
+        }
+        return pos;
+    }
+
+    private int skipLiteral(int pos, String literal) throws DocNotJsonException {
+        for (int i = 0; i < literal.length(); i++) {
+            if (at(pos + i) != literal.charAt(i)) {
+                throw malformed(pos);
+            }
+        }
+        return pos + literal.length();
+    }
+
+    /**
+     * Skip a scalar value
+     * @return The offset just past the value
+     */
+    private int skipScalar(int pos) throws DocNotJsonException {
+        switch (at(pos)) {
+            case '"':
+                return skipString(pos);
+            case 't':
+                return skipLiteral(pos, "true");
+            case 'f':
+                return skipLiteral(pos, "false");
+            case 'n':
+                return skipLiteral(pos, "null");
+            default:
+                return skipNumber(pos);
+        }
+    }
+
+    /**
+     * Skip a complete value, validating it. Nesting is tracked with an explicit stack, so
+     * arbitrarily deep documents do not exhaust the Java stack.
+     *
+     * @param pos The offset of the first byte of the value (whitespace is skipped)
+     * @return The offset just past the value
+     */
+    int skipValue(int pos) throws DocNotJsonException {
+        // One entry per open container: true for objects, false for arrays
+        boolean[] stack = new boolean[16];
+        int depth = 0;
+
+        while (true) {
+            // Expecting a value
+            pos = skipWhitespace(pos);
+            byte b = at(pos);
+            boolean closed = false;
+            if (b == '{' || b == '[') {
+                if (depth == stack.length) {
+                    boolean[] grown = new boolean[depth * 2];
+                    System.arraycopy(stack, 0, grown, 0, depth);
+                    stack = grown;
+                }
+                boolean isObject = b == '{';
+                stack[depth++] = isObject;
+                pos = skipWhitespace(pos + 1);
+                if (at(pos) == (isObject ? '}' : ']')) {
+                    pos++;
+                    depth--;
+                    closed = true;
+                } else if (isObject) {
+                    pos = expect(skipString(pos), ':');
+                    continue;
+                } else {
+                    continue;
+                }
+            } else {
+                pos = skipScalar(pos);
+                closed = true;
+            }
+
+            // After a value: close containers or move to the next element
+            while (closed) {
+                if (depth == 0) {
+                    return pos;
+                }
+                pos = skipWhitespace(pos);
+                b = at(pos);
+                boolean isObject = stack[depth - 1];
+                if (b == ',') {
+                    pos++;
+                    if (isObject) {
+                        pos = expect(skipString(skipWhitespace(pos)), ':');
+                    }
+                    closed = false;
+                } else if (b == (isObject ? '}' : ']')) {
+                    pos++;
+                    depth--;
+                } else {
+                    throw malformed(pos);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,504 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.subdoc;
+
+import com.google.gson.JsonPrimitive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Executes mutations by splicing the raw bytes of a document.
+ *
+ * The target of the mutation is located with {@link JsonScanner}, and the new document is
+ * written as the bytes preceding the target, the new fragment, and the bytes following it.
+ * Parts of the document which are not touched by the mutation keep their original bytes
+ * (including formatting), and no tree is built for either the document or the value.
+ *
+ * Only the operations listed by {@link #supports(Operation)} are spliced; the remaining ones
+ * are executed by {@link Executor}.
+ */
+public final class SpliceExecutor {
+    /**
+     * The outcome of a spliced mutation
+     */
+    public static final class Output {
+        private final byte[] newDoc;
+        private final byte[] match;
+
+        Output(byte[] newDoc, byte[] match) {
+            this.newDoc = newDoc;
+            this.match = match;
+        }
+
+        /**
+         * @return The new document
+         */
+        public byte[] getNewDoc() {
+            return newDoc;
+        }
+
+        /**
+         * @return The new value for {@link Operation#COUNTER}, or null for other operations
+         */
+        public byte[] getMatch() {
+            return match;
+        }
+    }
+
+    /**
+     * A container on the path, and the position of the path component within it
+     */
+    private static final class Level {
+        /** Offset of the opening brace or bracket */
+        final int open;
+        final boolean isObject;
+        /** End of the last child, or -1 if the container is empty */
+        int lastEnd = -1;
+        /** Start of the matched member's name (or the matched element), or -1 if not found */
+        int memberStart = -1;
+        int valueStart;
+        int valueEnd;
+        /** End of the child preceding the matched one, or -1 if it is the first */
+        int prevEnd = -1;
+
+        Level(int open, boolean isObject) {
+            this.open = open;
+            this.isObject = isObject;
+        }
+
+        boolean isFound() {
+            return memberStart != -1;
+        }
+    }
+
+    private final JsonScanner sc;
+    private final Path path;
+    private final Operation code;
+    private final boolean isCreate;
+    private final List<Level> levels = new ArrayList<Level>();
+    private byte[] value;
+
+    private SpliceExecutor(byte[] doc, Path path, Operation code, boolean isCreate) {
+        this.sc = new JsonScanner(doc);
+        this.path = path;
+        this.code = code;
+        this.isCreate = isCreate;
+    }
+
+    /**
+     * @return Whether the operation may be executed by {@link #execute(byte[], String, Operation, String, boolean)}
+     */
+    public static boolean supports(Operation code) {
+        switch (code) {
+            case REPLACE:
+            case DICT_UPSERT:
+            case DICT_ADD:
+            case REMOVE:
+            case ARRAY_APPEND:
+            case ARRAY_PREPEND:
+            case COUNTER:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Execute a mutation
+     * @param doc The raw document
+     * @param path The path to operate on
+     * @param code The operation. See {@link #supports(Operation)}
+     * @param valueFragment The value for the operation, if required
+     * @param isMkdirP Whether missing parents should be created
+     * @return The new document, and the match for {@link Operation#COUNTER}
+     * @throws SubdocException if the operation failed. The errors are those raised by {@link Executor}
+     */
+    public static Output execute(byte[] doc, String path, Operation code, String valueFragment, boolean isMkdirP)
+            throws SubdocException {
+        if (!supports(code)) {
+            throw new IllegalArgumentException("Operation cannot be spliced: " + code);
+        }
+        SpliceExecutor ex = new SpliceExecutor(doc, new Path(path), code, isMkdirP);
+        if (code.requiresValue()) {
+            ex.value = validateValue(valueFragment, code);
+        }
+        // The new document is stored, so the whole of it must be valid
+        ex.sc.expectEnd(ex.sc.skipValue(0));
+        ex.locate();
+        return ex.operate();
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Check the value fragment
+     * @return The fragment, without surrounding whitespace
+     */
+    private static byte[] validateValue(String valueFragment, Operation code) throws SubdocException {
+        if (valueFragment == null || valueFragment.isEmpty()) {
+            throw new EmptyValueException();
+        }
+        byte[] raw = utf8(valueFragment);
+        JsonScanner vsc = new JsonScanner(raw);
+        int start = vsc.skipWhitespace(0);
+        int end;
+        try {
+            end = vsc.skipValue(start);
+            if (code.allowsMultiValue()) {
+                // A comma separated list of values
+                int pos = vsc.skipWhitespace(end);
+                while (pos < raw.length) {
+                    end = vsc.skipValue(vsc.expect(pos, ','));
+                    pos = vsc.skipWhitespace(end);
+                }
+            } else {
+                vsc.expectEnd(end);
+            }
+        } catch (DocNotJsonException ex) {
+            if (code == Operation.COUNTER) {
+                throw new BadNumberException(ex);
+            }
+            throw new CannotInsertException(ex);
+        }
+        return Arrays.copyOfRange(raw, start, end);
+    }
+
+    /**
+     * Find the child of a container matching a path component. The container is scanned up to
+     * the matched child, or to its end if there is no such child (or if the last child is wanted).
+     *
+     * @param comp The component to match, or null to scan the whole container
+     */
+    private Level scanLevel(int open, Component comp) throws SubdocException {
+        boolean isObject = sc.at(open) == '{';
+        Level level = new Level(open, isObject);
+        byte[] name = isObject && comp != null ? utf8(comp.getString()) : null;
+        int index = comp == null ? -2 : comp.getIndex();
+        int close = isObject ? '}' : ']';
+
+        int pos = sc.skipWhitespace(open + 1);
+        if (sc.at(pos) == close) {
+            return level;
+        }
+        for (int n = 0; ; n++) {
+            int memberStart = sc.skipWhitespace(pos);
+            int valueStart;
+            boolean isMatch;
+            if (isObject) {
+                int nameEnd = sc.skipString(memberStart);
+                valueStart = sc.skipWhitespace(sc.expect(nameEnd, ':'));
+                isMatch = name != null && !level.isFound()
+                        && sc.stringEquals(memberStart, nameEnd, name, comp.getString());
+            } else {
+                valueStart = memberStart;
+                isMatch = n == index || index == -1;
+            }
+            int valueEnd = sc.skipValue(valueStart);
+            if (isMatch) {
+                level.prevEnd = level.lastEnd;
+                level.memberStart = memberStart;
+                level.valueStart = valueStart;
+                level.valueEnd = valueEnd;
+                if (index != -1) {
+                    return level;
+                }
+            }
+            level.lastEnd = valueEnd;
+
+            pos = sc.skipWhitespace(valueEnd);
+            if (sc.at(pos) == close) {
+                return level;
+            }
+            pos = sc.expect(pos, ',');
+        }
+    }
+
+    /**
+     * Follow the path as far as it exists, recording each container on the way
+     */
+    private void locate() throws SubdocException {
+        int pos = sc.skipWhitespace(0);
+        for (int i = 0; i < path.size(); i++) {
+            Component comp = path.get(i);
+            byte b = sc.at(pos);
+            if (comp.isIndex() ? b != '[' : b != '{') {
+                throw new PathMismatchException();
+            }
+            Level level = scanLevel(pos, comp);
+            levels.add(level);
+            if (!level.isFound()) {
+                return;
+            }
+            pos = level.valueStart;
+        }
+    }
+
+    private boolean isFound() {
+        return levels.size() == path.size() && (levels.isEmpty() || getDeepest().isFound());
+    }
+
+    private boolean hasImmediateParent() {
+        return levels.size() == path.size();
+    }
+
+    /**
+     * @return The deepest container which exists
+     */
+    private Level getDeepest() {
+        return levels.get(levels.size() - 1);
+    }
+
+    private int getMatchStart() {
+        return levels.isEmpty() ? sc.skipWhitespace(0) : getDeepest().valueStart;
+    }
+
+    private int getMatchEnd() throws DocNotJsonException {
+        return levels.isEmpty() ? sc.skipValue(sc.skipWhitespace(0)) : getDeepest().valueEnd;
+    }
+
+    private byte[] splice(int start, int end, byte[]... fragments) {
+        byte[] doc = sc.getBytes();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(doc.length - (end - start) + 64);
+        out.write(doc, 0, start);
+        for (byte[] fragment : fragments) {
+            out.write(fragment, 0, fragment.length);
+        }
+        out.write(doc, end, doc.length - end);
+        return out.toByteArray();
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes();
+    }
+
+    private byte[] replace(byte[] newValue) throws SubdocException {
+        if (!isFound()) {
+            throw new PathNotFoundException();
+        } else if (path.size() == 0) {
+            throw new CannotInsertException("Cannot replace root element!");
+        }
+        return splice(getMatchStart(), getMatchEnd(), newValue);
+    }
+
+    /**
+     * Add a member to the deepest existing object, creating the missing intermediate objects
+     * when the immediate parent does not exist.
+     */
+    private byte[] addMember(byte[] newValue) throws SubdocException {
+        Level deepest = getDeepest();
+        int first = levels.size() - 1;
+        StringBuilder head = new StringBuilder();
+        StringBuilder tail = new StringBuilder();
+        for (int i = first; i < path.size(); i++) {
+            Component comp = path.get(i);
+            if (comp.isIndex()) {
+                // Cannot insert elements with MKDIR_P
+                throw new PathNotFoundException();
+            }
+            head.append(new JsonPrimitive(comp.getString()).toString()).append(':');
+            if (i != path.size() - 1) {
+                head.append('{');
+                tail.append('}');
+            }
+        }
+        if (deepest.lastEnd == -1) {
+            return splice(deepest.open + 1, deepest.open + 1, utf8(head.toString()), newValue, ascii(tail.toString()));
+        } else {
+            return splice(deepest.lastEnd, deepest.lastEnd, utf8("," + head), newValue, ascii(tail.toString()));
+        }
+    }
+
+    private byte[] dictAdd(byte[] newValue) throws SubdocException {
+        if (isFound()) {
+            throw new PathExistsException();
+        }
+
+        if (!hasImmediateParent()) {
+            if (!isCreate) {
+                throw new PathNotFoundException();
+            }
+            if (!getDeepest().isObject) {
+                throw new PathMismatchException("Cannot create intermediate array!");
+            }
+            return addMember(newValue);
+        }
+
+        if (!getDeepest().isObject) {
+            throw new PathMismatchException("DICT_ADD must have dictionary parent");
+        }
+        return addMember(newValue);
+    }
+
+    private byte[] arrayAdd() throws SubdocException {
+        if (!isFound()) {
+            if (!isCreate) {
+                throw new PathNotFoundException();
+            }
+            if (!getDeepest().isObject) {
+                throw new PathMismatchException("Cannot create intermediate array!");
+            }
+            return addMember(wrapArray(value));
+        }
+
+        int start = getMatchStart();
+        if (sc.at(start) != '[') {
+            throw new PathMismatchException();
+        }
+        Level array = scanLevel(start, null);
+        if (array.lastEnd == -1) {
+            return splice(start + 1, start + 1, value);
+        } else if (code == Operation.ARRAY_APPEND) {
+            return splice(array.lastEnd, array.lastEnd, ascii(","), value);
+        } else {
+            int firstStart = sc.skipWhitespace(start + 1);
+            return splice(firstStart, firstStart, value, ascii(","));
+        }
+    }
+
+    private static byte[] wrapArray(byte[] values) {
+        byte[] ret = new byte[values.length + 2];
+        ret[0] = '[';
+        System.arraycopy(values, 0, ret, 1, values.length);
+        ret[ret.length - 1] = ']';
+        return ret;
+    }
+
+    private byte[] remove() throws SubdocException {
+        if (!isFound()) {
+            throw new PathNotFoundException();
+        } else if (path.size() == 0) {
+            throw new CannotInsertException("Cannot delete root element!");
+        }
+
+        Level parent = getDeepest();
+        if (parent.prevEnd != -1) {
+            // Remove the separator preceding the child, along with the child itself
+            return splice(parent.prevEnd, parent.valueEnd);
+        }
+        int pos = sc.skipWhitespace(parent.valueEnd);
+        if (sc.at(pos) == ',') {
+            // First child: remove up to the next one
+            return splice(parent.memberStart, sc.skipWhitespace(pos + 1));
+        }
+        // Only child
+        return splice(parent.memberStart, parent.valueEnd);
+    }
+
+    private static BigInteger parseInteger(byte[] text) {
+        if (text.length == 0 || (text[0] != '-' && (text[0] < '0' || text[0] > '9'))) {
+            throw new NumberFormatException();
+        }
+        return new BigInteger(new String(text));
+    }
+
+    private static boolean isWithinRange(BigInteger ee) {
+        return ee.bitLength() < 64;
+    }
+
+    private Output counter() throws SubdocException {
+        long delta;
+        try {
+            BigInteger ee = parseInteger(value);
+            if (!isWithinRange(ee)) {
+                throw new DeltaTooBigException();
+            }
+            delta = ee.longValue();
+        } catch (NumberFormatException ex) {
+            throw new BadNumberException(ex);
+        }
+
+        if (delta == 0) {
+            throw new ZeroDeltaException();
+        }
+
+        if (isFound()) {
+            long numres;
+            try {
+                BigInteger current = parseInteger(Arrays.copyOfRange(sc.getBytes(), getMatchStart(), getMatchEnd()));
+                if (!isWithinRange(current)) {
+                    throw new NumberTooBigException();
+                }
+                numres = current.longValue();
+            } catch (NumberFormatException ex) {
+                throw new PathMismatchException(ex);
+            }
+
+            if (delta >= 0 && numres >= 0) {
+                if (Long.MAX_VALUE - delta < numres) {
+                    throw new DeltaTooBigException();
+                }
+            } else if (delta < 0 && numres < 0) {
+                if (delta < Long.MIN_VALUE - numres) {
+                    throw new DeltaTooBigException();
+                }
+            }
+
+            byte[] result = ascii(Long.toString(numres + delta));
+            return new Output(replace(result), result);
+        }
+
+        byte[] result = ascii(Long.toString(delta));
+        Level deepest = getDeepest();
+        if (!deepest.isObject || (!hasImmediateParent() && !isCreate)) {
+            throw new PathNotFoundException();
+        }
+        return new Output(addMember(result), result);
+    }
+
+    private Output operate() throws SubdocException {
+        switch (code) {
+            case REPLACE:
+                return new Output(replace(value), null);
+
+            case DICT_UPSERT:
+                if (path.getLast().isIndex()) {
+                    throw new InvalidPathException("DICT_UPSERT cannot have an array index as its last component");
+                }
+                if (isFound()) {
+                    return new Output(replace(value), null);
+                }
+                return new Output(dictAdd(value), null);
+
+            case DICT_ADD:
+                return new Output(dictAdd(value), null);
+
+            case ARRAY_APPEND:
+            case ARRAY_PREPEND:
+                return new Output(arrayAdd(), null);
+
+            case REMOVE:
+                return new Output(remove(), null);
+
+            case COUNTER:
+                return counter();
+
+            default:
+                throw new IllegalArgumentException("Operation cannot be spliced: " + code);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.subdoc;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+/**
+ * Resolves lookup paths (GET, EXISTS and GET_COUNT) directly against the raw bytes of a document.
+ *
+ * Unlike {@link Executor}, no JSON tree is built: the document is tokenized as the path is
+ * followed, subtrees which are not on the path are skipped, and scanning stops as soon as the
+ * target value has been delimited. The match is returned as the original bytes of the value.
+ * Consequently only the part of the document which precedes the match (and the match itself)
+ * is validated.
+ */
+public final class StreamingLookup {
+    /**
+     * A range of bytes within the document
+     */
+    public static final class Span {
+        public final int start;
+        public final int end;
+
+        Span(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private StreamingLookup() {
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Find a member of an object
+     * @param pos The offset of the opening brace
+     * @return The offset of the member's value, or -1 if there is no such member
+     */
+    static int findMember(JsonScanner sc, int pos, String name) throws DocNotJsonException {
+        byte[] nameBytes = utf8(name);
+        pos = sc.skipWhitespace(pos + 1);
+        if (sc.at(pos) == '}') {
+            return -1;
+        }
+        while (true) {
+            int keyStart = sc.skipWhitespace(pos);
+            int keyEnd = sc.skipString(keyStart);
+            int valueStart = sc.skipWhitespace(sc.expect(keyEnd, ':'));
+            if (sc.stringEquals(keyStart, keyEnd, nameBytes, name)) {
+                return valueStart;
+            }
+            pos = sc.skipWhitespace(sc.skipValue(valueStart));
+            byte b = sc.at(pos);
+            if (b == '}') {
+                return -1;
+            } else if (b != ',') {
+                throw new DocNotJsonException("Malformed JSON at offset " + pos);
+            }
+            pos++;
+        }
+    }
+
+    /**
+     * Find an element of an array
+     * @param pos The offset of the opening bracket
+     * @param index The index of the element. -1 is the last element
+     * @return The offset of the element, or -1 if there is no such element
+     */
+    static int findElement(JsonScanner sc, int pos, int index) throws DocNotJsonException {
+        pos = sc.skipWhitespace(pos + 1);
+        if (sc.at(pos) == ']') {
+            return -1;
+        }
+        int last;
+        for (int n = 0; ; n++) {
+            int start = sc.skipWhitespace(pos);
+            if (n == index) {
+                return start;
+            }
+            last = start;
+            pos = sc.skipWhitespace(sc.skipValue(start));
+            byte b = sc.at(pos);
+            if (b == ']') {
+                return index == -1 ? last : -1;
+            } else if (b != ',') {
+                throw new DocNotJsonException("Malformed JSON at offset " + pos);
+            }
+            pos++;
+        }
+    }
+
+    /**
+     * Create the error for a path which does not match the document. A malformed document is
+     * reported as such rather than as a path mismatch, so the whole document is validated first
+     */
+    private static PathMismatchException mismatch(JsonScanner sc, String message) throws DocNotJsonException {
+        sc.expectEnd(sc.skipValue(0));
+        return message == null ? new PathMismatchException() : new PathMismatchException(message);
+    }
+
+    /**
+     * Follow a single path component
+     * @param pos The offset of the parent value
+     * @return The offset of the child, or -1 if it does not exist
+     * @throws PathMismatchException if the component does not match the type of the parent
+     * @throws DocNotJsonException if the parent is not a container because the document is malformed
+     */
+    static int follow(JsonScanner sc, int pos, Component comp) throws SubdocException {
+        byte b = sc.at(pos);
+        if (comp.isIndex()) {
+            if (b != '[') {
+                throw mismatch(sc, null);
+            }
+            return findElement(sc, pos, comp.getIndex());
+        } else {
+            if (b != '{') {
+                throw mismatch(sc, null);
+            }
+            return findMember(sc, pos, comp.getString());
+        }
+    }
+
+    /**
+     * Locate the value at the given path
+     * @param doc The raw document
+     * @param path The path
+     * @return The byte range of the value
+     * @throws PathNotFoundException if the value does not exist
+     * @throws SubdocException for any other error
+     */
+    public static Span find(byte[] doc, String path) throws SubdocException {
+        Span span = new DocumentIndex(doc).locate(new Path(path));
+        if (span == null) {
+            throw new PathNotFoundException();
+        }
+        return span;
+    }
+
+    private static int countChildren(JsonScanner sc, int pos) throws SubdocException {
+        byte open = sc.at(pos);
+        if (open != '{' && open != '[') {
+            throw mismatch(sc, "GET_COUNT must point to array or dictionary");
+        }
+        byte close = open == '{' ? (byte) '}' : (byte) ']';
+        pos = sc.skipWhitespace(pos + 1);
+        if (sc.at(pos) == close) {
+            return 0;
+        }
+        int count = 0;
+        while (true) {
+            pos = sc.skipWhitespace(pos);
+            if (open == '{') {
+                pos = sc.skipWhitespace(sc.expect(sc.skipString(pos), ':'));
+            }
+            pos = sc.skipWhitespace(sc.skipValue(pos));
+            count++;
+            if (sc.at(pos) == close) {
+                return count;
+            }
+            pos = sc.expect(pos, ',');
+        }
+    }
+
+    /**
+     * Execute a lookup operation
+     * @param doc The raw document
+     * @param path The path
+     * @param op One of {@link Operation#GET}, {@link Operation#EXISTS} or {@link Operation#GET_COUNT}
+     * @return The result of the lookup: the bytes of the matched value for GET, the number of
+     * children for GET_COUNT, and an empty value for EXISTS
+     * @throws SubdocException if the lookup failed
+     */
+    public static byte[] execute(byte[] doc, String path, Operation op) throws SubdocException {
+        return execute(new DocumentIndex(doc), path, op);
+    }
+
+    /**
+     * Execute a lookup operation, using and extending the offsets known for the document
+     * @see #execute(byte[], String, Operation)
+     */
+    public static byte[] execute(DocumentIndex index, String path, Operation op) throws SubdocException {
+        Span span = index.locate(new Path(path));
+        if (span == null) {
+            throw new PathNotFoundException();
+        }
+        switch (op) {
+            case GET:
+                return Arrays.copyOfRange(index.getDocument(), span.start, span.end);
+            case EXISTS:
+                return EMPTY;
+            case GET_COUNT:
+                return Integer.toString(countChildren(index.getScanner(), span.start)).getBytes();
+            default:
+                throw new IllegalArgumentException("Not a lookup operation: " + op);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.views;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.text.Collator;
+import java.util.Comparator;
+
+/**
+ * Order-preserving binary encoding of view keys.
+ *
+ * Keys are encoded once, when they are emitted, into a byte string whose unsigned lexicographic
+ * ordering is the view collation order: {@code null < false < true < numbers < strings < arrays < objects}.
+ * Sorting and range filtering of the index may then be done with {@link #compare(byte[], byte[])}
+ * rather than by running the collation algorithm on decoded values.
+ *
+ * Each value starts with a one byte type tag. Numbers are followed by their IEEE-754 representation
+ * transformed so that it sorts as an unsigned integer. Strings are followed by their collation key
+ * (the same collator used by JavaScript's {@code localeCompare}) in which {@code 0x00} is escaped as
+ * {@code 0x00 0xFF}, and terminated by {@code 0x00 0x00}. Arrays and objects are followed by their
+ * encoded elements (or member name and value pairs) and terminated by a single {@code 0x00}, which
+ * sorts before any tag so that a shorter array sorts before a longer one sharing its prefix.
+ */
+public final class Collation {
+    static final byte T_END = 0x00;
+    static final byte T_NULL = 0x01;
+    static final byte T_FALSE = 0x02;
+    static final byte T_TRUE = 0x03;
+    static final byte T_NUMBER = 0x04;
+    static final byte T_STRING = 0x05;
+    static final byte T_ARRAY = 0x06;
+    static final byte T_OBJECT = 0x07;
+
+    private static final byte[] NULL_KEY = new byte[] { T_NULL };
+    private static final Collator COLLATOR = Collator.getInstance();
+    static {
+        // Mirror String.prototype.localeCompare as implemented by Rhino
+        COLLATOR.setStrength(Collator.IDENTICAL);
+        COLLATOR.setDecomposition(Collator.CANONICAL_DECOMPOSITION);
+    }
+
+    /**
+     * Compares encoded keys as unsigned byte strings.
+     */
+    public static final Comparator<byte[]> COMPARATOR = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] a, byte[] b) {
+            return Collation.compare(a, b);
+        }
+    };
+
+    private Collation() {
+    }
+
+    /**
+     * Encode a JSON value
+     * @param json The JSON text of the key
+     * @return The encoded key
+     * @throws IllegalArgumentException if {@code json} is not a single valid JSON value
+     */
+    public static byte[] encode(String json) {
+        // Strict readers only accept arrays and objects at the top level, so wrap the value
+        JsonReader reader = new JsonReader(new StringReader("[" + json + "]"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream(json.length() + 8);
+        try {
+            reader.beginArray();
+            encodeValue(reader, out);
+            reader.endArray();
+            if (reader.peek() != JsonToken.END_DOCUMENT) {
+                throw new IllegalArgumentException("Trailing data after JSON value");
+            }
+        } catch (IOException ex) {
+            throw new IllegalArgumentException(ex.getMessage(), ex);
+        } catch (IllegalStateException ex) {
+            throw new IllegalArgumentException(ex.getMessage(), ex);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(ex.getMessage(), ex);
+        }
+        return out.toByteArray();
+    }
+
+    private static void encodeValue(JsonReader reader, ByteArrayOutputStream out) throws IOException {
+        switch (reader.peek()) {
+            case NULL:
+                reader.nextNull();
+                out.write(T_NULL);
+                break;
+            case BOOLEAN:
+                out.write(reader.nextBoolean() ? T_TRUE : T_FALSE);
+                break;
+            case NUMBER:
+                encodeNumber(reader.nextDouble(), out);
+                break;
+            case STRING:
+                encodeString(reader.nextString(), out);
+                break;
+            case BEGIN_ARRAY:
+                reader.beginArray();
+                out.write(T_ARRAY);
+                while (reader.hasNext()) {
+                    encodeValue(reader, out);
+                }
+                reader.endArray();
+                out.write(T_END);
+                break;
+            case BEGIN_OBJECT:
+                reader.beginObject();
+                out.write(T_OBJECT);
+                while (reader.hasNext()) {
+                    encodeString(reader.nextName(), out);
+                    encodeValue(reader, out);
+                }
+                reader.endObject();
+                out.write(T_END);
+                break;
+            default:
+                throw new IllegalArgumentException("Unexpected token " + reader.peek());
+        }
+    }
+
+    private static void encodeNumber(double d, ByteArrayOutputStream out) {
+        if (d == 0) {
+            d = 0.0; // Fold -0 into 0
+        }
+        long bits = Double.doubleToLongBits(d);
+        if (bits < 0) {
+            bits = ~bits;
+        } else {
+            bits ^= Long.MIN_VALUE;
+        }
+        out.write(T_NUMBER);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (bits >>> shift) & 0xff);
+        }
+    }
+
+    private static void encodeString(String s, ByteArrayOutputStream out) {
+        byte[] collated = COLLATOR.getCollationKey(s).toByteArray();
+        out.write(T_STRING);
+        for (byte b : collated) {
+            out.write(b);
+            if (b == 0) {
+                out.write(0xff);
+            }
+        }
+        out.write(0);
+        out.write(0);
+    }
+
+    /**
+     * Compare two encoded keys
+     * @param a The first key
+     * @param b The second key
+     * @return a negative number, zero or a positive number if {@code a} collates before, equal to
+     * or after {@code b}
+     */
+    public static int compare(byte[] a, byte[] b) {
+        int len = Math.min(a.length, b.length);
+        for (int i = 0; i < len; i++) {
+            int diff = (a[i] & 0xff) - (b[i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * Get the offset just past the encoded value starting at {@code off}
+     */
+    private static int skipValue(byte[] key, int off) {
+        switch (key[off]) {
+            case T_NUMBER:
+                return off + 9;
+            case T_STRING:
+                off++;
+                while (true) {
+                    if (key[off] == 0) {
+                        if (key[off + 1] == 0) {
+                            return off + 2;
+                        }
+                        off += 2;
+                    } else {
+                        off++;
+                    }
+                }
+            case T_ARRAY:
+                off++;
+                while (key[off] != T_END) {
+                    off = skipValue(key, off);
+                }
+                return off + 1;
+            case T_OBJECT:
+                off++;
+                while (key[off] != T_END) {
+                    off = skipValue(key, skipValue(key, off));
+                }
+                return off + 1;
+            default:
+                return off + 1;
+        }
+    }
+
+    /**
+     * Get the encoded form of a key as normalized for the given group level. This is the
+     * binary equivalent of truncating an array key to its first {@code groupLevel} elements.
+     *
+     * @param key The encoded key
+     * @param groupLevel The group level. 0 groups everything under {@code null}, while a
+     *                   negative value groups by the exact key
+     * @return The encoded group key
+     */
+    static byte[] groupKey(byte[] key, int groupLevel) {
+        if (groupLevel == 0) {
+            return NULL_KEY;
+        }
+        if (groupLevel < 0 || key[0] != T_ARRAY) {
+            return key;
+        }
+        int off = 1;
+        for (int i = 0; i < groupLevel; i++) {
+            if (key[off] == T_END) {
+                return key;
+            }
+            off = skipValue(key, off);
+        }
+        if (key[off] == T_END) {
+            return key;
+        }
+        byte[] ret = new byte[off + 1];
+        System.arraycopy(key, 0, ret, 0, off);
+        ret[off] = T_END;
+        return ret;
+    }
+}
@@ -17,13 +17,19 @@ package org.couchbase.mock.views;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import org.couchbase.mock.JsonUtils;
-import org.mozilla.javascript.NativeObject;
 
+import java.io.IOException;
+import java.io.StringReader;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 /**
  *
@@ -47,6 +53,7 @@ public class Configuration {
     public static final String PARAM_INCLUSIVE_END = "inclusive_end";
     public static final String PARAM_INCLUSIVE_START = "inclusive_start";
     public static final String PARAM_DESCENDING = "descending";
+    public static final String PARAM_FULL_SET = "full_set";
 
     public Configuration() {
     }
@@ -55,6 +62,38 @@ public class Configuration {
         optMap.putAll(params);
     }
 
+    /**
+     * Get the options in a canonical form, so that equivalent queries yield equal maps. Options
+     * are sorted by name, and values which are valid JSON are re-encoded without whitespace.
+     * @return The normalized options
+     */
+    public SortedMap<String,String> getNormalized() {
+        SortedMap<String,String> ret = new TreeMap<String, String>();
+        for (Map.Entry<String,String> ent : optMap.entrySet()) {
+            ret.put(ent.getKey(), normalizeValue(ent.getValue()));
+        }
+        return ret;
+    }
+
+    private static String normalizeValue(String value) {
+        // Strict readers only accept arrays and objects at the top level, so wrap the value
+        JsonReader reader = new JsonReader(new StringReader("[" + value + "]"));
+        try {
+            JsonArray arr = JsonUtils.GSON.getAdapter(JsonArray.class).read(reader);
+            if (arr.size() == 1 && reader.peek() == JsonToken.END_DOCUMENT) {
+                return arr.get(0).toString();
+            }
+        } catch (IOException ex) {
+            // Not valid JSON
+        } catch (JsonParseException ex) {
+            // Not valid JSON
+        } catch (IllegalStateException ex) {
+            // Not valid JSON
+        }
+        // Left as is; the query will report it as invalid
+        return value;
+    }
+
     public void setJson(String key, int number) {
         optMap.put(key, Integer.toString(number));
 
@@ -75,6 +114,10 @@ public class Configuration {
         setJson(PARAM_DESCENDING, descending);
     }
 
+    public void setFullSet(boolean fullSet) {
+        setJson(PARAM_FULL_SET, fullSet);
+    }
+
     public void setEndKey(String endkey) {
         setJson(PARAM_ENDKEY, endkey);
     }
@@ -131,12 +174,4 @@ public class Configuration {
         }
         setRaw(PARAM_KEY_MULTI, decKeys.toString());
     }
-
-    NativeObject toNativeObject() {
-        NativeObject obj = new NativeObject();
-        for (Map.Entry<String,String> ent : optMap.entrySet()) {
-            obj.put(ent.getKey(), obj, ent.getValue());
-        }
-        return obj;
-    }
 }
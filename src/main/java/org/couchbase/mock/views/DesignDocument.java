@@ -16,8 +16,11 @@
 package org.couchbase.mock.views;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.script.ScriptException;
 
 import com.google.gson.JsonElement;
@@ -30,10 +33,18 @@ import org.couchbase.mock.JsonUtils;
  * @author Sergey Avseyev
  */
 public class DesignDocument {
+    /** Prefix of the names of development design documents */
+    public static final String DEV_PREFIX = "_design/dev_";
+    private static final AtomicLong nextGeneration = new AtomicLong();
 
     final private String body;
+    /** Distinguishes this document from earlier and later versions with the same ID */
+    final private long generation = nextGeneration.incrementAndGet();
     private String id;
     final private ArrayList<View> views;
+    private DesignIndexer indexer;
+    private DesignIndexer fullSetIndexer;
+    private volatile BitSet vbucketSample;
 
     private DesignDocument(String body) {
         this.body = body;
@@ -89,6 +100,20 @@ public class DesignDocument {
                 }
                 views.add(new View(entry.getKey(), mapSrc, reduceSrc));
             }
+
+            // Index all the views in a single pass over the bucket
+            List<Indexer> indexers = new ArrayList<Indexer>(views.size());
+            for (View view : views) {
+                indexers.add(view.getIndexer());
+            }
+            indexer = new DesignIndexer(indexers);
+            if (isDevelopment()) {
+                // Queries with full_set=true are served from a separate index over all vBuckets
+                fullSetIndexer = new DesignIndexer(indexers);
+            }
+            for (int i = 0; i < views.size(); i++) {
+                views.get(i).setDesign(this, i);
+            }
         } catch (ScriptException ex) {
             throw new DesignParseException(ex);
         } catch (JsonParseException ex) {
@@ -103,6 +128,13 @@ public class DesignDocument {
         return body;
     }
 
+    /**
+     * @return A number distinguishing this version of the design document from all others
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
     /**
      * Get the name of the design document
      * @return A string in the form of {@code _design/$name}
@@ -118,4 +150,46 @@ public class DesignDocument {
     public ArrayList<View> getViews() {
         return views;
     }
+
+    /**
+     * Check whether this is a development design document, i.e. whether its name begins with {@code dev_}
+     * @return true if this is a development design document
+     */
+    public boolean isDevelopment() {
+        return id.startsWith(DEV_PREFIX);
+    }
+
+    /**
+     * Get the indexer shared by all the views of this design document. For development design
+     * documents this indexes only the vBucket sample, if one was set
+     * @return The design document's indexer
+     */
+    public DesignIndexer getIndexer() {
+        return indexer;
+    }
+
+    /**
+     * Get the indexer used for {@code full_set=true} queries
+     * @return The full set indexer, or null if this is not a development design document
+     */
+    public DesignIndexer getFullSetIndexer() {
+        return fullSetIndexer;
+    }
+
+    /**
+     * Restrict the index of a development design document to a subset of the vBuckets, which
+     * will be used unless the view is queried with {@code full_set=true}. Has no effect on
+     * production design documents
+     * @param sample The vBuckets to index, or null to index all vBuckets
+     */
+    public void setVBucketSample(BitSet sample) {
+        vbucketSample = sample == null ? null : (BitSet) sample.clone();
+    }
+
+    /**
+     * @return The vBuckets indexed by default, or null if all vBuckets are indexed
+     */
+    public BitSet getVBucketSample() {
+        return isDevelopment() ? vbucketSample : null;
+    }
 }
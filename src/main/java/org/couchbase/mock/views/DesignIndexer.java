@@ -0,0 +1,193 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.views;
+
+import org.couchbase.mock.memcached.Item;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.json.JsonParser;
+
+import java.nio.charset.CharacterCodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maintains the indexes of all the views of a design document. Like the Couchbase view engine,
+ * each modified document is decoded once and then passed to every map function of the design
+ * document in a single pass; the emitted rows are routed to the index of the view whose map
+ * function emitted them.
+ *
+ * Views whose map functions were compiled to Java only need a few fields of each document,
+ * which are extracted with a single streaming parse of the raw document shared by all such
+ * views. The document is only decoded into JavaScript objects if some map function must be
+ * run by Rhino.
+ */
+public class DesignIndexer {
+    private static final List<IndexRow> NO_ROWS = Collections.emptyList();
+
+    /** Rows emitted by a single document (one list per view), along with the revision they were emitted for */
+    private static class DocRows {
+        final long cas;
+        final List<List<IndexRow>> rows;
+
+        DocRows(long cas, List<List<IndexRow>> rows) {
+            this.cas = cas;
+            this.rows = rows;
+        }
+    }
+
+    private final Indexer[] indexers;
+    private final Scriptable scope;
+    /** Union of the fields needed by compiled map functions, or null if none were compiled */
+    private final DocumentFields.PathSet fieldPaths;
+    private Map<String, DocRows> byId = new HashMap<String, DocRows>();
+    private final List<List<IndexRow>> sortedRows;
+
+    /**
+     * Create a new design document indexer
+     * @param indexers The map functions of the design document's views. The index of each
+     *                 view's rows is identified by the position of its map function in this list
+     */
+    public DesignIndexer(List<Indexer> indexers) {
+        this.indexers = indexers.toArray(new Indexer[indexers.size()]);
+        this.sortedRows = new ArrayList<List<IndexRow>>(indexers.size());
+        DocumentFields.PathSet paths = null;
+        for (Indexer indexer : indexers) {
+            sortedRows.add(NO_ROWS);
+            if (indexer.getFieldPaths() != null) {
+                if (paths == null) {
+                    paths = new DocumentFields.PathSet();
+                }
+                paths.addAll(indexer.getFieldPaths());
+            }
+        }
+        fieldPaths = paths;
+
+        Context cx = Context.enter();
+        try {
+            scope = cx.initStandardObjects();
+        } finally {
+            Context.exit();
+        }
+    }
+
+    private List<List<IndexRow>> mapItem(Item item, Context cx) {
+        String id = item.getKeySpec().key;
+        List<List<IndexRow>> rows = new ArrayList<List<IndexRow>>(indexers.length);
+        boolean needScript = false;
+
+        DocumentFields fields = null;
+        if (fieldPaths != null) {
+            fields = DocumentFields.scan(item.getValue(), fieldPaths);
+        }
+        for (int i = 0; i < indexers.length; i++) {
+            rows.add(fields == null ? null : indexers[i].map(id, fields));
+            needScript |= rows.get(i) == null;
+        }
+        if (!needScript) {
+            return rows;
+        }
+
+        Scriptable meta = cx.newObject(scope);
+        meta.put("id", meta, id);
+        meta.put("rev", meta, Context.javaToJS(item.getCas(), scope));
+
+        Object doc;
+        try {
+            doc = new JsonParser(cx, scope).parseValue(item.getUtf8());
+            meta.put("type", meta, "json");
+        } catch (JsonParser.ParseException ex) {
+            doc = item.getBase64();
+            meta.put("type", meta, "base64");
+        } catch (CharacterCodingException ex) {
+            doc = item.getBase64();
+            meta.put("type", meta, "base64");
+        }
+
+        for (int i = 0; i < indexers.length; i++) {
+            if (rows.get(i) == null) {
+                rows.set(i, indexers[i].map(id, doc, meta, cx));
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Run the indexer on the given iterable of items. Only items which were modified since the
+     * last run are passed to the map functions, and the index of a view is only re-sorted if the
+     * set of rows emitted for it has changed.
+     *
+     * @param items The items to index
+     * @param cx The current execution context
+     */
+    public synchronized void run(Iterable<Item> items, Context cx) {
+        Map<String, DocRows> prev = byId;
+        Map<String, DocRows> next = new HashMap<String, DocRows>(prev.size());
+        boolean[] changed = new boolean[indexers.length];
+        boolean removed;
+        int seen = 0;
+
+        for (Item item : items) {
+            String id = item.getKeySpec().key;
+            DocRows last = prev.get(id);
+            if (last != null) {
+                seen++;
+                if (last.cas == item.getCas()) {
+                    next.put(id, last);
+                    continue;
+                }
+            }
+
+            List<List<IndexRow>> rows = mapItem(item, cx);
+            next.put(id, new DocRows(item.getCas(), rows));
+            for (int i = 0; i < rows.size(); i++) {
+                if (!rows.get(i).isEmpty() || (last != null && !last.rows.get(i).isEmpty())) {
+                    changed[i] = true;
+                }
+            }
+        }
+
+        // If some documents were removed, any of the views may have lost rows
+        removed = seen != prev.size();
+        byId = next;
+
+        for (int i = 0; i < indexers.length; i++) {
+            if (!changed[i] && !removed) {
+                continue;
+            }
+            List<IndexRow> all = new ArrayList<IndexRow>();
+            for (DocRows docRows : next.values()) {
+                all.addAll(docRows.rows.get(i));
+            }
+            Collections.sort(all, IndexRow.COMPARATOR);
+            sortedRows.set(i, Collections.unmodifiableList(all));
+        }
+    }
+
+    /**
+     * Get the rows of a view's index, in ascending collation order. The returned list is
+     * not modified by subsequent calls to {@link #run(Iterable, org.mozilla.javascript.Context)}
+     * @param view The position of the view's map function
+     * @return The indexed rows
+     */
+    synchronized List<IndexRow> getRows(int view) {
+        return sortedRows.get(view);
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.views;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.couchbase.mock.JsonUtils;
+import org.mozilla.javascript.ScriptRuntime;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The values of selected fields of a JSON document, extracted with a streaming parse of the
+ * raw document. Only the fields which are needed are materialized; the rest of the document
+ * is validated and skipped.
+ *
+ * Values are represented the way the JavaScript map function would see them, and their JSON
+ * form is the one {@code JSON.stringify} would produce.
+ */
+final class DocumentFields {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    // Unlike JsonParser, the adapter does not make the reader lenient
+    private static final TypeAdapter<JsonElement> ELEMENT_ADAPTER = JsonUtils.GSON.getAdapter(JsonElement.class);
+
+    enum Type {
+        /** The field does not exist */
+        UNDEFINED,
+        NULL,
+        BOOLEAN,
+        NUMBER,
+        STRING,
+        ARRAY,
+        OBJECT,
+        /** The field's value depends on JavaScript semantics which are not emulated */
+        UNKNOWN
+    }
+
+    static final class Value {
+        static final Value UNDEFINED = new Value(Type.UNDEFINED, null, false, 0, null);
+        static final Value UNKNOWN = new Value(Type.UNKNOWN, null, false, 0, null);
+        static final Value NULL = new Value(Type.NULL, "null", false, 0, null);
+        static final Value TRUE = new Value(Type.BOOLEAN, "true", true, 0, null);
+        static final Value FALSE = new Value(Type.BOOLEAN, "false", false, 0, null);
+
+        final Type type;
+        /** JSON representation. Null for undefined values, or values which were skipped */
+        final String json;
+        final boolean bool;
+        final double number;
+        final String string;
+
+        private Value(Type type, String json, boolean bool, double number, String string) {
+            this.type = type;
+            this.json = json;
+            this.bool = bool;
+            this.number = number;
+            this.string = string;
+        }
+
+        static Value ofNumber(double d) {
+            // Like JSON.stringify, write infinite numbers (e.g. 1e400) and NaN as null
+            String json = Double.isInfinite(d) || Double.isNaN(d) ? "null" : ScriptRuntime.numberToString(d, 10);
+            return new Value(Type.NUMBER, json, false, d, null);
+        }
+
+        static Value ofString(String s) {
+            return new Value(Type.STRING, quote(s), false, 0, s);
+        }
+
+        /**
+         * An array built by the map function. Only its JSON form is ever needed
+         */
+        static Value ofArray(String json) {
+            return new Value(Type.ARRAY, json, false, 0, null);
+        }
+
+        static Value ofBoolean(boolean b) {
+            return b ? TRUE : FALSE;
+        }
+
+        static Value of(JsonElement elem) {
+            if (elem.isJsonNull()) {
+                return NULL;
+            } else if (elem.isJsonPrimitive()) {
+                JsonPrimitive prim = elem.getAsJsonPrimitive();
+                if (prim.isBoolean()) {
+                    return ofBoolean(prim.getAsBoolean());
+                } else if (prim.isNumber()) {
+                    return ofNumber(prim.getAsDouble());
+                } else {
+                    return ofString(prim.getAsString());
+                }
+            } else {
+                StringBuilder sb = new StringBuilder();
+                appendJson(elem, sb);
+                return new Value(elem.isJsonArray() ? Type.ARRAY : Type.OBJECT, sb.toString(), false, 0, null);
+            }
+        }
+
+        /**
+         * Placeholder for a value which was not materialized
+         */
+        static Value skipped(Type type) {
+            return new Value(type, null, false, 0, null);
+        }
+    }
+
+    /**
+     * A set of field paths, organized as a tree of path components
+     */
+    static final class PathSet {
+        final Map<String, PathSet> children = new HashMap<String, PathSet>();
+        boolean wanted = false;
+
+        void add(List<String> path) {
+            PathSet cur = this;
+            for (String component : path) {
+                PathSet next = cur.children.get(component);
+                if (next == null) {
+                    next = new PathSet();
+                    cur.children.put(component, next);
+                }
+                cur = next;
+            }
+            cur.wanted = true;
+        }
+
+        void addAll(PathSet other) {
+            wanted |= other.wanted;
+            for (Map.Entry<String, PathSet> ent : other.children.entrySet()) {
+                PathSet mine = children.get(ent.getKey());
+                if (mine == null) {
+                    mine = new PathSet();
+                    children.put(ent.getKey(), mine);
+                }
+                mine.addAll(ent.getValue());
+            }
+        }
+
+        boolean isEmpty() {
+            return children.isEmpty();
+        }
+    }
+
+    private final Map<List<String>, Value> values;
+
+    private DocumentFields(Map<List<String>, Value> values) {
+        this.values = values;
+    }
+
+    /**
+     * Get the value at the given path
+     * @param path The path components, relative to the document root
+     * @return The value. This is {@link Value#UNDEFINED} if the path does not exist, and
+     * {@link Value#UNKNOWN} if accessing it would involve a property of a non-object value
+     */
+    Value get(List<String> path) {
+        for (int i = 1; i < path.size(); i++) {
+            Value parent = values.get(path.subList(0, i));
+            if (parent == null || parent.type != Type.OBJECT) {
+                return Value.UNKNOWN;
+            }
+        }
+        Value ret = values.get(path);
+        return ret == null ? Value.UNDEFINED : ret;
+    }
+
+    /**
+     * Extract fields from a document
+     * @param doc The raw document
+     * @param paths The fields to extract
+     * @return The extracted fields, or null if the document is not a valid UTF-8 JSON object
+     */
+    static DocumentFields scan(byte[] doc, PathSet paths) {
+        JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(doc), UTF8.newDecoder()));
+        Map<List<String>, Value> values = new HashMap<List<String>, Value>();
+        try {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                return null;
+            }
+            if (!scanObject(reader, paths, new ArrayList<String>(), values)) {
+                return null;
+            }
+            if (reader.peek() != JsonToken.END_DOCUMENT) {
+                return null;
+            }
+        } catch (IOException ex) {
+            return null;
+        } catch (JsonParseException ex) {
+            return null;
+        } catch (IllegalStateException ex) {
+            return null;
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        return new DocumentFields(values);
+    }
+
+    private static List<String> childPath(List<String> parent, String name) {
+        List<String> ret = new ArrayList<String>(parent.size() + 1);
+        ret.addAll(parent);
+        ret.add(name);
+        return ret;
+    }
+
+    private static Type tokenType(JsonToken token) {
+        switch (token) {
+            case NULL:
+                return Type.NULL;
+            case BOOLEAN:
+                return Type.BOOLEAN;
+            case NUMBER:
+                return Type.NUMBER;
+            case STRING:
+                return Type.STRING;
+            case BEGIN_ARRAY:
+                return Type.ARRAY;
+            case BEGIN_OBJECT:
+                return Type.OBJECT;
+            default:
+                return Type.UNKNOWN;
+        }
+    }
+
+    /**
+     * @return false if the object contained duplicate members on a path of interest, in which
+     * case the field values are ambiguous
+     */
+    private static boolean scanObject(JsonReader reader, PathSet node, List<String> prefix,
+                                      Map<List<String>, Value> values) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            PathSet child = node.children.get(name);
+            if (child == null) {
+                reader.skipValue();
+                continue;
+            }
+
+            List<String> path = childPath(prefix, name);
+            if (values.containsKey(path)) {
+                return false;
+            }
+
+            if (child.wanted) {
+                record(path, ELEMENT_ADAPTER.read(reader), child, values);
+            } else if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                values.put(path, Value.skipped(Type.OBJECT));
+                if (!scanObject(reader, child, path, values)) {
+                    return false;
+                }
+            } else {
+                values.put(path, Value.skipped(tokenType(reader.peek())));
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return true;
+    }
+
+    private static void record(List<String> path, JsonElement elem, PathSet node, Map<List<String>, Value> values) {
+        values.put(path, Value.of(elem));
+        if (!elem.isJsonObject()) {
+            return;
+        }
+        JsonObject obj = elem.getAsJsonObject();
+        for (Map.Entry<String, PathSet> ent : node.children.entrySet()) {
+            JsonElement childElem = obj.get(ent.getKey());
+            if (childElem != null) {
+                record(childPath(path, ent.getKey()), childElem, ent.getValue(), values);
+            }
+        }
+    }
+
+    /**
+     * Quote a string the way {@code JSON.stringify} does
+     */
+    static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2);
+        appendQuoted(s, sb);
+        return sb.toString();
+    }
+
+    private static void appendQuoted(String s, StringBuilder sb) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\b':
+                    sb.append("\\b");
+                    break;
+                case '\f':
+                    sb.append("\\f");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < ' ') {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+                    break;
+            }
+        }
+        sb.append('"');
+    }
+
+    private static void appendJson(JsonElement elem, StringBuilder sb) {
+        if (elem.isJsonObject()) {
+            sb.append('{');
+            boolean first = true;
+            for (Map.Entry<String, JsonElement> ent : elem.getAsJsonObject().entrySet()) {
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                appendQuoted(ent.getKey(), sb);
+                sb.append(':');
+                appendJson(ent.getValue(), sb);
+            }
+            sb.append('}');
+        } else if (elem.isJsonArray()) {
+            JsonArray arr = elem.getAsJsonArray();
+            sb.append('[');
+            for (int i = 0; i < arr.size(); i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                appendJson(arr.get(i), sb);
+            }
+            sb.append(']');
+        } else {
+            sb.append(Value.of(elem).json);
+        }
+    }
+}
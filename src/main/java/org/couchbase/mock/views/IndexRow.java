@@ -0,0 +1,48 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.views;
+
+import java.util.Comparator;
+
+/**
+ * A single row emitted by a map function. Rows are ordered by their encoded key and then
+ * by the ID of the document which emitted them.
+ */
+final class IndexRow {
+    final String id;
+    final byte[] key;
+    final String keyJson;
+    final String valueJson;
+
+    static final Comparator<IndexRow> COMPARATOR = new Comparator<IndexRow>() {
+        @Override
+        public int compare(IndexRow a, IndexRow b) {
+            int ret = Collation.compare(a.key, b.key);
+            if (ret == 0) {
+                ret = a.id.compareTo(b.id);
+            }
+            return ret;
+        }
+    };
+
+    IndexRow(String id, String keyJson, String valueJson) {
+        this.id = id;
+        this.keyJson = keyJson;
+        this.valueJson = valueJson;
+        this.key = Collation.encode(keyJson);
+    }
+}
@@ -1,69 +1,113 @@
 package org.couchbase.mock.views;
 
-import org.couchbase.mock.memcached.Item;
-import org.couchbase.mock.util.ReaderUtils;
 import org.mozilla.javascript.*;
 
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
- * This class maintains an index on all items within a bucket. It is first created when
- * the view {@link org.couchbase.mock.views.View} is created, and is updated as necessary
+ * A compiled map function. The indexer passes documents to the map function and collects
+ * the rows it emits. Emitted keys are encoded via {@link Collation} as they are emitted, so
+ * that the index may be sorted and searched using plain byte comparisons.
+ *
+ * Documents are decoded and fed to the indexers of a design document by {@link DesignIndexer}.
+ *
+ * If the map function is simple enough to be compiled by {@link MapCompiler}, documents are
+ * mapped in Java from the fields extracted by a streaming parse of the raw document, and
+ * the JavaScript function is only invoked for documents the compiled form cannot handle.
  */
 public class Indexer {
-    private static final String INDEX_JS;
-    private static final Object[] NO_ARGS = new Object[] {};
-
-    static {
-        try {
-            INDEX_JS = ReaderUtils.fromResource("views/index.js");
-        } catch (IOException ex) {
-            throw new RuntimeException(ex);
-        }
-    }
+    private static final List<IndexRow> NO_ROWS = Collections.emptyList();
 
     private final Scriptable scope;
     private final Function mapFunction;
-    private final Function indexFunction;
-    private Scriptable indexResults = null;
+    private final MapCompiler.CompiledMap compiled;
+
+    // State for the document currently being mapped
+    private String currentId;
+    private List<IndexRow> currentRows;
 
     private Indexer(String mapTxt, Context cx) {
         scope = new ImporterTopLevel(cx);
-        cx.evaluateString(scope, INDEX_JS, "index.js", 1, null); // Index source
-        cx.evaluateString(scope, JavascriptRun.getCollateJS(), "collate.js", 1, null); // Collation
         mapFunction = cx.compileFunction(scope, mapTxt, "map", 1, null);
+        compiled = MapCompiler.compile(mapTxt);
 
-        // var index = new Index()
-        indexResults = cx.newObject(scope, "Index");
+        BaseFunction emitFunc = new BaseFunction() {
+            @Override
+            public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+                emit(cx, args.length > 0 ? args[0] : null, args.length > 1 ? args[1] : null);
+                return Undefined.instance;
+            }
+        };
+        ScriptRuntime.setFunctionProtoAndParent(emitFunc, scope);
+        scope.put("emit", scope, emitFunc);
+    }
 
-        indexFunction = (Function) indexResults.getPrototype().get("indexDoc", indexResults);
+    private String stringify(Context cx, Object o) {
+        if (o == null || o == Undefined.instance) {
+            return "null";
+        }
+        Object ret = NativeJSON.stringify(cx, scope, o, null, null);
+        if (ret instanceof String) {
+            return (String) ret;
+        }
+        return "null";
+    }
 
-        // var emit = index.emit
-        Function emitFunc = (Function) indexResults.getPrototype().get("emit", indexResults);
-        emitFunc = new BoundFunction(cx, scope, emitFunc, indexResults, NO_ARGS);
-        scope.put("emit", scope, emitFunc);
+    private void emit(Context cx, Object key, Object value) {
+        if (currentRows == null) {
+            throw Context.reportRuntimeError("emit() called outside of map function");
+        }
+        currentRows.add(new IndexRow(currentId, stringify(cx, key), stringify(cx, value)));
     }
 
     /**
-     * Run the indexer on the given iterable of items. This will attempt to apply some
-     * optimizations to ensure that only items which need re-indexing are actually passed
-     * to the map function.
-     *
-     * @param items The items to index
-     * @param cx The current execution context
+     * @return The document fields needed by the compiled map function, or null if the map
+     * function could not be compiled and must always be run by JavaScript
      */
-    public void run(Iterable<Item> items, Context cx) {
-        Function prepareFunc = (Function) indexResults.getPrototype().get("prepare", indexResults);
-        prepareFunc.call(cx, scope, indexResults, NO_ARGS);
+    DocumentFields.PathSet getFieldPaths() {
+        return compiled == null ? null : compiled.getPaths();
+    }
 
-        Object args[] = new Object[] { null, mapFunction };
-        for (Item item : items) {
-            args[0] = item;
-            indexFunction.call(cx, scope, indexResults, args);
+    /**
+     * Map a single JSON object document using the compiled map function
+     * @param id The ID of the document
+     * @param fields The fields listed by {@link #getFieldPaths()}
+     * @return The rows emitted by the document, or null if the document must be passed to
+     * {@link #map(String, Object, org.mozilla.javascript.Scriptable, org.mozilla.javascript.Context)}
+     */
+    List<IndexRow> map(String id, DocumentFields fields) {
+        if (compiled == null) {
+            return null;
         }
+        List<IndexRow> ret = compiled.map(id, fields);
+        if (ret != null && ret.isEmpty()) {
+            return NO_ROWS;
+        }
+        return ret;
+    }
 
-        Function doneFunc = (Function) indexResults.getPrototype().get("setDone", indexResults);
-        doneFunc.call(cx, scope, indexResults, NO_ARGS);
+    /**
+     * Pass a single document to the map function
+     * @param id The ID of the document
+     * @param doc The decoded document
+     * @param meta The document's metadata
+     * @param cx The current execution context
+     * @return The rows emitted by the document
+     */
+    synchronized List<IndexRow> map(String id, Object doc, Scriptable meta, Context cx) {
+        currentId = id;
+        currentRows = new ArrayList<IndexRow>(1);
+        try {
+            mapFunction.call(cx, scope, scope, new Object[] { doc, meta });
+        } catch (RhinoException ex) {
+            System.err.println(ex.getMessage());
+        }
+        List<IndexRow> ret = currentRows;
+        currentRows = null;
+        currentId = null;
+        return ret.isEmpty() ? NO_ROWS : ret;
     }
 
     /**
@@ -78,13 +122,4 @@ public class Indexer {
             Context.exit();
         }
     }
-
-    /**
-     * Get the underlying Javascript indexed rows, suitable for passing to
-     * {@link org.couchbase.mock.views.JavascriptRun#execute(org.mozilla.javascript.NativeObject, org.mozilla.javascript.Scriptable, org.mozilla.javascript.Scriptable, org.mozilla.javascript.Context)}
-     * @return The JavaScript index
-     */
-    Scriptable getLastResults() {
-        return indexResults;
-    }
-}
\ No newline at end of file
+}
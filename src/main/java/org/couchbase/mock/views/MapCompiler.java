@@ -0,0 +1,721 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.views;
+
+import org.couchbase.mock.views.DocumentFields.Type;
+import org.couchbase.mock.views.DocumentFields.Value;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compiles simple, declarative map functions into Java so that they can be run without
+ * a JavaScript engine. The recognized subset covers the vast majority of map functions
+ * found in practice:
+ *
+ * <pre>
+ * function(doc, meta) {
+ *   if (doc.type == "beer" &amp;&amp; doc.name) {
+ *     emit([doc.brewery_id, doc.name], null);
+ *   }
+ * }
+ * </pre>
+ *
+ * <ul>
+ *     <li>The body may consist of {@code emit()} calls, {@code if}/{@code else} statements and blocks</li>
+ *     <li>Conditions may use {@code ==}, {@code ===}, {@code !=}, {@code !==}, truthiness,
+ *     {@code !}, {@code &&}, {@code ||} and parentheses</li>
+ *     <li>Values may be document fields ({@code doc.a.b} or {@code doc["a"]}), {@code meta.id},
+ *     {@code meta.type}, string, number, boolean, null and undefined literals, and arrays of those</li>
+ * </ul>
+ *
+ * Anything else is rejected by {@link #compile(String)}, and the function is executed by Rhino.
+ * A compiled function may also decline an individual document whose evaluation would depend on
+ * JavaScript semantics which are not emulated here (for example comparing values of different
+ * types, or accessing a property of a non-object), in which case that document is passed to
+ * Rhino instead.
+ */
+final class MapCompiler {
+    private static final Fallback FALLBACK = new Fallback();
+
+    /** Thrown when a document must be handed to the JavaScript map function */
+    private static final class Fallback extends Exception {
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    /** Thrown when the map function is not in the supported subset */
+    private static final class Unsupported extends Exception {
+        Unsupported(String reason) {
+            super(reason);
+        }
+    }
+
+    private static final class Context {
+        final String id;
+        final DocumentFields fields;
+        final List<IndexRow> rows = new ArrayList<IndexRow>(1);
+
+        Context(String id, DocumentFields fields) {
+            this.id = id;
+            this.fields = fields;
+        }
+    }
+
+    private interface Expr {
+        Value eval(Context ctx) throws Fallback;
+    }
+
+    private interface Cond {
+        boolean test(Context ctx) throws Fallback;
+    }
+
+    private interface Stmt {
+        void exec(Context ctx) throws Fallback;
+    }
+
+    /**
+     * A map function compiled to Java
+     */
+    static final class CompiledMap {
+        private final Stmt body;
+        private final DocumentFields.PathSet paths;
+
+        private CompiledMap(Stmt body, DocumentFields.PathSet paths) {
+            this.body = body;
+            this.paths = paths;
+        }
+
+        /**
+         * @return The document fields referenced by the map function
+         */
+        DocumentFields.PathSet getPaths() {
+            return paths;
+        }
+
+        /**
+         * Map a single document
+         * @param id The ID of the document
+         * @param fields The referenced fields of the document, which must be a JSON object
+         * @return The emitted rows, or null if the document must be mapped by the JavaScript function
+         */
+        List<IndexRow> map(String id, DocumentFields fields) {
+            Context ctx = new Context(id, fields);
+            try {
+                body.exec(ctx);
+            } catch (Fallback ex) {
+                return null;
+            }
+            return ctx.rows;
+        }
+    }
+
+    // Tokenizer
+
+    private enum TokenType {
+        IDENT,
+        STRING,
+        NUMBER,
+        PUNCT,
+        EOF
+    }
+
+    private static final class Token {
+        final TokenType type;
+        final String text;
+
+        Token(TokenType type, String text) {
+            this.type = type;
+            this.text = text;
+        }
+
+        boolean is(String s) {
+            return (type == TokenType.PUNCT || type == TokenType.IDENT) && text.equals(s);
+        }
+    }
+
+    private static final String[] PUNCTUATORS = {
+            "===", "!==", "==", "!=", "&&", "||", "(", ")", "{", "}", "[", "]", ",", ";", ".", "!", "-"
+    };
+
+    private static boolean isIdentStart(char c) {
+        return Character.isLetter(c) || c == '_' || c == '$';
+    }
+
+    private static boolean isIdentPart(char c) {
+        return isIdentStart(c) || Character.isDigit(c);
+    }
+
+    private static List<Token> tokenize(String src) throws Unsupported {
+        List<Token> tokens = new ArrayList<Token>();
+        int i = 0;
+        int len = src.length();
+
+        while (i < len) {
+            char c = src.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (src.startsWith("//", i)) {
+                while (i < len && src.charAt(i) != '\n') {
+                    i++;
+                }
+            } else if (src.startsWith("/*", i)) {
+                int end = src.indexOf("*/", i + 2);
+                if (end < 0) {
+                    throw new Unsupported("Unterminated comment");
+                }
+                i = end + 2;
+            } else if (isIdentStart(c)) {
+                int begin = i;
+                while (i < len && isIdentPart(src.charAt(i))) {
+                    i++;
+                }
+                tokens.add(new Token(TokenType.IDENT, src.substring(begin, i)));
+            } else if (Character.isDigit(c)) {
+                int begin = i;
+                while (i < len && (Character.isLetterOrDigit(src.charAt(i)) || src.charAt(i) == '.' ||
+                        ((src.charAt(i) == '+' || src.charAt(i) == '-') && (src.charAt(i - 1) == 'e' || src.charAt(i - 1) == 'E')))) {
+                    i++;
+                }
+                String num = src.substring(begin, i);
+                if (!num.matches("(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][+-]?[0-9]+)?")) {
+                    throw new Unsupported("Unsupported number " + num);
+                }
+                tokens.add(new Token(TokenType.NUMBER, num));
+            } else if (c == '"' || c == '\'') {
+                StringBuilder sb = new StringBuilder();
+                i++;
+                while (true) {
+                    if (i >= len) {
+                        throw new Unsupported("Unterminated string");
+                    }
+                    char sc = src.charAt(i++);
+                    if (sc == c) {
+                        break;
+                    } else if (sc == '\n') {
+                        throw new Unsupported("Newline in string");
+                    } else if (sc != '\\') {
+                        sb.append(sc);
+                        continue;
+                    }
+                    if (i >= len) {
+                        throw new Unsupported("Unterminated string");
+                    }
+                    char esc = src.charAt(i++);
+                    switch (esc) {
+                        case 'n': sb.append('\n'); break;
+                        case 't': sb.append('\t'); break;
+                        case 'r': sb.append('\r'); break;
+                        case 'b': sb.append('\b'); break;
+                        case 'f': sb.append('\f'); break;
+                        case 'v': sb.append('\u000b'); break;
+                        case '\\': sb.append('\\'); break;
+                        case '\'': sb.append('\''); break;
+                        case '"': sb.append('"'); break;
+                        case 'u':
+                            if (i + 4 > len) {
+                                throw new Unsupported("Bad escape");
+                            }
+                            try {
+                                sb.append((char) Integer.parseInt(src.substring(i, i + 4), 16));
+                            } catch (NumberFormatException ex) {
+                                throw new Unsupported("Bad escape");
+                            }
+                            i += 4;
+                            break;
+                        default:
+                            throw new Unsupported("Unsupported escape");
+                    }
+                }
+                tokens.add(new Token(TokenType.STRING, sb.toString()));
+            } else {
+                String punct = null;
+                for (String p : PUNCTUATORS) {
+                    if (src.startsWith(p, i)) {
+                        punct = p;
+                        break;
+                    }
+                }
+                if (punct == null) {
+                    throw new Unsupported("Unsupported character " + c);
+                }
+                tokens.add(new Token(TokenType.PUNCT, punct));
+                i += punct.length();
+            }
+        }
+        tokens.add(new Token(TokenType.EOF, ""));
+        return tokens;
+    }
+
+    // Parser
+
+    private final List<Token> tokens;
+    private int pos = 0;
+    private String docName = null;
+    private String metaName = null;
+    private final DocumentFields.PathSet paths = new DocumentFields.PathSet();
+
+    private MapCompiler(List<Token> tokens) {
+        this.tokens = tokens;
+    }
+
+    /**
+     * Compile a map function
+     * @param src The source of the map function
+     * @return The compiled function, or null if the function is not in the supported subset
+     */
+    static CompiledMap compile(String src) {
+        try {
+            MapCompiler compiler = new MapCompiler(tokenize(src));
+            Stmt body = compiler.parseFunction();
+            return new CompiledMap(body, compiler.paths);
+        } catch (Unsupported ex) {
+            return null;
+        }
+    }
+
+    private Token peek() {
+        return tokens.get(pos);
+    }
+
+    private Token next() {
+        Token ret = tokens.get(pos);
+        if (ret.type != TokenType.EOF) {
+            pos++;
+        }
+        return ret;
+    }
+
+    private boolean accept(String s) {
+        if (peek().is(s)) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(String s) throws Unsupported {
+        if (!accept(s)) {
+            throw new Unsupported("Expected " + s);
+        }
+    }
+
+    private String expectIdent() throws Unsupported {
+        Token tok = next();
+        if (tok.type != TokenType.IDENT) {
+            throw new Unsupported("Expected identifier");
+        }
+        return tok.text;
+    }
+
+    private Stmt parseFunction() throws Unsupported {
+        expect("function");
+        if (peek().type == TokenType.IDENT) {
+            next(); // Function name
+        }
+        expect("(");
+        if (!accept(")")) {
+            docName = expectIdent();
+            if (accept(",")) {
+                metaName = expectIdent();
+            }
+            expect(")");
+        }
+        if ("emit".equals(docName) || "emit".equals(metaName) || (docName != null && docName.equals(metaName))) {
+            throw new Unsupported("Shadowed names");
+        }
+
+        if (!peek().is("{")) {
+            throw new Unsupported("Expected function body");
+        }
+        Stmt body = parseStatement();
+        while (accept(";")) {
+            // Trailing semicolons
+        }
+        if (peek().type != TokenType.EOF) {
+            throw new Unsupported("Trailing tokens");
+        }
+        return body;
+    }
+
+    private Stmt parseStatement() throws Unsupported {
+        if (accept(";")) {
+            return new Stmt() {
+                @Override
+                public void exec(Context ctx) {
+                }
+            };
+        } else if (accept("{")) {
+            final List<Stmt> stmts = new ArrayList<Stmt>();
+            while (!accept("}")) {
+                if (peek().type == TokenType.EOF) {
+                    throw new Unsupported("Unterminated block");
+                }
+                stmts.add(parseStatement());
+            }
+            return new Stmt() {
+                @Override
+                public void exec(Context ctx) throws Fallback {
+                    for (Stmt stmt : stmts) {
+                        stmt.exec(ctx);
+                    }
+                }
+            };
+        } else if (accept("if")) {
+            expect("(");
+            final Cond cond = parseCondition();
+            expect(")");
+            final Stmt ifTrue = parseStatement();
+            final Stmt ifFalse = accept("else") ? parseStatement() : null;
+            return new Stmt() {
+                @Override
+                public void exec(Context ctx) throws Fallback {
+                    if (cond.test(ctx)) {
+                        ifTrue.exec(ctx);
+                    } else if (ifFalse != null) {
+                        ifFalse.exec(ctx);
+                    }
+                }
+            };
+        } else if (accept("emit")) {
+            expect("(");
+            Expr key = null;
+            Expr value = null;
+            if (!peek().is(")")) {
+                key = parseValue();
+                if (accept(",")) {
+                    value = parseValue();
+                }
+            }
+            expect(")");
+            if (!peek().is("}")) {
+                expect(";");
+            }
+            return new EmitStmt(key, value);
+        } else {
+            throw new Unsupported("Unsupported statement");
+        }
+    }
+
+    private Cond parseCondition() throws Unsupported {
+        final Cond lhs = parseAnd();
+        if (!accept("||")) {
+            return lhs;
+        }
+        final Cond rhs = parseCondition();
+        return new Cond() {
+            @Override
+            public boolean test(Context ctx) throws Fallback {
+                return lhs.test(ctx) || rhs.test(ctx);
+            }
+        };
+    }
+
+    private Cond parseAnd() throws Unsupported {
+        final Cond lhs = parseUnary();
+        if (!accept("&&")) {
+            return lhs;
+        }
+        final Cond rhs = parseAnd();
+        return new Cond() {
+            @Override
+            public boolean test(Context ctx) throws Fallback {
+                return lhs.test(ctx) && rhs.test(ctx);
+            }
+        };
+    }
+
+    private static boolean isComparison(Token tok) {
+        return tok.is("==") || tok.is("===") || tok.is("!=") || tok.is("!==");
+    }
+
+    private Cond parseUnary() throws Unsupported {
+        return parseUnary(false);
+    }
+
+    /**
+     * @param negated Whether this is the operand of {@code !}, which binds tighter than comparisons
+     */
+    private Cond parseUnary(boolean negated) throws Unsupported {
+        Cond ret;
+        if (accept("!")) {
+            final Cond inner = parseUnary(true);
+            ret = new Cond() {
+                @Override
+                public boolean test(Context ctx) throws Fallback {
+                    return !inner.test(ctx);
+                }
+            };
+        } else if (accept("(")) {
+            ret = parseCondition();
+            expect(")");
+        } else if (!negated) {
+            return parseComparison();
+        } else {
+            final Expr operand = parseOperand();
+            ret = new Cond() {
+                @Override
+                public boolean test(Context ctx) throws Fallback {
+                    return isTruthy(operand.eval(ctx));
+                }
+            };
+        }
+        if (isComparison(peek())) {
+            // e.g. `!a == b`, which compares a boolean with a value
+            throw new Unsupported("Comparison of boolean expression");
+        }
+        return ret;
+    }
+
+    private Cond parseComparison() throws Unsupported {
+        final Expr lhs = parseOperand();
+        Token op = peek();
+        if (!isComparison(op)) {
+            return new Cond() {
+                @Override
+                public boolean test(Context ctx) throws Fallback {
+                    return isTruthy(lhs.eval(ctx));
+                }
+            };
+        }
+        next();
+        final Expr rhs = parseOperand();
+        final boolean strict = op.text.length() == 3;
+        final boolean negate = op.text.charAt(0) == '!';
+        return new Cond() {
+            @Override
+            public boolean test(Context ctx) throws Fallback {
+                Value a = lhs.eval(ctx);
+                Value b = rhs.eval(ctx);
+                boolean eq = strict ? strictEquals(a, b) : looseEquals(a, b);
+                return eq != negate;
+            }
+        };
+    }
+
+    /** Parses a value which may appear in an emit() call */
+    private Expr parseValue() throws Unsupported {
+        if (!accept("[")) {
+            return parseOperand();
+        }
+        final List<Expr> elems = new ArrayList<Expr>();
+        if (!accept("]")) {
+            do {
+                elems.add(parseValue());
+            } while (accept(","));
+            expect("]");
+        }
+        return new Expr() {
+            @Override
+            public Value eval(Context ctx) throws Fallback {
+                StringBuilder sb = new StringBuilder("[");
+                for (int i = 0; i < elems.size(); i++) {
+                    if (i > 0) {
+                        sb.append(',');
+                    }
+                    sb.append(toJson(elems.get(i).eval(ctx)));
+                }
+                sb.append(']');
+                return Value.ofArray(sb.toString());
+            }
+        };
+    }
+
+    /** Parses a scalar: a literal, or a reference to the document or its metadata */
+    private Expr parseOperand() throws Unsupported {
+        Token tok = next();
+        if (tok.type == TokenType.STRING) {
+            return new Literal(Value.ofString(tok.text));
+        } else if (tok.type == TokenType.NUMBER) {
+            return new Literal(Value.ofNumber(Double.parseDouble(tok.text)));
+        } else if (tok.is("-") && peek().type == TokenType.NUMBER) {
+            return new Literal(Value.ofNumber(-Double.parseDouble(next().text)));
+        } else if (tok.type != TokenType.IDENT) {
+            throw new Unsupported("Expected value");
+        }
+
+        if (tok.text.equals(docName)) {
+            final List<String> path = new ArrayList<String>();
+            while (true) {
+                if (accept(".")) {
+                    path.add(expectIdent());
+                } else if (accept("[")) {
+                    Token component = next();
+                    if (component.type != TokenType.STRING) {
+                        throw new Unsupported("Computed property");
+                    }
+                    path.add(component.text);
+                    expect("]");
+                } else {
+                    break;
+                }
+            }
+            if (path.isEmpty()) {
+                throw new Unsupported("Whole document reference");
+            }
+            paths.add(path);
+            final List<String> fixedPath = Collections.unmodifiableList(path);
+            return new Expr() {
+                @Override
+                public Value eval(Context ctx) {
+                    return ctx.fields.get(fixedPath);
+                }
+            };
+        } else if (tok.text.equals(metaName)) {
+            expect(".");
+            String field = expectIdent();
+            if (field.equals("id")) {
+                return new Expr() {
+                    @Override
+                    public Value eval(Context ctx) {
+                        return Value.ofString(ctx.id);
+                    }
+                };
+            } else if (field.equals("type")) {
+                // Only JSON documents are mapped by the compiled function
+                return new Literal(Value.ofString("json"));
+            }
+            throw new Unsupported("Unsupported metadata field");
+        } else if (tok.text.equals("true")) {
+            return new Literal(Value.TRUE);
+        } else if (tok.text.equals("false")) {
+            return new Literal(Value.FALSE);
+        } else if (tok.text.equals("null")) {
+            return new Literal(Value.NULL);
+        } else if (tok.text.equals("undefined")) {
+            return new Literal(Value.UNDEFINED);
+        }
+        throw new Unsupported("Unknown identifier " + tok.text);
+    }
+
+    // Evaluation
+
+    private static final class Literal implements Expr {
+        private final Value value;
+
+        Literal(Value value) {
+            this.value = value;
+        }
+
+        @Override
+        public Value eval(Context ctx) {
+            return value;
+        }
+    }
+
+    private static final class EmitStmt implements Stmt {
+        private final Expr key;
+        private final Expr value;
+
+        EmitStmt(Expr key, Expr value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public void exec(Context ctx) throws Fallback {
+            String keyJson = key == null ? "null" : toJson(key.eval(ctx));
+            String valueJson = value == null ? "null" : toJson(value.eval(ctx));
+            ctx.rows.add(new IndexRow(ctx.id, keyJson, valueJson));
+        }
+    }
+
+    /**
+     * @return The JSON form of a value as passed to emit() or placed in an array
+     */
+    private static String toJson(Value v) throws Fallback {
+        switch (v.type) {
+            case UNDEFINED:
+                return "null";
+            case UNKNOWN:
+                throw FALLBACK;
+            default:
+                return v.json;
+        }
+    }
+
+    private static boolean isTruthy(Value v) throws Fallback {
+        switch (v.type) {
+            case UNDEFINED:
+            case NULL:
+                return false;
+            case BOOLEAN:
+                return v.bool;
+            case NUMBER:
+                return v.number != 0 && !Double.isNaN(v.number);
+            case STRING:
+                return !v.string.isEmpty();
+            case ARRAY:
+            case OBJECT:
+                return true;
+            default:
+                throw FALLBACK;
+        }
+    }
+
+    private static boolean primitiveEquals(Value a, Value b) {
+        switch (a.type) {
+            case BOOLEAN:
+                return a.bool == b.bool;
+            case NUMBER:
+                return a.number == b.number;
+            case STRING:
+                return a.string.equals(b.string);
+            default:
+                return true;
+        }
+    }
+
+    private static boolean isNullish(Value v) {
+        return v.type == Type.UNDEFINED || v.type == Type.NULL;
+    }
+
+    private static boolean isReference(Value v) {
+        return v.type == Type.ARRAY || v.type == Type.OBJECT;
+    }
+
+    private static boolean looseEquals(Value a, Value b) throws Fallback {
+        if (a.type == Type.UNKNOWN || b.type == Type.UNKNOWN) {
+            throw FALLBACK;
+        }
+        if (isNullish(a) || isNullish(b)) {
+            return isNullish(a) && isNullish(b);
+        }
+        if (isReference(a) || isReference(b) || a.type != b.type) {
+            // Would involve type coercion
+            throw FALLBACK;
+        }
+        return primitiveEquals(a, b);
+    }
+
+    private static boolean strictEquals(Value a, Value b) throws Fallback {
+        if (a.type == Type.UNKNOWN || b.type == Type.UNKNOWN) {
+            throw FALLBACK;
+        }
+        if (a.type != b.type) {
+            return false;
+        }
+        if (isReference(a)) {
+            // Identity comparison
+            throw FALLBACK;
+        }
+        return primitiveEquals(a, b);
+    }
+}
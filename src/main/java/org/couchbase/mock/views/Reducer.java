@@ -4,9 +4,12 @@ import org.couchbase.mock.util.ReaderUtils;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.ImporterTopLevel;
+import org.mozilla.javascript.NativeJSON;
 import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.json.JsonParser;
 
 import java.io.IOException;
+import java.util.List;
 
 /**
  * Class representing a compiled reduce function. This class ensures to compile
@@ -14,6 +17,7 @@ import java.io.IOException;
  * function properly.
  */
 public class Reducer {
+    private final Scriptable scope;
     private final Function reduceFunc;
 
     private final static String REDUCE_JS;
@@ -26,7 +30,7 @@ public class Reducer {
     }
 
     private Reducer(String reduceTxt, Context cx) {
-        Scriptable scope = new ImporterTopLevel(cx);
+        scope = new ImporterTopLevel(cx);
         cx.evaluateString(scope, REDUCE_JS, "reduce.js", 1, null);
 
         Scriptable builtins = (Scriptable) scope.get("BUILTIN_REDUCERS", scope);
@@ -58,4 +62,29 @@ public class Reducer {
     public Function getFunction() {
         return reduceFunc;
     }
-}
\ No newline at end of file
+
+    /**
+     * Reduce a group of rows
+     * @param cx The current execution context
+     * @param keyJson The JSON encoded (grouped) key
+     * @param valuesJson The JSON encoded values of the rows in the group
+     * @return The JSON encoded result of the reduce function
+     * @throws JsonParser.ParseException if a key or value is not valid JSON
+     */
+    String reduce(Context cx, String keyJson, List<String> valuesJson) throws JsonParser.ParseException {
+        JsonParser parser = new JsonParser(cx, scope);
+        Object key = parser.parseValue(keyJson);
+        Object[] values = new Object[valuesJson.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = parser.parseValue(valuesJson.get(i));
+        }
+
+        Object[] args = new Object[] { key, cx.newArray(scope, values), false };
+        Object result = reduceFunc.call(cx, scope, scope, args);
+        Object json = NativeJSON.stringify(cx, scope, result, null, null);
+        if (json instanceof String) {
+            return (String) json;
+        }
+        return "null";
+    }
+}
@@ -22,6 +22,10 @@ import org.jetbrains.annotations.Nullable;
 import org.mozilla.javascript.*;
 
 import javax.script.ScriptException;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**
  * This represents a compiled Couchbase View that is part of the bucket. A view
@@ -37,7 +41,9 @@ public class View {
     private final String reduceSource;
     private final Indexer indexer;
     private final Reducer reducer;
-    private final JavascriptRun jsRun;
+    private DesignIndexer designIndexer;
+    private DesignDocument design;
+    private int indexPosition;
 
 
     public View(String name, String map) throws ScriptException {
@@ -56,8 +62,9 @@ public class View {
         this.mapSource = map;
         this.reduceSource = reduce;
 
-        this.jsRun = new JavascriptRun();
         this.indexer = Indexer.create(map);
+        this.designIndexer = new DesignIndexer(Collections.singletonList(indexer));
+        this.indexPosition = 0;
         if (reduce != null) {
             this.reducer = Reducer.create(reduce);
         } else {
@@ -89,6 +96,59 @@ public class View {
         return reduceSource;
     }
 
+    Indexer getIndexer() {
+        return indexer;
+    }
+
+    /**
+     * Share the index of the design document this view is a part of
+     * @param design The design document
+     * @param position The position of this view's map function within the design document's indexer
+     */
+    void setDesign(DesignDocument design, int position) {
+        this.design = design;
+        this.designIndexer = design.getIndexer();
+        this.indexPosition = position;
+    }
+
+    private static Iterable<Item> sampleItems(final Iterable<Item> items, final BitSet sample) {
+        return new Iterable<Item>() {
+            @Override
+            public Iterator<Item> iterator() {
+                final Iterator<Item> inner = items.iterator();
+                return new Iterator<Item>() {
+                    private Item nextItem = null;
+
+                    @Override
+                    public boolean hasNext() {
+                        while (nextItem == null && inner.hasNext()) {
+                            Item item = inner.next();
+                            if (sample.get(item.getKeySpec().vbId)) {
+                                nextItem = item;
+                            }
+                        }
+                        return nextItem != null;
+                    }
+
+                    @Override
+                    public Item next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        Item ret = nextItem;
+                        nextItem = null;
+                        return ret;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
     public QueryResult execute(Iterable<Item> items) throws QueryExecutionException {
         return execute(items, null);
     }
@@ -117,69 +177,35 @@ public class View {
             config = new Configuration();
         }
 
-        Context cx = Context.enter();
-        Scriptable scope = cx.initStandardObjects();
-        NativeObject configObject = config.toNativeObject();
-
-        Scriptable redFunc = null;
-        if (reducer != null) {
-            redFunc = reducer.getFunction();
+        ViewQuery query = new ViewQuery(config, reducer != null);
+        DesignIndexer indexer = designIndexer;
+        BitSet sample = design == null ? null : design.getVBucketSample();
+        if (sample != null) {
+            // Development views only index a sample of the vBuckets, unless the full set is requested
+            if (query.isFullSet()) {
+                indexer = design.getFullSetIndexer();
+            } else {
+                items = sampleItems(items, sample);
+            }
         }
 
+        Context cx = Context.enter();
         try {
-//            long indexStart = System.currentTimeMillis();
             indexer.run(items, cx);
-//            long indexEnd = System.currentTimeMillis();
-//            System.err.printf("Indexing took %d ms%n", indexEnd-indexStart);
-
-            Scriptable indexResults = indexer.getLastResults();
-            Scriptable resultObject;
 
             try {
-//                long filterStart = System.currentTimeMillis();
-                resultObject = jsRun.execute(configObject, indexResults, redFunc, cx);
-//                long filterEnd = System.currentTimeMillis();
-//                System.err.printf("Filtering took %d ms%n", filterEnd-filterStart);
+                return query.execute(indexer.getRows(indexPosition), reducer, cx);
             } catch (JavaScriptException ex) {
                 Object thrownObject = ex.getValue();
-                String jsonException;
                 try {
-                    jsonException = (String) NativeJSON.stringify(cx, scope, thrownObject, null, null);
-                    throw new QueryExecutionException(jsonException);
+                    Scriptable scope = cx.initStandardObjects();
+                    throw new QueryExecutionException((String) NativeJSON.stringify(cx, scope, thrownObject, null, null));
                 } catch (EcmaError ex2) {
-
                     throw new QueryExecutionException(ex2.getErrorMessage());
                 }
             } catch (EcmaError parseErr) {
                 throw new QueryExecutionException(parseErr.getErrorMessage());
             }
-
-            NativeArray rows = (NativeArray) resultObject.get("rows", resultObject);
-            resultObject.delete("rows");
-
-            StringBuilder sb = new StringBuilder();
-            sb.append("{");
-            for (Object id : ((NativeObject)resultObject).getAllIds()) {
-                if (! (id instanceof String)) {
-                    throw new RuntimeException("ARGH: " + id);
-                }
-                sb.append('"').append(id).append("\":");
-                sb.append((String)NativeJSON.stringify(cx, scope, resultObject.get((String)id, resultObject), null, null));
-                sb.append(",");
-            }
-
-            sb.append("\"rows\":[\n");
-            for (int i = 0; i < rows.size(); i++) {
-                Object o = rows.get(i, rows);
-                sb.append((String)NativeJSON.stringify(cx, scope, o, null, null));
-                if (i < rows.size()-1) {
-                    sb.append(",");
-                }
-                sb.append("\n");
-            }
-            sb.append("]\n");
-            sb.append("}\n");
-            return sb.toString();
         } finally {
             Context.exit();
         }
@@ -0,0 +1,392 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.views;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import org.mozilla.javascript.Context;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The parsed options of a single view query, and the logic to apply them to an index.
+ *
+ * All key comparisons are performed on the {@link Collation} encoded form of the keys: the
+ * {@code startkey}/{@code endkey} range is located in the sorted index with a binary search, and
+ * each of the {@code keys} is likewise looked up by its encoded form.
+ */
+final class ViewQuery {
+    private static final JsonParser PARSER = new JsonParser();
+
+    private byte[] startKey;
+    private byte[] endKey;
+    private String startKeyDocId;
+    private String endKeyDocId;
+    private boolean inclusiveStart = true;
+    private boolean inclusiveEnd = false;
+    private boolean descending = false;
+    private List<byte[]> keys;
+    private boolean reduce;
+    private int groupLevel;
+    private int skip = 0;
+    private int limit = -1;
+    private boolean debug = false;
+    private boolean fullSet = false;
+
+    /**
+     * Parse the options for a query
+     * @param config The query options
+     * @param hasReducer Whether the view being queried defines a reduce function
+     * @throws QueryExecutionException if the options are invalid
+     */
+    ViewQuery(Configuration config, boolean hasReducer) throws QueryExecutionException {
+        startKey = getKey(config, Configuration.PARAM_STARTKEY);
+        endKey = getKey(config, Configuration.PARAM_ENDKEY);
+        startKeyDocId = config.optMap.get(Configuration.PARAM_STARTKEY_DOCID);
+        endKeyDocId = config.optMap.get(Configuration.PARAM_ENDKEY_DOCID);
+        inclusiveStart = getBoolean(config, Configuration.PARAM_INCLUSIVE_START, inclusiveStart);
+        inclusiveEnd = getBoolean(config, Configuration.PARAM_INCLUSIVE_END, inclusiveEnd);
+        descending = getBoolean(config, Configuration.PARAM_DESCENDING, descending);
+        debug = getBoolean(config, "debug", debug);
+        fullSet = getBoolean(config, Configuration.PARAM_FULL_SET, fullSet);
+
+        Integer iSkip = getNumber(config, Configuration.PARAM_SKIP);
+        if (iSkip != null) {
+            skip = iSkip;
+        }
+        Integer iLimit = getNumber(config, Configuration.PARAM_LIMIT);
+        if (iLimit != null) {
+            limit = iLimit;
+        }
+
+        byte[] key = getKey(config, Configuration.PARAM_KEY_SINGLE);
+        String rawKeys = config.optMap.get(Configuration.PARAM_KEY_MULTI);
+        if (key != null && rawKeys != null) {
+            throw badParam("`keys` and `key` are incompatible. Specify one or the other");
+        }
+        if (key != null) {
+            keys = Collections.singletonList(key);
+        } else if (rawKeys != null) {
+            keys = parseKeys(rawKeys);
+        }
+
+        String rawReduce = config.optMap.get(Configuration.PARAM_REDUCE);
+        reduce = rawReduce == null ? hasReducer : getBoolean(config, Configuration.PARAM_REDUCE, false);
+        if (reduce && !hasReducer) {
+            throw badParam("Invalid URL parameter `reduce` for map view.");
+        }
+
+        Integer iGroupLevel = getNumber(config, Configuration.PARAM_GROUP_LEVEL);
+        String rawGroup = config.optMap.get(Configuration.PARAM_GROUP);
+        if (iGroupLevel != null && rawGroup != null) {
+            throw badParam("Query parameter `group_level` is not compatible with `group`");
+        }
+        if (iGroupLevel != null) {
+            groupLevel = iGroupLevel;
+        } else if (getBoolean(config, Configuration.PARAM_GROUP, false)) {
+            groupLevel = -1;
+        } else {
+            groupLevel = 0;
+        }
+
+        // The range is validated in index order
+        byte[] lower = descending ? endKey : startKey;
+        byte[] upper = descending ? startKey : endKey;
+        if (lower != null && upper != null && Collation.compare(lower, upper) > 0) {
+            throw badParam("No rows can match your key range, reverse your start_key and end_key or set descending=false");
+        }
+    }
+
+    /**
+     * @return Whether a development view should be queried over all vBuckets rather than its sample
+     */
+    boolean isFullSet() {
+        return fullSet;
+    }
+
+    private static QueryExecutionException badParam(String reason) {
+        JsonObject obj = new JsonObject();
+        obj.addProperty("error", "query_parse_error");
+        obj.addProperty("reason", reason);
+        return new QueryExecutionException(obj.toString());
+    }
+
+    private static QueryExecutionException badValue(String name, String value) {
+        return badParam(String.format("invalid value for %s parameter: \"%s\"", name, value));
+    }
+
+    private static JsonElement parseJson(String name, String value) throws QueryExecutionException {
+        try {
+            return PARSER.parse(value);
+        } catch (JsonParseException ex) {
+            throw badValue(name, value);
+        }
+    }
+
+    private static byte[] getKey(Configuration config, String name) throws QueryExecutionException {
+        String value = config.optMap.get(name);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Collation.encode(value);
+        } catch (IllegalArgumentException ex) {
+            throw badValue(name, value);
+        }
+    }
+
+    private static boolean getBoolean(Configuration config, String name, boolean defaultValue) throws QueryExecutionException {
+        String value = config.optMap.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        JsonElement elem = parseJson(name, value);
+        if (!elem.isJsonPrimitive() || !elem.getAsJsonPrimitive().isBoolean()) {
+            throw badValue(name, value);
+        }
+        return elem.getAsBoolean();
+    }
+
+    private static Integer getNumber(Configuration config, String name) throws QueryExecutionException {
+        String value = config.optMap.get(name);
+        if (value == null) {
+            return null;
+        }
+        JsonElement elem = parseJson(name, value);
+        if (!elem.isJsonPrimitive() || !elem.getAsJsonPrimitive().isNumber()) {
+            throw badValue(name, value);
+        }
+        return elem.getAsInt();
+    }
+
+    private static List<byte[]> parseKeys(String rawKeys) throws QueryExecutionException {
+        JsonElement elem = parseJson(Configuration.PARAM_KEY_MULTI, rawKeys);
+        if (!elem.isJsonArray()) {
+            throw badParam("`keys` member must be a array.");
+        }
+        List<byte[]> ret = new ArrayList<byte[]>();
+        for (JsonElement cur : elem.getAsJsonArray()) {
+            ret.add(Collation.encode(cur.toString()));
+        }
+
+        // Look up each distinct key once, in index order
+        Collections.sort(ret, Collation.COMPARATOR);
+        List<byte[]> uniq = new ArrayList<byte[]>(ret.size());
+        for (byte[] key : ret) {
+            if (uniq.isEmpty() || Collation.compare(uniq.get(uniq.size() - 1), key) != 0) {
+                uniq.add(key);
+            }
+        }
+        return uniq;
+    }
+
+    private static int compareBound(IndexRow row, byte[] bound, String boundDocId) {
+        int ret = Collation.compare(row.key, bound);
+        if (ret == 0 && boundDocId != null) {
+            ret = row.id.compareTo(boundDocId);
+        }
+        return ret;
+    }
+
+    /**
+     * Find the first row in the given range which sorts after the bound
+     * @param rows The sorted rows
+     * @param from The first index to consider
+     * @param to One past the last index to consider
+     * @param bound The encoded key
+     * @param boundDocId The document ID to compare against when the key is equal. May be null
+     * @param inclusive Whether a row equal to the bound counts as being after it
+     * @return The index of the row, or {@code to} if no such row exists
+     */
+    private static int search(List<IndexRow> rows, int from, int to, byte[] bound, String boundDocId, boolean inclusive) {
+        int lo = from;
+        int hi = to;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareBound(rows.get(mid), bound, boundDocId);
+            if (cmp > 0 || (inclusive && cmp == 0)) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Select the rows matched by the key options
+     * @param rows All the rows in the index, in ascending order
+     * @return The matched rows, in the requested order
+     */
+    private List<IndexRow> select(List<IndexRow> rows) {
+        byte[] lower = startKey;
+        byte[] upper = endKey;
+        String lowerDocId = startKeyDocId;
+        String upperDocId = endKeyDocId;
+        boolean lowerInclusive = inclusiveStart;
+        boolean upperInclusive = inclusiveEnd;
+
+        if (descending) {
+            lower = endKey;
+            upper = startKey;
+            lowerDocId = endKeyDocId;
+            upperDocId = startKeyDocId;
+            lowerInclusive = inclusiveEnd;
+            upperInclusive = inclusiveStart;
+        }
+
+        int begin = 0;
+        int end = rows.size();
+        if (lower != null) {
+            begin = search(rows, begin, end, lower, lowerDocId, lowerInclusive);
+        }
+        if (upper != null) {
+            end = search(rows, begin, end, upper, upperDocId, !upperInclusive);
+        }
+
+        List<IndexRow> ret;
+        if (keys == null) {
+            ret = new ArrayList<IndexRow>(rows.subList(begin, end));
+        } else {
+            ret = new ArrayList<IndexRow>();
+            for (byte[] key : keys) {
+                int keyBegin = search(rows, begin, end, key, null, true);
+                int keyEnd = search(rows, keyBegin, end, key, null, false);
+                ret.addAll(rows.subList(keyBegin, keyEnd));
+            }
+        }
+
+        if (descending) {
+            Collections.reverse(ret);
+        }
+        return ret;
+    }
+
+    private static String groupKeyJson(String keyJson, int level) {
+        if (level == 0) {
+            return "null";
+        }
+        if (level < 0) {
+            return keyJson;
+        }
+        JsonElement elem = PARSER.parse(keyJson);
+        if (!elem.isJsonArray() || elem.getAsJsonArray().size() <= level) {
+            return keyJson;
+        }
+        JsonArray src = elem.getAsJsonArray();
+        JsonArray truncated = new JsonArray();
+        for (int i = 0; i < level; i++) {
+            truncated.add(src.get(i));
+        }
+        return truncated.toString();
+    }
+
+    private List<String> reduceRows(List<IndexRow> rows, Reducer reducer, Context cx) throws QueryExecutionException {
+        List<String> ret = new ArrayList<String>();
+        byte[] curGroup = null;
+        String curKeyJson = null;
+        List<String> values = new ArrayList<String>();
+
+        for (int i = 0; i <= rows.size(); i++) {
+            IndexRow row = i < rows.size() ? rows.get(i) : null;
+            byte[] group = row == null ? null : Collation.groupKey(row.key, groupLevel);
+            if (curGroup != null && (group == null || Collation.compare(group, curGroup) != 0)) {
+                String value;
+                try {
+                    value = reducer.reduce(cx, curKeyJson, values);
+                } catch (org.mozilla.javascript.json.JsonParser.ParseException ex) {
+                    throw new QueryExecutionException(ex.getMessage());
+                }
+                ret.add("{\"key\":" + curKeyJson + ",\"value\":" + value + "}");
+                values.clear();
+                curGroup = null;
+            }
+            if (row == null) {
+                break;
+            }
+            if (curGroup == null) {
+                curGroup = group;
+                curKeyJson = groupKeyJson(row.keyJson, groupLevel);
+            }
+            values.add(row.valueJson);
+        }
+        return ret;
+    }
+
+    /**
+     * Apply {@code skip} and {@code limit} to the results
+     */
+    private <T> List<T> page(List<T> results) {
+        if (skip > 0) {
+            results = results.subList(Math.min(skip, results.size()), results.size());
+        }
+        if (limit >= 0 && limit < results.size()) {
+            results = results.subList(0, limit);
+        }
+        return results;
+    }
+
+    private static String formatRow(IndexRow row) {
+        return "{\"key\":" + row.keyJson + ",\"value\":" + row.valueJson + ",\"id\":" + new JsonPrimitive(row.id).toString() + "}";
+    }
+
+    /**
+     * Execute the query against an index
+     * @param rows The rows of the index, in ascending order
+     * @param reducer The reducer for the view. Must be non-null if the query is to be reduced
+     * @param cx The current execution context
+     * @return The JSON response body
+     * @throws QueryExecutionException if the reduce function fails
+     */
+    String execute(List<IndexRow> rows, Reducer reducer, Context cx) throws QueryExecutionException {
+        List<IndexRow> selected = select(rows);
+        List<String> results;
+
+        if (reduce) {
+            results = page(reduceRows(selected, reducer, cx));
+        } else {
+            selected = page(selected);
+            results = new ArrayList<String>(selected.size());
+            for (IndexRow row : selected) {
+                results.add(formatRow(row));
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"total_rows\":").append(rows.size()).append(",");
+        if (debug) {
+            sb.append("\"debug_info\":{\"move along\":[\"nothing\",\"to\",\"see\",\"here\"]},");
+        }
+        sb.append("\"rows\":[\n");
+        for (int i = 0; i < results.size(); i++) {
+            sb.append(results.get(i));
+            if (i < results.size() - 1) {
+                sb.append(",");
+            }
+            sb.append("\n");
+        }
+        sb.append("]\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+}
@@ -17,6 +17,7 @@ package org.couchbase.mock;
 
 import java.io.*;
 import java.net.*;
+import java.util.HashMap;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -29,9 +30,16 @@ import java.util.Map;
 
 
 import org.couchbase.mock.client.*;
+import org.couchbase.mock.http.capi.ViewQueryCache;
+import org.couchbase.mock.memcached.Item;
+import org.couchbase.mock.memcached.KeySpec;
+import org.couchbase.mock.memcached.MemcachedServer;
 import org.couchbase.mock.util.Base64;
 import org.couchbase.mock.harakiri.HarakiriMonitor;
 import org.couchbase.mock.util.ReaderUtils;
+import org.couchbase.mock.views.Configuration;
+import org.couchbase.mock.views.DesignDocument;
+import org.couchbase.mock.views.View;
 
 
 /**
@@ -441,5 +449,68 @@ public class JMembaseTest extends TestCase {
         assertEquals(s, DDOC);
     }
 
+    private void putDesign(String body) throws IOException {
+        URL url = new URL("http://localhost:"+instance.getHttpPort()+"/default/_design/beer");
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setDoOutput(true);
+        conn.setRequestMethod("PUT");
+        conn.setRequestProperty("Content-Type", "application/json");
+        OutputStreamWriter osw = new OutputStreamWriter(conn.getOutputStream());
+        osw.write(body);
+        osw.flush();
+        osw.close();
+        conn.getInputStream().close();
+    }
+
+    private String queryView(String query) throws IOException {
+        URL url = new URL("http://localhost:"+instance.getHttpPort()+"/default/_design/beer/_view/all" + query);
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        return ReaderUtils.fromStream(conn.getInputStream());
+    }
+
+    public void testViewQueryCache() throws Exception {
+        putDesign(DDOC);
+        Bucket bucket = instance.getBuckets().get("default");
+        ViewQueryCache cache = bucket.getCAPIServer().getViewCache();
+
+        String first = queryView("?limit=10");
+        assertEquals(first, queryView("?limit=10"));
+        assertEquals(1L, cache.getStats().get("hits"));
+        assertEquals(1L, cache.getStats().get("misses"));
+
+        // Different options are cached separately
+        queryView("?limit=5");
+        assertEquals(2L, cache.getStats().get("misses"));
+
+        // A mutation in a covered vBucket invalidates the response
+        short vb = bucket.getVbIndexForKey("foo");
+        MemcachedServer owner = bucket.getVBucketInfo()[vb].getOwner();
+        owner.getStorage().getCache(owner, vb).set(new Item(new KeySpec("foo", vb), 0, 0, "{}".getBytes(), null, 0));
+        String second = queryView("?limit=10");
+        assertFalse(first.equals(second));
+        assertEquals(3L, cache.getStats().get("misses"));
+        assertEquals(second, queryView("?limit=10"));
+        assertEquals(2L, cache.getStats().get("hits"));
+
+        // Redefining the design document drops its responses
+        putDesign(DDOC);
+        assertEquals(0, cache.getStats().get("entries"));
+    }
 
+    public void testViewQueryCacheKeys() throws Exception {
+        DesignDocument design = DesignDocument.create(DDOC, "beer");
+        View view = design.getViews().get(0);
+        Map<String, String> joined = new HashMap<String, String>();
+        joined.put("descending", "ok, stale=ok");
+        Map<String, String> split = new HashMap<String, String>();
+        split.put("descending", "ok");
+        split.put("stale", "ok");
+        assertFalse(ViewQueryCache.makeKey(design, view, new Configuration(joined)).equals(
+                ViewQueryCache.makeKey(design, view, new Configuration(split))));
+
+        // A new version of the design document never shares responses with the old one
+        DesignDocument redefined = DesignDocument.create(DDOC, "beer");
+        assertFalse(ViewQueryCache.makeKey(design, view, new Configuration(split)).equals(
+                ViewQueryCache.makeKey(redefined, redefined.getViews().get(0), new Configuration(split))));
+    }
 }
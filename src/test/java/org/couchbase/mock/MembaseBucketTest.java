@@ -17,6 +17,10 @@ package org.couchbase.mock;
 import org.couchbase.mock.Bucket.BucketType;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
 import junit.framework.TestCase;
 
 /**
@@ -41,4 +45,64 @@ public class MembaseBucketTest extends TestCase {
         CouchbaseBucket instance = new CouchbaseBucket(null, config);
         assertNotNull(instance.getJSON());
     }
+
+    public void testConfigRevision() throws IOException {
+        BucketConfiguration config = new BucketConfiguration();
+        config.type = BucketType.COUCHBASE;
+        config.name = "membase";
+        config.numNodes = 4;
+        CouchbaseBucket instance = new CouchbaseBucket(null, config);
+
+        Bucket.ConfigSnapshot snapshot = instance.getConfigSnapshot();
+        assertSame(snapshot, instance.getConfigSnapshot());
+        assertSame(snapshot.getBytes(), instance.getConfigSnapshot().getBytes());
+        assertTrue(snapshot.getJSON().contains("\"rev\":" + snapshot.getRev()));
+
+        long rev = snapshot.getRev();
+        instance.failover(1);
+        assertTrue(instance.getConfigSnapshot().getRev() > rev);
+        rev = instance.getConfigSnapshot().getRev();
+
+        instance.respawn(1);
+        assertTrue(instance.getConfigSnapshot().getRev() > rev);
+        rev = instance.getConfigSnapshot().getRev();
+
+        instance.regenCoords();
+        snapshot = instance.getConfigSnapshot();
+        assertTrue(snapshot.getRev() > rev);
+        assertTrue(snapshot.getJSON().contains("\"rev\":" + snapshot.getRev()));
+    }
+
+    public void testTopologyNotifications() throws Exception {
+        BucketConfiguration config = new BucketConfiguration();
+        config.type = BucketType.COUCHBASE;
+        config.name = "membase";
+        config.numNodes = 4;
+        CouchbaseBucket instance = new CouchbaseBucket(null, config);
+
+        final List<Bucket.ConfigSnapshot> received = new CopyOnWriteArrayList<Bucket.ConfigSnapshot>();
+        instance.addTopologyListener(new Bucket.TopologyListener() {
+            @Override
+            public void topologyChanged(Bucket bucket, Bucket.ConfigSnapshot snapshot) {
+                received.add(snapshot);
+            }
+        });
+        Thread.sleep(Bucket.TOPOLOGY_DEBOUNCE_MS * 4);
+        received.clear();
+
+        // Bursts of changes are coalesced, and the final configuration is reported
+        instance.failover(1);
+        instance.respawn(1);
+        assertTrue(instance.awaitRebalance(10, TimeUnit.SECONDS));
+        Thread.sleep(Bucket.TOPOLOGY_DEBOUNCE_MS * 4);
+        assertFalse(received.isEmpty());
+        assertTrue(received.size() < config.numVBuckets);
+        assertSame(instance.getConfigSnapshot(), received.get(received.size() - 1));
+
+        // New vBucket UUIDs don't change the topology
+        received.clear();
+        instance.regenCoords();
+        Thread.sleep(Bucket.TOPOLOGY_DEBOUNCE_MS * 4);
+        assertTrue(received.isEmpty());
+    }
 }
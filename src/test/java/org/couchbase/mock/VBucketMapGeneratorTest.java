@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.couchbase.mock;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class VBucketMapGeneratorTest {
+    private static final List<String> NODES = Arrays.asList("a", "b", "c", "d");
+
+    private static List<List<String>> generate(List<List<String>> current, List<String> nodes, int numReplicas) {
+        return VBucketMapGenerator.generate(current, nodes, 1024, numReplicas);
+    }
+
+    private static void assertBalanced(List<List<String>> map, List<String> nodes, int numReplicas) {
+        Map<String, Integer> actives = new HashMap<String, Integer>();
+        Map<String, Integer> replicas = new HashMap<String, Integer>();
+        for (String node : nodes) {
+            actives.put(node, 0);
+            replicas.put(node, 0);
+        }
+        for (List<String> chain : map) {
+            assertEquals(numReplicas + 1, chain.size());
+            assertEquals(chain.size(), new HashSet<String>(chain).size());
+            actives.put(chain.get(0), actives.get(chain.get(0)) + 1);
+            for (String replica : chain.subList(1, chain.size())) {
+                replicas.put(replica, replicas.get(replica) + 1);
+            }
+        }
+        assertTrue(Collections.max(actives.values()) - Collections.min(actives.values()) <= 1);
+        if (numReplicas > 0) {
+            assertTrue(Collections.max(replicas.values()) - Collections.min(replicas.values()) <= 1);
+        }
+    }
+
+    private static int countMoves(List<List<String>> before, List<List<String>> after) {
+        int moves = 0;
+        for (int vb = 0; vb < before.size(); vb++) {
+            if (!before.get(vb).get(0).equals(after.get(vb).get(0))) {
+                moves++;
+            }
+        }
+        return moves;
+    }
+
+    @Test
+    public void testInitialMap() throws Exception {
+        List<List<String>> empty = Collections.emptyList();
+        for (int replicas = 0; replicas < 4; replicas++) {
+            List<List<String>> map = generate(empty, NODES, replicas);
+            assertBalanced(map, NODES, replicas);
+            assertEquals(map, generate(empty, NODES, replicas));
+        }
+        // Not enough nodes for all the replicas
+        assertBalanced(generate(empty, NODES.subList(0, 2), 3), NODES.subList(0, 2), 1);
+    }
+
+    @Test
+    public void testUnchanged() throws Exception {
+        List<List<String>> map = generate(Collections.<List<String>>emptyList(), NODES, 1);
+        assertEquals(map, generate(map, NODES, 1));
+    }
+
+    @Test
+    public void testFailover() throws Exception {
+        List<List<String>> map = generate(Collections.<List<String>>emptyList(), NODES, 1);
+        List<String> remaining = Arrays.asList("a", "c", "d");
+        List<List<String>> after = generate(map, remaining, 1);
+        assertBalanced(after, remaining, 1);
+
+        // Orphaned vBuckets are mostly promoted to their replica, as far as the balance allows
+        int orphans = 0, promoted = 0;
+        for (int vb = 0; vb < map.size(); vb++) {
+            List<String> chain = map.get(vb);
+            if (chain.get(0).equals("b")) {
+                orphans++;
+                if (chain.get(1).equals(after.get(vb).get(0))) {
+                    promoted++;
+                }
+            }
+        }
+        assertTrue(promoted > orphans * 3 / 4);
+        // Only the failed node's vBuckets change owner
+        assertEquals(256, countMoves(map, after));
+    }
+
+    @Test
+    public void testRespawn() throws Exception {
+        List<List<String>> map = generate(Collections.<List<String>>emptyList(), Arrays.asList("a", "c", "d"), 2);
+        List<List<String>> after = generate(map, NODES, 2);
+        assertBalanced(after, NODES, 2);
+        // The new node takes over its share and nothing else moves
+        assertEquals(256, countMoves(map, after));
+        for (int vb = 0; vb < map.size(); vb++) {
+            if (!map.get(vb).get(0).equals(after.get(vb).get(0))) {
+                assertEquals("b", after.get(vb).get(0));
+            }
+        }
+    }
+
+    @Test
+    public void testIgnoresUnknownNodes() throws Exception {
+        List<List<String>> current = new ArrayList<List<String>>();
+        for (int vb = 0; vb < 1024; vb++) {
+            current.add(Arrays.asList("x", "a"));
+        }
+        List<List<String>> map = generate(current, NODES, 1);
+        assertBalanced(map, NODES, 1);
+    }
+}
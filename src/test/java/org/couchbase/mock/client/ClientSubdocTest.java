@@ -23,6 +23,7 @@ import org.couchbase.mock.memcached.client.CommandBuilder.MultiMutationSpec;
 import org.couchbase.mock.memcached.client.CommandBuilder.MultiLookupSpec;
 
 import java.util.List;
+import java.util.Map;
 
 public class ClientSubdocTest extends ClientBaseTest {
     private MemcachedClient client;
@@ -144,6 +145,23 @@ public class ClientSubdocTest extends ClientBaseTest {
         assertEquals(ErrorCode.SUBDOC_PATH_MISMATCH, resp.getStatus());
     }
 
+    public void testNotJson() throws Exception {
+        for (String body : new String[] { "hello", "123abc" }) {
+            assertTrue(client.sendRequest(CommandBuilder.buildStore("notJson", vbId, body)).success());
+
+            ClientResponse resp = client.sendRequest(CommandBuilder.buildSubdocGet("notJson", vbId, "path"));
+            assertEquals(body, ErrorCode.SUBDOC_DOC_NOTJSON, resp.getStatus());
+            resp = client.sendRequest(CommandBuilder.buildSubdocGet("notJson", vbId, "[0]"));
+            assertEquals(body, ErrorCode.SUBDOC_DOC_NOTJSON, resp.getStatus());
+
+            CommandBuilder cb = new CommandBuilder(CommandCode.SUBDOC_MULTI_LOOKUP)
+                    .key("notJson", vbId)
+                    .subdocMultiLookup(MultiLookupSpec.get("path"), MultiLookupSpec.exists("[0]"));
+            resp = client.sendRequest(cb);
+            assertEquals(body, ErrorCode.SUBDOC_DOC_NOTJSON, resp.getStatus());
+        }
+    }
+
     public void testEmptyPath() throws Exception {
         byte[] req = CommandBuilder.buildSubdocGet(docId, vbId, "");
         ClientResponse resp = client.sendRequest(req);
@@ -433,4 +451,72 @@ public class ClientSubdocTest extends ClientBaseTest {
         assertEquals("{\"bodyPath\":123}", new String(item.getValue()));
         assertEquals("{\"attrPath\":123}", new String(item.getXattr()));
     }
-}
\ No newline at end of file
+
+    public void testMultiMutationsDependentSpecs() throws Exception {
+        storeItem(multiDocId, vbId, "{ \"list\" : [ 1 ] }");
+        CommandBuilder cb = new CommandBuilder(CommandCode.SUBDOC_MULTI_MUTATION)
+                .key(multiDocId, vbId)
+                .subdocMultiMutation(
+                        new MultiMutationSpec(CommandCode.SUBDOC_COUNTER, "count", "1"),
+                        new MultiMutationSpec(CommandCode.SUBDOC_COUNTER, "count", "2"),
+                        new MultiMutationSpec(CommandCode.SUBDOC_ARRAY_PUSH_LAST, "list", "2"),
+                        new MultiMutationSpec(CommandCode.SUBDOC_DELETE, "list[0]"),
+                        new MultiMutationSpec(CommandCode.SUBDOC_DICT_UPSERT, "x.y", "{}", BinarySubdocCommand.FLAG_MKDIR_P));
+        ClientResponse resp = client.sendRequest(cb);
+        assertEquals(ErrorCode.SUCCESS, resp.getStatus());
+        List<MultiMutationResult> res = MultiMutationResult.parse(resp.getRawValue());
+        assertEquals(2, res.size());
+        assertEquals("3", res.get(1).getValue());
+
+        Item item = getItem(multiDocId, vbId);
+        // Several specs on the body are applied to a single parsed tree
+        assertEquals("{\"list\":[2],\"count\":3,\"x\":{\"y\":{}}}", new String(item.getValue()));
+
+        // A single spec on the body is spliced, so untouched parts keep their formatting
+        storeItem(multiDocId, vbId, "{ \"list\" : [ 1 ] }");
+        cb.subdocMultiMutation(
+                new MultiMutationSpec(CommandCode.SUBDOC_COUNTER, "count", "1"),
+                new MultiMutationSpec(CommandCode.SUBDOC_DICT_UPSERT, "meta.a", "1",
+                        BinarySubdocCommand.FLAG_MKDIR_P|BinarySubdocCommand.FLAG_XATTR_PATH));
+        resp = client.sendRequest(cb);
+        assertEquals(ErrorCode.SUCCESS, resp.getStatus());
+        item = getItem(multiDocId, vbId);
+        assertEquals("{ \"list\" : [ 1 ],\"count\":1 }", new String(item.getValue()));
+
+        // Specs touching only the xattrs leave the body as is
+        storeItem(multiDocId, vbId, "{ \"list\" : [ 1 ] }");
+        cb.subdocMultiMutation(
+                new MultiMutationSpec(CommandCode.SUBDOC_DICT_UPSERT, "meta.a", "1",
+                        BinarySubdocCommand.FLAG_MKDIR_P|BinarySubdocCommand.FLAG_XATTR_PATH),
+                new MultiMutationSpec(CommandCode.SUBDOC_COUNTER, "meta.a", "1", BinarySubdocCommand.FLAG_XATTR_PATH));
+        resp = client.sendRequest(cb);
+        assertEquals(ErrorCode.SUCCESS, resp.getStatus());
+        item = getItem(multiDocId, vbId);
+        assertEquals("{ \"list\" : [ 1 ] }", new String(item.getValue()));
+        assertEquals("{\"meta\":{\"a\":2}}", new String(item.getXattr()));
+    }
+
+    public void testLookupIndexCache() throws Exception {
+        Map<String, String> stats = getServer(0).getStats("subdoc");
+        long hits = Long.parseLong(stats.get("subdoc_index_hits"));
+        long misses = Long.parseLong(stats.get("subdoc_index_misses"));
+
+        ClientResponse resp = client.sendRequest(CommandBuilder.buildSubdocGet(multiDocId, vbId, "key1"));
+        assertEquals("\"value1\"", resp.getValue());
+        resp = client.sendRequest(CommandBuilder.buildSubdocGet(multiDocId, vbId, "key2"));
+        assertEquals("\"value2\"", resp.getValue());
+        stats = getServer(0).getStats("subdoc");
+        assertEquals(hits + 1, Long.parseLong(stats.get("subdoc_index_hits")));
+        assertEquals(misses + 1, Long.parseLong(stats.get("subdoc_index_misses")));
+
+        // A mutation changes the CAS, so the cached index is not used
+        resp = client.sendRequest(new CommandBuilder(CommandCode.SUBDOC_DICT_UPSERT)
+                .key(multiDocId, vbId).subdoc("key1".getBytes(), "\"changed\"".getBytes()));
+        assertTrue(resp.success());
+        resp = client.sendRequest(CommandBuilder.buildSubdocGet(multiDocId, vbId, "key1"));
+        assertEquals("\"changed\"", resp.getValue());
+        stats = getServer(0).getStats("subdoc");
+        assertEquals(hits + 1, Long.parseLong(stats.get("subdoc_index_hits")));
+        assertEquals(misses + 2, Long.parseLong(stats.get("subdoc_index_misses")));
+    }
+}
@@ -16,12 +16,16 @@
 
 package org.couchbase.mock.client;
 
+import org.couchbase.mock.Bucket;
 import org.couchbase.mock.memcached.MemcachedConnection;
 import org.couchbase.mock.memcached.client.ClientResponse;
 import org.couchbase.mock.memcached.client.CommandBuilder;
 import org.couchbase.mock.memcached.client.MemcachedClient;
 import org.couchbase.mock.memcached.protocol.BinaryHelloCommand;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
 /** Tests that the basic HELLO functionality works. */
 public class HelloTest extends ClientBaseTest {
 
@@ -45,4 +49,62 @@ public class HelloTest extends ClientBaseTest {
         assertEquals(16, resp.getExtras().length);
 
     }
+
+    public void testTcpNoDelay() throws Exception {
+        MemcachedClient binClient = getBinClient(0);
+        ClientResponse resp = binClient.sendRequest(CommandBuilder.buildHello("nodelay",
+                BinaryHelloCommand.Feature.TCP_NODELAY));
+        assertTrue(resp.success());
+        assertEquals(2, resp.getRawValue().remaining());
+        assertEquals(BinaryHelloCommand.Feature.TCP_NODELAY.getValue(), resp.getRawValue().getShort());
+        MemcachedConnection conn = binClient.getConnection(getServer(0));
+        assertTrue(conn.getSupportedFeatures()[BinaryHelloCommand.Feature.TCP_NODELAY.getValue()]);
+        assertTrue(conn.isTcpNoDelay());
+
+        // Each HELLO sets the option to the negotiated value
+        resp = binClient.sendRequest(CommandBuilder.buildHello("nagle"));
+        assertTrue(resp.success());
+        assertFalse(conn.getSupportedFeatures()[BinaryHelloCommand.Feature.TCP_NODELAY.getValue()]);
+        assertFalse(conn.isTcpNoDelay());
+    }
+
+    public void testClustermapNotification() throws Exception {
+        Bucket bucket = couchbaseMock.getBuckets().get("default");
+        getServer(0).setCccpEnabled(true);
+
+        // Notifications require duplex mode
+        MemcachedClient simplex = getBinClient(0);
+        assertTrue(simplex.sendRequest(CommandBuilder.buildHello("simplex",
+                BinaryHelloCommand.Feature.CLUSTERMAP_CHANGE_NOTIFICATION)).success());
+        assertFalse(simplex.getConnection(getServer(0)).getSupportedFeatures()
+                [BinaryHelloCommand.Feature.CLUSTERMAP_CHANGE_NOTIFICATION.getValue()]);
+
+        MemcachedClient binClient = getBinClient(0);
+        ClientResponse resp = binClient.sendRequest(CommandBuilder.buildHello("duplex",
+                BinaryHelloCommand.Feature.DUPLEX, BinaryHelloCommand.Feature.CLUSTERMAP_CHANGE_NOTIFICATION));
+        assertTrue(resp.success());
+        assertEquals(4, resp.getRawValue().remaining());
+
+        bucket.failover(1);
+        bucket.respawn(1);
+        assertTrue(bucket.awaitRebalance(30, TimeUnit.SECONDS));
+        Thread.sleep(Bucket.TOPOLOGY_DEBOUNCE_MS * 4);
+
+        // Notifications are sent until the connection sees the final configuration
+        int lastRev = -1;
+        resp = binClient.sendRequest(CommandBuilder.buildStore("Hello", findValidVbucket(0), "World"));
+        while (resp.isServerRequest()) {
+            assertEquals("default", resp.getKey());
+            assertEquals(0, resp.getValue().length());
+            assertEquals(4, resp.getExtras().length);
+            int rev = ByteBuffer.wrap(resp.getExtras()).getInt();
+            assertTrue(rev > lastRev);
+            lastRev = rev;
+            resp = binClient.readResponse();
+        }
+        assertEquals(bucket.getConfigSnapshot().getRev(), lastRev);
+
+        // The connection keeps working
+        assertTrue(resp.success());
+    }
 }
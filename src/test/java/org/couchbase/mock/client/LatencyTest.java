@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.couchbase.mock.client;
+
+import junit.framework.TestCase;
+import org.couchbase.mock.Bucket;
+import org.couchbase.mock.BucketConfiguration;
+import org.couchbase.mock.CouchbaseMock;
+import org.couchbase.mock.memcached.LatencyDistribution;
+import org.couchbase.mock.memcached.MemcachedServer;
+import org.couchbase.mock.memcached.VBucketInfo;
+import org.couchbase.mock.memcached.client.ClientResponse;
+import org.couchbase.mock.memcached.client.CommandBuilder;
+import org.couchbase.mock.memcached.client.MemcachedClient;
+import org.couchbase.mock.memcached.protocol.CommandCode;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for latency injected into memcached responses
+ */
+public class LatencyTest extends TestCase {
+    private CouchbaseMock mock;
+    private MemcachedServer server;
+    private short vbucket;
+    private final List<Socket> sockets = new ArrayList<Socket>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        BucketConfiguration config = new BucketConfiguration();
+        config.numNodes = 2;
+        config.numReplicas = 1;
+        config.name = "default";
+        config.type = Bucket.BucketType.COUCHBASE;
+        List<BucketConfiguration> configs = new ArrayList<BucketConfiguration>();
+        configs.add(config);
+        mock = new CouchbaseMock(0, configs);
+        mock.start();
+        mock.waitForStartup();
+
+        Bucket bucket = mock.getBuckets().get("default");
+        server = bucket.getServers()[0];
+        VBucketInfo[] vbi = bucket.getVBucketInfo();
+        // Use the last vBucket of the node, as commands without a vBucket are sent to vBucket 0
+        for (short vb = 0; vb < vbi.length; vb++) {
+            if (vbi[vb].getOwner() == server) {
+                vbucket = vb;
+            }
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (Socket sock : sockets) {
+            sock.close();
+        }
+        mock.stop();
+        super.tearDown();
+    }
+
+    private Socket connect() throws Exception {
+        Socket sock = new Socket();
+        sock.connect(new InetSocketAddress(server.getHostname(), server.getPort()));
+        sock.setSoTimeout(10000);
+        sockets.add(sock);
+        return sock;
+    }
+
+    private static void send(Socket sock, byte[] req) throws Exception {
+        OutputStream out = sock.getOutputStream();
+        out.write(req);
+        out.flush();
+    }
+
+    public void testDelayedResponseDoesNotBlockNode() throws Exception {
+        server.setLatency(CommandCode.GET, (short) -1, LatencyDistribution.fixed(500));
+        Socket slowSock = connect();
+        MemcachedClient slow = new MemcachedClient(slowSock);
+        MemcachedClient fast = new MemcachedClient(connect());
+        assertTrue(fast.sendRequest(CommandBuilder.buildStore("key", vbucket, "value")).success());
+
+        long start = System.nanoTime();
+        send(slowSock, new CommandBuilder(CommandCode.GET).key("key", vbucket).build());
+        // Other commands and connections are served while the GET is delayed
+        assertTrue(fast.sendRequest(new CommandBuilder(CommandCode.NOOP)).success());
+        assertTrue(System.nanoTime() - start < 400000000L);
+
+        ClientResponse resp = slow.readResponse();
+        assertTrue(System.nanoTime() - start >= 500000000L);
+        assertTrue(resp.success());
+        assertEquals("value", resp.getValue());
+
+        server.clearLatency();
+        start = System.nanoTime();
+        assertTrue(slow.sendRequest(new CommandBuilder(CommandCode.GET).key("key", vbucket)).success());
+        assertTrue(System.nanoTime() - start < 400000000L);
+    }
+
+    public void testResponsesStayInOrder() throws Exception {
+        server.setLatency(CommandCode.GET, (short) -1, LatencyDistribution.uniform(100, 300));
+        Socket sock = connect();
+        MemcachedClient client = new MemcachedClient(sock);
+        assertTrue(client.sendRequest(CommandBuilder.buildStore("key", vbucket, "value")).success());
+
+        // A NOOP which is not delayed must not overtake the GET before it
+        send(sock, new CommandBuilder(CommandCode.GET).key("key", vbucket).build());
+        send(sock, new CommandBuilder(CommandCode.NOOP).build());
+        assertEquals(CommandCode.GET, client.readResponse().getComCode());
+        assertEquals(CommandCode.NOOP, client.readResponse().getComCode());
+    }
+
+    public void testVBucketLatency() throws Exception {
+        server.setLatency(null, vbucket, LatencyDistribution.logNormal(300, 0.1));
+        MemcachedClient client = new MemcachedClient(connect());
+        long start = System.nanoTime();
+        assertTrue(client.sendRequest(CommandBuilder.buildStore("key", vbucket, "value")).success());
+        assertTrue(System.nanoTime() - start >= 150000000L);
+
+        // Commands without a vBucket are not delayed
+        start = System.nanoTime();
+        assertTrue(client.sendRequest(new CommandBuilder(CommandCode.NOOP)).success());
+        assertTrue(System.nanoTime() - start < 150000000L);
+    }
+
+    public void testHiccupStallsOnlyItsConnection() throws Exception {
+        server.setHiccup(600, 10);
+        Socket first = connect();
+        Socket second = connect();
+        long start = System.nanoTime();
+        send(first, new CommandBuilder(CommandCode.NOOP).build());
+        send(second, new CommandBuilder(CommandCode.NOOP).build());
+
+        // Both responses stall once, at the same time, rather than one after another
+        assertTrue(new MemcachedClient(first).readResponse().success());
+        assertTrue(new MemcachedClient(second).readResponse().success());
+        long elapsed = System.nanoTime() - start;
+        assertTrue(elapsed >= 600000000L);
+        assertTrue("Hiccups were serialized: " + elapsed, elapsed < 1100000000L);
+        server.setHiccup(0, 0);
+    }
+}
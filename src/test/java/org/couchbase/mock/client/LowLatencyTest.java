@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.couchbase.mock.client;
+
+import junit.framework.TestCase;
+import org.couchbase.mock.Bucket;
+import org.couchbase.mock.BucketConfiguration;
+import org.couchbase.mock.CouchbaseMock;
+import org.couchbase.mock.memcached.LatencyDistribution;
+import org.couchbase.mock.memcached.MemcachedServer;
+import org.couchbase.mock.memcached.SocketTuning;
+import org.couchbase.mock.memcached.VBucketInfo;
+import org.couchbase.mock.memcached.client.CommandBuilder;
+import org.couchbase.mock.memcached.client.MemcachedClient;
+import org.couchbase.mock.memcached.protocol.CommandCode;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for nodes running with {@link SocketTuning#lowLatency()}
+ */
+public class LowLatencyTest extends TestCase {
+    private CouchbaseMock mock;
+    private final List<Socket> sockets = new ArrayList<Socket>();
+
+    private MemcachedServer startMock(int eventLoopThreads) throws Exception {
+        BucketConfiguration config = new BucketConfiguration();
+        config.numNodes = 2;
+        config.numReplicas = 1;
+        config.name = "default";
+        config.type = Bucket.BucketType.COUCHBASE;
+        List<BucketConfiguration> configs = new ArrayList<BucketConfiguration>();
+        configs.add(config);
+        mock = new CouchbaseMock(0, configs);
+        SocketTuning tuning = SocketTuning.lowLatency();
+        tuning.sendBufferSize = 1 << 16;
+        tuning.receiveBufferSize = 1 << 16;
+        mock.setSocketTuning(tuning);
+        if (eventLoopThreads > 0) {
+            mock.setEventLoopThreads(eventLoopThreads);
+        }
+        mock.start();
+        mock.waitForStartup();
+        return mock.getBuckets().get("default").getServers()[0];
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (Socket sock : sockets) {
+            sock.close();
+        }
+        if (mock != null) {
+            mock.stop();
+        }
+        super.tearDown();
+    }
+
+    private Socket connect(MemcachedServer server) throws Exception {
+        Socket sock = new Socket();
+        sock.connect(new InetSocketAddress(server.getHostname(), server.getPort()));
+        sock.setSoTimeout(10000);
+        sockets.add(sock);
+        return sock;
+    }
+
+    private static short vbucketOf(MemcachedServer server) {
+        VBucketInfo[] vbi = server.getBucket().getVBucketInfo();
+        short ret = -1;
+        for (short vb = 0; vb < vbi.length; vb++) {
+            if (vbi[vb].getOwner() == server) {
+                ret = vb;
+            }
+        }
+        return ret;
+    }
+
+    private void checkServing(MemcachedServer server) throws Exception {
+        // Connect a batch of clients before any of them is served
+        List<Socket> batch = new ArrayList<Socket>();
+        for (int i = 0; i < 20; i++) {
+            batch.add(connect(server));
+        }
+        for (Socket sock : batch) {
+            assertTrue(new MemcachedClient(sock).sendRequest(new CommandBuilder(CommandCode.NOOP)).success());
+        }
+
+        // Timers and tasks still run while the thread polls without blocking
+        short vbucket = vbucketOf(server);
+        MemcachedClient client = new MemcachedClient(connect(server));
+        assertTrue(client.sendRequest(CommandBuilder.buildStore("key", vbucket, "value")).success());
+        server.setLatency(CommandCode.GET, (short) -1, LatencyDistribution.fixed(100));
+        long start = System.nanoTime();
+        assertTrue(client.sendRequest(new CommandBuilder(CommandCode.GET).key("key", vbucket)).success());
+        assertTrue(System.nanoTime() - start >= 100000000L);
+        server.clearLatency();
+
+        server.shutdown(true);
+        server.startup();
+        assertTrue(new MemcachedClient(connect(server)).sendRequest(new CommandBuilder(CommandCode.NOOP)).success());
+    }
+
+    public void testDedicatedThreads() throws Exception {
+        checkServing(startMock(0));
+    }
+
+    public void testSharedEventLoop() throws Exception {
+        checkServing(startMock(1));
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.couchbase.mock.client;
+
+import junit.framework.TestCase;
+import org.couchbase.mock.Bucket;
+import org.couchbase.mock.BucketConfiguration;
+import org.couchbase.mock.CouchbaseMock;
+import org.couchbase.mock.memcached.MemcachedServer;
+import org.couchbase.mock.memcached.VBucketInfo;
+import org.couchbase.mock.memcached.client.ClientResponse;
+import org.couchbase.mock.memcached.client.CommandBuilder;
+import org.couchbase.mock.memcached.client.MemcachedClient;
+import org.couchbase.mock.memcached.protocol.CommandCode;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for serving the nodes of all buckets from a shared event loop group
+ */
+public class SharedEventLoopTest extends TestCase {
+    private CouchbaseMock mock;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        List<BucketConfiguration> configs = new ArrayList<BucketConfiguration>();
+        for (String name : new String[] { "default", "other" }) {
+            BucketConfiguration config = new BucketConfiguration();
+            config.numNodes = 4;
+            config.numReplicas = 1;
+            config.name = name;
+            config.type = Bucket.BucketType.COUCHBASE;
+            configs.add(config);
+        }
+        mock = new CouchbaseMock(0, configs);
+        mock.setEventLoopThreads(2);
+        mock.start();
+        mock.waitForStartup();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mock.stop();
+        super.tearDown();
+    }
+
+    private static MemcachedClient connect(MemcachedServer server, int timeout) throws Exception {
+        Socket sock = new Socket();
+        sock.connect(new InetSocketAddress(server.getHostname(), server.getPort()));
+        sock.setSoTimeout(timeout);
+        return new MemcachedClient(sock);
+    }
+
+    private static short vbucketOf(Bucket bucket, MemcachedServer server) {
+        VBucketInfo[] vbi = bucket.getVBucketInfo();
+        for (short vb = 0; vb < vbi.length; vb++) {
+            if (vbi[vb].getOwner() == server) {
+                return vb;
+            }
+        }
+        return -1;
+    }
+
+    private static void assertServes(Bucket bucket, MemcachedServer server) throws Exception {
+        MemcachedClient client = connect(server, 5000);
+        short vb = vbucketOf(bucket, server);
+        assertTrue(client.sendRequest(CommandBuilder.buildStore("key", vb, "value")).success());
+        ClientResponse resp = client.sendRequest(new CommandBuilder(CommandCode.GET).key("key", vb).build());
+        assertTrue(resp.success());
+        assertEquals("value", resp.getValue());
+        client.close();
+    }
+
+    public void testAllNodesServed() throws Exception {
+        assertEquals(2, mock.getEventLoopGroup().size());
+        for (Bucket bucket : mock.getBuckets().values()) {
+            for (MemcachedServer server : bucket.getServers()) {
+                assertTrue(server.isOnEventLoop());
+                assertFalse(server.isAlive());
+                assertServes(bucket, server);
+            }
+        }
+    }
+
+    public void testFailoverIsolated() throws Exception {
+        Bucket bucket = mock.getBuckets().get("default");
+        MemcachedServer failed = bucket.getServers()[1];
+        MemcachedClient client = connect(failed, 500);
+        short vb = vbucketOf(bucket, failed);
+
+        bucket.failover(1);
+        try {
+            client.sendRequest(CommandBuilder.buildStore("key", vb, "value"));
+            fail("Failed over node should not respond");
+        } catch (SocketTimeoutException ex) {
+            // Expected
+        }
+
+        // The other nodes sharing the loops keep working
+        for (Bucket other : mock.getBuckets().values()) {
+            for (MemcachedServer server : other.getServers()) {
+                if (server != failed) {
+                    assertServes(other, server);
+                }
+            }
+        }
+
+        bucket.respawn(1);
+        assertTrue(bucket.awaitRebalance(30, TimeUnit.SECONDS));
+        assertServes(bucket, failed);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.couchbase.mock.client;
+
+import junit.framework.TestCase;
+import org.couchbase.mock.Bucket;
+import org.couchbase.mock.BucketConfiguration;
+import org.couchbase.mock.CouchbaseMock;
+import org.couchbase.mock.memcached.MemcachedServer;
+import org.couchbase.mock.memcached.VBucketInfo;
+import org.couchbase.mock.memcached.client.ClientResponse;
+import org.couchbase.mock.memcached.client.CommandBuilder;
+import org.couchbase.mock.memcached.client.MemcachedClient;
+import org.couchbase.mock.memcached.protocol.CommandCode;
+import org.couchbase.mock.memcached.protocol.ErrorCode;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for serving all buckets of a node from a single KV port
+ */
+public class SharedKvPortTest extends TestCase {
+    private CouchbaseMock mock;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        List<BucketConfiguration> configs = new ArrayList<BucketConfiguration>();
+        for (String name : new String[] { "protected", "other" }) {
+            BucketConfiguration config = new BucketConfiguration();
+            config.numNodes = 3;
+            config.numReplicas = 1;
+            config.name = name;
+            config.password = name.equals("protected") ? "secret" : "";
+            config.type = Bucket.BucketType.COUCHBASE;
+            configs.add(config);
+        }
+        mock = new CouchbaseMock(0, configs);
+        mock.setSharedKvPorts(true);
+        mock.start();
+        mock.waitForStartup();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mock.stop();
+        super.tearDown();
+    }
+
+    private MemcachedClient connect(int index) throws Exception {
+        MemcachedServer server = mock.getBuckets().get("other").getServers()[index];
+        Socket sock = new Socket();
+        sock.connect(new InetSocketAddress(server.getHostname(), server.getPort()));
+        sock.setSoTimeout(5000);
+        return new MemcachedClient(sock);
+    }
+
+    private short vbucketOf(String bucketName, int index) {
+        Bucket bucket = mock.getBuckets().get(bucketName);
+        VBucketInfo[] vbi = bucket.getVBucketInfo();
+        for (short vb = 0; vb < vbi.length; vb++) {
+            if (vbi[vb].getOwner() == bucket.getServers()[index]) {
+                return vb;
+            }
+        }
+        return -1;
+    }
+
+    private static ErrorCode select(MemcachedClient client, String bucket) throws Exception {
+        return client.sendRequest(new CommandBuilder(CommandCode.SELECT_BUCKET).key(bucket, (short) 0)).getStatus();
+    }
+
+    private static ErrorCode auth(MemcachedClient client, String user, String pass) throws Exception {
+        return client.sendRequest(CommandBuilder.buildPlainAuth(user, pass)).getStatus();
+    }
+
+    public void testOnePortPerNode() throws Exception {
+        MemcachedServer[] prot = mock.getBuckets().get("protected").getServers();
+        MemcachedServer[] other = mock.getBuckets().get("other").getServers();
+        for (int i = 0; i < prot.length; i++) {
+            assertEquals(prot[i].getPort(), other[i].getPort());
+            assertSame(prot[i].getSharedPort(), other[i].getSharedPort());
+            if (i > 0) {
+                assertFalse(prot[i].getPort() == prot[i - 1].getPort());
+            }
+        }
+    }
+
+    public void testSelectBucket() throws Exception {
+        MemcachedClient client = connect(0);
+        short vb = vbucketOf("other", 0);
+
+        // Not bound to a bucket yet
+        ClientResponse resp = client.sendRequest(CommandBuilder.buildStore("key", vb, "value"));
+        assertEquals(ErrorCode.NO_BUCKET, resp.getStatus());
+        assertTrue(client.sendRequest(new CommandBuilder(CommandCode.NOOP)).success());
+
+        assertEquals(ErrorCode.KEY_ENOENT, select(client, "nonexist"));
+        assertEquals(ErrorCode.EACCESS, select(client, "protected"));
+        assertEquals(ErrorCode.SUCCESS, select(client, "other"));
+        assertTrue(client.sendRequest(CommandBuilder.buildStore("key", vb, "value")).success());
+        resp = client.sendRequest(new CommandBuilder(CommandCode.GET).key("key", vb));
+        assertTrue(resp.success());
+        assertEquals("value", resp.getValue());
+        client.close();
+    }
+
+    public void testSaslBindsBucket() throws Exception {
+        MemcachedClient client = connect(1);
+        short vbProt = vbucketOf("protected", 1);
+        short vbOther = vbucketOf("other", 1);
+
+        assertEquals(ErrorCode.AUTH_ERROR, auth(client, "protected", "wrong"));
+        assertEquals(ErrorCode.SUCCESS, auth(client, "protected", "secret"));
+        assertTrue(client.sendRequest(CommandBuilder.buildStore("key", vbProt, "protected")).success());
+
+        // Buckets without a password may always be selected
+        assertEquals(ErrorCode.SUCCESS, select(client, "other"));
+        assertEquals(ErrorCode.KEY_ENOENT, client.sendRequest(new CommandBuilder(CommandCode.GET).key("key", vbOther)).getStatus());
+        assertTrue(client.sendRequest(CommandBuilder.buildStore("key", vbOther, "other")).success());
+
+        // The connection is still authorized for the bucket it authenticated to
+        assertEquals(ErrorCode.SUCCESS, select(client, "protected"));
+        ClientResponse resp = client.sendRequest(new CommandBuilder(CommandCode.GET).key("key", vbProt));
+        assertTrue(resp.success());
+        assertEquals("protected", resp.getValue());
+        client.close();
+    }
+
+    public void testAdministratorSelectsAnyBucket() throws Exception {
+        MemcachedClient client = connect(2);
+        assertEquals(ErrorCode.AUTH_ERROR, auth(client, "Administrator", "wrong"));
+        assertEquals(ErrorCode.EACCESS, select(client, "protected"));
+        assertEquals(ErrorCode.SUCCESS, auth(client, "Administrator", "password"));
+        assertEquals(ErrorCode.SUCCESS, select(client, "protected"));
+        short vb = vbucketOf("protected", 2);
+        assertTrue(client.sendRequest(CommandBuilder.buildStore("key", vb, "value")).success());
+        client.close();
+    }
+}
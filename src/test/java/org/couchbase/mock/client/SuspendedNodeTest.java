@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.couchbase.mock.client;
+
+import junit.framework.TestCase;
+import org.couchbase.mock.Bucket;
+import org.couchbase.mock.BucketConfiguration;
+import org.couchbase.mock.CouchbaseMock;
+import org.couchbase.mock.memcached.MemcachedServer;
+import org.couchbase.mock.memcached.VBucketInfo;
+import org.couchbase.mock.memcached.client.ClientResponse;
+import org.couchbase.mock.memcached.client.CommandBuilder;
+import org.couchbase.mock.memcached.client.MemcachedClient;
+import org.couchbase.mock.memcached.protocol.CommandCode;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for the behavior of failed over nodes
+ */
+public class SuspendedNodeTest extends TestCase {
+    private CouchbaseMock mock;
+    private Bucket bucket;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        BucketConfiguration config = new BucketConfiguration();
+        config.numNodes = 3;
+        config.numReplicas = 1;
+        config.name = "default";
+        config.type = Bucket.BucketType.COUCHBASE;
+        List<BucketConfiguration> configs = new ArrayList<BucketConfiguration>();
+        configs.add(config);
+        mock = new CouchbaseMock(0, configs);
+        mock.start();
+        mock.waitForStartup();
+        bucket = mock.getBuckets().get("default");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mock.stop();
+        super.tearDown();
+    }
+
+    private static MemcachedClient connect(MemcachedServer server, int timeout) throws Exception {
+        Socket sock = new Socket();
+        sock.connect(new InetSocketAddress(server.getHostname(), server.getPort()));
+        sock.setSoTimeout(timeout);
+        return new MemcachedClient(sock);
+    }
+
+    private short vbucketOf(MemcachedServer server) {
+        VBucketInfo[] vbi = bucket.getVBucketInfo();
+        for (short vb = 0; vb < vbi.length; vb++) {
+            if (vbi[vb].getOwner() == server) {
+                return vb;
+            }
+        }
+        return -1;
+    }
+
+    public void testSuspendedNodeIsIdle() throws Exception {
+        MemcachedServer server = bucket.getServers()[1];
+        MemcachedClient client = connect(server, 500);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        bucket.failover(1);
+        try {
+            client.sendRequest(new CommandBuilder(CommandCode.NOOP));
+            fail("Failed over node should not respond");
+        } catch (SocketTimeoutException ex) {
+            // Expected
+        }
+
+        // The unread request must not keep the server thread busy
+        if (threads.isThreadCpuTimeSupported()) {
+            long before = threads.getThreadCpuTime(server.getId());
+            Thread.sleep(500);
+            long used = threads.getThreadCpuTime(server.getId()) - before;
+            assertTrue("Suspended node used " + used + "ns of CPU", used < 100000000L);
+        }
+
+        // Once respawned, the pending request is processed
+        bucket.respawn(1);
+        ClientResponse resp = client.readResponse();
+        assertTrue(resp.success());
+        client.close();
+    }
+
+    public void testFailoverResetsConnections() throws Exception {
+        MemcachedServer server = bucket.getServers()[1];
+        MemcachedClient client = connect(server, 5000);
+        short vb = vbucketOf(server);
+        assertTrue(client.sendRequest(CommandBuilder.buildStore("key", vb, "value")).success());
+
+        bucket.failover(1, true);
+        try {
+            client.sendRequest(CommandBuilder.buildStore("key", vb, "value"));
+            fail("Connection should have been closed");
+        } catch (SocketTimeoutException ex) {
+            fail("Connection should have been closed");
+        } catch (IOException ex) {
+            // Expected
+        }
+        client.close();
+    }
+}
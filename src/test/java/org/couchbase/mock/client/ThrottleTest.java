@@ -0,0 +1,179 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.couchbase.mock.client;
+
+import junit.framework.TestCase;
+import org.couchbase.mock.Bucket;
+import org.couchbase.mock.BucketConfiguration;
+import org.couchbase.mock.CouchbaseMock;
+import org.couchbase.mock.memcached.MemcachedServer;
+import org.couchbase.mock.memcached.Throttle;
+import org.couchbase.mock.memcached.VBucketInfo;
+import org.couchbase.mock.memcached.client.ClientResponse;
+import org.couchbase.mock.memcached.client.CommandBuilder;
+import org.couchbase.mock.memcached.client.MemcachedClient;
+import org.couchbase.mock.memcached.protocol.CommandCode;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for bandwidth and operation rate throttling
+ */
+public class ThrottleTest extends TestCase {
+    private static final int VALUE_SIZE = 100000;
+
+    private CouchbaseMock mock;
+    private Bucket bucket;
+    private MemcachedServer server;
+    private short vbucket;
+    private final List<Socket> sockets = new ArrayList<Socket>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        BucketConfiguration config = new BucketConfiguration();
+        config.numNodes = 2;
+        config.numReplicas = 1;
+        config.name = "default";
+        config.type = Bucket.BucketType.COUCHBASE;
+        List<BucketConfiguration> configs = new ArrayList<BucketConfiguration>();
+        configs.add(config);
+        mock = new CouchbaseMock(0, configs);
+        mock.start();
+        mock.waitForStartup();
+
+        bucket = mock.getBuckets().get("default");
+        server = bucket.getServers()[0];
+        VBucketInfo[] vbi = bucket.getVBucketInfo();
+        for (short vb = 0; vb < vbi.length; vb++) {
+            if (vbi[vb].getOwner() == server) {
+                vbucket = vb;
+            }
+        }
+
+        char[] value = new char[VALUE_SIZE];
+        Arrays.fill(value, 'x');
+        MemcachedClient client = new MemcachedClient(connect());
+        assertTrue(client.sendRequest(CommandBuilder.buildStore("big", vbucket, new String(value))).success());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (Socket sock : sockets) {
+            sock.close();
+        }
+        mock.stop();
+        super.tearDown();
+    }
+
+    private Socket connect() throws Exception {
+        Socket sock = new Socket();
+        sock.connect(new InetSocketAddress(server.getHostname(), server.getPort()));
+        sock.setSoTimeout(10000);
+        sockets.add(sock);
+        return sock;
+    }
+
+    private static void send(Socket sock, byte[] req) throws Exception {
+        OutputStream out = sock.getOutputStream();
+        out.write(req);
+        out.flush();
+    }
+
+    private long getStat(MemcachedServer node, String name) {
+        return Long.parseLong(node.getStats("throttle").get(name));
+    }
+
+    public void testByteRate() throws Exception {
+        // The burst covers a tenth of a second, so the value takes about 0.4s
+        server.setThrottle(Throttle.Scope.NODE, new Throttle(200000, 0));
+        MemcachedClient client = new MemcachedClient(connect());
+        long start = System.nanoTime();
+        ClientResponse resp = client.sendRequest(new CommandBuilder(CommandCode.GET).key("big", vbucket));
+        assertTrue(System.nanoTime() - start >= 300000000L);
+        assertTrue(resp.success());
+        assertEquals(VALUE_SIZE, resp.getValue().length());
+        assertTrue(getStat(server, "throttle_write_stalls") > 0);
+        assertEquals(200000, getStat(server, "throttle_node_bytes_per_sec"));
+
+        server.setThrottle(Throttle.Scope.NODE, null);
+        start = System.nanoTime();
+        assertTrue(client.sendRequest(new CommandBuilder(CommandCode.GET).key("big", vbucket)).success());
+        assertTrue(System.nanoTime() - start < 300000000L);
+    }
+
+    public void testConnectionScope() throws Exception {
+        server.setThrottle(Throttle.Scope.CONNECTION, new Throttle(200000, 0));
+        Socket first = connect();
+        Socket second = connect();
+        long start = System.nanoTime();
+        send(first, new CommandBuilder(CommandCode.GET).key("big", vbucket).build());
+        send(second, new CommandBuilder(CommandCode.GET).key("big", vbucket).build());
+
+        // Each connection has a rate of its own; a shared rate would take 0.9s
+        assertTrue(new MemcachedClient(first).readResponse().success());
+        assertTrue(new MemcachedClient(second).readResponse().success());
+        long elapsed = System.nanoTime() - start;
+        assertTrue(elapsed >= 300000000L);
+        assertTrue("Connections shared their rate: " + elapsed, elapsed < 750000000L);
+    }
+
+    public void testBucketScope() throws Exception {
+        server.setThrottle(Throttle.Scope.BUCKET, new Throttle(200000, 0));
+        assertNotNull(bucket.getThrottle());
+        assertEquals(200000, getStat(bucket.getServers()[1], "throttle_bucket_bytes_per_sec"));
+
+        MemcachedClient client = new MemcachedClient(connect());
+        long start = System.nanoTime();
+        assertTrue(client.sendRequest(new CommandBuilder(CommandCode.GET).key("big", vbucket)).success());
+        assertTrue(System.nanoTime() - start >= 300000000L);
+    }
+
+    public void testOpRate() throws Exception {
+        server.setThrottle(Throttle.Scope.NODE, new Throttle(0, 10));
+        Socket sock = connect();
+        MemcachedClient client = new MemcachedClient(sock);
+        long start = System.nanoTime();
+        for (int i = 0; i < 6; i++) {
+            send(sock, new CommandBuilder(CommandCode.NOOP).build());
+        }
+        for (int i = 0; i < 6; i++) {
+            assertEquals(CommandCode.NOOP, client.readResponse().getComCode());
+        }
+        assertTrue(System.nanoTime() - start >= 400000000L);
+        assertTrue(getStat(server, "throttle_ops_delayed") >= 4);
+    }
+
+    public void testInvalidRates() {
+        try {
+            new Throttle(0, 0);
+            fail("Expected an exception");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+        try {
+            new Throttle(-1, 10);
+            fail("Expected an exception");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.couchbase.mock.http;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import junit.framework.TestCase;
+import org.couchbase.mock.Bucket;
+import org.couchbase.mock.BucketConfiguration;
+import org.couchbase.mock.CouchbaseMock;
+import org.couchbase.mock.JsonUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Tests for conditional and compressed configuration responses
+ */
+public class ConfigResponseTest extends TestCase {
+    private CouchbaseMock mock;
+    private Bucket bucket;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        BucketConfiguration config = new BucketConfiguration();
+        config.numNodes = 4;
+        config.numReplicas = 1;
+        config.name = "default";
+        config.type = Bucket.BucketType.COUCHBASE;
+        List<BucketConfiguration> configs = new ArrayList<BucketConfiguration>();
+        configs.add(config);
+        mock = new CouchbaseMock(0, configs);
+        mock.start();
+        mock.waitForStartup();
+        bucket = mock.getBuckets().get("default");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mock.stop();
+        super.tearDown();
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        URL url = new URL("http://localhost:" + mock.getHttpPort() + path);
+        return (HttpURLConnection) url.openConnection();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int nr;
+        while ((nr = in.read(buf)) > 0) {
+            bos.write(buf, 0, nr);
+        }
+        in.close();
+        return bos.toByteArray();
+    }
+
+    public void testBucketETag() throws Exception {
+        String path = "/pools/default/buckets/default";
+        HttpURLConnection conn = open(path);
+        assertEquals(200, conn.getResponseCode());
+        String etag = conn.getHeaderField("ETag");
+        assertNotNull(etag);
+        JsonObject config = JsonUtils.GSON.fromJson(new String(readAll(conn.getInputStream()), "UTF-8"), JsonObject.class);
+        assertEquals(bucket.getConfigSnapshot().getRev(), config.get("rev").getAsLong());
+
+        conn = open(path);
+        conn.setRequestProperty("If-None-Match", etag);
+        assertEquals(304, conn.getResponseCode());
+        assertEquals(etag, conn.getHeaderField("ETag"));
+
+        bucket.failover(1);
+        conn = open(path);
+        conn.setRequestProperty("If-None-Match", etag);
+        assertEquals(200, conn.getResponseCode());
+        assertFalse(etag.equals(conn.getHeaderField("ETag")));
+        readAll(conn.getInputStream());
+    }
+
+    public void testBucketListETag() throws Exception {
+        String path = "/pools/default/buckets";
+        HttpURLConnection conn = open(path);
+        assertEquals(200, conn.getResponseCode());
+        String etag = conn.getHeaderField("ETag");
+        assertNotNull(etag);
+        readAll(conn.getInputStream());
+
+        conn = open(path);
+        conn.setRequestProperty("If-None-Match", "\"other\", " + etag);
+        assertEquals(304, conn.getResponseCode());
+
+        bucket.regenCoords();
+        conn = open(path);
+        conn.setRequestProperty("If-None-Match", etag);
+        assertEquals(200, conn.getResponseCode());
+        readAll(conn.getInputStream());
+    }
+
+    public void testGzip() throws Exception {
+        String path = "/pools/default/buckets/default";
+        HttpURLConnection conn = open(path);
+        byte[] plain = readAll(conn.getInputStream());
+        assertNull(conn.getHeaderField("Content-Encoding"));
+
+        conn = open(path);
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("gzip", conn.getHeaderField("Content-Encoding"));
+        assertTrue(conn.getContentLength() < plain.length);
+        byte[] inflated = readAll(new GZIPInputStream(conn.getInputStream()));
+        assertEquals(new String(plain, "UTF-8"), new String(inflated, "UTF-8"));
+
+        conn = open(path);
+        conn.setRequestProperty("Accept-Encoding", "gzip;q=0, identity");
+        assertEquals(200, conn.getResponseCode());
+        assertNull(conn.getHeaderField("Content-Encoding"));
+        readAll(conn.getInputStream());
+
+        // Large responses without a cached compressed form are compressed on the fly
+        conn = open("/pools/default/buckets");
+        conn.setRequestProperty("Accept-Encoding", "deflate, gzip");
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("gzip", conn.getHeaderField("Content-Encoding"));
+        JsonArray buckets = JsonUtils.GSON.fromJson(new String(readAll(new GZIPInputStream(conn.getInputStream())), "UTF-8"), JsonArray.class);
+        assertEquals(1, buckets.size());
+    }
+}
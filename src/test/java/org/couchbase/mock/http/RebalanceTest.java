@@ -0,0 +1,200 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.couchbase.mock.http;
+
+import com.google.gson.JsonObject;
+import junit.framework.TestCase;
+import org.couchbase.mock.Bucket;
+import org.couchbase.mock.BucketConfiguration;
+import org.couchbase.mock.CouchbaseMock;
+import org.couchbase.mock.JsonUtils;
+import org.couchbase.mock.memcached.KeySpec;
+import org.couchbase.mock.memcached.MemcachedServer;
+import org.couchbase.mock.memcached.VBucketInfo;
+import org.couchbase.mock.util.Base64;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the movement of vBucket data during rebalance
+ */
+public class RebalanceTest extends TestCase {
+    private static final int NUM_KEYS = 500;
+
+    private CouchbaseMock mock;
+    private Bucket bucket;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        BucketConfiguration config = new BucketConfiguration();
+        config.numNodes = 4;
+        config.numReplicas = 1;
+        config.name = "default";
+        config.type = Bucket.BucketType.COUCHBASE;
+        List<BucketConfiguration> configs = new ArrayList<BucketConfiguration>();
+        configs.add(config);
+        mock = new CouchbaseMock(0, configs);
+        mock.start();
+        mock.waitForStartup();
+        bucket = mock.getBuckets().get("default");
+        for (int i = 0; i < NUM_KEYS; i++) {
+            bucket.storeItem("key_" + i, ("value_" + i).getBytes());
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mock.stop();
+        super.tearDown();
+    }
+
+    private String get(String path) throws IOException {
+        URL url = new URL("http://localhost:" + mock.getHttpPort() + path);
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.addRequestProperty("Authorization", "Basic " + Base64.encode("Administrator:password"));
+        assertEquals(200, conn.getResponseCode());
+        InputStream in = conn.getInputStream();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int nr;
+        while ((nr = in.read(buf)) > 0) {
+            bos.write(buf, 0, nr);
+        }
+        in.close();
+        return bos.toString("UTF-8");
+    }
+
+    private JsonObject getProgress() throws IOException {
+        return JsonUtils.GSON.fromJson(get("/pools/default/rebalanceProgress"), JsonObject.class);
+    }
+
+    private void assertKeysOnAllNodes() {
+        VBucketInfo[] vbInfo = bucket.getVBucketInfo();
+        for (int i = 0; i < NUM_KEYS; i++) {
+            String key = "key_" + i;
+            short vb = bucket.getVbIndexForKey(key);
+            KeySpec ks = new KeySpec(key, vb);
+            for (MemcachedServer server : vbInfo[vb].getAllServers()) {
+                assertTrue(server.isActive());
+                assertNotNull(key, server.getStorage().getCached(ks));
+                assertEquals("value_" + i, new String(server.getStorage().getCached(ks).getValue()));
+            }
+        }
+    }
+
+    public void testFailoverAndRespawn() throws Exception {
+        bucket.failover(1);
+        assertTrue(bucket.awaitRebalance(30, TimeUnit.SECONDS));
+        assertKeysOnAllNodes();
+
+        bucket.respawn(1);
+        assertTrue(bucket.awaitRebalance(30, TimeUnit.SECONDS));
+        assertKeysOnAllNodes();
+
+        // Nodes only keep the vBuckets they hold
+        VBucketInfo[] vbInfo = bucket.getVBucketInfo();
+        for (MemcachedServer server : bucket.getServers()) {
+            for (int i = 0; i < NUM_KEYS; i++) {
+                String key = "key_" + i;
+                short vb = bucket.getVbIndexForKey(key);
+                if (!vbInfo[vb].hasAccess(server)) {
+                    assertNull(server.getStorage().getCached(new KeySpec(key, vb)));
+                }
+            }
+        }
+    }
+
+    public void testMutationsDuringRebalance() throws Exception {
+        bucket.setRebalanceConcurrency(1);
+        bucket.setRebalanceDelay(5);
+        bucket.failover(1);
+        bucket.respawn(1);
+        for (int i = 0; i < NUM_KEYS; i++) {
+            bucket.storeItem("key_" + i, ("value_" + i).getBytes());
+        }
+        bucket.setRebalanceDelay(0);
+        assertTrue(bucket.awaitRebalance(30, TimeUnit.SECONDS));
+        assertKeysOnAllNodes();
+    }
+
+    public void testConfigPublishedDuringRebalance() throws Exception {
+        final List<Bucket.ConfigSnapshot> received = new CopyOnWriteArrayList<Bucket.ConfigSnapshot>();
+        bucket.addTopologyListener(new Bucket.TopologyListener() {
+            @Override
+            public void topologyChanged(Bucket bucket, Bucket.ConfigSnapshot snapshot) {
+                received.add(snapshot);
+            }
+        });
+        bucket.setRebalanceConcurrency(1);
+        bucket.setRebalanceDelay(20);
+        bucket.failover(1);
+        long rev = bucket.getConfigSnapshot().getRev();
+
+        // The promoted replicas are announced without waiting for the data movement
+        long deadline = System.currentTimeMillis() + 10000;
+        while (received.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(received.isEmpty());
+        assertNotNull(bucket.getRebalanceProgress());
+
+        // Each vBucket is published as it switches over
+        while ((Integer) bucket.getRebalanceProgress().get("done") == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNotNull(bucket.getRebalanceProgress());
+        assertTrue(bucket.getConfigSnapshot().getRev() > rev);
+
+        bucket.setRebalanceDelay(0);
+        assertTrue(bucket.awaitRebalance(30, TimeUnit.SECONDS));
+        assertKeysOnAllNodes();
+    }
+
+    public void testRebalanceProgress() throws Exception {
+        assertEquals("none", getProgress().get("status").getAsString());
+
+        JsonObject res = JsonUtils.GSON.fromJson(get("/mock/SET_REBALANCE?concurrency=1&delay=20"), JsonObject.class);
+        assertEquals("ok", res.get("status").getAsString());
+        res = JsonUtils.GSON.fromJson(get("/mock/SET_REBALANCE?concurrency=0"), JsonObject.class);
+        assertEquals("fail", res.get("status").getAsString());
+
+        bucket.failover(1);
+        JsonObject progress = getProgress();
+        assertEquals("running", progress.get("status").getAsString());
+        for (MemcachedServer server : bucket.activeServers()) {
+            double value = progress.getAsJsonObject("ns_1@" + server.getSocketName()).get("progress").getAsDouble();
+            assertTrue(value >= 0 && value <= 1);
+        }
+        Map<String, Object> local = bucket.getRebalanceProgress();
+        assertNotNull(local);
+        assertTrue((Integer) local.get("total") > 0);
+
+        bucket.setRebalanceDelay(0);
+        assertTrue(bucket.awaitRebalance(30, TimeUnit.SECONDS));
+        assertEquals("none", getProgress().get("status").getAsString());
+        assertKeysOnAllNodes();
+    }
+}
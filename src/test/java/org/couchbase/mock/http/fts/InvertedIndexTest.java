@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.http.fts;
+
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class InvertedIndexTest {
+    private static Map<String, List<String>> doc(String text) {
+        List<String> terms = new ArrayList<String>();
+        InvertedIndex.analyze(text, terms);
+        Map<String, List<String>> ret = new HashMap<String, List<String>>();
+        ret.put(InvertedIndex.ALL_FIELD, terms);
+        return ret;
+    }
+
+    private static List<String> ids(InvertedIndex index, String query) {
+        SearchQuery.Hits hits = SearchQuery.parse(new JsonParser().parse(query)).execute(index);
+        List<String> ret = new ArrayList<String>();
+        for (int ordinal = hits.docs.nextSetBit(0); ordinal >= 0; ordinal = hits.docs.nextSetBit(ordinal + 1)) {
+            ret.add(index.getId(ordinal));
+        }
+        return ret;
+    }
+
+    @Test
+    public void testAnalyze() {
+        List<String> terms = new ArrayList<String>();
+        InvertedIndex.analyze("Hello, World! it's 2017", terms);
+        assertEquals(Arrays.asList("hello", "world", "it", "s", "2017"), terms);
+    }
+
+    @Test
+    public void testQueries() {
+        InvertedIndex index = new InvertedIndex();
+        index.add("a", doc("the quick brown fox"));
+        index.add("b", doc("the lazy dog"));
+        index.add("c", doc("quick quick dog"));
+
+        assertEquals(Arrays.asList("a", "c"), ids(index, "{\"match\":\"Quick\"}"));
+        assertEquals(Arrays.asList("a", "b", "c"), ids(index, "{\"match\":\"fox dog\"}"));
+        assertEquals(Arrays.asList("c"), ids(index, "{\"match\":\"quick dog\",\"operator\":\"and\"}"));
+        assertEquals(Arrays.asList(), ids(index, "{\"term\":\"Quick\"}"));
+        assertEquals(Arrays.asList("b"), ids(index, "{\"prefix\":\"la\"}"));
+        assertEquals(Arrays.asList("c"), ids(index, "{\"conjuncts\":[{\"term\":\"dog\"},{\"prefix\":\"qu\"}]}"));
+        assertEquals(Arrays.asList("c"), ids(index, "{\"disjuncts\":[{\"term\":\"dog\"},{\"term\":\"quick\"}],\"min\":2}"));
+        assertEquals(3, ids(index, "{\"match_all\":{}}").size());
+        assertEquals(0, ids(index, "{\"match\":\"cat\",\"field\":\"name\"}").size());
+    }
+
+    @Test
+    public void testScoring() {
+        InvertedIndex index = new InvertedIndex();
+        index.add("rare", doc("zebra apple"));
+        index.add("short", doc("apple"));
+        index.add("long", doc("apple banana cherry date elderberry fig"));
+        index.add("twice", doc("apple apple banana cherry date elderberry"));
+
+        SearchQuery.Hits hits = SearchQuery.parse(new JsonParser().parse("{\"match\":\"apple\"}")).execute(index);
+        // Shorter fields and more occurrences score higher
+        assertTrue(hits.scores[1] > hits.scores[2]);
+        assertTrue(hits.scores[3] > hits.scores[2]);
+        assertTrue(hits.scores[0] > 0);
+
+        // A rare term weighs more than a common one
+        hits = SearchQuery.parse(new JsonParser().parse("{\"match\":\"zebra apple\"}")).execute(index);
+        assertTrue(hits.scores[0] > 2 * hits.scores[1]);
+
+        hits = SearchQuery.parse(new JsonParser().parse("{\"match\":\"apple\",\"boost\":2}")).execute(index);
+        SearchQuery.Hits plain = SearchQuery.parse(new JsonParser().parse("{\"match\":\"apple\"}")).execute(index);
+        assertEquals(2 * plain.scores[1], hits.scores[1], 1e-6);
+    }
+
+    @Test
+    public void testUpdateAndCompact() {
+        InvertedIndex index = new InvertedIndex();
+        for (int i = 0; i < 5000; i++) {
+            index.add("doc-" + (i % 100), doc("value" + i + " common"));
+        }
+        assertEquals(100, index.size());
+        assertEquals(100, ids(index, "{\"term\":\"common\"}").size());
+        assertEquals(Arrays.asList("doc-99"), ids(index, "{\"term\":\"value4999\"}"));
+        assertEquals(0, ids(index, "{\"term\":\"value4899\"}").size());
+        // Compaction keeps the number of ordinals in proportion to the live documents
+        assertTrue(index.maxOrdinal() < 2500);
+
+        index.remove("doc-99");
+        index.remove("nonexistent");
+        assertEquals(99, index.size());
+        assertEquals(0, ids(index, "{\"term\":\"value4999\"}").size());
+        assertEquals(99, ids(index, "{\"prefix\":\"value49\"}").size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownQuery() {
+        SearchQuery.parse(new JsonParser().parse("{\"wildcard\":\"a*\"}"));
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.http.fts;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import junit.framework.TestCase;
+import org.couchbase.mock.Bucket;
+import org.couchbase.mock.BucketConfiguration;
+import org.couchbase.mock.CouchbaseMock;
+import org.couchbase.mock.JsonUtils;
+import org.couchbase.mock.memcached.Item;
+import org.couchbase.mock.memcached.KeySpec;
+import org.couchbase.mock.memcached.MemcachedServer;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for the full-text search emulation
+ */
+public class SearchServerTest extends TestCase {
+    private static final String[] TITLES = {
+            "The Quick Brown Fox",
+            "A lazy dog sleeps",
+            "Quick thinking saves the day",
+            "Brown bears and brown dogs",
+            "Foxes are quick and clever"
+    };
+
+    private CouchbaseMock mock;
+    private Bucket bucket;
+    private int lastStatus;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        BucketConfiguration config = new BucketConfiguration();
+        config.numNodes = 2;
+        config.numReplicas = 0;
+        config.name = "default";
+        config.type = Bucket.BucketType.COUCHBASE;
+        List<BucketConfiguration> configs = new ArrayList<BucketConfiguration>();
+        configs.add(config);
+        mock = new CouchbaseMock(0, configs);
+        mock.start();
+        mock.waitForStartup();
+        bucket = mock.getBuckets().get("default");
+
+        for (int i = 0; i < TITLES.length; i++) {
+            set("doc-" + i, String.format("{\"title\":\"%s\",\"meta\":{\"tags\":[\"t%d\",\"all\"]},\"num\":%d}", TITLES[i], i, i));
+        }
+        set("binary", "not json");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mock.stop();
+        super.tearDown();
+    }
+
+    private void set(String key, String value) {
+        short vb = bucket.getVbIndexForKey(key);
+        MemcachedServer server = bucket.getVBucketInfo()[vb].getOwner();
+        server.getStorage().getCache(server, vb).set(new Item(new KeySpec(key, vb), 0, 0, value.getBytes(), null, 0));
+    }
+
+    private void delete(String key) {
+        short vb = bucket.getVbIndexForKey(key);
+        MemcachedServer server = bucket.getVBucketInfo()[vb].getOwner();
+        server.getStorage().getCache(server, vb).delete(new KeySpec(key, vb), 0);
+    }
+
+    private JsonObject request(String method, String path, JsonObject body) throws Exception {
+        URL url = new URL("http://localhost:" + mock.getHttpPort() + path);
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestMethod(method);
+        if (body != null) {
+            conn.setDoOutput(true);
+            conn.setRequestProperty("Content-Type", "application/json");
+            OutputStream out = conn.getOutputStream();
+            out.write(body.toString().getBytes("UTF-8"));
+            out.close();
+        }
+        lastStatus = conn.getResponseCode();
+        InputStream in = lastStatus < 400 ? conn.getInputStream() : conn.getErrorStream();
+        Reader reader = new InputStreamReader(in, "UTF-8");
+        try {
+            return JsonUtils.GSON.fromJson(reader, JsonObject.class);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void createIndex(String name, String definition) throws Exception {
+        JsonObject res = request("PUT", "/api/index/" + name, JsonUtils.GSON.fromJson(definition, JsonObject.class));
+        assertEquals(res.toString(), 200, lastStatus);
+        assertEquals("ok", res.get("status").getAsString());
+    }
+
+    private void waitForCount(String name, long expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        long count;
+        do {
+            count = request("GET", "/api/index/" + name + "/count", null).get("count").getAsLong();
+            if (count == expected) {
+                return;
+            }
+            Thread.sleep(10);
+        } while (System.currentTimeMillis() < deadline);
+        assertEquals(expected, count);
+    }
+
+    private JsonObject search(String name, String query) throws Exception {
+        JsonObject res = request("POST", "/api/index/" + name + "/query", JsonUtils.GSON.fromJson(query, JsonObject.class));
+        assertEquals(res.toString(), 200, lastStatus);
+        return res;
+    }
+
+    private static List<String> hitIds(JsonObject res) {
+        List<String> ids = new ArrayList<String>();
+        for (com.google.gson.JsonElement hit : res.getAsJsonArray("hits")) {
+            ids.add(hit.getAsJsonObject().get("id").getAsString());
+        }
+        return ids;
+    }
+
+    public void testServiceAdvertised() throws Exception {
+        Map<String, Object> config = JsonUtils.decodeAsMap(mock.getBuckets().get("default").getJSON());
+        for (Object node : (List) config.get("nodesExt")) {
+            Map services = (Map) ((Map) node).get("services");
+            assertEquals(((Number) services.get("mgmt")).intValue(), ((Number) services.get("fts")).intValue());
+        }
+    }
+
+    public void testIndexDefinitions() throws Exception {
+        createIndex("idx", "{\"type\":\"fulltext-index\",\"sourceType\":\"couchbase\",\"sourceName\":\"default\"}");
+        JsonObject def = request("GET", "/api/index/idx", null).getAsJsonObject("indexDef");
+        assertEquals("idx", def.get("name").getAsString());
+        String uuid = def.get("uuid").getAsString();
+
+        JsonObject defs = request("GET", "/api/index", null).getAsJsonObject("indexDefs").getAsJsonObject("indexDefs");
+        assertTrue(defs.has("idx"));
+
+        // Only updates naming the current version are accepted
+        request("PUT", "/api/index/idx", JsonUtils.GSON.fromJson("{\"sourceName\":\"default\"}", JsonObject.class));
+        assertEquals(400, lastStatus);
+        createIndex("idx", "{\"sourceName\":\"default\",\"prevIndexUUID\":\"" + uuid + "\"}");
+
+        request("PUT", "/api/index/other", JsonUtils.GSON.fromJson("{\"sourceName\":\"nonexistent\"}", JsonObject.class));
+        assertEquals(400, lastStatus);
+        request("PUT", "/api/index/other", JsonUtils.GSON.fromJson("{\"sourceName\":{}}", JsonObject.class));
+        assertEquals(400, lastStatus);
+        request("PUT", "/api/index/other", JsonUtils.GSON.fromJson("{\"sourceName\":\"default\",\"type\":[1]}", JsonObject.class));
+        assertEquals(400, lastStatus);
+
+        request("DELETE", "/api/index/idx", null);
+        assertEquals(200, lastStatus);
+        request("POST", "/api/index/idx/query", JsonUtils.GSON.fromJson("{\"query\":{\"match_all\":{}}}", JsonObject.class));
+        assertEquals(400, lastStatus);
+    }
+
+    public void testQueries() throws Exception {
+        createIndex("idx", "{\"sourceName\":\"default\"}");
+        waitForCount("idx", TITLES.length);
+
+        JsonObject res = search("idx", "{\"query\":{\"match\":\"quick fox\",\"field\":\"title\"}}");
+        assertEquals(3, res.get("total_hits").getAsInt());
+        // The only document with both terms ranks first
+        assertEquals("doc-0", hitIds(res).get(0));
+        assertEquals(res.get("max_score").getAsDouble(),
+                res.getAsJsonArray("hits").get(0).getAsJsonObject().get("score").getAsDouble(), 1e-6);
+
+        res = search("idx", "{\"query\":{\"match\":\"QUICK fox\",\"operator\":\"and\"}}");
+        assertEquals(1, res.get("total_hits").getAsInt());
+
+        res = search("idx", "{\"query\":{\"term\":\"t3\",\"field\":\"meta.tags\"}}");
+        assertEquals("doc-3", hitIds(res).get(0));
+
+        res = search("idx", "{\"query\":{\"conjuncts\":[{\"prefix\":\"fox\"},{\"match\":\"all\",\"field\":\"meta.tags\"}]}}");
+        assertEquals(2, res.get("total_hits").getAsInt());
+
+        res = search("idx", "{\"query\":{\"prefix\":\"t\",\"field\":\"meta.tags\"},\"size\":2,\"from\":1}");
+        assertEquals(5, res.get("total_hits").getAsInt());
+        // Equal scores are ordered by ID
+        List<String> ids = hitIds(res);
+        assertEquals(2, ids.size());
+        assertEquals("doc-1", ids.get(0));
+        assertEquals("doc-2", ids.get(1));
+
+        res = request("POST", "/api/index/idx/query", JsonUtils.GSON.fromJson("{\"query\":{\"wildcard\":\"x\"}}", JsonObject.class));
+        assertEquals(400, lastStatus);
+        assertEquals("fail", res.get("status").getAsString());
+
+        // Pages larger than the results are truncated
+        res = search("idx", "{\"query\":{\"prefix\":\"t\",\"field\":\"meta.tags\"},\"size\":2147483647,\"from\":1}");
+        assertEquals(4, hitIds(res).size());
+
+        // Members of the wrong type are rejected as bad requests
+        request("POST", "/api/index/idx/query", JsonUtils.GSON.fromJson("{\"query\":{\"match_all\":{}},\"size\":{}}", JsonObject.class));
+        assertEquals(400, lastStatus);
+        request("POST", "/api/index/idx/query", JsonUtils.GSON.fromJson("{\"query\":{\"match_all\":{},\"boost\":[2]}}", JsonObject.class));
+        assertEquals(400, lastStatus);
+        request("POST", "/api/index/idx/query", JsonUtils.GSON.fromJson("{\"query\":{\"disjuncts\":[],\"min\":\"one\"}}", JsonObject.class));
+        assertEquals(400, lastStatus);
+    }
+
+    public void testIncrementalMaintenance() throws Exception {
+        createIndex("idx", "{\"sourceName\":\"default\",\"params\":{\"mapping\":{\"default_mapping\":{\"dynamic\":false," +
+                "\"properties\":{\"title\":{\"fields\":[{\"name\":\"title\",\"type\":\"text\"}]}}}}}}");
+        waitForCount("idx", TITLES.length);
+        // Fields not in the mapping are not indexed
+        assertEquals(0, search("idx", "{\"query\":{\"match\":\"all\"}}").get("total_hits").getAsInt());
+
+        set("doc-new", "{\"title\":\"A quick update\"}");
+        set("doc-0", "{\"title\":\"Nothing to see\"}");
+        delete("doc-2");
+        waitForCount("idx", TITLES.length);
+        JsonObject res = search("idx", "{\"query\":{\"match\":\"quick\"}}");
+        JsonArray hits = res.getAsJsonArray("hits");
+        assertEquals(res.toString(), 2, hits.size());
+        assertTrue(hitIds(res).contains("doc-new"));
+        assertTrue(hitIds(res).contains("doc-4"));
+
+        // Direct cache manipulation and flushes cause a rebuild
+        short vb = bucket.getVbIndexForKey("doc-direct");
+        bucket.getVBucketInfo()[vb].getOwner().getStorage().putCached(
+                new Item(new KeySpec("doc-direct", vb), 0, 0, "{\"title\":\"quick\"}".getBytes(), null, 0));
+        assertEquals(3, search("idx", "{\"query\":{\"match\":\"quick\"}}").get("total_hits").getAsInt());
+        for (MemcachedServer server : bucket.getServers()) {
+            server.flushAll();
+        }
+        assertEquals(0, search("idx", "{\"query\":{\"match_all\":{}}}").get("total_hits").getAsInt());
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.http.query;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import junit.framework.TestCase;
+import org.couchbase.mock.Bucket;
+import org.couchbase.mock.BucketConfiguration;
+import org.couchbase.mock.CouchbaseMock;
+import org.couchbase.mock.JsonUtils;
+import org.couchbase.mock.memcached.Item;
+import org.couchbase.mock.memcached.KeySpec;
+import org.couchbase.mock.memcached.MemcachedServer;
+
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Tests for the N1QL emulation
+ */
+public class QueryServerTest extends TestCase {
+    private CouchbaseMock mock;
+    private Bucket bucket;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        BucketConfiguration config = new BucketConfiguration();
+        config.numNodes = 4;
+        config.numReplicas = 0;
+        config.name = "default";
+        config.type = Bucket.BucketType.COUCHBASE;
+        List<BucketConfiguration> configs = new ArrayList<BucketConfiguration>();
+        configs.add(config);
+        mock = new CouchbaseMock(0, configs);
+        mock.start();
+        mock.waitForStartup();
+        bucket = mock.getBuckets().get("default");
+
+        for (int i = 0; i < 20; i++) {
+            String type = i % 2 == 0 ? "even" : "odd";
+            store(String.format("doc-%02d", i), String.format("{\"num\":%d,\"type\":\"%s\",\"tags\":[\"t%d\"]}", i, type, i % 3));
+        }
+        store("binary", "not json");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mock.stop();
+        super.tearDown();
+    }
+
+    private void store(String key, String value) {
+        short vb = bucket.getVbIndexForKey(key);
+        MemcachedServer server = bucket.getVBucketInfo()[vb].getOwner();
+        server.getStorage().putCached(new Item(new KeySpec(key, vb), 0, 0, value.getBytes(), null, 0));
+    }
+
+    private JsonObject post(JsonObject body) throws Exception {
+        URL url = new URL("http://localhost:" + mock.getHttpPort() + "/query/service");
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "application/json");
+        OutputStream out = conn.getOutputStream();
+        out.write(body.toString().getBytes("UTF-8"));
+        out.close();
+        assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        Reader reader = new InputStreamReader(conn.getInputStream(), "UTF-8");
+        try {
+            return JsonUtils.GSON.fromJson(reader, JsonObject.class);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private JsonObject query(String statement, Object... args) throws Exception {
+        JsonObject body = new JsonObject();
+        body.addProperty("statement", statement);
+        if (args.length > 0) {
+            body.add("args", JsonUtils.GSON.toJsonTree(args));
+        }
+        return post(body);
+    }
+
+    private JsonArray results(String statement, Object... args) throws Exception {
+        JsonObject res = query(statement, args);
+        assertFalse(res.toString(), res.has("errors"));
+        if (res.has("metrics")) {
+            assertEquals(res.getAsJsonArray("results").size(), res.getAsJsonObject("metrics").get("resultCount").getAsInt());
+        }
+        return res.getAsJsonArray("results");
+    }
+
+    private static int errorCode(JsonObject res) {
+        return res.getAsJsonArray("errors").get(0).getAsJsonObject().get("code").getAsInt();
+    }
+
+    public void testLegacyStatements() throws Exception {
+        JsonArray rows = results("select mockrow");
+        assertEquals(1, rows.size());
+        assertEquals("value", rows.get(0).getAsJsonObject().get("row").getAsString());
+        assertEquals(0, results("SELECT emptyrow").size());
+
+        JsonObject plan = results("prepare select mockrow").get(0).getAsJsonObject();
+        JsonObject body = new JsonObject();
+        body.add("prepared", plan.get("name"));
+        body.add("encoded_plan", plan.get("encoded_plan"));
+        assertEquals(1, post(body).getAsJsonArray("results").size());
+        QueryServer.resetIndexState();
+        assertEquals(QueryException.INTERNAL_ERROR, errorCode(post(body)));
+    }
+
+    public void testSelectWhere() throws Exception {
+        JsonArray rows = results("SELECT num FROM `default` WHERE type = 'even' AND num >= 10 ORDER BY num");
+        assertEquals(5, rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            assertEquals(10 + i * 2, rows.get(i).getAsJsonObject().get("num").getAsInt());
+        }
+
+        rows = results("SELECT d.*, META(d).id FROM default d WHERE d.num = 3");
+        assertEquals(1, rows.size());
+        JsonObject row = rows.get(0).getAsJsonObject();
+        assertEquals("doc-03", row.get("id").getAsString());
+        assertEquals("odd", row.get("type").getAsString());
+
+        rows = results("SELECT * FROM default WHERE num = 4");
+        assertEquals(4, rows.get(0).getAsJsonObject().getAsJsonObject("default").get("num").getAsInt());
+
+        // Non-JSON documents have no fields, but do have metadata
+        rows = results("SELECT RAW META().id FROM default WHERE num IS MISSING");
+        assertEquals(1, rows.size());
+        assertEquals("binary", rows.get(0).getAsString());
+
+        rows = results("SELECT RAW num FROM default WHERE num IN [1, 2, 3] OR type LIKE 'ev%' AND tags[0] = 't0'");
+        assertEquals(7, rows.size());
+    }
+
+    public void testLimitOffset() throws Exception {
+        JsonArray rows = results("SELECT RAW num FROM default WHERE type = 'odd' ORDER BY num DESC LIMIT 3 OFFSET 2");
+        assertEquals(3, rows.size());
+        assertEquals(15, rows.get(0).getAsInt());
+        assertEquals(11, rows.get(2).getAsInt());
+
+        // Streamed without ordering
+        assertEquals(7, results("SELECT num FROM default WHERE num IS VALUED LIMIT 7").size());
+        assertEquals(17, results("SELECT num FROM default WHERE num IS VALUED OFFSET 3").size());
+        assertEquals(0, results("SELECT num FROM default LIMIT 0").size());
+    }
+
+    public void testUseKeys() throws Exception {
+        JsonArray rows = results("SELECT RAW num FROM default USE KEYS ['doc-01', 'doc-05', 'nonexistent'] ORDER BY num");
+        assertEquals(2, rows.size());
+        assertEquals(1, rows.get(0).getAsInt());
+        assertEquals(5, rows.get(1).getAsInt());
+
+        rows = results("SELECT num FROM default USE KEYS $1", "doc-07");
+        assertEquals(7, rows.get(0).getAsJsonObject().get("num").getAsInt());
+    }
+
+    public void testAggregates() throws Exception {
+        JsonArray rows = results("SELECT COUNT(*) AS cnt, SUM(num) AS total, MIN(num), MAX(num) FROM default WHERE num IS VALUED");
+        JsonObject row = rows.get(0).getAsJsonObject();
+        assertEquals(20, row.get("cnt").getAsInt());
+        assertEquals(190, row.get("total").getAsInt());
+        assertEquals(0, row.get("$3").getAsInt());
+        assertEquals(19, row.get("$4").getAsInt());
+
+        rows = results("SELECT type, COUNT(*) AS cnt, AVG(num) AS avg FROM default WHERE type IS VALUED " +
+                "GROUP BY type HAVING COUNT(*) > 1 ORDER BY type");
+        assertEquals(2, rows.size());
+        assertEquals("even", rows.get(0).getAsJsonObject().get("type").getAsString());
+        assertEquals(9, rows.get(0).getAsJsonObject().get("avg").getAsInt());
+        assertEquals(10, rows.get(1).getAsJsonObject().get("cnt").getAsInt());
+
+        rows = results("SELECT COUNT(DISTINCT tags[0]) AS c FROM default");
+        assertEquals(3, rows.get(0).getAsJsonObject().get("c").getAsInt());
+
+        rows = results("SELECT COUNT(*) AS c FROM default WHERE num > 100");
+        assertEquals(0, rows.get(0).getAsJsonObject().get("c").getAsInt());
+
+        rows = results("SELECT DISTINCT RAW type FROM default WHERE type IS VALUED ORDER BY type");
+        assertEquals(2, rows.size());
+    }
+
+    public void testNoKeyspace() throws Exception {
+        JsonArray rows = results("SELECT 1 + 2 * 3 AS v, 'a' || 'b', [1, null][1] IS NULL AS n");
+        JsonObject row = rows.get(0).getAsJsonObject();
+        assertEquals(7, row.get("v").getAsInt());
+        assertEquals("ab", row.get("$2").getAsString());
+        assertTrue(row.get("n").getAsBoolean());
+    }
+
+    public void testNamedParameters() throws Exception {
+        JsonObject body = new JsonObject();
+        body.addProperty("statement", "SELECT RAW num FROM default WHERE type = $type AND num < $max ORDER BY num");
+        body.addProperty("$type", "odd");
+        body.addProperty("$max", 6);
+        JsonArray rows = post(body).getAsJsonArray("results");
+        assertEquals(3, rows.size());
+        assertEquals(5, rows.get(2).getAsInt());
+    }
+
+    public void testPrepared() throws Exception {
+        JsonObject plan = results("PREPARE odds FROM SELECT RAW num FROM default WHERE type = $1 ORDER BY num LIMIT 2")
+                .get(0).getAsJsonObject();
+        assertEquals("odds", plan.get("name").getAsString());
+
+        JsonObject body = new JsonObject();
+        body.addProperty("prepared", "odds");
+        JsonArray args = new JsonArray();
+        args.add(JsonUtils.GSON.toJsonTree("odd"));
+        body.add("args", args);
+        JsonArray rows = post(body).getAsJsonArray("results");
+        assertEquals(2, rows.size());
+        assertEquals(3, rows.get(1).getAsInt());
+
+        // The encoded plan alone is enough, even on another instance
+        body = new JsonObject();
+        body.add("encoded_plan", plan.get("encoded_plan"));
+        body.add("args", args);
+        assertEquals(2, post(body).getAsJsonArray("results").size());
+
+        body = new JsonObject();
+        body.addProperty("prepared", "nonexistent");
+        assertEquals(QueryException.NO_SUCH_PREPARED, errorCode(post(body)));
+    }
+
+    public void testErrors() throws Exception {
+        assertEquals(QueryException.KEYSPACE_NOT_FOUND, errorCode(query("SELECT * FROM nonexistent")));
+        assertEquals(QueryException.SYNTAX_ERROR, errorCode(query("SELECT FROM default")));
+        assertEquals(QueryException.SYNTAX_ERROR, errorCode(query("SELECT * FROM default WHERE COUNT(*) > 1")));
+        assertEquals(QueryException.EVALUATION_ERROR, errorCode(query("SELECT * FROM default LIMIT 'x'")));
+    }
+
+    private void set(String key, String value) {
+        short vb = bucket.getVbIndexForKey(key);
+        MemcachedServer server = bucket.getVBucketInfo()[vb].getOwner();
+        server.getStorage().getCache(server, vb).set(new Item(new KeySpec(key, vb), 0, 0, value.getBytes(), null, 0));
+    }
+
+    private JsonArray consistentResults(String statement) throws Exception {
+        JsonObject body = new JsonObject();
+        body.addProperty("statement", statement);
+        body.addProperty("scan_consistency", "request_plus");
+        JsonObject res = post(body);
+        assertFalse(res.toString(), res.has("errors"));
+        return res.getAsJsonArray("results");
+    }
+
+    private static List<String> scanIds(IndexManager.IndexScan scan) {
+        List<String> ids = new ArrayList<String>();
+        for (Iterator<String> iter = scan.iterator(); iter.hasNext(); ) {
+            ids.add(iter.next());
+        }
+        return ids;
+    }
+
+    public void testIndexPlan() throws Exception {
+        IndexManager.Registry registry = new IndexManager.Registry();
+        IndexManager manager = registry.get(bucket, true);
+        manager.execute(QueryParser.parse("CREATE PRIMARY INDEX ON `default`").index);
+        manager.execute(QueryParser.parse("CREATE INDEX ix_num ON `default`(num)").index);
+        manager.execute(QueryParser.parse("CREATE INDEX ix_odd ON `default`(num) WHERE type = 'odd'").index);
+
+        SelectStatement stmt = QueryParser.parse("SELECT * FROM default d WHERE 5 < d.num AND d.num <= 7").select;
+        Row.Scope scope = new Row.Scope(stmt.alias, null, null);
+        IndexManager.IndexScan scan = manager.plan(stmt.where, scope);
+        assertEquals("ix_num", scan.index.getName());
+        assertEquals(5, scan.low.getAsInt());
+        assertFalse(scan.lowInclusive);
+        assertEquals(7, scan.high.getAsInt());
+        assertTrue(scan.highInclusive);
+        assertEquals(Arrays.asList("doc-06", "doc-07"), scanIds(scan));
+
+        stmt = QueryParser.parse("SELECT * FROM default WHERE type = 'odd' AND num = 3").select;
+        scan = manager.plan(stmt.where, new Row.Scope(stmt.alias, null, null));
+        assertEquals("ix_odd", scan.index.getName());
+        assertEquals(Arrays.asList("doc-03"), scanIds(scan));
+
+        stmt = QueryParser.parse("SELECT * FROM default WHERE META().id >= 'doc-18'").select;
+        scan = manager.plan(stmt.where, new Row.Scope(stmt.alias, null, null));
+        assertTrue(scan.index.isPrimary());
+
+        stmt = QueryParser.parse("SELECT * FROM default WHERE type = 'odd'").select;
+        assertNull(manager.plan(stmt.where, new Row.Scope(stmt.alias, null, null)));
+    }
+
+    public void testSecondaryIndex() throws Exception {
+        assertEquals(0, results("CREATE INDEX ix_num ON `default`(num) USING GSI").size());
+        JsonArray rows = results("SELECT RAW num FROM default WHERE num > 15 ORDER BY num");
+        assertEquals(4, rows.size());
+        assertEquals(16, rows.get(0).getAsInt());
+
+        // Mutations are applied to the index in the background
+        set("doc-new", "{\"num\":100}");
+        set("doc-19", "{\"num\":-1}");
+        rows = consistentResults("SELECT RAW META().id FROM default WHERE num > 15");
+        assertEquals(4, rows.size());
+        assertEquals("doc-new", rows.get(3).getAsString());
+        rows = consistentResults("SELECT RAW META().id FROM default WHERE num < 0");
+        assertEquals(1, rows.size());
+
+        // Direct cache manipulation causes a rebuild
+        store("doc-direct", "{\"num\":200}");
+        rows = results("SELECT RAW num FROM default WHERE num >= 100 ORDER BY num DESC LIMIT 1");
+        assertEquals(200, rows.get(0).getAsInt());
+
+        assertEquals(QueryException.INTERNAL_ERROR, errorCode(query("CREATE INDEX ix_num ON `default`(type)")));
+        assertEquals(0, results("DROP INDEX `default`.ix_num").size());
+        assertEquals(QueryException.INTERNAL_ERROR, errorCode(query("DROP INDEX ix_num ON `default`")));
+        assertEquals(5, results("SELECT RAW num FROM default WHERE num > 15").size());
+    }
+
+    public void testRebuildOnCreate() throws Exception {
+        results("CREATE INDEX ix_num ON `default`(num)");
+        assertEquals(4, results("SELECT RAW num FROM default WHERE num > 15").size());
+
+        // Building another index must not hide direct modifications from the first one
+        store("doc-direct", "{\"num\":200}");
+        results("CREATE INDEX ix_type ON `default`(type)");
+        assertEquals(5, results("SELECT RAW num FROM default WHERE num > 15").size());
+
+        for (MemcachedServer server : bucket.getServers()) {
+            server.getStorage().flush();
+        }
+        results("BUILD INDEX ON `default`(ix_type)");
+        store("doc-direct", "{\"num\":300}");
+        results("CREATE INDEX ix_other ON `default`(other)");
+        assertEquals("[300]", results("SELECT RAW num FROM default WHERE num > 15").toString());
+    }
+
+    public void testDeferredBuild() throws Exception {
+        results("CREATE PRIMARY INDEX ON `default` WITH {\"defer_build\": true}");
+        results("CREATE INDEX ix_type ON `default`(type) WHERE num > 2 WITH {\"defer_build\": true}");
+        JsonArray rows = results("SELECT RAW state FROM system:indexes WHERE keyspace_id = 'default' ORDER BY name");
+        assertEquals("[\"deferred\",\"deferred\"]", rows.toString());
+
+        results("BUILD INDEX ON `default`(`#primary`, ix_type)");
+        rows = results("SELECT indexes.* FROM system:indexes ORDER BY name");
+        assertEquals(2, rows.size());
+        JsonObject primary = rows.get(0).getAsJsonObject();
+        assertEquals("#primary", primary.get("name").getAsString());
+        assertTrue(primary.get("is_primary").getAsBoolean());
+        JsonObject secondary = rows.get(1).getAsJsonObject();
+        assertEquals("online", secondary.get("state").getAsString());
+        assertEquals("[\"`type`\"]", secondary.get("index_key").toString());
+
+        assertEquals(8, results("SELECT RAW num FROM default WHERE type = 'even' AND num > 2").size());
+        results("DROP PRIMARY INDEX ON `default`");
+        assertEquals(1, results("SELECT name FROM system:indexes").size());
+    }
+
+    public void testExpressions() throws Exception {
+        JsonElement v = results("SELECT RAW LOWER('ABC') || TOSTRING(ROUND(2.567, 2))").get(0);
+        assertEquals("abc2.57", v.getAsString());
+        v = results("SELECT RAW NOT (NULL AND FALSE)").get(0);
+        assertTrue(v.getAsBoolean());
+        v = results("SELECT RAW {\"a\": 1, \"b\": MISSING}").get(0);
+        assertEquals("{\"a\":1}", v.toString());
+        v = results("SELECT RAW 5 BETWEEN 1 AND 10 AND 'abc' NOT LIKE 'a_d'").get(0);
+        assertTrue(v.getAsBoolean());
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.httpio;
+
+import junit.framework.TestCase;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the HTTP server's connection handling
+ */
+public class HttpServerTest extends TestCase {
+    private HttpServer server;
+    private int port;
+    private final List<ParkedConnection> parked = new ArrayList<ParkedConnection>();
+    private CountDownLatch closed;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new HttpServer(2);
+        server.register("/hello", new HttpRequestHandler() {
+            @Override
+            public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+                HandlerUtil.makeStringResponse(response, "hello");
+            }
+        });
+        server.register("/stream", new HttpRequestHandler() {
+            @Override
+            public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+                HandlerUtil.getConnection(context).sendResponseHeader(response);
+                ParkedConnection conn = HandlerUtil.park(context, new ParkedConnection.Listener() {
+                    @Override
+                    public void onClose(ParkedConnection conn) {
+                        closed.countDown();
+                    }
+                });
+                conn.write("first\n".getBytes());
+                synchronized (parked) {
+                    parked.add(conn);
+                    parked.notifyAll();
+                }
+                throw new ResponseHandledException();
+            }
+        });
+        ServerSocketChannel ch = ServerSocketChannel.open();
+        ch.socket().bind(new InetSocketAddress("localhost", 0));
+        port = ch.socket().getLocalPort();
+        server.bind(ch);
+        server.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stopServer();
+        super.tearDown();
+    }
+
+    private Socket connect(String requests) throws IOException {
+        Socket sock = new Socket("localhost", port);
+        sock.setSoTimeout(10000);
+        OutputStream out = sock.getOutputStream();
+        out.write(requests.getBytes());
+        out.flush();
+        return sock;
+    }
+
+    private static String readLineAfterHeaders(BufferedReader reader) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null && !line.isEmpty()) {
+            // Skip headers
+        }
+        return reader.readLine();
+    }
+
+    public void testPipelinedRequests() throws Exception {
+        Socket sock = connect("GET /hello HTTP/1.1\r\nHost: x\r\n\r\nGET /hello HTTP/1.1\r\nHost: x\r\n\r\n" +
+                "GET /nonexistent HTTP/1.1\r\nHost: x\r\nConnection: close\r\n\r\n");
+        StringBuilder sb = new StringBuilder();
+        InputStreamReader reader = new InputStreamReader(sock.getInputStream());
+        char[] buf = new char[1024];
+        int nr;
+        while ((nr = reader.read(buf)) > 0) {
+            sb.append(buf, 0, nr);
+        }
+        // The body of each response is immediately followed by the next response
+        String[] responses = sb.toString().split("HTTP/1.1 ");
+        int ok = 0;
+        int notFound = 0;
+        for (String response : responses) {
+            if (response.startsWith("200")) {
+                ok++;
+            } else if (response.startsWith("404")) {
+                notFound++;
+            }
+        }
+        assertEquals(2, ok);
+        assertEquals(1, notFound);
+        sock.close();
+    }
+
+    public void testParkedConnectionsDoNotHoldWorkers() throws Exception {
+        int numStreams = 20;
+        closed = new CountDownLatch(numStreams);
+        List<Socket> socks = new ArrayList<Socket>();
+        List<BufferedReader> readers = new ArrayList<BufferedReader>();
+        for (int i = 0; i < numStreams; i++) {
+            Socket sock = connect("GET /stream HTTP/1.1\r\nHost: x\r\n\r\n");
+            socks.add(sock);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+            readers.add(reader);
+            assertEquals("first", readLineAfterHeaders(reader));
+        }
+
+        // Both workers are free to serve other requests
+        Socket sock = connect("GET /hello HTTP/1.1\r\nHost: x\r\nConnection: close\r\n\r\n");
+        assertEquals("hello", readLineAfterHeaders(new BufferedReader(new InputStreamReader(sock.getInputStream()))));
+        sock.close();
+
+        synchronized (parked) {
+            for (ParkedConnection conn : parked) {
+                conn.write("second\n".getBytes());
+            }
+        }
+        for (BufferedReader reader : readers) {
+            assertEquals("second", reader.readLine());
+        }
+
+        for (Socket s : socks) {
+            s.close();
+        }
+        assertTrue(closed.await(10, TimeUnit.SECONDS));
+        synchronized (parked) {
+            for (ParkedConnection conn : parked) {
+                assertTrue(conn.isClosed());
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.couchbase.mock.memcached;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TimerWheelTest {
+    private static final long MS = 1000000L;
+
+    private static Runnable record(final List<Integer> fired, final int id) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                fired.add(id);
+            }
+        };
+    }
+
+    @Test
+    public void testExpiresInDeadlineOrder() {
+        TimerWheel wheel = new TimerWheel(MS, 8);
+        List<Integer> fired = new ArrayList<Integer>();
+        long now = System.nanoTime();
+        wheel.schedule(now + 5 * MS, record(fired, 5));
+        wheel.schedule(now + 2 * MS, record(fired, 2));
+        wheel.schedule(now + 3 * MS, record(fired, 3));
+
+        wheel.expire(now + MS);
+        assertTrue(fired.isEmpty());
+        wheel.expire(now + 4 * MS);
+        assertEquals(Arrays.asList(2, 3), fired);
+        assertFalse(wheel.isEmpty());
+        wheel.expire(now + 10 * MS);
+        assertEquals(Arrays.asList(2, 3, 5), fired);
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void testLaterRotation() {
+        TimerWheel wheel = new TimerWheel(MS, 8);
+        List<Integer> fired = new ArrayList<Integer>();
+        long now = System.nanoTime();
+        // Hashes into the same slot as a timer due in 2ms
+        wheel.schedule(now + 18 * MS, record(fired, 18));
+        wheel.schedule(now + 2 * MS, record(fired, 2));
+
+        wheel.expire(now + 3 * MS);
+        assertEquals(Arrays.asList(2), fired);
+        long wait = wheel.waitMillis(now + 3 * MS);
+        assertTrue(wait > 0 && wait <= 15);
+        wheel.expire(now + 12 * MS);
+        assertEquals(Arrays.asList(2), fired);
+        wheel.expire(now + 19 * MS);
+        assertEquals(Arrays.asList(2, 18), fired);
+    }
+
+    @Test
+    public void testWaitMillis() {
+        TimerWheel wheel = new TimerWheel(MS, 8);
+        long now = System.nanoTime();
+        assertEquals(-1, wheel.waitMillis(now));
+        wheel.schedule(now + 4 * MS, record(new ArrayList<Integer>(), 0));
+        assertEquals(4, wheel.waitMillis(now));
+        assertEquals(0, wheel.waitMillis(now + 5 * MS));
+
+        // Timers scheduled in the past are due right away
+        TimerWheel late = new TimerWheel(MS, 8);
+        late.expire(now + 20 * MS);
+        late.schedule(now, record(new ArrayList<Integer>(), 0));
+        assertEquals(0, late.waitMillis(now + 20 * MS));
+    }
+
+    @Test
+    public void testTasksMayReschedule() {
+        final TimerWheel wheel = new TimerWheel(MS, 8);
+        final List<Integer> fired = new ArrayList<Integer>();
+        final long now = System.nanoTime();
+        wheel.schedule(now + MS, new Runnable() {
+            @Override
+            public void run() {
+                fired.add(1);
+                wheel.schedule(now + 3 * MS, record(fired, 3));
+            }
+        });
+        wheel.expire(now + 2 * MS);
+        assertEquals(Arrays.asList(1), fired);
+        wheel.expire(now + 3 * MS);
+        assertEquals(Arrays.asList(1, 3), fired);
+    }
+}
@@ -608,4 +608,26 @@ public class ExecutorTest {
         assertRaisesPriv(PathMismatchException.class, doc, "hello", Operation.GET_COUNT, null, false);
         assertRaisesPriv(PathNotFoundException.class, doc, "nonexist", Operation.GET_COUNT, null, false);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testParsedDocument() throws SubdocException {
+        JsonElement root = Executor.parseDocument("{\"count\":1,\"list\":[]}");
+        Result res = Executor.execute(root, "count", Operation.COUNTER, "2", false);
+        assertEquals(3, res.getMatch().getAsInt());
+        assertSame(root, res.getNewDocument());
+
+        // Subsequent operations see the modified tree
+        assertEquals(8, Executor.execute(root, "count", Operation.COUNTER, "5", false).getMatch().getAsInt());
+        Executor.execute(root, "list", Operation.ARRAY_APPEND, "true", false);
+        Executor.execute(root, "a.b", Operation.DICT_UPSERT, "null", true);
+        assertEquals("{\"count\":8,\"list\":[true],\"a\":{\"b\":null}}", root.toString());
+        assertEquals(1, Executor.execute(root, "list", Operation.GET_COUNT, null, false).getMatch().getAsInt());
+
+        try {
+            Executor.parseDocument("{\"bad\"");
+            fail();
+        } catch (DocNotJsonException ex) {
+            // Expected
+        }
+    }
+}
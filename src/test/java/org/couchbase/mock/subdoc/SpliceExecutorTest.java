@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.subdoc;
+
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+public class SpliceExecutorTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static String splice(String doc, String path, Operation op, String value, boolean mkdirP)
+            throws SubdocException {
+        return new String(SpliceExecutor.execute(doc.getBytes(UTF8), path, op, value, mkdirP).getNewDoc(), UTF8);
+    }
+
+    private static String splice(String doc, String path, Operation op, String value) throws SubdocException {
+        return splice(doc, path, op, value, false);
+    }
+
+    private static <T> void assertRaises(Class<T> exp, String doc, String path, Operation op, String value, boolean mkdirP) {
+        try {
+            SpliceExecutor.execute(doc.getBytes(UTF8), path, op, value, mkdirP);
+            fail();
+        } catch (SubdocException ex) {
+            assertTrue(String.format("Expected %s. Got %s", exp.getName(), ex.getClass().getName()), exp.isInstance(ex));
+        }
+    }
+
+    /**
+     * Check that the spliced document is equivalent to the one produced by {@link Executor}
+     */
+    private static void assertSameAsExecutor(String doc, String path, Operation op, String value, boolean mkdirP)
+            throws SubdocException {
+        String expected = Executor.execute(doc, path, op, value, mkdirP).getNewDocString();
+        String actual = splice(doc, path, op, value, mkdirP);
+        assertEquals(op + " " + path, new JsonParser().parse(expected), new JsonParser().parse(actual));
+    }
+
+    @Test
+    public void testPreservesFormatting() throws Exception {
+        String doc = "{\n  \"a\" : 1,\n  \"b\" : [ 1,  2 ],\n  \"c\" : { }\n}";
+        assertEquals("{\n  \"a\" : 42,\n  \"b\" : [ 1,  2 ],\n  \"c\" : { }\n}",
+                splice(doc, "a", Operation.REPLACE, "42"));
+        assertEquals("{\n  \"a\" : 1,\n  \"b\" : [ 1,  2 ],\n  \"c\" : { }\n}",
+                splice(doc, "a", Operation.DICT_UPSERT, " 1 "));
+        assertEquals("{\n  \"a\" : 1,\n  \"b\" : [ 1,  2 ],\n  \"c\" : {\"d\":true }\n}",
+                splice(doc, "c.d", Operation.DICT_ADD, "true"));
+        assertEquals("{\n  \"a\" : 1,\n  \"b\" : [ 1,  2 ],\n  \"c\" : { },\"d\":null\n}",
+                splice(doc, "d", Operation.DICT_UPSERT, "null"));
+        assertEquals("{\n  \"a\" : 1,\n  \"b\" : [ 1,  2,3 ],\n  \"c\" : { }\n}",
+                splice(doc, "b", Operation.ARRAY_APPEND, "3"));
+        assertEquals("{\n  \"a\" : 1,\n  \"b\" : [ 0,1,  2 ],\n  \"c\" : { }\n}",
+                splice(doc, "b", Operation.ARRAY_PREPEND, "0"));
+        assertEquals("{\n  \"a\" : 2,\n  \"b\" : [ 1,  2 ],\n  \"c\" : { }\n}",
+                splice(doc, "a", Operation.COUNTER, "1"));
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        String doc = "{\"a\": 1, \"b\": [1, 2, 3], \"c\": {\"x\": 0}}";
+        assertEquals("{\"b\": [1, 2, 3], \"c\": {\"x\": 0}}", splice(doc, "a", Operation.REMOVE, null));
+        assertEquals("{\"a\": 1, \"c\": {\"x\": 0}}", splice(doc, "b", Operation.REMOVE, null));
+        assertEquals("{\"a\": 1, \"b\": [1, 2, 3]}", splice(doc, "c", Operation.REMOVE, null));
+        assertEquals("{\"a\": 1, \"b\": [1, 2, 3], \"c\": {}}", splice(doc, "c.x", Operation.REMOVE, null));
+        assertEquals("{\"a\": 1, \"b\": [2, 3], \"c\": {\"x\": 0}}", splice(doc, "b[0]", Operation.REMOVE, null));
+        assertEquals("{\"a\": 1, \"b\": [1, 3], \"c\": {\"x\": 0}}", splice(doc, "b[1]", Operation.REMOVE, null));
+        assertEquals("{\"a\": 1, \"b\": [1, 2], \"c\": {\"x\": 0}}", splice(doc, "b[-1]", Operation.REMOVE, null));
+    }
+
+    @Test
+    public void testCounter() throws Exception {
+        String doc = "{\"n\": 10, \"f\": 1.5, \"s\": \"x\", \"big\": 9223372036854775807}";
+        SpliceExecutor.Output out = SpliceExecutor.execute(doc.getBytes(UTF8), "n", Operation.COUNTER, "-15", false);
+        assertEquals("-5", new String(out.getMatch()));
+        assertEquals("{\"n\": -5, \"f\": 1.5, \"s\": \"x\", \"big\": 9223372036854775807}", new String(out.getNewDoc()));
+
+        out = SpliceExecutor.execute(doc.getBytes(UTF8), "m", Operation.COUNTER, "3", false);
+        assertEquals("3", new String(out.getMatch()));
+
+        assertRaises(PathMismatchException.class, doc, "f", Operation.COUNTER, "1", false);
+        assertRaises(PathMismatchException.class, doc, "s", Operation.COUNTER, "1", false);
+        assertRaises(DeltaTooBigException.class, doc, "big", Operation.COUNTER, "1", false);
+        assertRaises(DeltaTooBigException.class, doc, "n", Operation.COUNTER, "9223372036854775808", false);
+        assertRaises(ZeroDeltaException.class, doc, "n", Operation.COUNTER, "0", false);
+        assertRaises(BadNumberException.class, doc, "n", Operation.COUNTER, "1.0", false);
+        assertRaises(BadNumberException.class, doc, "n", Operation.COUNTER, "nope", false);
+        assertRaises(PathNotFoundException.class, doc, "x.y", Operation.COUNTER, "1", false);
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        String doc = "{\"a\": [1], \"b\": {}, \"c\": 1}";
+        assertRaises(EmptyValueException.class, doc, "a", Operation.REPLACE, "", false);
+        assertRaises(CannotInsertException.class, doc, "a", Operation.REPLACE, "{", false);
+        assertRaises(CannotInsertException.class, doc, "a", Operation.REPLACE, "1,2", false);
+        assertRaises(CannotInsertException.class, doc, "", Operation.REPLACE, "1", false);
+        assertRaises(CannotInsertException.class, doc, "", Operation.REMOVE, null, false);
+        assertRaises(PathNotFoundException.class, doc, "x", Operation.REPLACE, "1", false);
+        assertRaises(PathNotFoundException.class, doc, "x", Operation.REMOVE, null, false);
+        assertRaises(PathNotFoundException.class, doc, "x.y", Operation.DICT_UPSERT, "1", false);
+        assertRaises(PathExistsException.class, doc, "c", Operation.DICT_ADD, "1", false);
+        assertRaises(PathMismatchException.class, doc, "c", Operation.ARRAY_APPEND, "1", false);
+        assertRaises(PathMismatchException.class, doc, "c.d", Operation.DICT_UPSERT, "1", false);
+        assertRaises(PathMismatchException.class, doc, "a[1]", Operation.DICT_ADD, "1", false);
+        assertRaises(PathMismatchException.class, doc, "a[0].x", Operation.DICT_ADD, "1", true);
+        assertRaises(PathNotFoundException.class, doc, "x[0].y", Operation.DICT_ADD, "1", true);
+        assertRaises(InvalidPathException.class, doc, "a[0]", Operation.DICT_UPSERT, "1", false);
+        assertRaises(DocNotJsonException.class, "{\"a\": 1} x", "a", Operation.REPLACE, "1", false);
+        assertRaises(DocNotJsonException.class, "{\"a\": 1, \"b\": tru}", "a", Operation.REPLACE, "1", false);
+    }
+
+    @Test
+    public void testSameAsExecutor() throws Exception {
+        String doc = "{\"a\": {\"b\": [1, 2, {\"c\": 3}], \"d\": {}}, \"e\": [], \"f\": \"g\", \"h\\u0069\": 0}";
+        assertSameAsExecutor(doc, "a.b[2].c", Operation.REPLACE, "[1, {\"z\": null}]", false);
+        assertSameAsExecutor(doc, "a.b[-1]", Operation.REPLACE, "\"x\"", false);
+        assertSameAsExecutor(doc, "hi", Operation.DICT_UPSERT, "1", false);
+        assertSameAsExecutor(doc, "a.d.x", Operation.DICT_UPSERT, "{}", false);
+        assertSameAsExecutor(doc, "a.x.y.z", Operation.DICT_ADD, "\"deep\"", true);
+        assertSameAsExecutor(doc, "new\"key", Operation.DICT_ADD, "1", false);
+        assertSameAsExecutor(doc, "e", Operation.ARRAY_APPEND, "1, 2", false);
+        assertSameAsExecutor(doc, "e", Operation.ARRAY_PREPEND, "true", false);
+        assertSameAsExecutor(doc, "a.b", Operation.ARRAY_APPEND, "4, 5", false);
+        assertSameAsExecutor(doc, "a.b", Operation.ARRAY_PREPEND, "0", false);
+        assertSameAsExecutor(doc, "a.n.arr", Operation.ARRAY_APPEND, "1", true);
+        assertSameAsExecutor(doc, "a.b[2].c", Operation.COUNTER, "5", false);
+        assertSameAsExecutor(doc, "a.n.cnt", Operation.COUNTER, "5", true);
+        assertSameAsExecutor(doc, "a.b[1]", Operation.REMOVE, null, false);
+        assertSameAsExecutor(doc, "hi", Operation.REMOVE, null, false);
+        assertSameAsExecutor(doc, "a", Operation.REMOVE, null, false);
+        assertSameAsExecutor("[1, 2]", "", Operation.ARRAY_APPEND, "3", false);
+        assertSameAsExecutor("[1, 2]", "[0]", Operation.REMOVE, null, false);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.subdoc;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+public class StreamingLookupTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static String get(String doc, String path, Operation op) throws SubdocException {
+        return new String(StreamingLookup.execute(doc.getBytes(UTF8), path, op), UTF8);
+    }
+
+    private static <T> void assertRaises(Class<T> exp, String doc, String path, Operation op) {
+        try {
+            StreamingLookup.execute(doc.getBytes(UTF8), path, op);
+            fail();
+        } catch (SubdocException ex) {
+            assertTrue(String.format("Expected %s. Got %s", exp.getName(), ex.getClass().getName()), exp.isInstance(ex));
+        }
+    }
+
+    @Test
+    public void testGet() throws Exception {
+        String doc = "{ \"a\" : { \"b\" : [1, {\"c\": \"d\"}, [ 3 ,4 ]] }, \"e\": true }";
+        assertEquals("{ \"b\" : [1, {\"c\": \"d\"}, [ 3 ,4 ]] }", get(doc, "a", Operation.GET));
+        assertEquals("\"d\"", get(doc, "a.b[1].c", Operation.GET));
+        assertEquals("[ 3 ,4 ]", get(doc, "a.b[-1]", Operation.GET));
+        assertEquals("4", get(doc, "a.b[2][1]", Operation.GET));
+        assertEquals("true", get(doc, "e", Operation.GET));
+        assertEquals(doc.trim(), get("  " + doc + "\n", "", Operation.GET));
+    }
+
+    @Test
+    public void testEscapedNames() throws Exception {
+        String doc = "{\"a\\\"b\": 1, \"\\u0063\": 2, \"x.y\": 3, \"\u00e9\": 4}";
+        assertEquals("1", get(doc, "a\"b", Operation.GET));
+        assertEquals("2", get(doc, "c", Operation.GET));
+        assertEquals("3", get(doc, "`x.y`", Operation.GET));
+        assertEquals("4", get(doc, "\u00e9", Operation.GET));
+    }
+
+    @Test
+    public void testExistsAndCount() throws Exception {
+        String doc = "{\"arr\": [1, [2, 3], {}], \"obj\": {\"a\": 1, \"b\": {\"c\": 2}}, \"empty\": []}";
+        assertEquals("", get(doc, "arr[1]", Operation.EXISTS));
+        assertEquals("3", get(doc, "arr", Operation.GET_COUNT));
+        assertEquals("2", get(doc, "obj", Operation.GET_COUNT));
+        assertEquals("0", get(doc, "empty", Operation.GET_COUNT));
+        assertEquals("0", get(doc, "arr[2]", Operation.GET_COUNT));
+        assertEquals("3", get(doc, "", Operation.GET_COUNT));
+        assertRaises(PathMismatchException.class, doc, "arr[0]", Operation.GET_COUNT);
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        String doc = "{\"a\": [1, 2], \"b\": \"str\", \"c\": {}}";
+        assertRaises(PathNotFoundException.class, doc, "nonexist", Operation.GET);
+        assertRaises(PathNotFoundException.class, doc, "a[2]", Operation.EXISTS);
+        assertRaises(PathNotFoundException.class, doc, "c.d", Operation.GET);
+        assertRaises(PathNotFoundException.class, "{\"a\": []}", "a[-1]", Operation.GET);
+        assertRaises(PathMismatchException.class, doc, "a.b", Operation.GET);
+        assertRaises(PathMismatchException.class, doc, "b[0]", Operation.GET);
+        assertRaises(PathMismatchException.class, doc, "c[0]", Operation.GET);
+        assertRaises(PathParseException.class, doc, "a[", Operation.GET);
+        assertRaises(DocNotJsonException.class, "", "a", Operation.GET);
+        assertRaises(DocNotJsonException.class, "{\"x\": tru, \"a\": 1}", "a", Operation.GET);
+        assertRaises(DocNotJsonException.class, "{\"x\" 1, \"a\": 1}", "a", Operation.GET);
+        assertRaises(DocNotJsonException.class, "{\"a\": [1, 2}", "a", Operation.GET);
+        assertRaises(DocNotJsonException.class, "{\"a\": 1} x", "", Operation.GET);
+        assertRaises(DocNotJsonException.class, "[1 2 3]", "", Operation.GET_COUNT);
+        assertRaises(DocNotJsonException.class, "{\"o\": {\"a\": 1 \"b\": 2}}", "o", Operation.GET_COUNT);
+    }
+
+    @Test
+    public void testStopsAtMatch() throws Exception {
+        // Everything after the match is not examined
+        assertEquals("1", get("{\"a\": 1, \"b\": ", "a", Operation.GET));
+        assertEquals("[2]", get("{\"a\": {\"x\": [2], ", "a.x", Operation.GET));
+    }
+
+    @Test
+    public void testSameAsExecutor() throws Exception {
+        String doc = "{\"n\": [1.5e3,-1,null,false], \"s\":\"x\\ny\",\"o\":{\"p\":{\"q\":[[]]}}}";
+        String[] paths = { "n", "n[0]", "n[1]", "n[2]", "n[-1]", "s", "o", "o.p.q", "o.p.q[0]" };
+        for (String path : paths) {
+            String expected = Executor.execute(doc, path, Operation.GET).getMatch().toString();
+            assertEquals(path, expected, get(doc, path, Operation.GET));
+        }
+    }
+
+    @Test
+    public void testSharedIndex() throws Exception {
+        String doc = "{\"a\": {\"b\": [10, {\"c\": 1, \"d\": [2, 3]}]}, \"x\": 5}";
+        DocumentIndex index = new DocumentIndex(doc.getBytes(UTF8));
+        String[] paths = { "a.b[1].d", "a.b[1].c", "a.b[1].d[-1]", "a.b[1]", "a", "x", "a.b[1].d", "" };
+        for (String path : paths) {
+            String expected = get(doc, path, Operation.GET);
+            assertEquals(path, expected, new String(StreamingLookup.execute(index, path, Operation.GET), UTF8));
+        }
+        assertEquals("2", new String(StreamingLookup.execute(index, "a.b[1].d", Operation.GET_COUNT), UTF8));
+        try {
+            StreamingLookup.execute(index, "a.b[1].c[0]", Operation.GET);
+            fail();
+        } catch (PathMismatchException ex) {
+            // Expected
+        }
+        try {
+            StreamingLookup.execute(index, "a.b[2]", Operation.EXISTS);
+            fail();
+        } catch (PathNotFoundException ex) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.views;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CollationTest {
+    private static void assertOrdered(String... values) {
+        for (int i = 1; i < values.length; i++) {
+            byte[] prev = Collation.encode(values[i - 1]);
+            byte[] cur = Collation.encode(values[i]);
+            assertTrue(values[i - 1] + " < " + values[i], Collation.compare(prev, cur) < 0);
+            assertTrue(values[i] + " > " + values[i - 1], Collation.compare(cur, prev) > 0);
+        }
+    }
+
+    @Test
+    public void testTypeOrder() throws Exception {
+        assertOrdered("null", "false", "true", "-1", "0", "\"\"", "[]", "{}");
+    }
+
+    @Test
+    public void testNumbers() throws Exception {
+        assertOrdered("-1e300", "-100", "-1.5", "-1", "-0.5", "0", "0.5", "1", "1.5", "100", "1e300");
+        assertEquals(0, Collation.compare(Collation.encode("-0"), Collation.encode("0")));
+        assertEquals(0, Collation.compare(Collation.encode("1"), Collation.encode("1.0")));
+    }
+
+    @Test
+    public void testStrings() throws Exception {
+        assertOrdered("\"\"", "\"a\"", "\"aa\"", "\"b\"", "\"ba\"");
+        assertOrdered("\"a\"", "\"A\"", "\"b\"", "\"B\"");
+        assertEquals(0, Collation.compare(Collation.encode("\"abc\""), Collation.encode("\"a\\u0062c\"")));
+    }
+
+    @Test
+    public void testCompound() throws Exception {
+        assertOrdered("[]", "[null]", "[1]", "[1,2]", "[1,\"a\"]", "[2]", "[\"a\"]", "[\"a\",[]]", "[[]]");
+        assertOrdered("{}", "{\"a\":1}", "{\"a\":1,\"b\":0}", "{\"a\":2}", "{\"b\":0}");
+        assertOrdered("[\"a\"]", "[\"a\",{}]", "[\"b\"]");
+    }
+
+    @Test
+    public void testGroupKey() throws Exception {
+        byte[] key = Collation.encode("[\"a\",[1,2],\"c\"]");
+        assertArrayEquals(Collation.encode("null"), Collation.groupKey(key, 0));
+        assertArrayEquals(key, Collation.groupKey(key, -1));
+        assertArrayEquals(Collation.encode("[\"a\"]"), Collation.groupKey(key, 1));
+        assertArrayEquals(Collation.encode("[\"a\",[1,2]]"), Collation.groupKey(key, 2));
+        assertArrayEquals(key, Collation.groupKey(key, 3));
+        assertArrayEquals(key, Collation.groupKey(key, 10));
+
+        byte[] scalar = Collation.encode("\"abc\"");
+        assertArrayEquals(scalar, Collation.groupKey(scalar, 1));
+    }
+
+    @Test
+    public void testInvalid() throws Exception {
+        String[] invalid = { "", "abc", "[1,", "1 2", "{\"a\"}", "'a'" };
+        for (String s : invalid) {
+            try {
+                Collation.encode(s);
+                fail("Expected failure for " + s);
+            } catch (IllegalArgumentException ex) {
+                // OK
+            }
+        }
+    }
+}
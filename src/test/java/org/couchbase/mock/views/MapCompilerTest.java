@@ -0,0 +1,141 @@
+/*
+ * Copyright 2017 Couchbase, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.couchbase.mock.views;
+
+import org.couchbase.mock.memcached.Item;
+import org.couchbase.mock.memcached.KeySpec;
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MapCompilerTest {
+    private static final String[] DOCS = {
+            "{\"type\":\"beer\",\"name\":\"Pale\",\"abv\":5.5,\"brewery\":{\"id\":\"b1\",\"city\":\"Oslo\"}}",
+            "{\"type\":\"beer\",\"name\":\"\",\"abv\":0,\"tags\":[1,\"two\",null]}",
+            "{\"type\":\"brewery\",\"name\":\"Brew \\\"Co\\\"\\n\",\"abv\":\"5\"}",
+            "{\"type\":\"beer\",\"brewery\":\"not an object\",\"name\":true}",
+            "{\"type\":null,\"name\":{\"b\":1,\"1\":[],\"a\":{}}}",
+            "{\"type\":\"beer\",\"abv\":1e21,\"name\":-0.0}",
+            "{}",
+            "[1,2,3]",
+            "\"a string\"",
+            "not json",
+            "{\"type\":\"beer\",\"type\":\"wine\"}",
+            "{\"type\":\"beer\",\"big\":1e400,\"small\":-1e400}",
+    };
+
+    private static List<Item> items() throws Exception {
+        List<Item> ret = new ArrayList<Item>();
+        for (int i = 0; i < DOCS.length; i++) {
+            ret.add(new Item(new KeySpec("doc-" + i, (short) 0), 0, 0, DOCS[i].getBytes("UTF-8"), null, i + 1));
+        }
+        return ret;
+    }
+
+    /**
+     * Index the documents with the compiled function and with the same function run by Rhino
+     * (forced by a statement the compiler does not recognize) and compare the results
+     */
+    private static void assertSameAsScript(String body) throws Exception {
+        String fn = "function(doc, meta) {" + body + "}";
+        String scriptFn = "function(doc, meta) { var unused;" + body + "}";
+        assertNotNull(fn, MapCompiler.compile(fn));
+        assertNull(scriptFn, MapCompiler.compile(scriptFn));
+
+        DesignIndexer indexer = new DesignIndexer(Arrays.asList(Indexer.create(fn), Indexer.create(scriptFn)));
+        Context cx = Context.enter();
+        try {
+            indexer.run(items(), cx);
+        } finally {
+            Context.exit();
+        }
+
+        List<IndexRow> compiled = indexer.getRows(0);
+        List<IndexRow> script = indexer.getRows(1);
+        assertEquals(fn, script.size(), compiled.size());
+        for (int i = 0; i < script.size(); i++) {
+            assertEquals(fn, script.get(i).id, compiled.get(i).id);
+            assertEquals(fn, script.get(i).keyJson, compiled.get(i).keyJson);
+            assertEquals(fn, script.get(i).valueJson, compiled.get(i).valueJson);
+        }
+    }
+
+    @Test
+    public void testRecognized() throws Exception {
+        assertNotNull(MapCompiler.compile("function (doc, meta) { emit(meta.id, null); }"));
+        assertNotNull(MapCompiler.compile("function map(d) {\n  // comment\n  if (d.a) emit(d.a)\n}"));
+        assertNotNull(MapCompiler.compile("function(doc) { if (doc['a b'] === 'x') { emit([doc.a, 1], doc.b) } else emit(null, -1); }"));
+        assertNotNull(MapCompiler.compile("function(doc) { /* nothing */ }"));
+    }
+
+    @Test
+    public void testRejected() throws Exception {
+        assertNull(MapCompiler.compile("function(doc, meta) { emit(doc, null); }"));
+        assertNull(MapCompiler.compile("function(doc, meta) { emit(doc.tags[0], null); }"));
+        assertNull(MapCompiler.compile("function(doc, meta) { emit(meta.expiration, null); }"));
+        assertNull(MapCompiler.compile("function(doc, meta) { if (doc.a > 1) emit(doc.a); }"));
+        assertNull(MapCompiler.compile("function(doc, meta) { if (!doc.a == false) emit(doc.a); }"));
+        assertNull(MapCompiler.compile("function(doc, meta) { emit(doc.name.toLowerCase(), null); }"));
+        assertNull(MapCompiler.compile("function(doc, meta) { for (var i in doc) emit(i); }"));
+        assertNull(MapCompiler.compile("function(emit) { emit(1); }"));
+        assertNull(MapCompiler.compile("function(doc) { emit(1); } function() {}"));
+        assertNull(MapCompiler.compile("function(doc) { emit(010); }"));
+    }
+
+    @Test
+    public void testSameAsScript() throws Exception {
+        assertSameAsScript("emit(meta.id, null);");
+        assertSameAsScript("emit();");
+        assertSameAsScript("emit(doc.name, doc.abv);");
+        assertSameAsScript("emit([doc.type, doc.name, doc.missing], [meta.type, 'x', 1.5, true, null]);");
+        assertSameAsScript("emit(doc.brewery.city, doc.brewery);");
+        assertSameAsScript("emit(doc['tags'], doc.brewery['id']);");
+        assertSameAsScript("if (doc.type == 'beer') { emit(doc.name, null); }");
+        assertSameAsScript("if (doc.type === 'beer' && doc.name) emit(doc.name); else emit(null, doc.type);");
+        assertSameAsScript("if (doc.type != null || !(doc.abv)) emit(doc.abv);");
+        assertSameAsScript("if (doc.abv == 5.5 || doc.abv === '5' || doc.abv == -1) emit(doc.abv);");
+        assertSameAsScript("if (doc.type !== undefined) { emit(doc.type); emit(doc.type, 2); }");
+        assertSameAsScript("if (doc.brewery.id == 'b1') emit(doc.brewery.id);");
+        assertSameAsScript("if (doc.name == doc.type) emit(doc.name);");
+    }
+
+    @Test
+    public void testNonFiniteNumbers() throws Exception {
+        // Out of range numbers are infinite, and JSON.stringify writes them as null
+        String fn = "function(doc, meta) { emit(doc.big, [doc.small, 1e400, -1e400]); }";
+        assertNotNull(MapCompiler.compile(fn));
+        DesignIndexer indexer = new DesignIndexer(Arrays.asList(Indexer.create(fn)));
+        byte[] doc = "{\"big\":1e400,\"small\":-1e400}".getBytes("UTF-8");
+        Context cx = Context.enter();
+        try {
+            indexer.run(Arrays.asList(new Item(new KeySpec("doc", (short) 0), 0, 0, doc, null, 1)), cx);
+        } finally {
+            Context.exit();
+        }
+        List<IndexRow> rows = indexer.getRows(0);
+        assertEquals(1, rows.size());
+        assertEquals("null", rows.get(0).keyJson);
+        assertEquals("[null,null,null]", rows.get(0).valueJson);
+
+        assertSameAsScript("if (doc.big) emit(doc.big, doc.small);");
+    }
+}
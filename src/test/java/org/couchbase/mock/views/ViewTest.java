@@ -24,6 +24,7 @@ import org.couchbase.mock.memcached.Storage;
 import java.io.IOException;
 import java.rmi.ConnectIOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -334,4 +335,75 @@ public class ViewTest extends ClientBaseTest {
         assertEquals("id", ll.get(0));
         assertEquals("key-006", ll.get(1));
     }
+
+    public void testDesignIndexedOnce() throws Exception {
+        Iterable<Item> store = seedDocuments(20);
+        String body = "{"
+                + "  \"views\": {"
+                + "    \"byId\": { \"map\": \"function(doc,meta){ emit(meta.id, null); }\" },"
+                + "    \"byVal\": { \"map\": \"function(doc){ if (doc.val % 2 == 0) { emit(doc.val, doc.val); } }\","
+                + "               \"reduce\": \"_sum\" }"
+                + "  }"
+                + "}";
+        DesignDocument ddoc = DesignDocument.create(body, "multi");
+        assertEquals(2, ddoc.getViews().size());
+        View byId = ddoc.getViews().get(0);
+        View byVal = ddoc.getViews().get(1);
+        assertEquals("byId", byId.getName());
+
+        // Querying one view indexes all the views of the design document
+        QueryResult results = byId.execute(store);
+        assertEquals(20, results.getTotalRowCount());
+        assertEquals(10, ddoc.getIndexer().getRows(1).size());
+
+        results = byVal.execute(store);
+        assertEquals(1, results.getFilteredRowCount());
+        assertEquals(90, results.numValAt(0));
+
+        Configuration config = new Configuration();
+        config.setReduce(false);
+        config.setStartKey(4);
+        config.setEndKey(8);
+        config.setInclusiveEnd(true);
+        results = byVal.execute(store, config);
+        assertEquals(3, results.getFilteredRowCount());
+        assertEquals("key-004", results.idAt(0));
+    }
+
+    public void testDevelopmentSample() throws Exception {
+        Iterable<Item> store = seedDocuments(40);
+        String body = "{ \"views\": { \"all\": { \"map\": \"function(doc,meta){ emit(meta.id, null); }\" } } }";
+        DesignDocument ddoc = DesignDocument.create(body, "dev_sample");
+        assertTrue(ddoc.isDevelopment());
+        View view = ddoc.getViews().get(0);
+
+        BitSet sample = new BitSet();
+        int expected = 0;
+        for (Item item : store) {
+            if (item.getKeySpec().vbId % 2 == 0) {
+                sample.set(item.getKeySpec().vbId);
+                expected++;
+            }
+        }
+        ddoc.setVBucketSample(sample);
+
+        QueryResult results = view.execute(store);
+        assertEquals(expected, results.getTotalRowCount());
+
+        Configuration config = new Configuration();
+        config.setFullSet(true);
+        results = view.execute(store, config);
+        assertEquals(40, results.getTotalRowCount());
+
+        // The sample has its own index, which is unaffected by the full set query
+        results = view.execute(store);
+        assertEquals(expected, results.getTotalRowCount());
+
+        // Production design documents always index every vBucket
+        DesignDocument prod = DesignDocument.create(body, "sample");
+        assertFalse(prod.isDevelopment());
+        prod.setVBucketSample(sample);
+        results = prod.getViews().get(0).execute(store);
+        assertEquals(40, results.getTotalRowCount());
+    }
 }